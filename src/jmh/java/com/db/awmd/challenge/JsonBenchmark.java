@@ -0,0 +1,75 @@
+package com.db.awmd.challenge;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.AccountTransfer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of the Jackson (de)serialization done for every account and transfer request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class JsonBenchmark {
+
+  private ObjectWriter writer;
+
+  private ObjectReader accountReader;
+
+  private ObjectReader transferReader;
+
+  private Account account;
+
+  private AccountTransfer accountTransfer;
+
+  private byte[] accountJson;
+
+  private byte[] transferJson;
+
+  @Setup
+  public void setup() {
+    ObjectMapper objectMapper = new ObjectMapper();
+    this.writer = objectMapper.writer();
+    this.accountReader = objectMapper.readerFor(Account.class);
+    this.transferReader = objectMapper.readerFor(AccountTransfer.class);
+    this.account = new Account("Id-123", new BigDecimal("123.45"));
+    this.accountTransfer = new AccountTransfer("Id-123", "Id-456", new BigDecimal("10.50"));
+    this.accountJson = "{\"accountId\":\"Id-123\",\"balance\":123.45}"
+        .getBytes(StandardCharsets.UTF_8);
+    this.transferJson = ("{\"accountFromId\":\"Id-123\",\"accountToId\":\"Id-456\","
+        + "\"amount\":10.50}").getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Benchmark
+  public byte[] serializeAccount() throws IOException {
+    return this.writer.writeValueAsBytes(this.account);
+  }
+
+  @Benchmark
+  public Account deserializeAccount() throws IOException {
+    return this.accountReader.readValue(this.accountJson);
+  }
+
+  @Benchmark
+  public byte[] serializeTransfer() throws IOException {
+    return this.writer.writeValueAsBytes(this.accountTransfer);
+  }
+
+  @Benchmark
+  public AccountTransfer deserializeTransfer() throws IOException {
+    return this.transferReader.readValue(this.transferJson);
+  }
+}
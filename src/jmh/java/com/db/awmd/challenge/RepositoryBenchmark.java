@@ -0,0 +1,147 @@
+package com.db.awmd.challenge;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.repository.AccountsRepository;
+import com.db.awmd.challenge.repository.AccountsRepositoryInMemory;
+import com.db.awmd.challenge.repository.CachingAccountsRepository;
+import com.db.awmd.challenge.repository.JdbcAccountsRepository;
+import com.db.awmd.challenge.repository.OffHeapAccountsRepository;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import liquibase.integration.spring.SpringLiquibase;
+import org.apache.tomcat.jdbc.pool.DataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceBuilder;
+import org.springframework.core.io.DefaultResourceLoader;
+
+/**
+ * Throughput of the repository operations on the transfer path, for each repository. The
+ * jdbc ones run on an H2 file database in a temporary directory; jdbc-cached caches every
+ * account.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class RepositoryBenchmark {
+
+  private static final int OFF_HEAP_CAPACITY = 1 << 23;
+
+  @Param({"in-memory", "off-heap", "jdbc", "jdbc-write-behind", "jdbc-cached"})
+  public String repository;
+
+  @Param("100000")
+  public int accounts;
+
+  private AccountsRepository accountsRepository;
+
+  private DataSource dataSource;
+
+  private JdbcAccountsRepository jdbcRepository;
+
+  private String[] accountIds;
+
+  private final AtomicLong created = new AtomicLong();
+
+  @Setup
+  public void setup() throws Exception {
+    if ("off-heap".equals(this.repository)) {
+      this.accountsRepository = new OffHeapAccountsRepository(OFF_HEAP_CAPACITY, 36, 4096);
+    } else if ("jdbc-cached".equals(this.repository)) {
+      this.accountsRepository = new CachingAccountsRepository(newJdbcRepository(false),
+          this.accounts);
+    } else if (this.repository.startsWith("jdbc")) {
+      this.accountsRepository = newJdbcRepository("jdbc-write-behind".equals(this.repository));
+    } else {
+      this.accountsRepository = new AccountsRepositoryInMemory();
+    }
+    this.accountIds = new String[this.accounts];
+    for (int i = 0; i < this.accounts; i++) {
+      this.accountIds[i] = "ac" + i;
+    }
+  }
+
+  /**
+   * Start every iteration from the same accounts, so created accounts do not pile up.
+   */
+  @Setup(Level.Iteration)
+  public void resetAccounts() {
+    this.accountsRepository.clearAccounts();
+    List<Account> accounts = new ArrayList<>(this.accounts);
+    for (String accountId : this.accountIds) {
+      accounts.add(new Account(accountId, BigDecimal.TEN));
+    }
+    this.accountsRepository.createAccounts(accounts);
+  }
+
+  @TearDown
+  public void tearDown() throws InterruptedException {
+    if (this.jdbcRepository != null) {
+      this.jdbcRepository.close();
+      this.dataSource.close();
+    }
+  }
+
+  @Benchmark
+  public Account getAccount() {
+    return this.accountsRepository.getAccount(randomAccountId());
+  }
+
+  @Benchmark
+  public Account updateAccount() {
+    Account account = this.accountsRepository.getAccount(randomAccountId());
+    this.accountsRepository.updateAccount(account);
+    return account;
+  }
+
+  /**
+   * The repository side of a transfer: both accounts written as one unit.
+   */
+  @Benchmark
+  public void updateAccounts() {
+    this.accountsRepository.updateAccounts(Arrays.asList(
+        this.accountsRepository.getAccount(randomAccountId()),
+        this.accountsRepository.getAccount(randomAccountId())));
+  }
+
+  @Benchmark
+  public void createAccount() {
+    this.accountsRepository.createAccount(
+        new Account("new-" + this.created.incrementAndGet(), BigDecimal.TEN));
+  }
+
+  private JdbcAccountsRepository newJdbcRepository(boolean writeBehind) throws Exception {
+    this.dataSource = (DataSource) DataSourceBuilder.create()
+        .type(DataSource.class)
+        .url("jdbc:h2:file:" + Files.createTempDirectory("accounts") + "/accounts")
+        .username("sa")
+        .build();
+    this.dataSource.setMaxActive(64);
+    SpringLiquibase liquibase = new SpringLiquibase();
+    liquibase.setDataSource(this.dataSource);
+    liquibase.setChangeLog("classpath:db/changelog/accounts.yaml");
+    liquibase.setResourceLoader(new DefaultResourceLoader());
+    liquibase.afterPropertiesSet();
+    this.jdbcRepository = new JdbcAccountsRepository(this.dataSource, writeBehind, 100, 1000);
+    this.jdbcRepository.start();
+    return this.jdbcRepository;
+  }
+
+  private String randomAccountId() {
+    return this.accountIds[ThreadLocalRandom.current().nextInt(this.accounts)];
+  }
+}
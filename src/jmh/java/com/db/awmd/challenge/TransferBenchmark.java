@@ -0,0 +1,191 @@
+package com.db.awmd.challenge;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.AccountTransfer;
+import com.db.awmd.challenge.domain.Money;
+import com.db.awmd.challenge.domain.StripedAccount;
+import com.db.awmd.challenge.repository.AccountsRepositoryInMemory;
+import com.db.awmd.challenge.service.AccountsService;
+import com.db.awmd.challenge.service.AccountsServiceImpl;
+import com.db.awmd.challenge.service.NotificationService;
+import com.db.awmd.challenge.service.OptimisticAccountsService;
+import com.db.awmd.challenge.service.RingBufferAccountsService;
+import com.db.awmd.challenge.service.ShardedAccountsService;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Throughput of {@link AccountsService#transferMoney(AccountTransfer)} of every transfer engine
+ * under different account contention patterns and thread counts, so the engines are compared
+ * side by side with the locking one. Notifications are discarded so only the transfer path is
+ * measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class TransferBenchmark {
+
+  /**
+   * How transfers pick their accounts.
+   */
+  public enum Contention {
+    /**
+     * Both accounts uniformly at random.
+     */
+    UNIFORM,
+    /**
+     * Both accounts Zipf distributed, a few hot accounts take most transfers.
+     */
+    ZIPFIAN,
+    /**
+     * Every transfer goes to the same account.
+     */
+    ALL_TO_ONE
+  }
+
+  private static final BigDecimal INITIAL_BALANCE = new BigDecimal("1000000000");
+
+  private static final double ZIPF_EXPONENT = 0.99;
+
+  /**
+   * Transfer engine, as set by {@code accounts.engine}.
+   */
+  @Param({"locking", "sharded", "ring-buffer", "optimistic"})
+  public String engine;
+
+  @Param({"UNIFORM", "ZIPFIAN", "ALL_TO_ONE"})
+  public Contention contention;
+
+  @Param("10000")
+  public int accounts;
+
+  /**
+   * Sub-balances of account ac0, the target of ALL_TO_ONE; 0 keeps it a plain account.
+   */
+  @Param({"0", "16"})
+  public int hotStripes;
+
+  private AccountsService accountsService;
+
+  private double[] zipfCumulative;
+
+  @Setup
+  public void setup() {
+    this.accountsService = newAccountsService();
+    for (int i = 0; i < this.accounts; i++) {
+      this.accountsService.createAccount(i == 0 && this.hotStripes > 0
+          ? new StripedAccount("ac0", Money.toMinorUnits(INITIAL_BALANCE), this.hotStripes)
+          : new Account("ac" + i, INITIAL_BALANCE));
+    }
+    this.zipfCumulative = new double[this.accounts];
+    double total = 0;
+    for (int i = 0; i < this.accounts; i++) {
+      total += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+      this.zipfCumulative[i] = total;
+    }
+    for (int i = 0; i < this.accounts; i++) {
+      this.zipfCumulative[i] /= total;
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws InterruptedException {
+    if (this.accountsService instanceof ShardedAccountsService) {
+      ((ShardedAccountsService) this.accountsService).shutdown();
+    } else if (this.accountsService instanceof RingBufferAccountsService) {
+      ((RingBufferAccountsService) this.accountsService).shutdown();
+    }
+  }
+
+  /**
+   * Engine with the defaults of application.yml.
+   */
+  private AccountsService newAccountsService() {
+    AccountsRepositoryInMemory accountsRepository = new AccountsRepositoryInMemory();
+    NotificationService notificationService = (account, transferDescription) -> {
+    };
+    switch (this.engine) {
+      case "locking":
+        return new AccountsServiceImpl(accountsRepository, notificationService);
+      case "sharded":
+        return new ShardedAccountsService(accountsRepository, notificationService, 0);
+      case "ring-buffer":
+        return new RingBufferAccountsService(accountsRepository, notificationService, 8192, 256,
+            "sleeping");
+      case "optimistic":
+        return new OptimisticAccountsService(accountsRepository, notificationService, 16, 1,
+            1000);
+      default:
+        throw new IllegalArgumentException("Unknown engine " + this.engine);
+    }
+  }
+
+  /**
+   * Transfers of one benchmark thread, generated up front so generating them is not measured.
+   */
+  @State(Scope.Thread)
+  public static class Transfers {
+
+    private static final int SIZE = 1 << 12;
+
+    private final AccountTransfer[] transfers = new AccountTransfer[SIZE];
+
+    private int next;
+
+    @Setup
+    public void setup(TransferBenchmark benchmark) {
+      SplittableRandom random = new SplittableRandom(Thread.currentThread().getId());
+      for (int i = 0; i < SIZE; i++) {
+        int from;
+        int to;
+        do {
+          from = benchmark.pick(random);
+          to = benchmark.contention == Contention.ALL_TO_ONE ? 0 : benchmark.pick(random);
+        } while (from == to);
+        this.transfers[i] = new AccountTransfer("ac" + from, "ac" + to, BigDecimal.ONE);
+      }
+    }
+
+    AccountTransfer next() {
+      return this.transfers[this.next++ & (SIZE - 1)];
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public boolean transfer1Thread(Transfers transfers) throws InterruptedException {
+    return this.accountsService.transferMoney(transfers.next());
+  }
+
+  @Benchmark
+  @Threads(4)
+  public boolean transfer4Threads(Transfers transfers) throws InterruptedException {
+    return this.accountsService.transferMoney(transfers.next());
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public boolean transferMaxThreads(Transfers transfers) throws InterruptedException {
+    return this.accountsService.transferMoney(transfers.next());
+  }
+
+  private int pick(SplittableRandom random) {
+    if (this.contention == Contention.ZIPFIAN) {
+      int index = Arrays.binarySearch(this.zipfCumulative, random.nextDouble());
+      return Math.min(index < 0 ? -index - 1 : index, this.accounts - 1);
+    }
+    return random.nextInt(this.accounts);
+  }
+}
@@ -0,0 +1,307 @@
+package com.db.awmd.challenge;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Open-loop HTTP load generator for the accounts API.
+ *
+ * <p>Creates the accounts, then sends transfers at a fixed rate for a fixed time, picking both
+ * accounts from a Zipf distribution. Every request has an intended start time on the schedule
+ * and its latency is measured from that time, not from when it was actually sent, so a stalled
+ * server shows up in the latencies instead of silently lowering the request rate (coordinated
+ * omission). At the end every balance is read back to check no money was created or lost.
+ *
+ * <p>Without {@code --url} the application is started in-process on its configured port.
+ * Options, all {@code --name=value}: {@code url}, {@code accounts} (1000), {@code rate} in
+ * transfers per second (2000), {@code duration} in seconds (30), {@code threads} (64),
+ * {@code zipf-exponent} (0.99) and {@code report}, the file the latency histogram is written
+ * to (build/reports/loadtest/latency.hgrm).
+ */
+public final class LoadTest {
+
+  private static final BigDecimal INITIAL_BALANCE = new BigDecimal("1000.00");
+
+  private static final BigDecimal AMOUNT = new BigDecimal("1.00");
+
+  private static final long HIGHEST_LATENCY_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+  private final String url;
+  private final int accounts;
+  private final int rate;
+  private final int durationSeconds;
+  private final int threads;
+  private final double zipfExponent;
+  private final File report;
+
+  private final String runId = Long.toString(System.currentTimeMillis(), 36);
+  private final ObjectMapper objectMapper =
+      new ObjectMapper().enable(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS);
+
+  private final LongAdder ok = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder locked = new LongAdder();
+  private final LongAdder shed = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+
+  private double[] zipfCumulative;
+
+  private LoadTest(String url, Options options) {
+    this.url = url;
+    this.accounts = options.intValue("accounts", 1000);
+    this.rate = options.intValue("rate", 2000);
+    this.durationSeconds = options.intValue("duration", 30);
+    this.threads = options.intValue("threads", 64);
+    this.zipfExponent = Double.parseDouble(options.value("zipf-exponent", "0.99"));
+    this.report = new File(options.value("report", "build/reports/loadtest/latency.hgrm"));
+  }
+
+  public static void main(String[] args) throws Exception {
+    Options options = new Options(args);
+    ConfigurableApplicationContext application = null;
+    String url = options.value("url", null);
+    if (url == null) {
+      application = SpringApplication.run(DevChallengeApplication.class);
+      url = "http://localhost:" + application.getEnvironment().getProperty("local.server.port");
+    }
+    boolean conserved;
+    try {
+      conserved = new LoadTest(url, options).run();
+    } finally {
+      if (application != null) {
+        application.close();
+      }
+    }
+    System.exit(conserved ? 0 : 1);
+  }
+
+  private boolean run() throws Exception {
+    buildZipf();
+    ExecutorService executor = Executors.newFixedThreadPool(this.threads);
+    try {
+      List<Future<?>> creations = new ArrayList<>();
+      for (int t = 0; t < this.threads; t++) {
+        int first = t;
+        creations.add(executor.submit(() -> {
+          for (int i = first; i < this.accounts; i += this.threads) {
+            expect(201, post("/v1/accounts", format("{\"accountId\":\"%s\",\"balance\":%s}",
+                accountId(i), INITIAL_BALANCE)));
+          }
+          return null;
+        }));
+      }
+      for (Future<?> creation : creations) {
+        creation.get();
+      }
+
+      long intervalNanos = TimeUnit.SECONDS.toNanos(1) / this.rate;
+      long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+      long end = start + TimeUnit.SECONDS.toNanos(this.durationSeconds);
+      List<Future<Histogram>> workers = new ArrayList<>();
+      for (int t = 0; t < this.threads; t++) {
+        int worker = t;
+        workers.add(executor.submit(() -> drive(worker, start, end, intervalNanos)));
+      }
+      Histogram latencies = new Histogram(HIGHEST_LATENCY_NANOS, 3);
+      for (Future<Histogram> worker : workers) {
+        latencies.add(worker.get());
+      }
+      long elapsedNanos = System.nanoTime() - start;
+
+      BigDecimal total = BigDecimal.ZERO;
+      for (int i = 0; i < this.accounts; i++) {
+        total = total.add(balance(accountId(i)));
+      }
+      BigDecimal expected = INITIAL_BALANCE.multiply(BigDecimal.valueOf(this.accounts));
+      boolean conserved = total.compareTo(expected) == 0;
+      report(latencies, elapsedNanos, total, expected, conserved);
+      return conserved;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Send the transfers of the schedule slots owned by this worker: slot {@code i} is due at
+   * {@code start + i * interval}, and worker {@code w} owns the slots {@code i % threads == w}.
+   */
+  private Histogram drive(int worker, long start, long end, long intervalNanos) {
+    Histogram latencies = new Histogram(HIGHEST_LATENCY_NANOS, 3);
+    SplittableRandom random = new SplittableRandom(worker);
+    for (long slot = worker; ; slot += this.threads) {
+      long intended = start + slot * intervalNanos;
+      if (intended >= end) {
+        return latencies;
+      }
+      for (long wait = intended - System.nanoTime(); wait > 0;
+           wait = intended - System.nanoTime()) {
+        LockSupport.parkNanos(wait);
+      }
+      int from = pick(random);
+      int to;
+      do {
+        to = pick(random);
+      } while (to == from);
+      int status;
+      try {
+        status = post("/v1/accounts/transfer",
+            format("{\"accountFromId\":\"%s\",\"accountToId\":\"%s\",\"amount\":%s}",
+                accountId(from), accountId(to), AMOUNT));
+      } catch (IOException e) {
+        status = -1;
+      }
+      latencies.recordValue(Math.min(System.nanoTime() - intended, HIGHEST_LATENCY_NANOS));
+      if (status == 200) {
+        this.ok.increment();
+      } else if (status == 400) {
+        this.rejected.increment();
+      } else if (status == 423) {
+        this.locked.increment();
+      } else if (status == 429 || status == 503) {
+        this.shed.increment();
+      } else {
+        this.failed.increment();
+      }
+    }
+  }
+
+  private void report(Histogram latencies, long elapsedNanos, BigDecimal total,
+                      BigDecimal expected, boolean conserved) throws IOException {
+    PrintStream out = System.out;
+    long requests = latencies.getTotalCount();
+    out.println();
+    out.printf("Transfers: %d in %.1f s, %.0f/s (target %d/s)%n", requests,
+        elapsedNanos / 1e9, requests * 1e9 / elapsedNanos, this.rate);
+    out.printf("Responses: %d ok, %d not enough balance, %d locked, %d shed, %d failed%n",
+        this.ok.sum(), this.rejected.sum(), this.locked.sum(), this.shed.sum(),
+        this.failed.sum());
+    out.printf("Goodput: %.0f/s%n", this.ok.sum() * 1e9 / elapsedNanos);
+    out.printf("Latency ms: p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f%n",
+        latencies.getValueAtPercentile(50) / 1e6, latencies.getValueAtPercentile(90) / 1e6,
+        latencies.getValueAtPercentile(99) / 1e6, latencies.getValueAtPercentile(99.9) / 1e6,
+        latencies.getMaxValue() / 1e6);
+    out.printf("Money %s: total %s, expected %s%n", conserved ? "conserved" : "NOT CONSERVED",
+        total, expected);
+
+    File directory = this.report.getAbsoluteFile().getParentFile();
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create " + directory);
+    }
+    try (PrintStream histogram = new PrintStream(this.report, "UTF-8")) {
+      latencies.outputPercentileDistribution(histogram, 1e6);
+    }
+    out.println("Latency distribution in ms written to " + this.report);
+  }
+
+  private void buildZipf() {
+    this.zipfCumulative = new double[this.accounts];
+    double total = 0;
+    for (int i = 0; i < this.accounts; i++) {
+      total += 1 / Math.pow(i + 1, this.zipfExponent);
+      this.zipfCumulative[i] = total;
+    }
+    for (int i = 0; i < this.accounts; i++) {
+      this.zipfCumulative[i] /= total;
+    }
+  }
+
+  private int pick(SplittableRandom random) {
+    int index = Arrays.binarySearch(this.zipfCumulative, random.nextDouble());
+    return Math.min(index < 0 ? -index - 1 : index, this.accounts - 1);
+  }
+
+  private String accountId(int index) {
+    return "lt-" + this.runId + "-" + index;
+  }
+
+  private BigDecimal balance(String accountId) throws IOException {
+    HttpURLConnection connection =
+        (HttpURLConnection) new URL(this.url + "/v1/accounts/" + accountId).openConnection();
+    expect(200, connection.getResponseCode());
+    try (InputStream in = connection.getInputStream()) {
+      JsonNode account = this.objectMapper.readTree(in);
+      return account.get("balance").decimalValue();
+    }
+  }
+
+  private int post(String path, String json) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(this.url + path).openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.setRequestProperty("Content-Type", "application/json");
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(json.getBytes(StandardCharsets.UTF_8));
+    }
+    int status = connection.getResponseCode();
+    // Read the body to the end so the connection goes back to the keep-alive pool
+    try (InputStream in = status >= 400 ? connection.getErrorStream()
+        : connection.getInputStream()) {
+      if (in != null) {
+        byte[] buffer = new byte[1024];
+        while (in.read(buffer) >= 0) {
+          // Discard
+        }
+      }
+    }
+    return status;
+  }
+
+  private static void expect(int expected, int status) throws IOException {
+    if (status != expected) {
+      throw new IOException("Expected HTTP " + expected + " but got " + status);
+    }
+  }
+
+  private static String format(String format, Object... args) {
+    return String.format(format, args);
+  }
+
+  /**
+   * Command line options given as {@code --name=value}.
+   */
+  private static final class Options {
+
+    private final String[] args;
+
+    private Options(String[] args) {
+      this.args = args;
+    }
+
+    String value(String name, String defaultValue) {
+      String prefix = "--" + name + "=";
+      for (String arg : this.args) {
+        if (arg.startsWith(prefix)) {
+          return arg.substring(prefix.length());
+        }
+      }
+      return defaultValue;
+    }
+
+    int intValue(String name, int defaultValue) {
+      return Integer.parseInt(value(name, Integer.toString(defaultValue)));
+    }
+  }
+}
@@ -2,8 +2,10 @@ package com.db.awmd.challenge;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
 
-@SpringBootApplication
+// The data source, when there is one, comes from JdbcRepositoryConfiguration
+@SpringBootApplication(exclude = DataSourceAutoConfiguration.class)
 public class DevChallengeApplication {
 
   public static void main(String[] args) {
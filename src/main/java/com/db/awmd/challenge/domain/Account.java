@@ -4,6 +4,7 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import java.math.BigDecimal;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
@@ -12,44 +13,119 @@ import lombok.Data;
 import org.hibernate.validator.constraints.NotEmpty;
 
 @Data
-@Builder
 public class Account {
 
+  private static final AtomicLongFieldUpdater<Account> BALANCE =
+      AtomicLongFieldUpdater.newUpdater(Account.class, "balance");
+
+  private static final AtomicLongFieldUpdater<Account> VERSION =
+      AtomicLongFieldUpdater.newUpdater(Account.class, "version");
+
   @NotNull
   @NotEmpty
   private final String accountId;
 
-  @NotNull
-  @Min(value = 0, message = "Initial balance must be positive.")
-  private BigDecimal balance;
+  // Minor units, see Money. Volatile so single-writer engines can publish balances without
+  // taking the write lock, and updated through BALANCE by the lock-free operations
+  private volatile long balance;
 
+  // Bumped by the compare-and-set updates of AccountsRepository, see AccountSnapshot. A
+  // lock-free update marks the account as held by the complement of the version, a negative
   @JsonIgnore
-  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private volatile long version;
+
+  @JsonIgnore
+  private final ReentrantReadWriteLock lock;
 
   public Account(String accountId) {
     this.accountId = accountId;
-    this.balance = BigDecimal.ZERO;
+    this.lock = new ReentrantReadWriteLock();
   }
 
+  @Builder
   @JsonCreator
   public Account(@JsonProperty("accountId") String accountId,
                  @JsonProperty("balance") BigDecimal balance) {
     this.accountId = accountId;
-    this.balance = balance;
+    this.balance = Money.toMinorUnits(balance);
+    this.lock = new ReentrantReadWriteLock();
   }
 
+  /**
+   * Account whose lock is shared with other accounts, for repositories that stripe locks.
+   */
+  protected Account(String accountId, ReentrantReadWriteLock lock) {
+    this.accountId = accountId;
+    this.lock = lock;
+  }
+
+  @Min(value = 0, message = "Initial balance must be positive.")
   public BigDecimal getBalance() {
-    lock.readLock().lock();
-    BigDecimal balanceGot;
-    try {
-      balanceGot = this.balance;
-    } finally {
-      lock.readLock().unlock();
-    }
-    return balanceGot;
-  }
-
-  public boolean hasBalance(BigDecimal amount) {
-    return balance.compareTo(amount) >= 0;
+    return Money.toDecimal(getBalanceMinorUnits());
+  }
+
+  public void setBalance(BigDecimal balance) {
+    setBalanceMinorUnits(Money.toMinorUnits(balance));
+  }
+
+  @JsonIgnore
+  public long getBalanceMinorUnits() {
+    return this.balance;
+  }
+
+  public void setBalanceMinorUnits(long balance) {
+    this.balance = balance;
+  }
+
+  public boolean hasBalance(long amount) {
+    return getBalanceMinorUnits() >= amount;
+  }
+
+  /**
+   * Position of the account lock in the global lock order; accounts are locked by ascending
+   * lock order, then by account id. Accounts sharing a lock must share the lock order.
+   */
+  @JsonIgnore
+  public int getLockOrder() {
+    return 0;
+  }
+
+  /**
+   * Atomically set the version if it is still the expected one, without taking the lock.
+   *
+   * @return false if the version is another one, leaving it untouched
+   */
+  public boolean compareAndSetVersion(long expected, long version) {
+    return VERSION.compareAndSet(this, expected, version);
+  }
+
+  /**
+   * Atomically withdraw the amount if the balance covers it, without taking the lock.
+   *
+   * @param amount amount in minor units
+   * @return false if the balance is not enough, leaving it untouched
+   */
+  public boolean withdraw(long amount) {
+    long current;
+    do {
+      current = this.balance;
+      if (current < amount) {
+        return false;
+      }
+    } while (!BALANCE.compareAndSet(this, current, current - amount));
+    return true;
+  }
+
+  /**
+   * Atomically deposit the amount, without taking the lock.
+   *
+   * @param amount amount in minor units
+   * @throws ArithmeticException if the balance would overflow, leaving it untouched
+   */
+  public void deposit(long amount) {
+    long current;
+    do {
+      current = this.balance;
+    } while (!BALANCE.compareAndSet(this, current, Math.addExact(current, amount)));
   }
 }
@@ -0,0 +1,20 @@
+package com.db.awmd.challenge.domain;
+
+import java.util.List;
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * One page of accounts, ordered by id.
+ */
+@Data
+@Builder
+public class AccountPage {
+
+  private final List<Account> accounts;
+
+  /**
+   * Cursor of the next page; null when this page is the last one.
+   */
+  private final String nextCursor;
+}
@@ -0,0 +1,27 @@
+package com.db.awmd.challenge.domain;
+
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * Balance of an account as of one version, for compare-and-set updates. Every change of the
+ * balance through a compare-and-set gets the next version.
+ */
+@Data
+@Builder
+public class AccountSnapshot {
+
+  private final String accountId;
+
+  private final long balanceMinorUnits;
+
+  private final long version;
+
+  public static AccountSnapshot of(Account account) {
+    return AccountSnapshot.builder()
+        .accountId(account.getAccountId())
+        .balanceMinorUnits(account.getBalanceMinorUnits())
+        .version(account.getVersion())
+        .build();
+  }
+}
@@ -1,6 +1,7 @@
 package com.db.awmd.challenge.domain;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import java.math.BigDecimal;
 import javax.validation.constraints.Min;
@@ -10,7 +11,6 @@ import lombok.Data;
 import org.hibernate.validator.constraints.NotEmpty;
 
 @Data
-@Builder
 public class AccountTransfer {
 
   @NotNull
@@ -21,16 +21,31 @@ public class AccountTransfer {
   @NotEmpty
   private final String accountToId;
 
-  @NotNull
-  @Min(value = 0, message = "You must transfer a positive value")
-  private BigDecimal amount;
+  /**
+   * Amount in minor units, see {@link Money}. The JSON amount must fit the currency scale.
+   */
+  @JsonIgnore
+  private final long amountMinorUnits;
+
+  /**
+   * Id of the scheduled transfer this transfer executes, 0 for a transfer made directly. It is
+   * journaled with the transfer, so a retried scheduled transfer is applied once.
+   */
+  @JsonIgnore
+  private long scheduledId;
 
+  @Builder
   @JsonCreator
   public AccountTransfer(@JsonProperty("accountFromId") String accountFromId,
                          @JsonProperty("accountToId") String accountToId,
                          @JsonProperty("amount") BigDecimal amount) {
     this.accountFromId = accountFromId;
     this.accountToId = accountToId;
-    this.amount = amount;
+    this.amountMinorUnits = Money.toMinorUnits(amount);
+  }
+
+  @Min(value = 0, message = "You must transfer a positive value")
+  public BigDecimal getAmount() {
+    return Money.toDecimal(this.amountMinorUnits);
   }
 }
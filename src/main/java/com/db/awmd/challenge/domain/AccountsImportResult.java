@@ -0,0 +1,54 @@
+package com.db.awmd.challenge.domain;
+
+import java.util.List;
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * Outcome of a bulk import of accounts.
+ */
+@Data
+@Builder
+public class AccountsImportResult {
+
+  public enum Status {
+    INVALID,
+    DUPLICATE,
+    /**
+     * The repository holds as many accounts as it can.
+     */
+    STORAGE_FULL
+  }
+
+  /**
+   * A line of the import that did not create an account.
+   */
+  @Data
+  @Builder
+  public static class Rejection {
+
+    /**
+     * Line of the rejected account, counting from 1 and including any header.
+     */
+    private final long line;
+
+    private final String accountId;
+
+    private final Status status;
+
+    private final String message;
+  }
+
+  private final long imported;
+
+  private final long invalid;
+
+  private final long duplicates;
+
+  private final long storageFull;
+
+  /**
+   * The first rejected lines, up to the configured maximum; the counts cover all of them.
+   */
+  private final List<Rejection> rejections;
+}
@@ -0,0 +1,48 @@
+package com.db.awmd.challenge.domain;
+
+import java.math.BigDecimal;
+
+/**
+ * Conversions between decimal amounts, as exposed by the REST API, and the {@code long} minor
+ * units (cents) balances and transfers are stored and computed in.
+ */
+public final class Money {
+
+  /**
+   * Number of decimal places of the currency.
+   */
+  public static final int SCALE = 2;
+
+  private Money() {
+  }
+
+  /**
+   * Convert a decimal amount to minor units.
+   *
+   * @param amount the amount
+   * @return the amount in minor units
+   * @throws IllegalArgumentException if the amount is missing, has more decimal places than
+   *                                  the currency or does not fit in a long
+   */
+  public static long toMinorUnits(BigDecimal amount) {
+    if (amount == null) {
+      throw new IllegalArgumentException("Amount is required");
+    }
+    try {
+      return amount.setScale(SCALE).unscaledValue().longValueExact();
+    } catch (ArithmeticException e) {
+      throw new IllegalArgumentException(
+          "Amount " + amount + " must be a number with at most " + SCALE + " decimal places", e);
+    }
+  }
+
+  /**
+   * Convert minor units to a decimal amount.
+   *
+   * @param minorUnits the amount in minor units
+   * @return the decimal amount, with the currency scale
+   */
+  public static BigDecimal toDecimal(long minorUnits) {
+    return BigDecimal.valueOf(minorUnits, SCALE);
+  }
+}
@@ -0,0 +1,82 @@
+package com.db.awmd.challenge.domain;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import javax.validation.Valid;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import lombok.Builder;
+import lombok.Data;
+import org.hibernate.validator.constraints.NotEmpty;
+
+/**
+ * One debit of a source account fanned out to credits of many accounts, applied all or
+ * nothing, such as a payroll or a split payment.
+ */
+@Data
+public class MultiLegTransfer {
+
+  /**
+   * One credit of a multi-leg transfer.
+   */
+  @Data
+  public static class Leg {
+
+    @NotNull
+    @NotEmpty
+    private final String accountToId;
+
+    /**
+     * Amount in minor units, see {@link Money}. The JSON amount must fit the currency scale.
+     */
+    @JsonIgnore
+    private final long amountMinorUnits;
+
+    @Builder
+    @JsonCreator
+    public Leg(@JsonProperty("accountToId") String accountToId,
+               @JsonProperty("amount") BigDecimal amount) {
+      this.accountToId = accountToId;
+      this.amountMinorUnits = Money.toMinorUnits(amount);
+    }
+
+    @Min(value = 0, message = "You must transfer a positive value")
+    public BigDecimal getAmount() {
+      return Money.toDecimal(this.amountMinorUnits);
+    }
+  }
+
+  @NotNull
+  @NotEmpty
+  private final String accountFromId;
+
+  @NotNull
+  @NotEmpty
+  @Valid
+  private final List<Leg> legs;
+
+  @Builder
+  @JsonCreator
+  public MultiLegTransfer(@JsonProperty("accountFromId") String accountFromId,
+                          @JsonProperty("legs") List<Leg> legs) {
+    this.accountFromId = accountFromId;
+    this.legs = legs;
+  }
+
+  /**
+   * Every leg as a transfer from the source account, in order.
+   */
+  @JsonIgnore
+  public List<AccountTransfer> getTransfers() {
+    List<AccountTransfer> transfers = new ArrayList<>(this.legs.size());
+    for (Leg leg : this.legs) {
+      transfers.add(new AccountTransfer(this.accountFromId, leg.getAccountToId(),
+          leg.getAmount()));
+    }
+    return transfers;
+  }
+}
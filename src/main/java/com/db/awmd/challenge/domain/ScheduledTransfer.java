@@ -0,0 +1,91 @@
+package com.db.awmd.challenge.domain;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.math.BigDecimal;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import lombok.Builder;
+import lombok.Data;
+import org.hibernate.validator.constraints.NotEmpty;
+
+/**
+ * Transfer to execute at a given time, such as a standing order or a value-dated payment.
+ * The id is given by the scheduler when the transfer is accepted.
+ */
+@Data
+public class ScheduledTransfer {
+
+  private final long id;
+
+  @NotNull
+  @NotEmpty
+  private final String accountFromId;
+
+  @NotNull
+  @NotEmpty
+  private final String accountToId;
+
+  /**
+   * Amount in minor units, see {@link Money}. The JSON amount must fit the currency scale.
+   */
+  @JsonIgnore
+  private final long amountMinorUnits;
+
+  /**
+   * Execution time in milliseconds since the epoch; a time in the past executes right away.
+   */
+  @NotNull
+  private final Long executeAt;
+
+  @Builder
+  public ScheduledTransfer(long id, String accountFromId, String accountToId,
+                           long amountMinorUnits, Long executeAt) {
+    this.id = id;
+    this.accountFromId = accountFromId;
+    this.accountToId = accountToId;
+    this.amountMinorUnits = amountMinorUnits;
+    this.executeAt = executeAt;
+  }
+
+  @JsonCreator
+  public ScheduledTransfer(@JsonProperty("accountFromId") String accountFromId,
+                           @JsonProperty("accountToId") String accountToId,
+                           @JsonProperty("amount") BigDecimal amount,
+                           @JsonProperty("executeAt") Long executeAt) {
+    this(0, accountFromId, accountToId, Money.toMinorUnits(amount), executeAt);
+  }
+
+  @Min(value = 0, message = "You must transfer a positive value")
+  public BigDecimal getAmount() {
+    return Money.toDecimal(this.amountMinorUnits);
+  }
+
+  /**
+   * The same transfer under the given id.
+   */
+  public ScheduledTransfer withId(long id) {
+    return new ScheduledTransfer(id, this.accountFromId, this.accountToId,
+        this.amountMinorUnits, this.executeAt);
+  }
+
+  /**
+   * The same transfer due at another time, keeping its id.
+   */
+  public ScheduledTransfer withExecuteAt(long executeAt) {
+    return new ScheduledTransfer(this.id, this.accountFromId, this.accountToId,
+        this.amountMinorUnits, executeAt);
+  }
+
+  /**
+   * The transfer to apply when it is due.
+   */
+  @JsonIgnore
+  public AccountTransfer getTransfer() {
+    AccountTransfer transfer = new AccountTransfer(this.accountFromId, this.accountToId,
+        getAmount());
+    transfer.setScheduledId(this.id);
+    return transfer;
+  }
+}
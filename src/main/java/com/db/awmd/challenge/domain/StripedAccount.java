@@ -0,0 +1,107 @@
+package com.db.awmd.challenge.domain;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Account whose balance is split into striped sub-balances, for hot accounts receiving many
+ * concurrent deposits.
+ *
+ * <p>A deposit lands on the stripe of the calling thread, so deposits from different threads
+ * rarely touch the same cache line and need neither the account lock nor a shared CAS. A
+ * withdrawal takes from its own stripe first and borrows from the others when it does not
+ * cover the amount. The balance is the sum of the stripes; it is exact once concurrent
+ * deposits are done.
+ */
+public class StripedAccount extends Account {
+
+  // Longs per stripe, so each stripe sits on its own 64 byte cache line
+  private static final int PADDING = 8;
+
+  private final AtomicLongArray stripes;
+
+  private final int stripeMask;
+
+  /**
+   * Create the account with its whole balance on the first stripe.
+   *
+   * @param accountId the account id
+   * @param balance   balance in minor units
+   * @param stripes   number of stripes, a power of two
+   */
+  public StripedAccount(String accountId, long balance, int stripes) {
+    super(accountId, new ReentrantReadWriteLock());
+    if (stripes <= 0 || Integer.bitCount(stripes) != 1) {
+      throw new IllegalArgumentException("Stripes must be a power of two: " + stripes);
+    }
+    this.stripes = new AtomicLongArray(stripes * PADDING);
+    this.stripeMask = stripes - 1;
+    this.stripes.set(0, balance);
+  }
+
+  @Override
+  public long getBalanceMinorUnits() {
+    long balance = 0;
+    for (int i = 0; i <= this.stripeMask; i++) {
+      balance += this.stripes.get(i * PADDING);
+    }
+    return balance;
+  }
+
+  /**
+   * Replace the balance. Callers must exclude concurrent withdrawals and deposits.
+   */
+  @Override
+  public void setBalanceMinorUnits(long balance) {
+    for (int i = 1; i <= this.stripeMask; i++) {
+      this.stripes.set(i * PADDING, 0);
+    }
+    this.stripes.set(0, balance);
+  }
+
+  /**
+   * Withdraw the amount, borrowing across stripes. Concurrent withdrawals may each see the
+   * other's partial take and fail although together they fit, so transfers serialize
+   * withdrawals on the account lock; deposits can still run alongside.
+   */
+  @Override
+  public boolean withdraw(long amount) {
+    int home = stripe();
+    long taken = 0;
+    for (int i = 0; i <= this.stripeMask && taken < amount; i++) {
+      int index = ((home + i) & this.stripeMask) * PADDING;
+      long current;
+      long take;
+      do {
+        current = this.stripes.get(index);
+        take = Math.min(Math.max(current, 0), amount - taken);
+      } while (take > 0 && !this.stripes.compareAndSet(index, current, current - take));
+      taken += take;
+    }
+    if (taken < amount) {
+      this.stripes.getAndAdd(home * PADDING, taken);
+      return false;
+    }
+    return true;
+  }
+
+  @Override
+  public void deposit(long amount) {
+    int index = stripe() * PADDING;
+    long current;
+    do {
+      current = this.stripes.get(index);
+    } while (!this.stripes.compareAndSet(index, current, Math.addExact(current, amount)));
+  }
+
+  @JsonIgnore
+  public int getStripes() {
+    return this.stripeMask + 1;
+  }
+
+  private int stripe() {
+    long id = Thread.currentThread().getId();
+    return (int) (id ^ (id >>> 16)) & this.stripeMask;
+  }
+}
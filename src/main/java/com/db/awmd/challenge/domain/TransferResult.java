@@ -0,0 +1,34 @@
+package com.db.awmd.challenge.domain;
+
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * Outcome of one transfer of a batch.
+ */
+@Data
+@Builder
+public class TransferResult {
+
+  public enum Status {
+    OK,
+    INVALID,
+    SAME_ACCOUNT,
+    NOT_FOUND,
+    NOT_ENOUGH_BALANCE,
+    LOCKED,
+    /**
+     * A scheduled transfer found applied by an earlier attempt, and not applied again.
+     */
+    ALREADY_APPLIED
+  }
+
+  /**
+   * Position of the transfer in the submitted batch.
+   */
+  private final int index;
+
+  private final Status status;
+
+  private final String message;
+}
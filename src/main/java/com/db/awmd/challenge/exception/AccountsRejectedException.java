@@ -0,0 +1,29 @@
+package com.db.awmd.challenge.exception;
+
+import java.util.List;
+import java.util.Map;
+import lombok.Getter;
+
+/**
+ * Accounts of a batch that could not be created, thrown once the rest of the batch is created.
+ */
+@Getter
+public class AccountsRejectedException extends RuntimeException {
+
+  /**
+   * Positions in the batch of the accounts whose id already exists, ascending.
+   */
+  private final List<Integer> duplicates;
+
+  /**
+   * Why each other account was not created, by position in the batch.
+   */
+  private final Map<Integer, RuntimeException> rejections;
+
+  public AccountsRejectedException(List<Integer> duplicates,
+                                   Map<Integer, RuntimeException> rejections) {
+    super(rejections.size() + " accounts of the batch not created");
+    this.duplicates = duplicates;
+    this.rejections = rejections;
+  }
+}
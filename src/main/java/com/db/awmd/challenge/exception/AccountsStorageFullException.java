@@ -0,0 +1,11 @@
+package com.db.awmd.challenge.exception;
+
+/**
+ * The repository holds as many accounts as it can, so no account can be created.
+ */
+public class AccountsStorageFullException extends RuntimeException {
+
+  public AccountsStorageFullException(String message) {
+    super(message);
+  }
+}
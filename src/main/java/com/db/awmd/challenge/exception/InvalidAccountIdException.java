@@ -0,0 +1,11 @@
+package com.db.awmd.challenge.exception;
+
+/**
+ * An account id the repository cannot store, such as one longer than it allows.
+ */
+public class InvalidAccountIdException extends RuntimeException {
+
+  public InvalidAccountIdException(String message) {
+    super(message);
+  }
+}
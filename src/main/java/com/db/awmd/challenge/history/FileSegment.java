@@ -0,0 +1,138 @@
+package com.db.awmd.challenge.history;
+
+import com.db.awmd.challenge.domain.Money;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * Sealed segment spilled to disk and memory-mapped. Reads use absolute gets only, so the
+ * segment is safe to share between threads.
+ *
+ * <p>Layout: a header, then fixed-size records (timestamp, amount in minor units, numbers of
+ * the source and destination accounts), then the offsets of the account entries and the
+ * entries themselves, sorted by account id. An entry is the account id, the previous segment
+ * holding the account and the positions of its records.
+ */
+final class FileSegment extends HistorySegment {
+
+  static final int MAGIC = 0x48495354;
+  static final int VERSION = 1;
+
+  static final int HEADER_BYTES = 28;
+  static final int RECORD_BYTES = 24;
+
+  private final ByteBuffer buffer;
+  private final int recordCount;
+  private final int accountCount;
+
+  private FileSegment(int id, long firstSequence, ByteBuffer buffer, int recordCount,
+                      int accountCount) {
+    super(id, firstSequence);
+    this.buffer = buffer;
+    this.recordCount = recordCount;
+    this.accountCount = accountCount;
+  }
+
+  static FileSegment open(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+        throw new IOException("Not a transfer history segment: " + path);
+      }
+      return new FileSegment(buffer.getInt(8), buffer.getLong(12), buffer, buffer.getInt(20),
+          buffer.getInt(24));
+    }
+  }
+
+  @Override
+  Entries entries(String accountId) {
+    int low = 0;
+    int high = this.accountCount - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int entry = entryOffset(middle);
+      int comparison = compare(entry, accountId);
+      if (comparison < 0) {
+        low = middle + 1;
+      } else if (comparison > 0) {
+        high = middle - 1;
+      } else {
+        int positions = entry + 2 + 2 * accountId.length() + 8;
+        return new Entries(this.buffer.getInt(positions - 4), this.buffer.getInt(positions - 8)) {
+          @Override
+          int position(int index) {
+            return buffer.getInt(positions + 4 * index);
+          }
+        };
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Number of records in the segment.
+   */
+  int size() {
+    return this.recordCount;
+  }
+
+  /**
+   * Feed the id of every account holding records in the segment to the consumer.
+   */
+  void forEachAccountId(Consumer<String> consumer) {
+    for (int account = 0; account < this.accountCount; account++) {
+      consumer.accept(accountId(entryOffset(account)));
+    }
+  }
+
+  @Override
+  long timestamp(int position) {
+    return this.buffer.getLong(recordOffset(position));
+  }
+
+  @Override
+  TransferRecord record(int position) {
+    int offset = recordOffset(position);
+    return TransferRecord.builder()
+        .sequence(this.firstSequence + position)
+        .timestamp(this.buffer.getLong(offset))
+        .amount(Money.toDecimal(this.buffer.getLong(offset + 8)))
+        .accountFromId(accountId(entryOffset(this.buffer.getInt(offset + 16))))
+        .accountToId(accountId(entryOffset(this.buffer.getInt(offset + 20))))
+        .build();
+  }
+
+  private int recordOffset(int position) {
+    return HEADER_BYTES + position * RECORD_BYTES;
+  }
+
+  private int entryOffset(int account) {
+    return this.buffer.getInt(HEADER_BYTES + this.recordCount * RECORD_BYTES + 4 * account);
+  }
+
+  private String accountId(int entry) {
+    char[] chars = new char[this.buffer.getShort(entry)];
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = this.buffer.getChar(entry + 2 + 2 * i);
+    }
+    return new String(chars);
+  }
+
+  /**
+   * Compare the id of the entry with the account id, like {@link String#compareTo(String)}.
+   */
+  private int compare(int entry, String accountId) {
+    int length = this.buffer.getShort(entry);
+    for (int i = 0; i < Math.min(length, accountId.length()); i++) {
+      int difference = this.buffer.getChar(entry + 2 + 2 * i) - accountId.charAt(i);
+      if (difference != 0) {
+        return difference;
+      }
+    }
+    return length - accountId.length();
+  }
+}
@@ -0,0 +1,54 @@
+package com.db.awmd.challenge.history;
+
+/**
+ * A run of consecutive transfers of the history with its own per-account index.
+ */
+abstract class HistorySegment {
+
+  /**
+   * The records of one account in a segment.
+   */
+  abstract static class Entries {
+
+    /**
+     * Number of records of the account in the segment.
+     */
+    final int count;
+
+    /**
+     * Id of the previous segment holding records of the account, -1 if there is none.
+     */
+    final int previousSegment;
+
+    Entries(int count, int previousSegment) {
+      this.count = count;
+      this.previousSegment = previousSegment;
+    }
+
+    /**
+     * Position in the segment of the index-th record of the account, ascending with index.
+     */
+    abstract int position(int index);
+  }
+
+  final int id;
+
+  /**
+   * Sequence of the record at position 0.
+   */
+  final long firstSequence;
+
+  HistorySegment(int id, long firstSequence) {
+    this.id = id;
+    this.firstSequence = firstSequence;
+  }
+
+  /**
+   * The records of the account in this segment, or null if it has none.
+   */
+  abstract Entries entries(String accountId);
+
+  abstract long timestamp(int position);
+
+  abstract TransferRecord record(int position);
+}
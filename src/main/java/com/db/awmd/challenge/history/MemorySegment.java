@@ -0,0 +1,173 @@
+package com.db.awmd.challenge.history;
+
+import com.db.awmd.challenge.domain.Money;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+/**
+ * Segment being filled, held on the heap. Records are only appended; the caller serializes
+ * appends and takes {@link #entries(String)} of the segment being filled under the same lock.
+ * Records below the count returned then are never changed and can be read without the lock.
+ */
+final class MemorySegment extends HistorySegment {
+
+  private static final class AccountPositions {
+
+    private int[] positions = new int[4];
+    private int count;
+    private final int previousSegment;
+
+    private AccountPositions(int previousSegment) {
+      this.previousSegment = previousSegment;
+    }
+  }
+
+  private final long[] timestamps;
+  private final long[] amounts;
+  private final String[] accountFromIds;
+  private final String[] accountToIds;
+  private int size;
+
+  private final Map<String, AccountPositions> index = new HashMap<>();
+
+  MemorySegment(int id, long firstSequence, int capacity) {
+    super(id, firstSequence);
+    this.timestamps = new long[capacity];
+    this.amounts = new long[capacity];
+    this.accountFromIds = new String[capacity];
+    this.accountToIds = new String[capacity];
+  }
+
+  boolean isFull() {
+    return this.size == this.timestamps.length;
+  }
+
+  int size() {
+    return this.size;
+  }
+
+  long lastTimestamp() {
+    return this.timestamps[this.size - 1];
+  }
+
+  /**
+   * Append a record.
+   *
+   * @param previousSegment gives the previous segment holding an account, asked once per
+   *                        account the first time it shows up in this segment
+   */
+  void append(long timestamp, String accountFromId, String accountToId, long amount,
+              ToIntFunction<String> previousSegment) {
+    int position = this.size;
+    this.timestamps[position] = timestamp;
+    this.amounts[position] = amount;
+    this.accountFromIds[position] = accountFromId;
+    this.accountToIds[position] = accountToId;
+    index(accountFromId, position, previousSegment);
+    index(accountToId, position, previousSegment);
+    this.size = position + 1;
+  }
+
+  @Override
+  Entries entries(String accountId) {
+    AccountPositions account = this.index.get(accountId);
+    if (account == null) {
+      return null;
+    }
+    int[] positions = account.positions;
+    return new Entries(account.count, account.previousSegment) {
+      @Override
+      int position(int index) {
+        return positions[index];
+      }
+    };
+  }
+
+  @Override
+  long timestamp(int position) {
+    return this.timestamps[position];
+  }
+
+  @Override
+  TransferRecord record(int position) {
+    return TransferRecord.builder()
+        .sequence(this.firstSequence + position)
+        .timestamp(this.timestamps[position])
+        .accountFromId(this.accountFromIds[position])
+        .accountToId(this.accountToIds[position])
+        .amount(Money.toDecimal(this.amounts[position]))
+        .build();
+  }
+
+  /**
+   * Write the segment in the layout read by {@link FileSegment}, through a temporary file so
+   * a partly written segment is never visible.
+   */
+  void writeTo(Path path) throws IOException {
+    List<String> accountIds = new ArrayList<>(this.index.keySet());
+    Collections.sort(accountIds);
+    Map<String, Integer> numbers = new HashMap<>();
+    for (int i = 0; i < accountIds.size(); i++) {
+      numbers.put(accountIds.get(i), i);
+    }
+
+    Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+      out.writeInt(FileSegment.MAGIC);
+      out.writeInt(FileSegment.VERSION);
+      out.writeInt(this.id);
+      out.writeLong(this.firstSequence);
+      out.writeInt(this.size);
+      out.writeInt(accountIds.size());
+      for (int i = 0; i < this.size; i++) {
+        out.writeLong(this.timestamps[i]);
+        out.writeLong(this.amounts[i]);
+        out.writeInt(numbers.get(this.accountFromIds[i]));
+        out.writeInt(numbers.get(this.accountToIds[i]));
+      }
+      int offset = FileSegment.HEADER_BYTES + this.size * FileSegment.RECORD_BYTES
+          + 4 * accountIds.size();
+      for (String accountId : accountIds) {
+        out.writeInt(offset);
+        offset = Math.addExact(offset,
+            2 + 2 * accountId.length() + 8 + 4 * this.index.get(accountId).count);
+      }
+      for (String accountId : accountIds) {
+        AccountPositions account = this.index.get(accountId);
+        out.writeShort(accountId.length());
+        out.writeChars(accountId);
+        out.writeInt(account.previousSegment);
+        out.writeInt(account.count);
+        for (int i = 0; i < account.count; i++) {
+          out.writeInt(account.positions[i]);
+        }
+      }
+    }
+    Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private void index(String accountId, int position, ToIntFunction<String> previousSegment) {
+    AccountPositions account = this.index.get(accountId);
+    if (account == null) {
+      account = new AccountPositions(previousSegment.applyAsInt(accountId));
+      this.index.put(accountId, account);
+    }
+    if (account.count == account.positions.length) {
+      // Readers may still hold the old array, whose filled part stays valid
+      account.positions = Arrays.copyOf(account.positions, 2 * account.count);
+    }
+    account.positions[account.count++] = position;
+  }
+}
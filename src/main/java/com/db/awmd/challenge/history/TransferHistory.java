@@ -0,0 +1,448 @@
+package com.db.awmd.challenge.history;
+
+import com.db.awmd.challenge.domain.AccountTransfer;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ObjLongConsumer;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Append-only history of completed transfers, queried per account newest first.
+ *
+ * <p>Transfers are numbered by a sequence and appended to fixed-size segments. Every segment
+ * indexes the positions of the records of each account it holds, plus the previous segment
+ * holding that account, so the records of an account are a chain across segments that is
+ * walked without touching segments where the account does not show up. Timestamps never
+ * decrease along the sequence, so a time range is a binary search in each segment, and the
+ * start time of every segment tells where a range ends without reading the newer segments.
+ *
+ * <p>Recording threads append to striped buffers, one picked by thread, and only take the
+ * history lock to move a full buffer into the segment; queries move every buffer first, so
+ * they see every recorded transfer.
+ *
+ * <p>Only the segment being filled is on the heap. Full segments are written to disk by a
+ * background thread and then read memory-mapped, so the heap stays bounded however long the
+ * history grows. Full segments are recovered after a restart, the transfers of the segment
+ * being filled are lost then; the journal is the durable record of transfers.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "history.enabled", havingValue = "true", matchIfMissing = true)
+public class TransferHistory implements PublicMetrics {
+
+  private static final String SEGMENT_PREFIX = "history-";
+  private static final String SEGMENT_SUFFIX = ".seg";
+
+  private static final int STRIPE_RECORDS = 64;
+
+  /**
+   * Transfers recorded by the threads mapped to one stripe, until moved into the segment.
+   */
+  private static final class Stripe {
+
+    private final long[] timestamps = new long[STRIPE_RECORDS];
+    private final AccountTransfer[] transfers = new AccountTransfer[STRIPE_RECORDS];
+    private int size;
+
+    /**
+     * Buffer the transfer.
+     *
+     * @return false if the stripe is full
+     */
+    synchronized boolean offer(long timestamp, AccountTransfer accountTransfer) {
+      if (this.size == this.transfers.length) {
+        return false;
+      }
+      this.timestamps[this.size] = timestamp;
+      this.transfers[this.size++] = accountTransfer;
+      return true;
+    }
+
+    synchronized void drainTo(ObjLongConsumer<AccountTransfer> consumer) {
+      for (int i = 0; i < this.size; i++) {
+        consumer.accept(this.transfers[i], this.timestamps[i]);
+        this.transfers[i] = null;
+      }
+      this.size = 0;
+    }
+  }
+
+  private final Path directory;
+
+  private final int segmentRecords;
+
+  private final Stripe[] stripes;
+
+  // Guards active, lastTimestamp, heads and segmentStarts, taken before a stripe
+  private final Object lock = new Object();
+
+  private MemorySegment active;
+
+  private long lastTimestamp;
+
+  // Latest segment holding each account
+  private final Map<String, Integer> heads = new HashMap<>();
+
+  // Timestamp of the first record of each started segment, by segment id
+  private long[] segmentStarts = new long[16];
+
+  // Full segments until they are on disk
+  private final Map<Integer, MemorySegment> spilling = new ConcurrentHashMap<>();
+
+  private final Cache<Integer, FileSegment> files = Caffeine.newBuilder()
+      .maximumSize(32)
+      .build();
+
+  private final ExecutorService spiller = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "history-spiller");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final LongAdder spillFailures = new LongAdder();
+
+  @Autowired
+  public TransferHistory(@Value("${history.directory:data/history}") String directory,
+                         @Value("${history.segment-records:65536}") int segmentRecords) {
+    if (segmentRecords <= 0) {
+      throw new IllegalArgumentException("Segment records must be positive: " + segmentRecords);
+    }
+    this.directory = Paths.get(directory);
+    this.segmentRecords = segmentRecords;
+    this.active = new MemorySegment(0, 0, segmentRecords);
+    this.stripes = new Stripe[Integer.highestOneBit(
+        Runtime.getRuntime().availableProcessors() * 2 - 1)];
+    for (int i = 0; i < this.stripes.length; i++) {
+      this.stripes[i] = new Stripe();
+    }
+  }
+
+  /**
+   * Recover the segments left by a previous run, from the first one up to a missing or
+   * unreadable one. The segments after it are deleted, as their sequences would clash with
+   * the new ones.
+   */
+  @PostConstruct
+  public void start() throws IOException {
+    Files.createDirectories(this.directory);
+    List<Path> paths = new ArrayList<>();
+    try (DirectoryStream<Path> found = Files.newDirectoryStream(this.directory,
+        SEGMENT_PREFIX + "*")) {
+      for (Path path : found) {
+        paths.add(path);
+      }
+    }
+    Collections.sort(paths);
+
+    synchronized (this.lock) {
+      int next = 0;
+      int dropped = 0;
+      for (Path path : paths) {
+        if (dropped == 0 && path.equals(path(next)) && recover(path, next)) {
+          next++;
+        } else {
+          if (path.toString().endsWith(SEGMENT_SUFFIX)) {
+            dropped++;
+          }
+          Files.delete(path);
+        }
+      }
+      this.active = new MemorySegment(next, (long) next * this.segmentRecords,
+          this.segmentRecords);
+      if (dropped > 0) {
+        log.warn("Deleted {} history segments after segment {}, which is missing or unreadable",
+            dropped, next);
+      }
+      log.info("Recovered {} history segments of {} accounts", next, this.heads.size());
+    }
+  }
+
+  /**
+   * Wait for full segments to be written to disk.
+   */
+  @PreDestroy
+  public void close() throws InterruptedException {
+    drain();
+    this.spiller.shutdown();
+    if (!this.spiller.awaitTermination(30, TimeUnit.SECONDS)) {
+      log.warn("History segments still being written after 30 s");
+    }
+  }
+
+  /**
+   * Append a completed transfer.
+   */
+  public void record(AccountTransfer accountTransfer) {
+    long timestamp = System.currentTimeMillis();
+    long threadId = Thread.currentThread().getId();
+    Stripe stripe = this.stripes[(int) (threadId ^ threadId >>> 16) & (this.stripes.length - 1)];
+    while (!stripe.offer(timestamp, accountTransfer)) {
+      drain();
+    }
+  }
+
+  /**
+   * Transfers from or to the account, newest first.
+   *
+   * @param accountId the account
+   * @param cursor    {@link TransferPage#getNextCursor()} of the previous page, null for the
+   *                  first page
+   * @param from      earliest timestamp, epoch millis, inclusive
+   * @param to        latest timestamp, epoch millis, exclusive
+   * @param limit     maximum number of transfers in the page
+   * @return the page, empty if the account has no transfers
+   * @throws IllegalArgumentException if the cursor is not one returned by this history or
+   *                                  the limit is not positive
+   */
+  public TransferPage find(String accountId, String cursor, long from, long to, int limit) {
+    if (limit <= 0) {
+      throw new IllegalArgumentException("Limit must be positive: " + limit);
+    }
+    long before = Long.MAX_VALUE;
+    if (cursor != null) {
+      try {
+        before = Long.parseLong(cursor);
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid cursor: " + cursor, e);
+      }
+      if (before < 0) {
+        throw new IllegalArgumentException("Invalid cursor: " + cursor);
+      }
+    }
+
+    int segmentId;
+    long[] starts;
+    synchronized (this.lock) {
+      drainLocked();
+      Integer head = this.heads.get(accountId);
+      if (head == null) {
+        return TransferPage.builder().transfers(new ArrayList<>()).build();
+      }
+      // The record a cursor points at is in a segment holding the account. Segments after to
+      // are passed over along the account's chain, none of their entries being counted
+      segmentId = (int) Math.min(head, before / this.segmentRecords);
+      // Starts of sealed segments never change, so the array is read without the lock
+      starts = this.segmentStarts;
+    }
+
+    // One record more than the page tells whether there is a next page
+    List<TransferRecord> transfers = new ArrayList<>();
+    while (segmentId >= 0 && transfers.size() <= limit) {
+      HistorySegment segment = segment(segmentId);
+      HistorySegment.Entries entries = entries(segment, accountId);
+      int previousSegment = segmentId - 1;
+      if (entries != null) {
+        int index = countBefore(segment, entries, before, to) - 1;
+        for (; index >= 0 && transfers.size() <= limit; index--) {
+          int position = entries.position(index);
+          if (segment.timestamp(position) < from) {
+            break;
+          }
+          transfers.add(segment.record(position));
+        }
+        if (index >= 0) {
+          break;
+        }
+        previousSegment = entries.previousSegment;
+      }
+      // No record of a segment is later than the start of the next one
+      if (previousSegment >= 0 && starts[previousSegment + 1] < from) {
+        break;
+      }
+      segmentId = previousSegment;
+    }
+
+    String nextCursor = null;
+    if (transfers.size() > limit) {
+      transfers.remove(limit);
+      nextCursor = Long.toString(transfers.get(limit - 1).getSequence());
+    }
+    return TransferPage.builder().transfers(transfers).nextCursor(nextCursor).build();
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    long records;
+    int segments;
+    synchronized (this.lock) {
+      drainLocked();
+      records = this.active.firstSequence + this.active.size();
+      segments = this.active.id + 1;
+    }
+    List<Metric<?>> metrics = new ArrayList<>();
+    metrics.add(new Metric<>("history.records", records));
+    metrics.add(new Metric<>("history.segments", segments));
+    metrics.add(new Metric<>("history.segments.in-memory", this.spilling.size() + 1));
+    metrics.add(new Metric<>("history.spill.failures", this.spillFailures.sum()));
+    return metrics;
+  }
+
+  /**
+   * Move the transfers of every stripe into the segment.
+   */
+  private void drain() {
+    synchronized (this.lock) {
+      drainLocked();
+    }
+  }
+
+  private void drainLocked() {
+    for (Stripe stripe : this.stripes) {
+      stripe.drainTo(this::append);
+    }
+  }
+
+  private void append(AccountTransfer accountTransfer, long timestamp) {
+    this.lastTimestamp = Math.max(this.lastTimestamp, timestamp);
+    int segment = this.active.id;
+    if (this.active.size() == 0) {
+      started(segment, this.lastTimestamp);
+    }
+    this.active.append(this.lastTimestamp, accountTransfer.getAccountFromId(),
+        accountTransfer.getAccountToId(), accountTransfer.getAmountMinorUnits(),
+        accountId -> {
+          Integer previous = this.heads.put(accountId, segment);
+          return previous == null ? -1 : previous;
+        });
+    if (this.active.isFull()) {
+      roll();
+    }
+  }
+
+  private void started(int segment, long timestamp) {
+    if (segment == this.segmentStarts.length) {
+      this.segmentStarts = Arrays.copyOf(this.segmentStarts, 2 * segment);
+    }
+    this.segmentStarts[segment] = timestamp;
+  }
+
+  /**
+   * Index a full segment left by a previous run.
+   *
+   * @return false if it is unreadable or not the expected segment
+   */
+  private boolean recover(Path path, int id) {
+    FileSegment segment;
+    try {
+      segment = FileSegment.open(path);
+    } catch (IOException e) {
+      log.warn("Could not read history segment {}", path, e);
+      return false;
+    }
+    if (segment.id != id || segment.firstSequence != (long) id * this.segmentRecords
+        || segment.size() != this.segmentRecords) {
+      return false;
+    }
+    segment.forEachAccountId(accountId -> this.heads.put(accountId, id));
+    started(id, segment.timestamp(0));
+    this.lastTimestamp = segment.timestamp(this.segmentRecords - 1);
+    this.files.put(id, segment);
+    return true;
+  }
+
+  private void roll() {
+    MemorySegment full = this.active;
+    this.spilling.put(full.id, full);
+    this.active = new MemorySegment(full.id + 1, full.firstSequence + this.segmentRecords,
+        this.segmentRecords);
+    try {
+      this.spiller.execute(() -> spill(full));
+    } catch (RejectedExecutionException e) {
+      log.warn("History closed, segment {} stays in memory", full.id);
+    }
+  }
+
+  private void spill(MemorySegment segment) {
+    try {
+      segment.writeTo(path(segment.id));
+      this.spilling.remove(segment.id);
+    } catch (IOException e) {
+      this.spillFailures.increment();
+      log.error("Could not write history segment {}, it stays in memory", segment.id, e);
+    }
+  }
+
+  /**
+   * The segment, wherever it is. A segment leaves memory only once its file exists, so the
+   * lookups in this order cannot miss it.
+   */
+  private HistorySegment segment(int id) {
+    synchronized (this.lock) {
+      if (id == this.active.id) {
+        return this.active;
+      }
+    }
+    MemorySegment memory = this.spilling.get(id);
+    if (memory != null) {
+      return memory;
+    }
+    return this.files.get(id, key -> {
+      try {
+        return FileSegment.open(path(key));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+  }
+
+  private HistorySegment.Entries entries(HistorySegment segment, String accountId) {
+    if (segment instanceof MemorySegment) {
+      // The segment may be the one being filled
+      synchronized (this.lock) {
+        return segment.entries(accountId);
+      }
+    }
+    return segment.entries(accountId);
+  }
+
+  /**
+   * Number of leading entries with a sequence below before and a timestamp below to. Both
+   * grow with the entry index, so this is a binary search.
+   */
+  private static int countBefore(HistorySegment segment, HistorySegment.Entries entries,
+                                 long before, long to) {
+    int low = 0;
+    int high = entries.count;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      int position = entries.position(middle);
+      if (segment.firstSequence + position < before && segment.timestamp(position) < to) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  private Path path(int id) {
+    return this.directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+  }
+}
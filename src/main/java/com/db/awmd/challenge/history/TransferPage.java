@@ -0,0 +1,20 @@
+package com.db.awmd.challenge.history;
+
+import java.util.List;
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * One page of the transfers of an account, newest first.
+ */
+@Data
+@Builder
+public class TransferPage {
+
+  private final List<TransferRecord> transfers;
+
+  /**
+   * Cursor of the next, older, page; null when this page is the last one.
+   */
+  private final String nextCursor;
+}
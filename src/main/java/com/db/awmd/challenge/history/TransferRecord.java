@@ -0,0 +1,29 @@
+package com.db.awmd.challenge.history;
+
+import java.math.BigDecimal;
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * An applied transfer, as kept in the {@link TransferHistory}.
+ */
+@Data
+@Builder
+public class TransferRecord {
+
+  /**
+   * Position of the transfer in the history, increasing with time.
+   */
+  private final long sequence;
+
+  /**
+   * When the transfer was applied, in milliseconds since the epoch.
+   */
+  private final long timestamp;
+
+  private final String accountFromId;
+
+  private final String accountToId;
+
+  private final BigDecimal amount;
+}
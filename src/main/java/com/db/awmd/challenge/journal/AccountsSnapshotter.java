@@ -0,0 +1,282 @@
+package com.db.awmd.challenge.journal;
+
+import com.db.awmd.challenge.domain.Money;
+import com.db.awmd.challenge.exception.JournalException;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Periodically compacts the journal into a binary snapshot of every account balance.
+ *
+ * <p>A snapshot never reads the live accounts. The journal is rolled to a new segment, which
+ * is the consistency point, and the snapshot is the previous snapshot plus the records of the
+ * sealed segments. Transfers keep appending to the new segment meanwhile, and once the
+ * snapshot is in place the sealed segments are deleted. Recovery then only has to load the
+ * latest snapshot and replay the segments it does not cover.
+ *
+ * <p>The snapshotter exists whenever the journal does, so recovery loads an existing snapshot
+ * even once snapshots are disabled; disabling them only stops taking new ones.
+ *
+ * <p>Snapshot layout: magic, format version, first segment not covered, account count, then
+ * for every account its UTF-8 id and its balance as scale and unscaled bytes, then the count
+ * and the ids of the scheduled transfers applied and not settled. Version 1 snapshots end
+ * after the balances.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "journal.enabled", havingValue = "true")
+public class AccountsSnapshotter {
+
+  private static final int MAGIC = 0x534E4150;
+  private static final int VERSION = 2;
+  private static final String SNAPSHOT_PREFIX = "snapshot-";
+  private static final String SNAPSHOT_SUFFIX = ".bin";
+
+  private final TransferJournal transferJournal;
+
+  private final Path directory;
+
+  private final long intervalMillis;
+
+  private final boolean enabled;
+
+  private final ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "journal-snapshotter");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  /**
+   * Create the snapshotter.
+   *
+   * @param transferJournal the journal
+   * @param directory       directory of the journal, holding the snapshots too
+   * @param intervalMillis  delay between snapshots
+   * @param enabled         whether to take snapshots; an existing one is loaded regardless
+   */
+  @Autowired
+  public AccountsSnapshotter(TransferJournal transferJournal,
+                             @Value("${journal.directory}") String directory,
+                             @Value("${journal.snapshot.interval-ms:60000}") long intervalMillis,
+                             @Value("${journal.snapshot.enabled:false}") boolean enabled) {
+    this.transferJournal = transferJournal;
+    this.directory = Paths.get(directory);
+    this.intervalMillis = intervalMillis;
+    this.enabled = enabled;
+  }
+
+  @PostConstruct
+  public void start() {
+    if (!this.enabled) {
+      return;
+    }
+    this.scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        takeSnapshot();
+      } catch (Exception e) {
+        log.error("Snapshot failed, the journal keeps growing until the next one", e);
+      }
+    }, this.intervalMillis, this.intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  public void stop() {
+    this.scheduler.shutdownNow();
+  }
+
+  /**
+   * Fold the sealed journal segments into a new snapshot and drop them.
+   *
+   * @throws IOException if the snapshot cannot be written
+   */
+  public synchronized void takeSnapshot() throws IOException {
+    long started = System.currentTimeMillis();
+    long nextSegment = this.transferJournal.roll();
+
+    Map<String, BigDecimal> balances = new HashMap<>();
+    Set<Long> appliedScheduled = new HashSet<>();
+    long fromSegment = load(balances::put, appliedScheduled::add);
+    this.transferJournal.replay(fromSegment, nextSegment, record -> {
+      record.applyScheduled(appliedScheduled);
+      for (LedgerEvent event : record.events()) {
+        balances.merge(event.getAccountId(), Money.toDecimal(event.delta()), BigDecimal::add);
+      }
+    });
+
+    Path snapshot = snapshotPath(nextSegment);
+    Path temporary = this.directory.resolve(snapshot.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(nextSegment);
+      out.writeInt(balances.size());
+      for (Map.Entry<String, BigDecimal> balance : balances.entrySet()) {
+        byte[] accountId = balance.getKey().getBytes(StandardCharsets.UTF_8);
+        byte[] unscaled = balance.getValue().unscaledValue().toByteArray();
+        out.writeShort(accountId.length);
+        out.write(accountId);
+        out.writeInt(balance.getValue().scale());
+        out.writeShort(unscaled.length);
+        out.write(unscaled);
+      }
+      out.writeInt(appliedScheduled.size());
+      for (long scheduledId : appliedScheduled) {
+        out.writeLong(scheduledId);
+      }
+    }
+    try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+      channel.force(true);
+    }
+    Files.move(temporary, snapshot, StandardCopyOption.ATOMIC_MOVE);
+    // The rename must be durable before the segments it replaces are deleted
+    try (FileChannel directoryChannel = FileChannel.open(this.directory,
+        StandardOpenOption.READ)) {
+      directoryChannel.force(true);
+    }
+
+    for (Path older : snapshots()) {
+      if (!older.equals(snapshot)) {
+        Files.delete(older);
+      }
+    }
+    this.transferJournal.deleteSegmentsBefore(nextSegment);
+    log.info("Snapshot of {} accounts up to journal segment {} written in {} ms",
+        balances.size(), nextSegment, System.currentTimeMillis() - started);
+  }
+
+  /**
+   * Feed every balance of the latest snapshot to the consumer, reading it memory-mapped one
+   * window at a time, so snapshots beyond the 2 GB limit of a single mapping load as well.
+   *
+   * @param consumer         consumer of account id and balance
+   * @param appliedScheduled consumer of the ids of the scheduled transfers applied and not
+   *                         settled
+   * @return the first journal segment not covered by the snapshot, 0 when there is none
+   */
+  public long load(BiConsumer<String, BigDecimal> consumer, LongConsumer appliedScheduled) {
+    try {
+      List<Path> snapshots = snapshots();
+      if (snapshots.isEmpty()) {
+        return 0;
+      }
+      Path latest = snapshots.get(snapshots.size() - 1);
+      try (FileChannel channel = FileChannel.open(latest, StandardOpenOption.READ)) {
+        MappedWindow in = new MappedWindow(channel);
+        int version;
+        if (in.ensure(16).getInt() != MAGIC
+            || (version = in.buffer.getInt()) < 1 || version > VERSION) {
+          throw new IOException("Not a snapshot: " + latest);
+        }
+        long nextSegment = in.buffer.getLong();
+        int count = in.buffer.getInt();
+        for (int i = 0; i < count; i++) {
+          byte[] accountId = new byte[in.ensure(2).getShort() & 0xFFFF];
+          in.ensure(accountId.length + 6).get(accountId);
+          int scale = in.buffer.getInt();
+          byte[] unscaled = new byte[in.buffer.getShort() & 0xFFFF];
+          in.ensure(unscaled.length).get(unscaled);
+          consumer.accept(new String(accountId, StandardCharsets.UTF_8),
+              new BigDecimal(new BigInteger(unscaled), scale));
+        }
+        if (version > 1) {
+          int scheduledCount = in.ensure(4).getInt();
+          for (int i = 0; i < scheduledCount; i++) {
+            appliedScheduled.accept(in.ensure(8).getLong());
+          }
+        }
+        return nextSegment;
+      }
+    } catch (IOException e) {
+      throw new JournalException("Snapshot load failed", e);
+    }
+  }
+
+  /**
+   * Read-only mapping of a window of a file, moved forward as it is consumed.
+   */
+  private static final class MappedWindow {
+
+    private static final long WINDOW_BYTES = 64L << 20;
+
+    private final FileChannel channel;
+
+    // File offset of the start of the buffer
+    private long offset;
+
+    private MappedByteBuffer buffer;
+
+    private MappedWindow(FileChannel channel) throws IOException {
+      this.channel = channel;
+      map(0);
+    }
+
+    /**
+     * The buffer, remapped if needed so its next {@code bytes} bytes are in the window.
+     *
+     * @throws IOException if the file ends before them
+     */
+    private MappedByteBuffer ensure(int bytes) throws IOException {
+      if (this.buffer.remaining() < bytes) {
+        long position = this.offset + this.buffer.position();
+        if (this.channel.size() - position < bytes) {
+          throw new EOFException("Snapshot truncated at byte " + position);
+        }
+        map(position);
+      }
+      return this.buffer;
+    }
+
+    private void map(long position) throws IOException {
+      this.offset = position;
+      this.buffer = this.channel.map(FileChannel.MapMode.READ_ONLY, position,
+          Math.min(WINDOW_BYTES, this.channel.size() - position));
+    }
+  }
+
+  private List<Path> snapshots() throws IOException {
+    try (Stream<Path> files = Files.list(this.directory)) {
+      return files.filter(path -> path.getFileName().toString().startsWith(SNAPSHOT_PREFIX)
+          && path.getFileName().toString().endsWith(SNAPSHOT_SUFFIX))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+
+  private Path snapshotPath(long nextSegment) {
+    return this.directory.resolve(String.format("%s%08d%s", SNAPSHOT_PREFIX, nextSegment,
+        SNAPSHOT_SUFFIX));
+  }
+}
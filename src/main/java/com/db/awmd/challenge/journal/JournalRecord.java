@@ -0,0 +1,142 @@
+package com.db.awmd.challenge.journal;
+
+import com.db.awmd.challenge.domain.Money;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * One entry of the transfer journal. Every record moves {@code amount} out of
+ * {@code accountFromId} and into {@code accountToId}; an account creation is a record without
+ * source account crediting the initial balance. A multi-leg transfer is a single record
+ * debiting the sum of its legs from {@code accountFromId} and crediting each leg, so its legs
+ * are durable and replayed together.
+ *
+ * <p>A transfer executing a scheduled transfer carries its scheduled id, so a retry finds it
+ * applied. A settled record lists scheduled transfers the scheduler durably took out, which
+ * are never retried, so only the ids applied and not settled need to be remembered.
+ */
+@Data
+@Builder
+public class JournalRecord {
+
+  public enum Type {
+    CREATE,
+    TRANSFER,
+    MULTI_LEG,
+    SCHEDULED_TRANSFER,
+    SETTLED
+  }
+
+  private final Type type;
+
+  private final String accountFromId;
+
+  private final String accountToId;
+
+  private final BigDecimal amount;
+
+  /**
+   * Legs of a multi-leg transfer, as transfers from its source account; null otherwise.
+   */
+  private final List<JournalRecord> legs;
+
+  /**
+   * Id of the scheduled transfer a transfer executes, 0 otherwise.
+   */
+  private final long scheduledId;
+
+  /**
+   * Ids of the scheduled transfers a settled record takes out; null otherwise.
+   */
+  private final long[] settledIds;
+
+  public static JournalRecord create(String accountId, BigDecimal balance) {
+    return new JournalRecord(Type.CREATE, null, accountId, balance, null, 0, null);
+  }
+
+  public static JournalRecord transfer(String accountFromId, String accountToId,
+                                       BigDecimal amount) {
+    return new JournalRecord(Type.TRANSFER, accountFromId, accountToId, amount, null, 0, null);
+  }
+
+  /**
+   * Record of a transfer, executing the scheduled transfer with the given id unless it is 0.
+   */
+  public static JournalRecord transfer(String accountFromId, String accountToId,
+                                       BigDecimal amount, long scheduledId) {
+    if (scheduledId == 0) {
+      return transfer(accountFromId, accountToId, amount);
+    }
+    return new JournalRecord(Type.SCHEDULED_TRANSFER, accountFromId, accountToId, amount, null,
+        scheduledId, null);
+  }
+
+  /**
+   * Record of scheduled transfers the scheduler took out once their execution was durable.
+   */
+  public static JournalRecord settled(long[] scheduledIds) {
+    return new JournalRecord(Type.SETTLED, null, null, BigDecimal.ZERO, null, 0,
+        scheduledIds);
+  }
+
+  /**
+   * Record of a multi-leg transfer.
+   *
+   * @param legs the legs, transfers from one source account
+   */
+  public static JournalRecord multiLeg(List<JournalRecord> legs) {
+    BigDecimal total = BigDecimal.ZERO;
+    for (JournalRecord leg : legs) {
+      total = total.add(leg.getAmount());
+    }
+    return new JournalRecord(Type.MULTI_LEG, legs.get(0).getAccountFromId(), null, total,
+        legs, 0, null);
+  }
+
+  /**
+   * Apply the record to the ids of the scheduled transfers applied and not settled.
+   */
+  public void applyScheduled(Set<Long> appliedScheduled) {
+    if (this.type == Type.SCHEDULED_TRANSFER) {
+      appliedScheduled.add(this.scheduledId);
+    } else if (this.type == Type.SETTLED) {
+      for (long settledId : this.settledIds) {
+        appliedScheduled.remove(settledId);
+      }
+    }
+  }
+
+  /**
+   * The record as ledger events: an account creation, or a debit followed by a credit per
+   * leg. A settled record moves no money and has none.
+   */
+  public List<LedgerEvent> events() {
+    if (this.type == Type.SETTLED) {
+      return Collections.emptyList();
+    }
+    long amountMinorUnits = Money.toMinorUnits(this.amount);
+    if (this.type == Type.CREATE) {
+      return Collections.singletonList(
+          new LedgerEvent(LedgerEvent.Type.ACCOUNT_CREATED, this.accountToId, amountMinorUnits));
+    }
+    if (this.type == Type.MULTI_LEG) {
+      List<LedgerEvent> events = new ArrayList<>(this.legs.size() + 1);
+      events.add(new LedgerEvent(LedgerEvent.Type.DEBITED, this.accountFromId,
+          amountMinorUnits));
+      for (JournalRecord leg : this.legs) {
+        events.add(new LedgerEvent(LedgerEvent.Type.CREDITED, leg.getAccountToId(),
+            Money.toMinorUnits(leg.getAmount())));
+      }
+      return events;
+    }
+    return Arrays.asList(
+        new LedgerEvent(LedgerEvent.Type.DEBITED, this.accountFromId, amountMinorUnits),
+        new LedgerEvent(LedgerEvent.Type.CREDITED, this.accountToId, amountMinorUnits));
+  }
+}
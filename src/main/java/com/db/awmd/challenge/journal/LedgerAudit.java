@@ -0,0 +1,25 @@
+package com.db.awmd.challenge.journal;
+
+import java.util.List;
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * Outcome of rebuilding the balances from the ledger and comparing them with the live ones.
+ */
+@Data
+@Builder
+public class LedgerAudit {
+
+  private final int accounts;
+
+  private final long events;
+
+  private final long rebuildMillis;
+
+  /**
+   * Accounts whose live balance differs from the ledger, at most
+   * {@link LedgerEndpoint#MAX_DIVERGENT_ACCOUNTS} of them.
+   */
+  private final List<String> divergentAccounts;
+}
@@ -0,0 +1,66 @@
+package com.db.awmd.challenge.journal;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.repository.AccountsRepository;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.AbstractEndpoint;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Actuator endpoint at {@code /ledger} rebuilding the balance projection from the ledger on
+ * demand and reporting the accounts whose live balance differs from it.
+ *
+ * <p>The rebuild runs alongside live transfers, so an account transferring at that moment
+ * may show up as divergent without being so; checking it again tells both cases apart.
+ */
+@Component
+@ConditionalOnProperty(name = "journal.enabled", havingValue = "true")
+public class LedgerEndpoint extends AbstractEndpoint<LedgerAudit> {
+
+  public static final int MAX_DIVERGENT_ACCOUNTS = 100;
+
+  private final TransferJournal transferJournal;
+
+  private final AccountsRepository accountsRepository;
+
+  private AccountsSnapshotter accountsSnapshotter;
+
+  @Autowired
+  public LedgerEndpoint(TransferJournal transferJournal, AccountsRepository accountsRepository) {
+    super("ledger");
+    this.transferJournal = transferJournal;
+    this.accountsRepository = accountsRepository;
+  }
+
+  @Autowired(required = false)
+  public void setAccountsSnapshotter(AccountsSnapshotter accountsSnapshotter) {
+    this.accountsSnapshotter = accountsSnapshotter;
+  }
+
+  @Override
+  public LedgerAudit invoke() {
+    long started = System.currentTimeMillis();
+    LedgerProjection projection = LedgerProjection.rebuild(this.transferJournal,
+        this.accountsSnapshotter, ForkJoinPool.commonPool());
+    long rebuildMillis = System.currentTimeMillis() - started;
+
+    List<String> divergentAccounts = new ArrayList<>();
+    projection.forEach((accountId, balance) -> {
+      Account account = this.accountsRepository.getAccount(accountId);
+      if ((account == null || account.getBalanceMinorUnits() != balance)
+          && divergentAccounts.size() < MAX_DIVERGENT_ACCOUNTS) {
+        divergentAccounts.add(accountId);
+      }
+    });
+    return LedgerAudit.builder()
+        .accounts(projection.size())
+        .events(projection.getEvents())
+        .rebuildMillis(rebuildMillis)
+        .divergentAccounts(divergentAccounts)
+        .build();
+  }
+}
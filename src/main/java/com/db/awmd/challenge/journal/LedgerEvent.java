@@ -0,0 +1,31 @@
+package com.db.awmd.challenge.journal;
+
+import lombok.Data;
+
+/**
+ * A change of one account balance, in minor units. A journal record is stored as a whole so
+ * both sides of a transfer are durable together, and read back as its events, see
+ * {@link JournalRecord#events()}.
+ */
+@Data
+public class LedgerEvent {
+
+  public enum Type {
+    ACCOUNT_CREATED,
+    DEBITED,
+    CREDITED
+  }
+
+  private final Type type;
+
+  private final String accountId;
+
+  private final long amountMinorUnits;
+
+  /**
+   * Change of the balance caused by the event.
+   */
+  public long delta() {
+    return this.type == Type.DEBITED ? -this.amountMinorUnits : this.amountMinorUnits;
+  }
+}
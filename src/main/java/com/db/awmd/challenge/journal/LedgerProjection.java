@@ -0,0 +1,180 @@
+package com.db.awmd.challenge.journal;
+
+import com.db.awmd.challenge.domain.Money;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Account balances derived from the ledger events of the journal, on top of the latest
+ * snapshot.
+ *
+ * <p>Balances are partitioned by account id and every partition is only ever touched by one
+ * task at a time, so the events of a chunk are applied by one fork-join task per partition
+ * without any locking, and the events of an account are still applied in journal order.
+ * Reading and decoding the journal is sequential; the next chunk is read while the pool
+ * applies the previous one. Memory is bounded by the number of accounts plus two chunks.
+ *
+ * <p>The projection also rebuilds the ids of the scheduled transfers applied and not settled,
+ * see {@link JournalRecord}.
+ */
+public final class LedgerProjection {
+
+  private static final int CHUNK_EVENTS = 1 << 16;
+
+  private final List<Map<String, long[]>> partitions;
+
+  private final Set<Long> appliedScheduled = new HashSet<>();
+
+  private long events;
+
+  private LedgerProjection(int partitionCount) {
+    this.partitions = new ArrayList<>(partitionCount);
+    for (int i = 0; i < partitionCount; i++) {
+      this.partitions.add(new HashMap<>());
+    }
+  }
+
+  /**
+   * Rebuild the balances from the latest snapshot and every journal segment after it.
+   *
+   * @param transferJournal     the journal
+   * @param accountsSnapshotter the snapshots of the journal, null if there are none
+   * @param pool                pool applying the events
+   * @return the balances
+   * @throws com.db.awmd.challenge.exception.JournalException if the journal cannot be read
+   */
+  public static LedgerProjection rebuild(TransferJournal transferJournal,
+                                         AccountsSnapshotter accountsSnapshotter,
+                                         ForkJoinPool pool) {
+    LedgerProjection projection = new LedgerProjection(4 * pool.getParallelism());
+    long fromSegment = 0;
+    if (accountsSnapshotter != null) {
+      fromSegment = accountsSnapshotter.load((accountId, balance) ->
+          projection.partition(accountId).put(accountId,
+              new long[] {Money.toMinorUnits(balance)}), projection.appliedScheduled::add);
+    }
+
+    List<List<LedgerEvent>> chunk = projection.newChunk();
+    int[] size = new int[1];
+    ForkJoinTask<?>[] applying = new ForkJoinTask<?>[1];
+    transferJournal.replay(fromSegment, Long.MAX_VALUE, record -> {
+      record.applyScheduled(projection.appliedScheduled);
+      for (LedgerEvent event : record.events()) {
+        chunk.get(projection.partitionIndex(event.getAccountId())).add(event);
+        size[0]++;
+      }
+      if (size[0] >= CHUNK_EVENTS) {
+        if (applying[0] != null) {
+          applying[0].join();
+        }
+        applying[0] = pool.submit(projection.apply(new ArrayList<>(chunk)));
+        for (int i = 0; i < chunk.size(); i++) {
+          chunk.set(i, new ArrayList<>());
+        }
+        size[0] = 0;
+      }
+    });
+    if (applying[0] != null) {
+      applying[0].join();
+    }
+    pool.invoke(projection.apply(chunk));
+    return projection;
+  }
+
+  /**
+   * Balance of the account in minor units, or null if the ledger has no such account.
+   */
+  public Long balance(String accountId) {
+    long[] balance = partition(accountId).get(accountId);
+    return balance == null ? null : balance[0];
+  }
+
+  /**
+   * Feed every account and its balance in minor units to the consumer.
+   */
+  public void forEach(ObjLongConsumer<String> consumer) {
+    for (Map<String, long[]> partition : this.partitions) {
+      for (Map.Entry<String, long[]> balance : partition.entrySet()) {
+        consumer.accept(balance.getKey(), balance.getValue()[0]);
+      }
+    }
+  }
+
+  public int size() {
+    int size = 0;
+    for (Map<String, long[]> partition : this.partitions) {
+      size += partition.size();
+    }
+    return size;
+  }
+
+  /**
+   * Ids of the scheduled transfers applied and not settled.
+   */
+  public Set<Long> getAppliedScheduled() {
+    return this.appliedScheduled;
+  }
+
+  /**
+   * Number of journal events applied, not counting the snapshot.
+   */
+  public long getEvents() {
+    return this.events;
+  }
+
+  private List<List<LedgerEvent>> newChunk() {
+    List<List<LedgerEvent>> chunk = new ArrayList<>(this.partitions.size());
+    for (int i = 0; i < this.partitions.size(); i++) {
+      chunk.add(new ArrayList<>());
+    }
+    return chunk;
+  }
+
+  /**
+   * Task applying the events of a chunk, one subtask per partition.
+   */
+  private RecursiveAction apply(List<List<LedgerEvent>> chunk) {
+    return new RecursiveAction() {
+      @Override
+      protected void compute() {
+        List<RecursiveAction> tasks = new ArrayList<>(chunk.size());
+        for (int i = 0; i < chunk.size(); i++) {
+          Map<String, long[]> partition = partitions.get(i);
+          List<LedgerEvent> events = chunk.get(i);
+          if (!events.isEmpty()) {
+            tasks.add(new RecursiveAction() {
+              @Override
+              protected void compute() {
+                for (LedgerEvent event : events) {
+                  partition.computeIfAbsent(event.getAccountId(), accountId -> new long[1])[0]
+                      += event.delta();
+                }
+              }
+            });
+          }
+        }
+        invokeAll(tasks);
+        for (List<LedgerEvent> events : chunk) {
+          LedgerProjection.this.events += events.size();
+        }
+      }
+    };
+  }
+
+  private Map<String, long[]> partition(String accountId) {
+    return this.partitions.get(partitionIndex(accountId));
+  }
+
+  private int partitionIndex(String accountId) {
+    int hash = accountId.hashCode() * 0x9E3779B9;
+    return ((hash ^ (hash >>> 16)) & 0x7FFFFFFF) % this.partitions.size();
+  }
+}
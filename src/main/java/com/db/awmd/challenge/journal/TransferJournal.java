@@ -0,0 +1,481 @@
+package com.db.awmd.challenge.journal;
+
+import com.db.awmd.challenge.exception.JournalException;
+import com.db.awmd.challenge.journal.JournalRecord.Type;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Append-only write-ahead journal of account creations and transfers.
+ *
+ * <p>Appending only copies the record into an in-memory buffer. A single committer thread
+ * writes whatever accumulated since its last pass and forces it to disk with one fsync, so all
+ * the callers waiting in {@link #awaitDurable(long)} at that moment share the same fsync
+ * (group commit).
+ *
+ * <p>Each record is stored as its length, its CRC32 and its payload. A torn record at the end
+ * of the journal, left by a crash in the middle of a write, is detected and truncated when the
+ * journal is opened. Only the segment being written can hold one: a sealed segment was forced
+ * whole before the next one started, so an invalid record in it fails recovery instead of
+ * silently dropping the records after it.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "journal.enabled", havingValue = "true")
+public class TransferJournal implements PublicMetrics {
+
+  private static final String SEGMENT_PREFIX = "journal-";
+  private static final String SEGMENT_SUFFIX = ".log";
+
+  // Type, two empty ids and an amount of one byte
+  private static final int MIN_RECORD = 12;
+
+  private final Path directory;
+
+  private final Object channelLock = new Object();
+
+  // Guarded by channelLock
+  private FileChannel channel;
+  private long segment;
+
+  private final Object appendLock = new Object();
+  private final Object durableLock = new Object();
+
+  // Guarded by appendLock
+  private ByteArrayOutputStream pending = new ByteArrayOutputStream(64 * 1024);
+  private ByteArrayOutputStream flushing = new ByteArrayOutputStream(64 * 1024);
+  private long appended;
+
+  // Scheduled transfers journaled and not settled, updated in journal order under appendLock
+  private final Set<Long> appliedScheduled = ConcurrentHashMap.newKeySet();
+  private volatile boolean scheduledRestored;
+
+  private volatile long durable;
+  private volatile long commits;
+  private volatile IOException failure;
+  private volatile boolean running = true;
+  private volatile boolean closed;
+
+  private final Thread committer;
+
+  /**
+   * Open the journal, truncating a torn record at its end, and start the committer.
+   *
+   * @param directory directory holding the journal segments
+   * @throws IOException if the journal cannot be opened
+   */
+  @Autowired
+  public TransferJournal(@Value("${journal.directory}") String directory) throws IOException {
+    this.directory = Paths.get(directory);
+    Files.createDirectories(this.directory);
+    List<Path> segments = segments();
+    this.segment = segments.isEmpty() ? 1 : segmentNumber(segments.get(segments.size() - 1));
+    Path active = segmentPath(this.segment);
+    this.channel = FileChannel.open(active, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.READ);
+    long validLength = readSegment(active, true, record -> {
+    });
+    if (validLength < this.channel.size()) {
+      log.warn("Truncating torn journal tail of {} at {} bytes", active, validLength);
+      this.channel.truncate(validLength);
+    }
+    this.channel.position(validLength);
+    this.committer = new Thread(this::commit, "journal-committer");
+    this.committer.setDaemon(true);
+    this.committer.start();
+  }
+
+  /**
+   * Add a record to the journal. The record is durable once {@link #awaitDurable(long)}
+   * returns for the returned sequence.
+   *
+   * @param record the record
+   * @return the sequence of the record
+   */
+  public long append(JournalRecord record) {
+    byte[] bytes = encode(record);
+    synchronized (this.appendLock) {
+      if (!this.running) {
+        throw new JournalException("Journal closed", null);
+      }
+      record.applyScheduled(this.appliedScheduled);
+      this.pending.write(bytes, 0, bytes.length);
+      this.appended++;
+      this.appendLock.notify();
+      return this.appended;
+    }
+  }
+
+  /**
+   * Wait until every record up to the given sequence is on disk.
+   *
+   * @param sequence sequence returned by {@link #append(JournalRecord)}
+   * @throws InterruptedException if interrupted while waiting
+   * @throws JournalException     if the journal could not be written, or was closed before
+   */
+  public void awaitDurable(long sequence) throws InterruptedException {
+    if (this.durable >= sequence) {
+      return;
+    }
+    synchronized (this.durableLock) {
+      while (this.durable < sequence) {
+        if (this.failure != null) {
+          throw new JournalException("Journal write failed", this.failure);
+        }
+        if (this.closed) {
+          throw new JournalException("Journal closed before the record was written", null);
+        }
+        this.durableLock.wait();
+      }
+    }
+  }
+
+  /**
+   * Whether a transfer executing the scheduled transfer was journaled and not settled since,
+   * in this run or, once {@link #restoreScheduled(Collection)} was called, before it.
+   *
+   * @throws JournalException if the journal could not be written, as the transfer may then be
+   *                          missing from it
+   */
+  public boolean isScheduledApplied(long scheduledId) {
+    if (this.failure != null) {
+      throw new JournalException("Journal write failed", this.failure);
+    }
+    return this.appliedScheduled.contains(scheduledId);
+  }
+
+  /**
+   * Whether the scheduled transfers applied before this run are known.
+   */
+  public boolean isScheduledRestored() {
+    return this.scheduledRestored;
+  }
+
+  /**
+   * Restore the scheduled transfers applied and not settled before this run, as rebuilt by
+   * {@link LedgerProjection} on recovery.
+   */
+  public void restoreScheduled(Collection<Long> scheduledIds) {
+    this.appliedScheduled.addAll(scheduledIds);
+    this.scheduledRestored = true;
+  }
+
+  /**
+   * Feed every valid record of the journal, oldest first, to the consumer.
+   *
+   * @param consumer consumer of the records
+   */
+  public void replay(Consumer<JournalRecord> consumer) {
+    replay(0, Long.MAX_VALUE, consumer);
+  }
+
+  /**
+   * Feed the valid records of the segments in {@code [fromSegment, toSegment)}, oldest first,
+   * to the consumer.
+   *
+   * @param fromSegment first segment to read
+   * @param toSegment   first segment not to read
+   * @param consumer    consumer of the records
+   */
+  public void replay(long fromSegment, long toSegment, Consumer<JournalRecord> consumer) {
+    try {
+      List<Path> segments = segments();
+      for (int i = 0; i < segments.size(); i++) {
+        long number = segmentNumber(segments.get(i));
+        if (number >= fromSegment && number < toSegment) {
+          readSegment(segments.get(i), i == segments.size() - 1, consumer);
+        }
+      }
+    } catch (IOException e) {
+      throw new JournalException("Journal replay failed", e);
+    }
+  }
+
+  /**
+   * Seal the segment being written and continue in a new one. Records appended from now on,
+   * and the ones still waiting for the committer, go to the new segment.
+   *
+   * @return the number of the new segment; every lower segment is sealed
+   * @throws IOException if the new segment cannot be created
+   */
+  public long roll() throws IOException {
+    synchronized (this.channelLock) {
+      this.channel.force(false);
+      this.channel.close();
+      this.segment++;
+      this.channel = FileChannel.open(segmentPath(this.segment), StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE);
+      return this.segment;
+    }
+  }
+
+  /**
+   * Delete the sealed segments below the given one, once their records are in a snapshot.
+   *
+   * @param segment first segment to keep
+   * @throws IOException if a segment cannot be deleted
+   */
+  public void deleteSegmentsBefore(long segment) throws IOException {
+    for (Path path : segments()) {
+      if (segmentNumber(path) < segment) {
+        Files.delete(path);
+      }
+    }
+  }
+
+  /**
+   * Write the records appended so far and stop the committer. Callers still waiting for a
+   * record that could not be written get a {@link JournalException}.
+   */
+  @PreDestroy
+  public void close() throws IOException, InterruptedException {
+    synchronized (this.appendLock) {
+      this.running = false;
+      this.appendLock.notify();
+    }
+    try {
+      this.committer.join();
+      synchronized (this.channelLock) {
+        this.channel.close();
+      }
+    } finally {
+      synchronized (this.durableLock) {
+        this.closed = true;
+        this.durableLock.notifyAll();
+      }
+    }
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    List<Metric<?>> metrics = new ArrayList<>();
+    metrics.add(new Metric<>("journal.records", this.durable));
+    metrics.add(new Metric<>("journal.commits", this.commits));
+    return metrics;
+  }
+
+  private void commit() {
+    long committed = 0;
+    try {
+      while (true) {
+        long target;
+        synchronized (this.appendLock) {
+          while (this.running && this.appended == committed) {
+            this.appendLock.wait();
+          }
+          if (this.appended == committed) {
+            return;
+          }
+          ByteArrayOutputStream swap = this.flushing;
+          this.flushing = this.pending;
+          this.pending = swap;
+          target = this.appended;
+        }
+        synchronized (this.channelLock) {
+          this.flushing.writeTo(Channels.newOutputStream(this.channel));
+          this.channel.force(false);
+        }
+        this.flushing.reset();
+        committed = target;
+        this.commits++;
+        synchronized (this.durableLock) {
+          this.durable = target;
+          this.durableLock.notifyAll();
+        }
+      }
+    } catch (IOException e) {
+      log.error("Journal write failed, no further transfer can be acknowledged", e);
+      synchronized (this.durableLock) {
+        this.failure = e;
+        this.durableLock.notifyAll();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private List<Path> segments() throws IOException {
+    try (Stream<Path> files = Files.list(this.directory)) {
+      return files.filter(path -> path.getFileName().toString().startsWith(SEGMENT_PREFIX)
+          && path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+
+  private static long segmentNumber(Path segment) {
+    String name = segment.getFileName().toString();
+    return Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+        name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  private Path segmentPath(long number) {
+    return this.directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, number,
+        SEGMENT_SUFFIX));
+  }
+
+  /**
+   * Read the valid records of a segment.
+   *
+   * @param last whether the segment is the last one, the only one that may end with a torn
+   *             record
+   * @return the length of the valid part of the segment
+   * @throws JournalException if a sealed segment holds an invalid record
+   */
+  private static long readSegment(Path segment, boolean last,
+      Consumer<JournalRecord> consumer) throws IOException {
+    long size = Files.size(segment);
+    long valid = 0;
+    try (InputStream file = Files.newInputStream(segment);
+         DataInputStream in = new DataInputStream(new BufferedInputStream(file))) {
+      while (valid < size) {
+        JournalRecord record = null;
+        int length = 0;
+        if (size - valid >= 8) {
+          length = in.readInt();
+          long checksum = in.readInt() & 0xFFFFFFFFL;
+          // A length beyond the end of the segment is torn or garbage, never allocated
+          if (length >= MIN_RECORD && length <= size - valid - 8) {
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if (crc.getValue() == checksum) {
+              record = decodeOrNull(payload);
+            }
+          }
+        }
+        if (record == null) {
+          if (!last) {
+            throw new JournalException("Invalid record in sealed journal segment " + segment
+                + " at " + valid + " bytes", null);
+          }
+          return valid;
+        }
+        consumer.accept(record);
+        valid += 8 + length;
+      }
+      return valid;
+    }
+  }
+
+  /**
+   * The record, or null if its payload, although its checksum matches, cannot be decoded.
+   */
+  private static JournalRecord decodeOrNull(byte[] payload) {
+    try {
+      return decode(payload);
+    } catch (IOException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  private static byte[] encode(JournalRecord record) {
+    try {
+      ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+      DataOutputStream out = new DataOutputStream(payload);
+      out.writeByte(record.getType().ordinal());
+      out.writeUTF(record.getAccountFromId() == null ? "" : record.getAccountFromId());
+      out.writeUTF(record.getAccountToId() == null ? "" : record.getAccountToId());
+      writeAmount(out, record.getAmount());
+      if (record.getType() == Type.MULTI_LEG) {
+        out.writeInt(record.getLegs().size());
+        for (JournalRecord leg : record.getLegs()) {
+          out.writeUTF(leg.getAccountToId());
+          writeAmount(out, leg.getAmount());
+        }
+      } else if (record.getType() == Type.SCHEDULED_TRANSFER) {
+        out.writeLong(record.getScheduledId());
+      } else if (record.getType() == Type.SETTLED) {
+        out.writeInt(record.getSettledIds().length);
+        for (long scheduledId : record.getSettledIds()) {
+          out.writeLong(scheduledId);
+        }
+      }
+
+      CRC32 crc = new CRC32();
+      crc.update(payload.toByteArray());
+      ByteArrayOutputStream framed = new ByteArrayOutputStream(payload.size() + 8);
+      DataOutputStream frame = new DataOutputStream(framed);
+      frame.writeInt(payload.size());
+      frame.writeInt((int) crc.getValue());
+      payload.writeTo(frame);
+      return framed.toByteArray();
+    } catch (IOException e) {
+      throw new JournalException("Cannot encode journal record", e);
+    }
+  }
+
+  private static JournalRecord decode(byte[] payload) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+    Type type = Type.values()[in.readByte()];
+    String accountFromId = in.readUTF();
+    String accountToId = in.readUTF();
+    BigDecimal amount = readAmount(in);
+    if (type == Type.MULTI_LEG) {
+      int count = in.readInt();
+      List<JournalRecord> legs = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        legs.add(JournalRecord.transfer(accountFromId, in.readUTF(), readAmount(in)));
+      }
+      return JournalRecord.multiLeg(legs);
+    }
+    if (type == Type.SCHEDULED_TRANSFER) {
+      return JournalRecord.transfer(accountFromId, accountToId, amount, in.readLong());
+    }
+    if (type == Type.SETTLED) {
+      long[] scheduledIds = new long[in.readInt()];
+      for (int i = 0; i < scheduledIds.length; i++) {
+        scheduledIds[i] = in.readLong();
+      }
+      return JournalRecord.settled(scheduledIds);
+    }
+    return type == Type.CREATE
+        ? JournalRecord.create(accountToId, amount)
+        : JournalRecord.transfer(accountFromId, accountToId, amount);
+  }
+
+  private static void writeAmount(DataOutputStream out, BigDecimal amount) throws IOException {
+    byte[] unscaled = amount.unscaledValue().toByteArray();
+    out.writeInt(amount.scale());
+    out.writeShort(unscaled.length);
+    out.write(unscaled);
+  }
+
+  private static BigDecimal readAmount(DataInputStream in) throws IOException {
+    int scale = in.readInt();
+    byte[] unscaled = new byte[in.readShort()];
+    in.readFully(unscaled);
+    return new BigDecimal(new BigInteger(unscaled), scale);
+  }
+}
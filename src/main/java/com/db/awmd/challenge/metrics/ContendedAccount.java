@@ -0,0 +1,24 @@
+package com.db.awmd.challenge.metrics;
+
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * How much transfers waited for the lock of one account.
+ */
+@Data
+@Builder
+public class ContendedAccount {
+
+  private final String accountId;
+
+  /**
+   * Lock acquisitions that had to wait.
+   */
+  private final long contendedLocks;
+
+  /**
+   * Total time spent waiting for the lock.
+   */
+  private final long waitMicros;
+}
@@ -0,0 +1,26 @@
+package com.db.awmd.challenge.metrics;
+
+import java.util.List;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.AbstractEndpoint;
+import org.springframework.stereotype.Component;
+
+/**
+ * Actuator endpoint at {@code /contention} listing the most contended account locks.
+ */
+@Component
+public class ContentionEndpoint extends AbstractEndpoint<List<ContendedAccount>> {
+
+  private final TransferMetrics transferMetrics;
+
+  @Autowired
+  public ContentionEndpoint(TransferMetrics transferMetrics) {
+    super("contention");
+    this.transferMetrics = transferMetrics;
+  }
+
+  @Override
+  public List<ContendedAccount> invoke() {
+    return this.transferMetrics.getMostContendedAccounts();
+  }
+}
@@ -0,0 +1,90 @@
+package com.db.awmd.challenge.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with logarithmic buckets, cheap enough to record on every call.
+ *
+ * <p>Each power of two is split in four buckets, so a reported percentile is at most 25% above
+ * the actual value. Recording only increments striped counters and never allocates.
+ */
+public final class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 2;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  private final LongAdder[] buckets = new LongAdder[64 * SUB_BUCKETS];
+  private final LongAdder count = new LongAdder();
+  private final LongAdder totalNanos = new LongAdder();
+  private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+  public LatencyHistogram() {
+    for (int i = 0; i < this.buckets.length; i++) {
+      this.buckets[i] = new LongAdder();
+    }
+  }
+
+  public void record(long nanos) {
+    long value = Math.max(0, nanos);
+    this.buckets[bucket(value)].increment();
+    this.count.increment();
+    this.totalNanos.add(value);
+    this.maxNanos.accumulate(value);
+  }
+
+  public long getCount() {
+    return this.count.sum();
+  }
+
+  public long getMeanNanos() {
+    long samples = this.count.sum();
+    return samples == 0 ? 0 : this.totalNanos.sum() / samples;
+  }
+
+  public long getMaxNanos() {
+    return this.maxNanos.get();
+  }
+
+  /**
+   * Upper bound of the bucket holding the given percentile.
+   *
+   * @param percentile between 0 and 100
+   * @return the latency in nanoseconds, 0 if nothing was recorded
+   */
+  public long getPercentileNanos(double percentile) {
+    long samples = this.count.sum();
+    if (samples == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(samples * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < this.buckets.length; i++) {
+      seen += this.buckets[i].sum();
+      if (seen >= target) {
+        return Math.min(upperBound(i), getMaxNanos());
+      }
+    }
+    return getMaxNanos();
+  }
+
+  private static int bucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int bits = 64 - Long.numberOfLeadingZeros(value);
+    int top = (int) (value >>> (bits - 1 - SUB_BUCKET_BITS));
+    return (bits - SUB_BUCKET_BITS) * SUB_BUCKETS + top - SUB_BUCKETS;
+  }
+
+  private static long upperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int bits = bucket / SUB_BUCKETS + SUB_BUCKET_BITS;
+    long top = bucket % SUB_BUCKETS + SUB_BUCKETS;
+    int shift = bits - 1 - SUB_BUCKET_BITS;
+    // Wraps to Long.MAX_VALUE for the last bucket
+    return ((top + 1) << shift) - 1;
+  }
+}
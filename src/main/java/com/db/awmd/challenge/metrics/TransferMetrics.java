@@ -0,0 +1,163 @@
+package com.db.awmd.challenge.metrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+/**
+ * Instrumentation of the transfer hot path: latency histograms, lock wait and hold times,
+ * counters of transfers refused because of locks and of retries, and the accounts whose locks
+ * are most contended.
+ *
+ * <p>Uncontended transfers only increment striped counters. The most contended accounts are
+ * tracked with a Space-Saving summary of bounded size, updated only when a lock was not
+ * immediately available, so hot accounts are found without keeping state for every account.
+ */
+@Component
+public class TransferMetrics implements PublicMetrics {
+
+  private static final class Contention {
+
+    private long contendedLocks;
+    private long waitNanos;
+    // Upper bound of what an evicted account may have contributed to waitNanos
+    private long error;
+  }
+
+  private final int topK;
+
+  private final LatencyHistogram transferLatency = new LatencyHistogram();
+  private final LatencyHistogram lockWait = new LatencyHistogram();
+  private final LatencyHistogram lockHold = new LatencyHistogram();
+  private final LatencyHistogram notificationDispatch = new LatencyHistogram();
+
+  private final LongAdder locked = new LongAdder();
+  private final LongAdder retries = new LongAdder();
+
+  // Guarded by itself, holds at most 2 * topK accounts
+  private final Map<String, Contention> contention = new HashMap<>();
+
+  /**
+   * Metrics reporting the 10 most contended accounts, for services built outside Spring.
+   */
+  public TransferMetrics() {
+    this(10);
+  }
+
+  @Autowired
+  public TransferMetrics(@Value("${metrics.contention.top-k:10}") int topK) {
+    this.topK = topK;
+  }
+
+  public void recordTransfer(long nanos) {
+    this.transferLatency.record(nanos);
+  }
+
+  public void recordLockWait(long nanos) {
+    this.lockWait.record(nanos);
+  }
+
+  public void recordLockHold(long nanos) {
+    this.lockHold.record(nanos);
+  }
+
+  public void recordNotification(long nanos) {
+    this.notificationDispatch.record(nanos);
+  }
+
+  /**
+   * Count transfers refused because their account locks could not be taken in time.
+   */
+  public void recordLocked(int transfers) {
+    this.locked.add(transfers);
+  }
+
+  public void recordRetry() {
+    this.retries.increment();
+  }
+
+  /**
+   * Record a lock acquisition of the account that had to wait.
+   *
+   * @param accountId the account
+   * @param waitNanos time waited, whether the lock was finally taken or not
+   */
+  public void recordContention(String accountId, long waitNanos) {
+    synchronized (this.contention) {
+      Contention account = this.contention.get(accountId);
+      if (account == null) {
+        account = new Contention();
+        if (this.contention.size() >= 2 * this.topK) {
+          // Space-Saving: the newcomer replaces the least contended account and inherits its
+          // counts as possible error
+          Map.Entry<String, Contention> least = this.contention.entrySet().stream()
+              .min(Comparator.comparingLong(entry -> entry.getValue().waitNanos)).get();
+          this.contention.remove(least.getKey());
+          account.contendedLocks = least.getValue().contendedLocks;
+          account.waitNanos = least.getValue().waitNanos;
+          account.error = least.getValue().waitNanos;
+        }
+        this.contention.put(accountId, account);
+      }
+      account.contendedLocks++;
+      account.waitNanos += waitNanos;
+    }
+  }
+
+  /**
+   * The accounts transfers waited for the most, most contended first. Counts may be
+   * overestimated for accounts that entered the summary late.
+   */
+  public List<ContendedAccount> getMostContendedAccounts() {
+    synchronized (this.contention) {
+      return this.contention.entrySet().stream()
+          .sorted(Comparator.comparingLong(
+              (Map.Entry<String, Contention> entry) -> entry.getValue().waitNanos).reversed())
+          .limit(this.topK)
+          .map(entry -> ContendedAccount.builder()
+              .accountId(entry.getKey())
+              .contendedLocks(entry.getValue().contendedLocks)
+              .waitMicros(TimeUnit.NANOSECONDS.toMicros(entry.getValue().waitNanos))
+              .build())
+          .collect(Collectors.toList());
+    }
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    List<Metric<?>> metrics = new ArrayList<>();
+    addHistogram(metrics, "transfer.latency", this.transferLatency);
+    addHistogram(metrics, "transfer.lock.wait", this.lockWait);
+    addHistogram(metrics, "transfer.lock.hold", this.lockHold);
+    addHistogram(metrics, "transfer.notification", this.notificationDispatch);
+    metrics.add(new Metric<>("transfer.locked", this.locked.sum()));
+    metrics.add(new Metric<>("transfer.retries", this.retries.sum()));
+    return metrics;
+  }
+
+  private static void addHistogram(List<Metric<?>> metrics, String name,
+                                   LatencyHistogram histogram) {
+    metrics.add(new Metric<>(name + ".count", histogram.getCount()));
+    metrics.add(new Metric<>(name + ".mean-micros", micros(histogram.getMeanNanos())));
+    metrics.add(new Metric<>(name + ".p50-micros", micros(histogram.getPercentileNanos(50))));
+    metrics.add(new Metric<>(name + ".p99-micros", micros(histogram.getPercentileNanos(99))));
+    metrics.add(new Metric<>(name + ".p999-micros",
+        micros(histogram.getPercentileNanos(99.9))));
+    metrics.add(new Metric<>(name + ".max-micros", micros(histogram.getMaxNanos())));
+  }
+
+  private static long micros(long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos);
+  }
+}
@@ -0,0 +1,264 @@
+package com.db.awmd.challenge.repository;
+
+import com.db.awmd.challenge.exception.AccountsStorageFullException;
+import com.db.awmd.challenge.exception.InvalidAccountIdException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Fixed-capacity store of accounts in direct memory, outside the Java heap.
+ *
+ * <p>Every account takes a fixed-size record in a slot of the slab: balance in minor units,
+ * version, id length and the id chars. Ids are found through an open-addressing, linear
+ * probing hash table, also off-heap, whose entries pack the id hash with the slot number.
+ * Slab pages are allocated as slots fill up; the index is allocated up front.
+ *
+ * <p>Inserts are serialized by a {@link StampedLock}. Lookups run lock-free on an optimistic
+ * stamp and only take the read lock if an insert raced them. Balances are not guarded here;
+ * callers hold the account lock of the slot.
+ */
+final class AccountSlab {
+
+  private static final int BALANCE = 0;
+  private static final int VERSION = 8;
+  private static final int ID_LENGTH = 16;
+  private static final int ID = 18;
+
+  private static final int RECORD_PAGE_SHIFT = 20;
+  private static final int INDEX_PAGE_SHIFT = 24;
+
+  private final int capacity;
+  private final int maxIdLength;
+  private final int recordBytes;
+
+  private final ByteBuffer[] recordPages;
+  private final ByteBuffer[] indexPages;
+  private final long indexMask;
+
+  private final StampedLock lock = new StampedLock();
+
+  // Written under the write lock of lock
+  private volatile int size;
+
+  /**
+   * Allocate the index for the given number of accounts.
+   *
+   * @param capacity    maximum number of accounts
+   * @param maxIdLength maximum number of chars of an account id
+   */
+  AccountSlab(int capacity, int maxIdLength) {
+    this.capacity = capacity;
+    this.maxIdLength = maxIdLength;
+    this.recordBytes = (ID + 2 * maxIdLength + 7) & ~7;
+    this.recordPages = new ByteBuffer[((capacity - 1) >>> RECORD_PAGE_SHIFT) + 1];
+
+    // At most half full, so probe sequences stay short
+    long indexEntries = Math.max(16, Long.highestOneBit(2L * capacity - 1) << 1);
+    this.indexMask = indexEntries - 1;
+    int indexPageEntries = (int) Math.min(indexEntries, 1 << INDEX_PAGE_SHIFT);
+    this.indexPages = new ByteBuffer[(int) (indexEntries / indexPageEntries)];
+    for (int i = 0; i < this.indexPages.length; i++) {
+      this.indexPages[i] = allocate(indexPageEntries * 8);
+    }
+  }
+
+  /**
+   * Slot of the account, or -1 if there is none.
+   */
+  int find(String accountId) {
+    int hash = hash(accountId);
+    long stamp = this.lock.tryOptimisticRead();
+    int slot = probe(accountId, hash);
+    if (!this.lock.validate(stamp)) {
+      stamp = this.lock.readLock();
+      try {
+        slot = probe(accountId, hash);
+      } finally {
+        this.lock.unlockRead(stamp);
+      }
+    }
+    return slot;
+  }
+
+  /**
+   * Store a new account.
+   *
+   * @param accountId the account id
+   * @param balance   initial balance in minor units
+   * @param onInsert  run under the insert lock once the id is known to be new, before the
+   *                  account becomes visible
+   * @return the slot of the account, or -1 if the id already exists
+   * @throws InvalidAccountIdException   if the id is longer than the maximum id length
+   * @throws AccountsStorageFullException if the slab is full
+   */
+  int insert(String accountId, long balance, Runnable onInsert) {
+    if (accountId.length() > this.maxIdLength) {
+      throw new InvalidAccountIdException(
+          "Account id longer than " + this.maxIdLength + " chars: " + accountId);
+    }
+    int hash = hash(accountId);
+    long stamp = this.lock.writeLock();
+    try {
+      long position = hash & this.indexMask;
+      for (long entry = index(position); entry != 0; entry = index(position)) {
+        if ((int) (entry >>> 32) == hash && matches((int) entry - 1, accountId)) {
+          return -1;
+        }
+        position = (position + 1) & this.indexMask;
+      }
+      if (this.size == this.capacity) {
+        throw new AccountsStorageFullException(
+            "Account slab full at " + this.capacity + " accounts");
+      }
+      onInsert.run();
+
+      int slot = this.size;
+      int page = slot >>> RECORD_PAGE_SHIFT;
+      if (this.recordPages[page] == null) {
+        int pageRecords = Math.min(1 << RECORD_PAGE_SHIFT,
+            this.capacity - (page << RECORD_PAGE_SHIFT));
+        this.recordPages[page] = allocate(Math.multiplyExact(pageRecords, this.recordBytes));
+      }
+      ByteBuffer records = this.recordPages[page];
+      int offset = offset(slot);
+      records.putLong(offset + BALANCE, balance);
+      records.putLong(offset + VERSION, 0);
+      records.putShort(offset + ID_LENGTH, (short) accountId.length());
+      for (int i = 0; i < accountId.length(); i++) {
+        records.putChar(offset + ID + 2 * i, accountId.charAt(i));
+      }
+      setIndex(position, ((long) hash << 32) | (slot + 1));
+      this.size = slot + 1;
+      return slot;
+    } finally {
+      this.lock.unlockWrite(stamp);
+    }
+  }
+
+  long balance(int slot) {
+    return this.recordPages[slot >>> RECORD_PAGE_SHIFT].getLong(offset(slot) + BALANCE);
+  }
+
+  /**
+   * Set the balance of the slot and bump its version.
+   */
+  void setBalance(int slot, long balance) {
+    ByteBuffer records = this.recordPages[slot >>> RECORD_PAGE_SHIFT];
+    int offset = offset(slot);
+    records.putLong(offset + BALANCE, balance);
+    records.putLong(offset + VERSION, records.getLong(offset + VERSION) + 1);
+  }
+
+  String accountId(int slot) {
+    ByteBuffer records = this.recordPages[slot >>> RECORD_PAGE_SHIFT];
+    int offset = offset(slot);
+    char[] accountId = new char[records.getShort(offset + ID_LENGTH)];
+    for (int i = 0; i < accountId.length; i++) {
+      accountId[i] = records.getChar(offset + ID + 2 * i);
+    }
+    return new String(accountId);
+  }
+
+  long version(int slot) {
+    return this.recordPages[slot >>> RECORD_PAGE_SHIFT].getLong(offset(slot) + VERSION);
+  }
+
+  int size() {
+    return this.size;
+  }
+
+  /**
+   * Drop every account. Record pages are kept for reuse.
+   */
+  void clear() {
+    long stamp = this.lock.writeLock();
+    try {
+      for (ByteBuffer indexPage : this.indexPages) {
+        for (int i = 0; i < indexPage.capacity(); i += 8) {
+          indexPage.putLong(i, 0);
+        }
+      }
+      this.size = 0;
+    } finally {
+      this.lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Direct memory currently allocated.
+   */
+  long allocatedBytes() {
+    long bytes = 0;
+    for (ByteBuffer indexPage : this.indexPages) {
+      bytes += indexPage.capacity();
+    }
+    for (ByteBuffer recordPage : this.recordPages) {
+      if (recordPage != null) {
+        bytes += recordPage.capacity();
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Look the id up. Safe to run concurrently with an insert: it never fails, but the result
+   * only counts if the optimistic stamp is still valid afterwards.
+   */
+  private int probe(String accountId, int hash) {
+    long position = hash & this.indexMask;
+    for (long probes = 0; probes <= this.indexMask; probes++) {
+      long entry = index(position);
+      if (entry == 0) {
+        return -1;
+      }
+      int slot = (int) entry - 1;
+      if ((int) (entry >>> 32) == hash && slot >= 0 && slot < this.size
+          && matches(slot, accountId)) {
+        return slot;
+      }
+      position = (position + 1) & this.indexMask;
+    }
+    return -1;
+  }
+
+  private boolean matches(int slot, String accountId) {
+    ByteBuffer records = this.recordPages[slot >>> RECORD_PAGE_SHIFT];
+    if (records == null) {
+      return false;
+    }
+    int offset = offset(slot);
+    if (records.getShort(offset + ID_LENGTH) != accountId.length()) {
+      return false;
+    }
+    for (int i = 0; i < accountId.length(); i++) {
+      if (records.getChar(offset + ID + 2 * i) != accountId.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private long index(long position) {
+    return this.indexPages[(int) (position >>> INDEX_PAGE_SHIFT)]
+        .getLong((int) (position & ((1 << INDEX_PAGE_SHIFT) - 1)) * 8);
+  }
+
+  private void setIndex(long position, long entry) {
+    this.indexPages[(int) (position >>> INDEX_PAGE_SHIFT)]
+        .putLong((int) (position & ((1 << INDEX_PAGE_SHIFT) - 1)) * 8, entry);
+  }
+
+  private int offset(int slot) {
+    return (slot & ((1 << RECORD_PAGE_SHIFT) - 1)) * this.recordBytes;
+  }
+
+  private static int hash(String accountId) {
+    int hash = accountId.hashCode() * 0x9E3779B9;
+    return hash ^ (hash >>> 16);
+  }
+
+  private static ByteBuffer allocate(int bytes) {
+    return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+  }
+}
@@ -1,13 +1,45 @@
 package com.db.awmd.challenge.repository;
 
 import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.AccountSnapshot;
 import com.db.awmd.challenge.exception.AccountNotFoundException;
+import com.db.awmd.challenge.exception.AccountsRejectedException;
 import com.db.awmd.challenge.exception.DuplicateAccountIdException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
 
 public interface AccountsRepository {
 
   void createAccount(Account account) throws DuplicateAccountIdException;
 
+  /**
+   * Store a batch of new accounts, skipping the ones whose id already exists.
+   *
+   * <p>The default implementation stores them one by one, implementations can do better by
+   * waiting for the durability of the whole batch at once.
+   *
+   * @param accounts the accounts
+   * @return the positions in the batch of the accounts not stored because their id already
+   *     exists, ascending
+   * @throws AccountsRejectedException once the other accounts are created, if some cannot be
+   *                                   stored at all
+   */
+  default List<Integer> createAccounts(List<Account> accounts) {
+    List<Integer> duplicates = new ArrayList<>();
+    for (int i = 0; i < accounts.size(); i++) {
+      try {
+        createAccount(accounts.get(i));
+      } catch (DuplicateAccountIdException e) {
+        duplicates.add(i);
+      }
+    }
+    return duplicates;
+  }
+
   /**
    * Update an existing account.
    *
@@ -16,7 +48,164 @@ public interface AccountsRepository {
    */
   void updateAccount(Account account) throws AccountNotFoundException;
 
+  /**
+   * Update the accounts changed together by one transfer or batch, as one unit.
+   *
+   * <p>The default implementation updates them one by one.
+   *
+   * @param accounts the accounts
+   * @throws AccountNotFoundException if one of the accounts is not found
+   */
+  default void updateAccounts(Collection<Account> accounts) throws AccountNotFoundException {
+    for (Account account : accounts) {
+      updateAccount(account);
+    }
+  }
+
+  /**
+   * Whether the accounts of a transfer are only stored as one unit when they are passed
+   * together to {@link #updateAccounts(Collection)}, so updating them one at a time could
+   * store half of a transfer.
+   *
+   * <p>False by default, for repositories keeping every change in memory.
+   */
+  default boolean requiresGroupedUpdates() {
+    return false;
+  }
+
   Account getAccount(String accountId);
 
+  /**
+   * Balance and version of the account, read together.
+   *
+   * <p>The default implementation reads them under the account read lock.
+   *
+   * @param accountId the account id
+   * @return the snapshot, or null if the account is not found
+   */
+  default AccountSnapshot getSnapshot(String accountId) {
+    Account account = getAccount(accountId);
+    if (account == null) {
+      return null;
+    }
+    account.getLock().readLock().lock();
+    try {
+      return AccountSnapshot.of(account);
+    } finally {
+      account.getLock().readLock().unlock();
+    }
+  }
+
+  /**
+   * Set the balance of the account if it is still at the version of the snapshot.
+   *
+   * <p>The default implementation compares and sets under the account write lock,
+   * implementations can do it without taking locks.
+   *
+   * @param expected snapshot the new balance was computed from
+   * @param balance  new balance in minor units
+   * @return the snapshot of the new balance, or null if the version changed meanwhile
+   * @throws AccountNotFoundException if the account is not found
+   */
+  default AccountSnapshot compareAndSet(AccountSnapshot expected, long balance)
+      throws AccountNotFoundException {
+    Account account = getAccount(expected.getAccountId());
+    if (account == null) {
+      throw new AccountNotFoundException(expected.getAccountId());
+    }
+    account.getLock().writeLock().lock();
+    try {
+      if (account.getVersion() != expected.getVersion()) {
+        return null;
+      }
+      account.setBalanceMinorUnits(balance);
+      account.setVersion(expected.getVersion() + 1);
+      updateAccount(account);
+      return AccountSnapshot.of(account);
+    } finally {
+      account.getLock().writeLock().unlock();
+    }
+  }
+
+  /**
+   * Set the balances of the accounts if every one of them is still at the version of its
+   * snapshot, or set none of them.
+   *
+   * <p>The default implementation locks the accounts for writing in lock order, compares and
+   * sets under the locks and stores the accounts with one {@link #updateAccounts(Collection)}.
+   *
+   * @param expected snapshots the new balances were computed from, of distinct accounts
+   * @param balances new balances in minor units, in the order of the snapshots
+   * @return false if a version changed meanwhile, nothing is set then
+   * @throws AccountNotFoundException if one of the accounts is not found
+   */
+  default boolean compareAndSetAll(List<AccountSnapshot> expected, long[] balances)
+      throws AccountNotFoundException {
+    List<Account> accounts = new ArrayList<>(expected.size());
+    for (AccountSnapshot snapshot : expected) {
+      Account account = getAccount(snapshot.getAccountId());
+      if (account == null) {
+        throw new AccountNotFoundException(snapshot.getAccountId());
+      }
+      accounts.add(account);
+    }
+    List<Account> locked = new ArrayList<>(accounts);
+    locked.sort(Comparator.comparingInt(Account::getLockOrder)
+        .thenComparing(Account::getAccountId));
+    locked.forEach(account -> account.getLock().writeLock().lock());
+    try {
+      for (int i = 0; i < accounts.size(); i++) {
+        if (accounts.get(i).getVersion() != expected.get(i).getVersion()) {
+          return false;
+        }
+      }
+      for (int i = 0; i < accounts.size(); i++) {
+        accounts.get(i).setBalanceMinorUnits(balances[i]);
+        accounts.get(i).setVersion(expected.get(i).getVersion() + 1);
+      }
+      updateAccounts(accounts);
+      return true;
+    } finally {
+      for (int i = locked.size() - 1; i >= 0; i--) {
+        locked.get(i).getLock().writeLock().unlock();
+      }
+    }
+  }
+
+  /**
+   * Feed every account to the consumer. The iteration is weakly consistent: it neither blocks
+   * nor is blocked by changes, and accounts created meanwhile may or may not be seen.
+   *
+   * @param consumer consumer of the accounts
+   */
+  void forEachAccount(Consumer<Account> consumer);
+
+  /**
+   * Accounts in id order, starting after the given id.
+   *
+   * <p>The default implementation scans every account and keeps only the page, so memory is
+   * bounded by the page size but time grows with the number of accounts.
+   *
+   * @param afterAccountId id the page starts after, null for the first page
+   * @param limit          maximum number of accounts returned
+   * @return the accounts, ordered by id
+   */
+  default List<Account> getAccounts(String afterAccountId, int limit) {
+    // Largest id on top, evicted when a smaller one comes
+    PriorityQueue<Account> page = new PriorityQueue<>(limit + 1,
+        Comparator.comparing(Account::getAccountId).reversed());
+    forEachAccount(account -> {
+      if (afterAccountId == null || account.getAccountId().compareTo(afterAccountId) > 0) {
+        page.add(account);
+        if (page.size() > limit) {
+          page.poll();
+        }
+      }
+    });
+    List<Account> accounts = new ArrayList<>(page);
+    accounts.sort(Comparator.comparing(Account::getAccountId));
+    return accounts;
+  }
+
   void clearAccounts();
 }
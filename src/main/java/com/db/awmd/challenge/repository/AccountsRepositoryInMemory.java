@@ -1,24 +1,112 @@
 package com.db.awmd.challenge.repository;
 
 import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.AccountSnapshot;
 import com.db.awmd.challenge.exception.AccountNotFoundException;
 import com.db.awmd.challenge.exception.DuplicateAccountIdException;
+import com.db.awmd.challenge.exception.JournalException;
+import com.db.awmd.challenge.journal.AccountsSnapshotter;
+import com.db.awmd.challenge.journal.JournalRecord;
+import com.db.awmd.challenge.journal.LedgerProjection;
+import com.db.awmd.challenge.journal.TransferJournal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import javax.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Repository;
 
 @Repository
-public class AccountsRepositoryInMemory implements AccountsRepository {
+@Slf4j
+@ConditionalOnProperty(name = "accounts.repository", havingValue = "in-memory",
+    matchIfMissing = true)
+public class AccountsRepositoryInMemory implements AccountsRepository, PublicMetrics {
 
   private final Map<String, Account> accounts = new ConcurrentHashMap<>();
 
+  private TransferJournal transferJournal;
+
+  private AccountsSnapshotter accountsSnapshotter;
+
+  private HotAccounts hotAccounts;
+
+  private volatile long recoveryMillis;
+
+  @Autowired(required = false)
+  public void setTransferJournal(TransferJournal transferJournal) {
+    this.transferJournal = transferJournal;
+  }
+
+  @Autowired(required = false)
+  public void setAccountsSnapshotter(AccountsSnapshotter accountsSnapshotter) {
+    this.accountsSnapshotter = accountsSnapshotter;
+  }
+
+  @Autowired(required = false)
+  public void setHotAccounts(HotAccounts hotAccounts) {
+    this.hotAccounts = hotAccounts;
+  }
+
+  /**
+   * Rebuild the accounts from the ledger: the latest snapshot and the journal segments after
+   * it, replayed in parallel.
+   */
+  @PostConstruct
+  public void recover() {
+    if (this.transferJournal == null) {
+      return;
+    }
+    long started = System.currentTimeMillis();
+    LedgerProjection projection = LedgerProjection.rebuild(this.transferJournal,
+        this.accountsSnapshotter, ForkJoinPool.commonPool());
+    projection.forEach((accountId, balance) ->
+        accounts.put(accountId, newAccount(accountId, balance)));
+    this.transferJournal.restoreScheduled(projection.getAppliedScheduled());
+    this.recoveryMillis = System.currentTimeMillis() - started;
+    log.info("Recovered {} accounts from {} journal events in {} ms", this.accounts.size(),
+        projection.getEvents(), this.recoveryMillis);
+  }
+
+  /**
+   * Store the account. A hot account is stored as a striped copy, so later changes show on
+   * the account returned by {@link #getAccount(String)}, not on the given one.
+   */
   @Override
   public void createAccount(Account account) throws DuplicateAccountIdException {
-    Account previousAccount = accounts.putIfAbsent(account.getAccountId(), account);
-    if (previousAccount != null) {
+    long sequence = store(account);
+    if (sequence < 0) {
       throw new DuplicateAccountIdException(
           "Account id " + account.getAccountId() + " already exists!");
     }
+    awaitDurable(sequence);
+  }
+
+  /**
+   * Store the accounts and wait once for the journal to have all of them.
+   */
+  @Override
+  public List<Integer> createAccounts(List<Account> accounts) {
+    List<Integer> duplicates = new ArrayList<>();
+    long lastSequence = 0;
+    for (int i = 0; i < accounts.size(); i++) {
+      long sequence = store(accounts.get(i));
+      if (sequence < 0) {
+        duplicates.add(i);
+      } else {
+        lastSequence = Math.max(lastSequence, sequence);
+      }
+    }
+    awaitDurable(lastSequence);
+    return duplicates;
   }
 
   @Override
@@ -35,9 +123,143 @@ public class AccountsRepositoryInMemory implements AccountsRepository {
     return accounts.get(accountId);
   }
 
+  /**
+   * Read the balance between two reads of the same version, without taking the lock. A
+   * version held by {@link #compareAndSetAll} is waited out.
+   */
+  @Override
+  public AccountSnapshot getSnapshot(String accountId) {
+    Account account = accounts.get(accountId);
+    if (account == null) {
+      return null;
+    }
+    while (true) {
+      long version = account.getVersion();
+      if (version >= 0) {
+        long balance = account.getBalanceMinorUnits();
+        if (account.getVersion() == version) {
+          return AccountSnapshot.builder()
+              .accountId(accountId)
+              .balanceMinorUnits(balance)
+              .version(version)
+              .build();
+        }
+      }
+      Thread.yield();
+    }
+  }
+
+  @Override
+  public AccountSnapshot compareAndSet(AccountSnapshot expected, long balance)
+      throws AccountNotFoundException {
+    if (!compareAndSetAll(Collections.singletonList(expected), new long[] {balance})) {
+      return null;
+    }
+    return AccountSnapshot.builder()
+        .accountId(expected.getAccountId())
+        .balanceMinorUnits(balance)
+        .version(expected.getVersion() + 1)
+        .build();
+  }
+
+  /**
+   * Compare and set without taking the locks: the version of every account is swapped for
+   * its complement, which holds the account, then the balances are set and the versions
+   * bumped. When a version changed meanwhile, the accounts already held get their version
+   * back and nothing is set.
+   */
+  @Override
+  public boolean compareAndSetAll(List<AccountSnapshot> expected, long[] balances)
+      throws AccountNotFoundException {
+    Account[] held = new Account[expected.size()];
+    for (int i = 0; i < held.length; i++) {
+      held[i] = accounts.get(expected.get(i).getAccountId());
+      if (held[i] == null) {
+        throw new AccountNotFoundException(expected.get(i).getAccountId());
+      }
+    }
+    for (int i = 0; i < held.length; i++) {
+      long version = expected.get(i).getVersion();
+      if (!held[i].compareAndSetVersion(version, ~version)) {
+        for (int j = i - 1; j >= 0; j--) {
+          held[j].setVersion(expected.get(j).getVersion());
+        }
+        return false;
+      }
+    }
+    for (int i = 0; i < held.length; i++) {
+      held[i].setBalanceMinorUnits(balances[i]);
+    }
+    for (int i = 0; i < held.length; i++) {
+      held[i].setVersion(expected.get(i).getVersion() + 1);
+    }
+    return true;
+  }
+
+  @Override
+  public void forEachAccount(Consumer<Account> consumer) {
+    accounts.values().forEach(consumer);
+  }
+
   @Override
   public void clearAccounts() {
     accounts.clear();
   }
 
+  @Override
+  public Collection<Metric<?>> metrics() {
+    List<Metric<?>> metrics = new ArrayList<>();
+    metrics.add(new Metric<>("accounts.count", accounts.size()));
+    metrics.add(new Metric<>("accounts.recovery.millis", this.recoveryMillis));
+    return metrics;
+  }
+
+  /**
+   * Store the account if its id is new.
+   *
+   * @return the journal sequence of its creation, 0 without journal, -1 if the id exists
+   */
+  private long store(Account account) {
+    Account newAccount = this.hotAccounts == null ? account : this.hotAccounts.stripe(account);
+    if (this.transferJournal == null) {
+      return accounts.putIfAbsent(account.getAccountId(), newAccount) == null ? 0 : -1;
+    }
+
+    // Journal the creation while holding the map entry, so no transfer can be journaled for
+    // this account before its creation
+    long[] sequence = new long[1];
+    Account storedAccount = accounts.computeIfAbsent(account.getAccountId(), accountId -> {
+      sequence[0] = this.transferJournal.append(
+          JournalRecord.create(accountId, account.getBalance()));
+      return newAccount;
+    });
+    return storedAccount == newAccount ? sequence[0] : -1;
+  }
+
+  /**
+   * Wait for the journal to have the creations up to the sequence.
+   *
+   * @throws JournalException if interrupted while waiting, with the interrupt status kept, as
+   *     the accounts may not be durable
+   */
+  private void awaitDurable(long sequence) {
+    if (this.transferJournal == null || sequence == 0) {
+      return;
+    }
+    try {
+      this.transferJournal.awaitDurable(sequence);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new JournalException("Interrupted waiting for the journal", e);
+    }
+  }
+
+  private Account newAccount(String accountId, long balance) {
+    if (this.hotAccounts != null) {
+      return this.hotAccounts.newAccount(accountId, balance);
+    }
+    Account account = new Account(accountId);
+    account.setBalanceMinorUnits(balance);
+    return account;
+  }
 }
@@ -0,0 +1,141 @@
+package com.db.awmd.challenge.repository;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.AccountSnapshot;
+import com.db.awmd.challenge.exception.AccountNotFoundException;
+import com.db.awmd.challenge.exception.DuplicateAccountIdException;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+/**
+ * Read-through cache of accounts in front of a repository whose reads are round trips.
+ *
+ * <p>Holds at most the given number of accounts, evicted by frequency and recency
+ * (W-TinyLFU), so hot accounts are served from memory. The cached object is the one the
+ * repository returns, so changes made through it are never stale. An update the repository
+ * rejects, such as on a version conflict with another writer, evicts the accounts so the next
+ * read gets the stored balance; so does reading an account the repository dropped.
+ */
+public class CachingAccountsRepository implements AccountsRepository, PublicMetrics {
+
+  private final AccountsRepository accountsRepository;
+
+  private final Cache<String, Account> cache;
+
+  /**
+   * Cache in front of the repository.
+   *
+   * @param accountsRepository the repository
+   * @param maximumSize        maximum number of cached accounts
+   */
+  public CachingAccountsRepository(AccountsRepository accountsRepository, long maximumSize) {
+    this.accountsRepository = accountsRepository;
+    this.cache = Caffeine.newBuilder()
+        .maximumSize(maximumSize)
+        .recordStats()
+        .build();
+  }
+
+  @Override
+  public void createAccount(Account account) throws DuplicateAccountIdException {
+    this.accountsRepository.createAccount(account);
+  }
+
+  @Override
+  public List<Integer> createAccounts(List<Account> accounts) {
+    return this.accountsRepository.createAccounts(accounts);
+  }
+
+  @Override
+  public void updateAccount(Account account) throws AccountNotFoundException {
+    updateAccounts(Collections.singletonList(account));
+  }
+
+  @Override
+  public void updateAccounts(Collection<Account> accounts) throws AccountNotFoundException {
+    try {
+      this.accountsRepository.updateAccounts(accounts);
+    } catch (RuntimeException e) {
+      invalidate(accounts);
+      throw e;
+    }
+  }
+
+  @Override
+  public boolean requiresGroupedUpdates() {
+    return this.accountsRepository.requiresGroupedUpdates();
+  }
+
+  /**
+   * The cached account, unless the repository dropped it after a failed write it did not
+   * report through this cache, such as a write-behind flush; it is then read again.
+   */
+  @Override
+  public Account getAccount(String accountId) {
+    Account account = this.cache.get(accountId, this.accountsRepository::getAccount);
+    if (account instanceof JdbcAccount && ((JdbcAccount) account).isInvalidated()) {
+      this.cache.asMap().remove(accountId, account);
+      account = this.cache.get(accountId, this.accountsRepository::getAccount);
+    }
+    return account;
+  }
+
+  @Override
+  public AccountSnapshot getSnapshot(String accountId) {
+    return this.accountsRepository.getSnapshot(accountId);
+  }
+
+  @Override
+  public AccountSnapshot compareAndSet(AccountSnapshot expected, long balance)
+      throws AccountNotFoundException {
+    return this.accountsRepository.compareAndSet(expected, balance);
+  }
+
+  @Override
+  public boolean compareAndSetAll(List<AccountSnapshot> expected, long[] balances)
+      throws AccountNotFoundException {
+    return this.accountsRepository.compareAndSetAll(expected, balances);
+  }
+
+  @Override
+  public void forEachAccount(Consumer<Account> consumer) {
+    this.accountsRepository.forEachAccount(consumer);
+  }
+
+  @Override
+  public List<Account> getAccounts(String afterAccountId, int limit) {
+    return this.accountsRepository.getAccounts(afterAccountId, limit);
+  }
+
+  @Override
+  public void clearAccounts() {
+    this.accountsRepository.clearAccounts();
+    this.cache.invalidateAll();
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    CacheStats stats = this.cache.stats();
+    List<Metric<?>> metrics = new ArrayList<>();
+    metrics.add(new Metric<>("accounts.cache.size", this.cache.estimatedSize()));
+    metrics.add(new Metric<>("accounts.cache.hits", stats.hitCount()));
+    metrics.add(new Metric<>("accounts.cache.misses", stats.missCount()));
+    metrics.add(new Metric<>("accounts.cache.hit-rate", stats.hitRate()));
+    metrics.add(new Metric<>("accounts.cache.evictions", stats.evictionCount()));
+    return metrics;
+  }
+
+  private void invalidate(Collection<Account> accounts) {
+    for (Account account : accounts) {
+      this.cache.asMap().remove(account.getAccountId(), account);
+    }
+  }
+}
@@ -0,0 +1,64 @@
+package com.db.awmd.challenge.repository;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.StripedAccount;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * The accounts designated as hot, which are stored as {@link StripedAccount}s so concurrent
+ * deposits to them do not serialize.
+ */
+@Component
+public class HotAccounts {
+
+  private final Set<String> accountIds;
+
+  private final int stripes;
+
+  /**
+   * Create the designation.
+   *
+   * @param accountIds ids of the hot accounts
+   * @param stripes    sub-balances per hot account, rounded up to a power of two; two per
+   *                   available core when zero or negative
+   */
+  @Autowired
+  public HotAccounts(@Value("${accounts.hot.account-ids:}") String[] accountIds,
+                     @Value("${accounts.hot.stripes:0}") int stripes) {
+    this.accountIds = new HashSet<>(Arrays.asList(accountIds));
+    int count = stripes > 0 ? stripes : 2 * Runtime.getRuntime().availableProcessors();
+    this.stripes = count == 1 ? 1 : Integer.highestOneBit(count - 1) << 1;
+  }
+
+  public boolean isHot(String accountId) {
+    return this.accountIds.contains(accountId);
+  }
+
+  /**
+   * The account to store for the given id and balance.
+   */
+  public Account newAccount(String accountId, long balance) {
+    if (isHot(accountId)) {
+      return new StripedAccount(accountId, balance, this.stripes);
+    }
+    Account account = new Account(accountId);
+    account.setBalanceMinorUnits(balance);
+    return account;
+  }
+
+  /**
+   * The account itself, or a striped copy of it if it is hot.
+   */
+  public Account stripe(Account account) {
+    if (account instanceof StripedAccount || !isHot(account.getAccountId())) {
+      return account;
+    }
+    return new StripedAccount(account.getAccountId(), account.getBalanceMinorUnits(),
+        this.stripes);
+  }
+}
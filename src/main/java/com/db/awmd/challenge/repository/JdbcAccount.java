@@ -0,0 +1,38 @@
+package com.db.awmd.challenge.repository;
+
+import com.db.awmd.challenge.domain.Account;
+
+/**
+ * Account loaded from a row of the {@link JdbcAccountsRepository}. Its version is the row
+ * version its balance was read at or last written with.
+ */
+final class JdbcAccount extends Account {
+
+  /**
+   * Version of an account dropped after a failed write; it can never be written again.
+   */
+  static final long INVALIDATED = -1;
+
+  JdbcAccount(String accountId, long balance, long version) {
+    super(accountId);
+    setBalanceMinorUnits(balance);
+    setVersion(version);
+  }
+
+  /**
+   * Whether the account was dropped after a failed write.
+   */
+  boolean isInvalidated() {
+    return getVersion() == INVALIDATED;
+  }
+
+  /**
+   * Take the balance a compare-and-set wrote to the row, unless a later one was taken already.
+   */
+  synchronized void advance(long balance, long version) {
+    if (getVersion() != INVALIDATED && getVersion() < version) {
+      setBalanceMinorUnits(balance);
+      setVersion(version);
+    }
+  }
+}
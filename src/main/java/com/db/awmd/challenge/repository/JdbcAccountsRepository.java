@@ -0,0 +1,566 @@
+package com.db.awmd.challenge.repository;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.AccountSnapshot;
+import com.db.awmd.challenge.exception.AccountNotFoundException;
+import com.db.awmd.challenge.exception.DuplicateAccountIdException;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Accounts stored in a relational database, with the schema of {@code db/changelog}.
+ *
+ * <p>Accounts are read from the table when asked for. While an account is referenced, by a
+ * transfer in flight, a pending write or a {@link CachingAccountsRepository} in front, every
+ * lookup returns that same object, so the account locks of the transfer engines keep working.
+ * Each account remembers the row version it was read at and writes only if the row still has
+ * it; on a conflict the accounts of the write are dropped and read again next time.
+ *
+ * <p>By default {@link #updateAccounts(Collection)} writes in one transaction that first
+ * locks the rows with {@code SELECT ... FOR UPDATE} in account id order, so transactions on
+ * overlapping accounts cannot deadlock. In write-behind mode updates only mark the accounts
+ * dirty with their balance at that time; a flusher writes the latest marked balance of every
+ * dirty account every flush interval, in one transaction of JDBC batches, so an account
+ * changed by many transfers is written once and the table only ever holds whole transfers.
+ * Up to one flush interval of transfers is lost on a crash.
+ *
+ * <p>Only the accounts passed together to {@link #updateAccounts(Collection)} are stored as
+ * one unit, so engines must not update the accounts of a transfer one at a time.
+ */
+@Repository
+@Slf4j
+@ConditionalOnProperty(name = "accounts.repository", havingValue = "jdbc")
+@DependsOn("liquibase")
+public class JdbcAccountsRepository implements AccountsRepository, PublicMetrics {
+
+  private static final String SELECT = "SELECT account_id, balance, version FROM account";
+
+  private static final String INSERT =
+      "INSERT INTO account (account_id, balance, version) VALUES (?, ?, 0)";
+
+  private static final String UPDATE =
+      "UPDATE account SET balance = ?, version = ? WHERE account_id = ? AND version = ?";
+
+  private static final RowMapper<JdbcAccount> ROW_MAPPER = (resultSet, row) ->
+      new JdbcAccount(resultSet.getString(1), resultSet.getLong(2), resultSet.getLong(3));
+
+  private static final int FETCH_SIZE = 1000;
+
+  // Accounts referenced anywhere, so no account is ever held as two objects
+  private final Cache<String, JdbcAccount> live = Caffeine.newBuilder().weakValues().build();
+
+  // Accounts changed since the last flush and their balance then, in write-behind mode
+  private volatile Map<String, DirtyAccount> dirty = new ConcurrentHashMap<>();
+
+  // Read locked to mark accounts, write locked to take the marks of a flush; a flush thus
+  // takes every account of an update or none
+  private final ReadWriteLock dirtyLock = new ReentrantReadWriteLock();
+
+  private final JdbcTemplate jdbcTemplate;
+
+  private final TransactionTemplate transactionTemplate;
+
+  private final boolean writeBehind;
+
+  private final long flushIntervalMillis;
+
+  private final int batchSize;
+
+  private final ScheduledExecutorService flusher;
+
+  private final LongAdder reads = new LongAdder();
+
+  private final LongAdder transactions = new LongAdder();
+
+  private final LongAdder conflicts = new LongAdder();
+
+  private final LongAdder flushes = new LongAdder();
+
+  private final LongAdder flushedAccounts = new LongAdder();
+
+  private final LongAdder flushFailures = new LongAdder();
+
+  @Autowired
+  public JdbcAccountsRepository(DataSource dataSource,
+      @Value("${accounts.jdbc.write-behind.enabled:false}") boolean writeBehind,
+      @Value("${accounts.jdbc.write-behind.flush-interval-ms:100}") long flushIntervalMillis,
+      @Value("${accounts.jdbc.batch-size:1000}") int batchSize) {
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+    this.jdbcTemplate.setFetchSize(FETCH_SIZE);
+    this.transactionTemplate = new TransactionTemplate(
+        new DataSourceTransactionManager(dataSource));
+    this.writeBehind = writeBehind;
+    this.flushIntervalMillis = flushIntervalMillis;
+    this.batchSize = batchSize;
+    this.flusher = writeBehind ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "accounts-jdbc-flusher");
+      thread.setDaemon(true);
+      return thread;
+    }) : null;
+  }
+
+  /**
+   * Start flushing, in write-behind mode.
+   */
+  @PostConstruct
+  public void start() {
+    if (this.flusher != null) {
+      this.flusher.scheduleWithFixedDelay(this::flushQuietly, this.flushIntervalMillis,
+          this.flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Stop the flusher and write the accounts still dirty.
+   */
+  @PreDestroy
+  public void close() throws InterruptedException {
+    if (this.flusher == null) {
+      return;
+    }
+    this.flusher.shutdown();
+    this.flusher.awaitTermination(1, TimeUnit.MINUTES);
+    flush();
+  }
+
+  /**
+   * Insert the account row right away, in both modes. The account is read back when asked
+   * for, so later changes show on the account returned by {@link #getAccount(String)}, not on
+   * the given one.
+   */
+  @Override
+  public void createAccount(Account account) throws DuplicateAccountIdException {
+    try {
+      this.jdbcTemplate.update(INSERT, account.getAccountId(), account.getBalanceMinorUnits());
+    } catch (DuplicateKeyException e) {
+      throw new DuplicateAccountIdException(
+          "Account id " + account.getAccountId() + " already exists!");
+    }
+  }
+
+  /**
+   * Insert the new accounts with JDBC batches, in one transaction.
+   */
+  @Override
+  public List<Integer> createAccounts(List<Account> accounts) {
+    Set<String> existing = new HashSet<>();
+    for (int from = 0; from < accounts.size(); from += this.batchSize) {
+      List<Account> batch = accounts.subList(from, Math.min(from + this.batchSize,
+          accounts.size()));
+      existing.addAll(this.jdbcTemplate.queryForList(
+          "SELECT account_id FROM account WHERE account_id IN (" + parameters(batch.size())
+              + ")", String.class, accountIds(batch)));
+    }
+    List<Integer> duplicates = new ArrayList<>();
+    List<Account> created = new ArrayList<>(accounts.size());
+    for (int i = 0; i < accounts.size(); i++) {
+      if (existing.add(accounts.get(i).getAccountId())) {
+        created.add(accounts.get(i));
+      } else {
+        duplicates.add(i);
+      }
+    }
+    try {
+      this.transactionTemplate.execute(status -> {
+        this.jdbcTemplate.batchUpdate(INSERT, created, this.batchSize, (statement, account) -> {
+          statement.setString(1, account.getAccountId());
+          statement.setLong(2, account.getBalanceMinorUnits());
+        });
+        return null;
+      });
+    } catch (DuplicateKeyException e) {
+      // Raced with another creation, nothing was inserted
+      return AccountsRepository.super.createAccounts(accounts);
+    }
+    return duplicates;
+  }
+
+  @Override
+  public void updateAccount(Account account) throws AccountNotFoundException {
+    updateAccounts(Collections.singletonList(account));
+  }
+
+  /**
+   * Write the accounts in one transaction, or only mark them dirty in write-behind mode.
+   *
+   * @throws OptimisticLockingFailureException if a row was changed since the account was read;
+   *                                           the accounts are dropped and nothing is written
+   */
+  @Override
+  public void updateAccounts(Collection<Account> accounts) throws AccountNotFoundException {
+    Map<String, JdbcAccount> byId = new TreeMap<>();
+    for (Account account : accounts) {
+      byId.put(account.getAccountId(), live(account));
+    }
+    if (this.writeBehind) {
+      this.dirtyLock.readLock().lock();
+      try {
+        for (JdbcAccount account : byId.values()) {
+          this.dirty.put(account.getAccountId(),
+              new DirtyAccount(account, account.getBalanceMinorUnits()));
+        }
+      } finally {
+        this.dirtyLock.readLock().unlock();
+      }
+      return;
+    }
+
+    List<JdbcAccount> sorted = new ArrayList<>(byId.values());
+    long[] balances = new long[sorted.size()];
+    for (int i = 0; i < balances.length; i++) {
+      balances[i] = sorted.get(i).getBalanceMinorUnits();
+    }
+    try {
+      this.transactionTemplate.execute(status -> {
+        lockRows(sorted);
+        write(sorted, balances);
+        return null;
+      });
+    } catch (RuntimeException e) {
+      invalidate(sorted);
+      throw e;
+    }
+    this.transactions.increment();
+  }
+
+  @Override
+  public boolean requiresGroupedUpdates() {
+    return true;
+  }
+
+  @Override
+  public Account getAccount(String accountId) {
+    return this.live.get(accountId, this::read);
+  }
+
+  /**
+   * Read the row, bypassing the accounts held in memory.
+   */
+  @Override
+  public AccountSnapshot getSnapshot(String accountId) {
+    JdbcAccount row = read(accountId);
+    return row == null ? null : AccountSnapshot.of(row);
+  }
+
+  /**
+   * Write the row with {@code UPDATE ... WHERE version = ?}, without locking it first. The
+   * account held in memory, if any, takes the new balance.
+   *
+   * @return the snapshot of the new balance, or null if the version changed or the account is
+   *     not found
+   */
+  @Override
+  public AccountSnapshot compareAndSet(AccountSnapshot expected, long balance) {
+    long version = expected.getVersion() + 1;
+    if (this.jdbcTemplate.update(UPDATE, balance, version, expected.getAccountId(),
+        expected.getVersion()) == 0) {
+      this.conflicts.increment();
+      return null;
+    }
+    JdbcAccount account = this.live.getIfPresent(expected.getAccountId());
+    if (account != null) {
+      account.advance(balance, version);
+    }
+    return AccountSnapshot.builder()
+        .accountId(expected.getAccountId())
+        .balanceMinorUnits(balance)
+        .version(version)
+        .build();
+  }
+
+  /**
+   * Write the rows with {@code UPDATE ... WHERE version = ?} in one transaction, rolled back
+   * if any of them changed version. Rows are written in account id order, so transactions on
+   * overlapping accounts cannot deadlock. The accounts held in memory take the new balances.
+   */
+  @Override
+  public boolean compareAndSetAll(List<AccountSnapshot> expected, long[] balances) {
+    Map<String, Integer> byId = new TreeMap<>();
+    for (int i = 0; i < balances.length; i++) {
+      byId.put(expected.get(i).getAccountId(), i);
+    }
+    Boolean set = this.transactionTemplate.execute(status -> {
+      for (int i : byId.values()) {
+        AccountSnapshot snapshot = expected.get(i);
+        if (this.jdbcTemplate.update(UPDATE, balances[i], snapshot.getVersion() + 1,
+            snapshot.getAccountId(), snapshot.getVersion()) == 0) {
+          status.setRollbackOnly();
+          return false;
+        }
+      }
+      return true;
+    });
+    if (!Boolean.TRUE.equals(set)) {
+      this.conflicts.increment();
+      return false;
+    }
+    this.transactions.increment();
+    for (int i = 0; i < balances.length; i++) {
+      JdbcAccount account = this.live.getIfPresent(expected.get(i).getAccountId());
+      if (account != null) {
+        account.advance(balances[i], expected.get(i).getVersion() + 1);
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void forEachAccount(Consumer<Account> consumer) {
+    this.jdbcTemplate.query(SELECT, resultSet -> {
+      JdbcAccount account = this.live.getIfPresent(resultSet.getString(1));
+      consumer.accept(account != null ? account : ROW_MAPPER.mapRow(resultSet, 0));
+    });
+  }
+
+  /**
+   * Page through the primary key index instead of scanning every account.
+   */
+  @Override
+  public List<Account> getAccounts(String afterAccountId, int limit) {
+    List<JdbcAccount> rows = afterAccountId == null
+        ? this.jdbcTemplate.query(SELECT + " ORDER BY account_id LIMIT ?", ROW_MAPPER, limit)
+        : this.jdbcTemplate.query(SELECT + " WHERE account_id > ? ORDER BY account_id LIMIT ?",
+            ROW_MAPPER, afterAccountId, limit);
+    List<Account> page = new ArrayList<>(rows.size());
+    for (JdbcAccount row : rows) {
+      JdbcAccount account = this.live.getIfPresent(row.getAccountId());
+      page.add(account != null ? account : row);
+    }
+    return page;
+  }
+
+  @Override
+  public void clearAccounts() {
+    takeDirty();
+    this.live.invalidateAll();
+    this.jdbcTemplate.update("DELETE FROM account");
+  }
+
+  /**
+   * Write the latest marked balance of every dirty account in one transaction, in id order
+   * and with JDBC batches of at most the batch size.
+   */
+  public void flush() {
+    if (this.dirty.isEmpty()) {
+      return;
+    }
+    List<DirtyAccount> pending = new ArrayList<>(takeDirty().values());
+    pending.sort(Comparator.comparing(dirtyAccount -> dirtyAccount.account.getAccountId()));
+    List<JdbcAccount> accounts = new ArrayList<>(pending.size());
+    long[] balances = new long[pending.size()];
+    for (int i = 0; i < balances.length; i++) {
+      accounts.add(pending.get(i).account);
+      balances[i] = pending.get(i).balance;
+    }
+    try {
+      this.transactionTemplate.execute(status -> {
+        write(accounts, balances);
+        return null;
+      });
+    } catch (OptimisticLockingFailureException e) {
+      // Another writer changed the rows: its balances win
+      invalidate(accounts);
+      throw e;
+    } catch (RuntimeException e) {
+      // Retried on the next flush, unless marked again meanwhile
+      this.dirtyLock.readLock().lock();
+      try {
+        for (DirtyAccount dirtyAccount : pending) {
+          this.dirty.putIfAbsent(dirtyAccount.account.getAccountId(), dirtyAccount);
+        }
+      } finally {
+        this.dirtyLock.readLock().unlock();
+      }
+      throw e;
+    }
+    this.flushedAccounts.add(accounts.size());
+    this.flushes.increment();
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    List<Metric<?>> metrics = new ArrayList<>();
+    metrics.add(new Metric<>("accounts.count",
+        this.jdbcTemplate.queryForObject("SELECT COUNT(*) FROM account", Long.class)));
+    metrics.add(new Metric<>("accounts.jdbc.live", this.live.estimatedSize()));
+    metrics.add(new Metric<>("accounts.jdbc.reads", this.reads.sum()));
+    metrics.add(new Metric<>("accounts.jdbc.transactions", this.transactions.sum()));
+    metrics.add(new Metric<>("accounts.jdbc.conflicts", this.conflicts.sum()));
+    metrics.add(new Metric<>("accounts.jdbc.flushes", this.flushes.sum()));
+    metrics.add(new Metric<>("accounts.jdbc.flushed-accounts", this.flushedAccounts.sum()));
+    metrics.add(new Metric<>("accounts.jdbc.flush.failures", this.flushFailures.sum()));
+    metrics.add(new Metric<>("accounts.jdbc.dirty", this.dirty.size()));
+    return metrics;
+  }
+
+  private JdbcAccount read(String accountId) {
+    this.reads.increment();
+    List<JdbcAccount> rows = this.jdbcTemplate.query(SELECT + " WHERE account_id = ?",
+        ROW_MAPPER, accountId);
+    return rows.isEmpty() ? null : rows.get(0);
+  }
+
+  /**
+   * The object the account is held as, or the account itself if it came from here.
+   *
+   * @throws OptimisticLockingFailureException if the account was dropped
+   */
+  private JdbcAccount live(Account account) {
+    if (account instanceof JdbcAccount) {
+      if (((JdbcAccount) account).isInvalidated()) {
+        throw new OptimisticLockingFailureException(
+            "Account id " + account.getAccountId() + " was dropped after a failed write");
+      }
+      return (JdbcAccount) account;
+    }
+    Account stored = getAccount(account.getAccountId());
+    if (stored == null) {
+      throw new AccountNotFoundException(account.getAccountId());
+    }
+    stored.setBalanceMinorUnits(account.getBalanceMinorUnits());
+    return (JdbcAccount) stored;
+  }
+
+  /**
+   * Drop the accounts, so they are read again and their objects can no longer be written.
+   */
+  private void invalidate(List<JdbcAccount> accounts) {
+    for (JdbcAccount account : accounts) {
+      account.setVersion(JdbcAccount.INVALIDATED);
+      this.live.asMap().remove(account.getAccountId(), account);
+    }
+  }
+
+  /**
+   * Swap in an empty set of dirty accounts, once no update is marking accounts.
+   */
+  private Map<String, DirtyAccount> takeDirty() {
+    this.dirtyLock.writeLock().lock();
+    try {
+      Map<String, DirtyAccount> taken = this.dirty;
+      this.dirty = new ConcurrentHashMap<>();
+      return taken;
+    } finally {
+      this.dirtyLock.writeLock().unlock();
+    }
+  }
+
+  private void flushQuietly() {
+    try {
+      flush();
+    } catch (RuntimeException e) {
+      this.flushFailures.increment();
+      log.error("Flush of dirty accounts failed", e);
+    }
+  }
+
+  /**
+   * Lock the rows of the accounts, sorted by id, in that order.
+   */
+  private void lockRows(List<JdbcAccount> sorted) {
+    Object[] accountIds = accountIds(sorted);
+    List<String> locked = this.jdbcTemplate.queryForList(
+        "SELECT account_id FROM account WHERE account_id IN (" + parameters(accountIds.length)
+            + ") ORDER BY account_id FOR UPDATE", String.class, accountIds);
+    for (Object accountId : accountIds) {
+      if (!locked.contains(accountId)) {
+        throw new AccountNotFoundException((String) accountId);
+      }
+    }
+  }
+
+  /**
+   * Write the balances, each only if the row still has the version the account was read at,
+   * with JDBC batches of at most the batch size.
+   */
+  private void write(List<JdbcAccount> sorted, long[] balances) {
+    long[] versions = new long[sorted.size()];
+    List<Object[]> rows = new ArrayList<>(sorted.size());
+    for (int i = 0; i < versions.length; i++) {
+      JdbcAccount account = sorted.get(i);
+      versions[i] = account.getVersion();
+      rows.add(new Object[] {balances[i], versions[i] + 1, account.getAccountId(), versions[i]});
+    }
+    for (int from = 0; from < rows.size(); from += this.batchSize) {
+      int[] updated = this.jdbcTemplate.batchUpdate(UPDATE,
+          rows.subList(from, Math.min(from + this.batchSize, rows.size())));
+      for (int i = 0; i < updated.length; i++) {
+        if (updated[i] == 0) {
+          this.conflicts.increment();
+          throw new OptimisticLockingFailureException(
+              "Account id " + sorted.get(from + i).getAccountId() + " changed since it was read");
+        }
+      }
+    }
+    // Only seen once the transaction commits, a rollback invalidates the accounts anyway
+    for (int i = 0; i < versions.length; i++) {
+      sorted.get(i).setVersion(versions[i] + 1);
+    }
+  }
+
+  /**
+   * An account marked dirty and its balance when marked, consistent with the other accounts
+   * of the same update.
+   */
+  private static final class DirtyAccount {
+
+    private final JdbcAccount account;
+
+    private final long balance;
+
+    private DirtyAccount(JdbcAccount account, long balance) {
+      this.account = account;
+      this.balance = balance;
+    }
+  }
+
+  private static String parameters(int count) {
+    StringBuilder parameters = new StringBuilder("?");
+    for (int i = 1; i < count; i++) {
+      parameters.append(", ?");
+    }
+    return parameters.toString();
+  }
+
+  private static Object[] accountIds(List<? extends Account> accounts) {
+    Object[] accountIds = new Object[accounts.size()];
+    for (int i = 0; i < accountIds.length; i++) {
+      accountIds[i] = accounts.get(i).getAccountId();
+    }
+    return accountIds;
+  }
+}
@@ -0,0 +1,57 @@
+package com.db.awmd.challenge.repository;
+
+import javax.sql.DataSource;
+import liquibase.integration.spring.SpringLiquibase;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceBuilder;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+
+/**
+ * Connection pool and schema of the {@link JdbcAccountsRepository}. Only the jdbc repository
+ * gets a data source, the other ones run without a database.
+ */
+@Configuration
+@ConditionalOnProperty(name = "accounts.repository", havingValue = "jdbc")
+public class JdbcRepositoryConfiguration {
+
+  /**
+   * Pooled data source, configured by the {@code accounts.jdbc.datasource} properties.
+   */
+  @Bean
+  @ConfigurationProperties("accounts.jdbc.datasource")
+  public DataSource accountsDataSource() {
+    return DataSourceBuilder.create()
+        .type(org.apache.tomcat.jdbc.pool.DataSource.class)
+        .build();
+  }
+
+  /**
+   * Cache in front of the {@link JdbcAccountsRepository}, injected wherever a repository is.
+   */
+  @Bean
+  @Primary
+  @ConditionalOnProperty(name = "accounts.jdbc.cache.enabled", havingValue = "true",
+      matchIfMissing = true)
+  public CachingAccountsRepository cachingAccountsRepository(
+      JdbcAccountsRepository jdbcAccountsRepository,
+      @Value("${accounts.jdbc.cache.maximum-size:100000}") long maximumSize) {
+    return new CachingAccountsRepository(jdbcAccountsRepository, maximumSize);
+  }
+
+  /**
+   * Bring the schema up to date before the repository reads accounts.
+   */
+  @Bean
+  public SpringLiquibase liquibase(DataSource accountsDataSource,
+      @Value("${accounts.jdbc.change-log:classpath:db/changelog/accounts.yaml}")
+          String changeLog) {
+    SpringLiquibase liquibase = new SpringLiquibase();
+    liquibase.setDataSource(accountsDataSource);
+    liquibase.setChangeLog(changeLog);
+    return liquibase;
+  }
+}
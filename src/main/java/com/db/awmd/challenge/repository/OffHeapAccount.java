@@ -0,0 +1,97 @@
+package com.db.awmd.challenge.repository;
+
+import com.db.awmd.challenge.domain.Account;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Short-lived view of an account stored in an {@link AccountSlab}. The balance is read from and
+ * written to the slab, under the lock stripe the slot belongs to.
+ */
+final class OffHeapAccount extends Account {
+
+  private final AccountSlab slab;
+
+  private final int slot;
+
+  private final int lockStripe;
+
+  OffHeapAccount(String accountId, AccountSlab slab, int slot, ReentrantReadWriteLock lock,
+                 int lockStripe) {
+    super(accountId, lock);
+    this.slab = slab;
+    this.slot = slot;
+    this.lockStripe = lockStripe;
+  }
+
+  @Override
+  public long getBalanceMinorUnits() {
+    getLock().readLock().lock();
+    try {
+      return this.slab.balance(this.slot);
+    } finally {
+      getLock().readLock().unlock();
+    }
+  }
+
+  @Override
+  public void setBalanceMinorUnits(long balance) {
+    getLock().writeLock().lock();
+    try {
+      this.slab.setBalance(this.slot, balance);
+    } finally {
+      getLock().writeLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean withdraw(long amount) {
+    getLock().writeLock().lock();
+    try {
+      long balance = this.slab.balance(this.slot);
+      if (balance < amount) {
+        return false;
+      }
+      this.slab.setBalance(this.slot, balance - amount);
+      return true;
+    } finally {
+      getLock().writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void deposit(long amount) {
+    getLock().writeLock().lock();
+    try {
+      this.slab.setBalance(this.slot, Math.addExact(this.slab.balance(this.slot), amount));
+    } finally {
+      getLock().writeLock().unlock();
+    }
+  }
+
+  @Override
+  public int getLockOrder() {
+    return this.lockStripe;
+  }
+
+  /**
+   * Number of balance updates applied to the account.
+   */
+  @Override
+  @JsonIgnore
+  public long getVersion() {
+    getLock().readLock().lock();
+    try {
+      return this.slab.version(this.slot);
+    } finally {
+      getLock().readLock().unlock();
+    }
+  }
+
+  /**
+   * Does nothing, the slab bumps the version with every balance update.
+   */
+  @Override
+  public void setVersion(long version) {
+  }
+}
@@ -0,0 +1,224 @@
+package com.db.awmd.challenge.repository;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.exception.AccountNotFoundException;
+import com.db.awmd.challenge.exception.AccountsRejectedException;
+import com.db.awmd.challenge.exception.AccountsStorageFullException;
+import com.db.awmd.challenge.exception.DuplicateAccountIdException;
+import com.db.awmd.challenge.exception.InvalidAccountIdException;
+import com.db.awmd.challenge.journal.AccountsSnapshotter;
+import com.db.awmd.challenge.journal.JournalRecord;
+import com.db.awmd.challenge.journal.LedgerProjection;
+import com.db.awmd.challenge.journal.TransferJournal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import javax.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Repository keeping balances in an off-heap {@link AccountSlab}, for tens of millions of
+ * accounts with a heap footprint independent of the number of accounts.
+ *
+ * <p>{@link #getAccount(String)} returns a view reading and writing the slab. Views carry one
+ * of a fixed set of striped locks instead of a lock per account; the stripe is also the lock
+ * order, so accounts sharing a stripe are locked together and ordering stays deadlock-free.
+ * Since views write through, {@link #updateAccount(Account)} only checks the account exists.
+ */
+@Repository
+@Slf4j
+@ConditionalOnProperty(name = "accounts.repository", havingValue = "off-heap")
+public class OffHeapAccountsRepository implements AccountsRepository, PublicMetrics {
+
+  private final AccountSlab slab;
+
+  private final ReentrantReadWriteLock[] locks;
+
+  private TransferJournal transferJournal;
+
+  private AccountsSnapshotter accountsSnapshotter;
+
+  private volatile long recoveryMillis;
+
+  /**
+   * Create the repository and allocate its index.
+   *
+   * @param capacity    maximum number of accounts
+   * @param maxIdLength maximum number of chars of an account id
+   * @param lockStripes number of account locks, a power of two
+   */
+  @Autowired
+  public OffHeapAccountsRepository(
+      @Value("${accounts.off-heap.capacity:1000000}") int capacity,
+      @Value("${accounts.off-heap.max-id-length:36}") int maxIdLength,
+      @Value("${accounts.off-heap.lock-stripes:4096}") int lockStripes) {
+    if (Integer.bitCount(lockStripes) != 1) {
+      throw new IllegalArgumentException("Lock stripes must be a power of two");
+    }
+    this.slab = new AccountSlab(capacity, maxIdLength);
+    this.locks = new ReentrantReadWriteLock[lockStripes];
+    for (int i = 0; i < lockStripes; i++) {
+      this.locks[i] = new ReentrantReadWriteLock();
+    }
+  }
+
+  @Autowired(required = false)
+  public void setTransferJournal(TransferJournal transferJournal) {
+    this.transferJournal = transferJournal;
+  }
+
+  @Autowired(required = false)
+  public void setAccountsSnapshotter(AccountsSnapshotter accountsSnapshotter) {
+    this.accountsSnapshotter = accountsSnapshotter;
+  }
+
+  /**
+   * Rebuild the accounts from the ledger: the latest snapshot and the journal segments after
+   * it, replayed in parallel.
+   */
+  @PostConstruct
+  public void recover() {
+    if (this.transferJournal == null) {
+      return;
+    }
+    long started = System.currentTimeMillis();
+    LedgerProjection projection = LedgerProjection.rebuild(this.transferJournal,
+        this.accountsSnapshotter, ForkJoinPool.commonPool());
+    projection.forEach((accountId, balance) -> this.slab.insert(accountId, balance, () -> {
+    }));
+    this.transferJournal.restoreScheduled(projection.getAppliedScheduled());
+    this.recoveryMillis = System.currentTimeMillis() - started;
+    log.info("Recovered {} accounts from {} journal events in {} ms", this.slab.size(),
+        projection.getEvents(), this.recoveryMillis);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @throws InvalidAccountIdException   if the id is longer than the maximum id length
+   * @throws AccountsStorageFullException if the slab is full
+   */
+  @Override
+  public void createAccount(Account account) throws DuplicateAccountIdException {
+    long sequence = store(account);
+    if (sequence < 0) {
+      throw new DuplicateAccountIdException(
+          "Account id " + account.getAccountId() + " already exists!");
+    }
+    awaitDurable(sequence);
+  }
+
+  /**
+   * Store the accounts and wait once for the journal to have all of them.
+   *
+   * @throws AccountsRejectedException once the other accounts are stored, if an id is too long
+   *                                   or the slab is full
+   */
+  @Override
+  public List<Integer> createAccounts(List<Account> accounts) {
+    List<Integer> duplicates = new ArrayList<>();
+    Map<Integer, RuntimeException> rejections = new TreeMap<>();
+    long lastSequence = 0;
+    for (int i = 0; i < accounts.size(); i++) {
+      long sequence;
+      try {
+        sequence = store(accounts.get(i));
+      } catch (InvalidAccountIdException | AccountsStorageFullException e) {
+        rejections.put(i, e);
+        continue;
+      }
+      if (sequence < 0) {
+        duplicates.add(i);
+      } else {
+        lastSequence = Math.max(lastSequence, sequence);
+      }
+    }
+    awaitDurable(lastSequence);
+    if (!rejections.isEmpty()) {
+      throw new AccountsRejectedException(duplicates, rejections);
+    }
+    return duplicates;
+  }
+
+  @Override
+  public void updateAccount(Account account) throws AccountNotFoundException {
+    if (!(account instanceof OffHeapAccount) && this.slab.find(account.getAccountId()) < 0) {
+      throw new AccountNotFoundException(account.getAccountId());
+    }
+  }
+
+  @Override
+  public Account getAccount(String accountId) {
+    int slot = this.slab.find(accountId);
+    return slot < 0 ? null : view(accountId, slot);
+  }
+
+  /**
+   * Feed a view of every account, in creation order.
+   */
+  @Override
+  public void forEachAccount(Consumer<Account> consumer) {
+    int size = this.slab.size();
+    for (int slot = 0; slot < size; slot++) {
+      consumer.accept(view(this.slab.accountId(slot), slot));
+    }
+  }
+
+  @Override
+  public void clearAccounts() {
+    this.slab.clear();
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    List<Metric<?>> metrics = new ArrayList<>();
+    metrics.add(new Metric<>("accounts.count", this.slab.size()));
+    metrics.add(new Metric<>("accounts.off-heap.bytes", this.slab.allocatedBytes()));
+    metrics.add(new Metric<>("accounts.recovery.millis", this.recoveryMillis));
+    return metrics;
+  }
+
+  /**
+   * Store the account if its id is new.
+   *
+   * @return the journal sequence of its creation, 0 without journal, -1 if the id exists
+   */
+  private long store(Account account) {
+    long[] sequence = new long[1];
+    // Journaled before the account is visible, so no transfer of it can be journaled first
+    int slot = this.slab.insert(account.getAccountId(), account.getBalanceMinorUnits(), () -> {
+      if (this.transferJournal != null) {
+        sequence[0] = this.transferJournal.append(
+            JournalRecord.create(account.getAccountId(), account.getBalance()));
+      }
+    });
+    return slot < 0 ? -1 : sequence[0];
+  }
+
+  private void awaitDurable(long sequence) {
+    if (this.transferJournal == null || sequence == 0) {
+      return;
+    }
+    try {
+      this.transferJournal.awaitDurable(sequence);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private Account view(String accountId, int slot) {
+    int stripe = slot & (this.locks.length - 1);
+    return new OffHeapAccount(accountId, this.slab, slot, this.locks[stripe], stripe);
+  }
+}
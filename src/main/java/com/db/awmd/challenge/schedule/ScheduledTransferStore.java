@@ -0,0 +1,455 @@
+package com.db.awmd.challenge.schedule;
+
+import com.db.awmd.challenge.domain.ScheduledTransfer;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Append-only log of the pending scheduled transfers.
+ *
+ * <p>Scheduling a transfer appends it, and its outcome, once known, appends its id; a
+ * transfer scheduled again under the same id replaces the previous one. Records are framed
+ * as length, CRC32 and payload like the transfer journal. Like the journal, appending only
+ * buffers the records and a committer thread writes whatever accumulated with one fsync, which
+ * every caller waiting at that moment shares (group commit).
+ *
+ * <p>A transfer is marked executing before it is applied, so after a crash the scheduler
+ * knows which transfers may have been applied already. The log also keeps the highest id ever
+ * given, so an id is never reused for another transfer.
+ *
+ * <p>The log is rewritten with only the pending transfers when it is opened, and by the
+ * committer once it holds more than twice as many records as there are pending transfers, so
+ * it grows with the pending transfers rather than with every transfer ever scheduled.
+ */
+@Slf4j
+class ScheduledTransferStore implements AutoCloseable {
+
+  private static final byte SCHEDULED = 0;
+  private static final byte REMOVED = 1;
+  private static final byte EXECUTING = 2;
+  private static final byte LAST_ID = 3;
+
+  // Type and id
+  private static final int MIN_RECORD = 9;
+  // Two ids of at most 65535 bytes each, as written by writeUTF, and the fixed fields
+  private static final int MAX_RECORD = 2 * (2 + 65535) + MIN_RECORD + 16;
+
+  private final Path file;
+
+  private final int compactRecords;
+
+  private final List<ScheduledTransfer> pending;
+
+  private final List<ScheduledTransfer> executing;
+
+  private final long lastId;
+
+  // Only used by the committer once the store is open
+  private FileChannel channel;
+
+  private final Object appendLock = new Object();
+  private final Object durableLock = new Object();
+
+  // Guarded by appendLock
+  private final Map<Long, ScheduledTransfer> live;
+  private final Set<Long> liveExecuting;
+  private long liveLastId;
+  private long logRecords;
+  private ByteArrayOutputStream buffered = new ByteArrayOutputStream(64 * 1024);
+  private ByteArrayOutputStream flushing = new ByteArrayOutputStream(64 * 1024);
+  private long appended;
+
+  private volatile long durable;
+  private volatile long commits;
+  private volatile long compactions;
+  private volatile IOException failure;
+  private volatile boolean running = true;
+
+  private final Thread committer;
+
+  /**
+   * Open the store, compacting it to its pending transfers, and start the committer.
+   *
+   * @param file           the log file, created if missing
+   * @param compactRecords fewest records in the log before it is compacted at runtime
+   * @throws IOException if the log cannot be read or rewritten
+   */
+  ScheduledTransferStore(Path file, int compactRecords) throws IOException {
+    this.file = file;
+    this.compactRecords = compactRecords;
+    Files.createDirectories(file.toAbsolutePath().getParent());
+    this.live = new LinkedHashMap<>();
+    this.liveExecuting = new HashSet<>();
+    if (Files.exists(file)) {
+      this.liveLastId = read(file, this.live, this.liveExecuting);
+      this.liveExecuting.retainAll(this.live.keySet());
+    }
+    this.pending = new ArrayList<>();
+    this.executing = new ArrayList<>();
+    for (ScheduledTransfer transfer : this.live.values()) {
+      (this.liveExecuting.contains(transfer.getId()) ? this.executing : this.pending)
+          .add(transfer);
+    }
+    this.lastId = this.liveLastId;
+    this.channel = rewrite(new ArrayList<>(this.live.values()), this.liveExecuting,
+        this.liveLastId);
+    this.logRecords = this.live.size() + this.liveExecuting.size() + 1;
+    this.committer = new Thread(this::commit, "scheduled-transfers-committer");
+    this.committer.setDaemon(true);
+    this.committer.start();
+  }
+
+  /**
+   * The transfers waiting for their time when the store was opened, in scheduling order.
+   */
+  List<ScheduledTransfer> pending() {
+    return this.pending;
+  }
+
+  /**
+   * The transfers marked executing and without an outcome when the store was opened; they
+   * may have been applied.
+   */
+  List<ScheduledTransfer> executing() {
+    return this.executing;
+  }
+
+  /**
+   * The highest id ever added when the store was opened.
+   */
+  long lastId() {
+    return this.lastId;
+  }
+
+  /**
+   * Durably add transfers, or replace the ones with the same id.
+   */
+  void add(Collection<ScheduledTransfer> transfers) {
+    ByteArrayOutputStream records = new ByteArrayOutputStream(64 * transfers.size());
+    for (ScheduledTransfer transfer : transfers) {
+      byte[] record = encode(SCHEDULED, transfer.getId(), transfer);
+      records.write(record, 0, record.length);
+    }
+    byte[] bytes = records.toByteArray();
+    long sequence;
+    synchronized (this.appendLock) {
+      for (ScheduledTransfer transfer : transfers) {
+        this.live.remove(transfer.getId());
+        this.live.put(transfer.getId(), transfer);
+        this.liveExecuting.remove(transfer.getId());
+        this.liveLastId = Math.max(this.liveLastId, transfer.getId());
+      }
+      sequence = append(bytes, transfers.size());
+    }
+    awaitDurable(sequence);
+  }
+
+  /**
+   * Durably mark transfers as being applied; adding them again puts them back to waiting.
+   */
+  void markExecuting(Collection<ScheduledTransfer> transfers) {
+    ByteArrayOutputStream records = new ByteArrayOutputStream(16 * transfers.size());
+    for (ScheduledTransfer transfer : transfers) {
+      byte[] record = encode(EXECUTING, transfer.getId(), null);
+      records.write(record, 0, record.length);
+    }
+    byte[] bytes = records.toByteArray();
+    long sequence;
+    synchronized (this.appendLock) {
+      for (ScheduledTransfer transfer : transfers) {
+        this.liveExecuting.add(transfer.getId());
+      }
+      sequence = append(bytes, transfers.size());
+    }
+    awaitDurable(sequence);
+  }
+
+  /**
+   * Durably remove transfers.
+   */
+  void remove(Collection<ScheduledTransfer> transfers) {
+    ByteArrayOutputStream records = new ByteArrayOutputStream(16 * transfers.size());
+    for (ScheduledTransfer transfer : transfers) {
+      byte[] record = encode(REMOVED, transfer.getId(), null);
+      records.write(record, 0, record.length);
+    }
+    byte[] bytes = records.toByteArray();
+    long sequence;
+    synchronized (this.appendLock) {
+      for (ScheduledTransfer transfer : transfers) {
+        this.live.remove(transfer.getId());
+        this.liveExecuting.remove(transfer.getId());
+      }
+      sequence = append(bytes, transfers.size());
+    }
+    awaitDurable(sequence);
+  }
+
+  long getCommits() {
+    return this.commits;
+  }
+
+  long getCompactions() {
+    return this.compactions;
+  }
+
+  /**
+   * Write what is still buffered and stop the committer.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (this.appendLock) {
+      this.running = false;
+      this.appendLock.notify();
+    }
+    boolean interrupted = false;
+    while (true) {
+      try {
+        this.committer.join();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    this.channel.close();
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // Called under appendLock
+  private long append(byte[] records, int count) {
+    this.buffered.write(records, 0, records.length);
+    this.logRecords += count;
+    this.appended++;
+    this.appendLock.notify();
+    return this.appended;
+  }
+
+  /**
+   * Wait until the write of the given sequence is on disk. Waiting is not interrupted, as the
+   * write is under way and a caller giving up could not tell whether it happened; the interrupt
+   * status is kept.
+   */
+  private void awaitDurable(long sequence) {
+    boolean interrupted = false;
+    synchronized (this.durableLock) {
+      while (this.durable < sequence) {
+        if (this.failure != null) {
+          throw new UncheckedIOException("Cannot write scheduled transfers to " + this.file,
+              this.failure);
+        }
+        try {
+          this.durableLock.wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void commit() {
+    long committed = 0;
+    try {
+      while (true) {
+        long target;
+        List<ScheduledTransfer> compacted = null;
+        List<Long> compactedExecuting = null;
+        long compactedLastId = 0;
+        synchronized (this.appendLock) {
+          while (this.running && this.appended == committed) {
+            this.appendLock.wait();
+          }
+          if (this.appended == committed) {
+            return;
+          }
+          ByteArrayOutputStream swap = this.flushing;
+          this.flushing = this.buffered;
+          this.buffered = swap;
+          target = this.appended;
+          if (this.logRecords > Math.max(this.compactRecords, 2L * this.live.size())) {
+            // The pending transfers already include every buffered record
+            compacted = new ArrayList<>(this.live.values());
+            compactedExecuting = new ArrayList<>(this.liveExecuting);
+            compactedLastId = this.liveLastId;
+            this.logRecords = compacted.size() + compactedExecuting.size() + 1;
+          }
+        }
+        if (compacted == null) {
+          this.flushing.writeTo(Channels.newOutputStream(this.channel));
+          this.channel.force(false);
+        } else {
+          this.channel.close();
+          this.channel = rewrite(compacted, compactedExecuting, compactedLastId);
+          this.compactions++;
+        }
+        this.flushing.reset();
+        committed = target;
+        this.commits++;
+        synchronized (this.durableLock) {
+          this.durable = target;
+          this.durableLock.notifyAll();
+        }
+      }
+    } catch (IOException e) {
+      log.error("Scheduled transfers write failed, no further transfer can be scheduled", e);
+      synchronized (this.durableLock) {
+        this.failure = e;
+        this.durableLock.notifyAll();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Replace the log with one holding only the given transfers, through a temporary file so a
+   * crash leaves either log whole.
+   *
+   * @param transfers the pending transfers
+   * @param executing ids of those marked executing
+   * @param lastId    the highest id ever added
+   * @return the new log, open for appending
+   */
+  private FileChannel rewrite(List<ScheduledTransfer> transfers, Collection<Long> executing,
+      long lastId) throws IOException {
+    Path temporary = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16)) {
+      out.write(encode(LAST_ID, lastId, null));
+      for (ScheduledTransfer transfer : transfers) {
+        out.write(encode(SCHEDULED, transfer.getId(), transfer));
+      }
+      for (long id : executing) {
+        out.write(encode(EXECUTING, id, null));
+      }
+    }
+    try (FileChannel temporaryChannel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+      temporaryChannel.force(true);
+    }
+    Files.move(temporary, this.file, StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+    return FileChannel.open(this.file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+  }
+
+  /**
+   * Apply the valid records of the log; a torn record at its end is left out, whether its
+   * length is out of range, its checksum wrong or its payload too short.
+   *
+   * @return the highest id in the log
+   */
+  private static long read(Path file, Map<Long, ScheduledTransfer> transfers,
+      Set<Long> executing) throws IOException {
+    long lastId = 0;
+    try (InputStream stream = Files.newInputStream(file);
+         DataInputStream in = new DataInputStream(new BufferedInputStream(stream))) {
+      while (true) {
+        byte[] payload;
+        long checksum;
+        try {
+          int length = in.readInt();
+          if (length < MIN_RECORD || length > MAX_RECORD) {
+            log.warn("Ignoring torn scheduled transfers record of length {} at the end of {}",
+                length, file);
+            return lastId;
+          }
+          payload = new byte[length];
+          checksum = in.readInt() & 0xFFFFFFFFL;
+          in.readFully(payload);
+        } catch (EOFException e) {
+          return lastId;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if (crc.getValue() != checksum) {
+          log.warn("Ignoring torn scheduled transfers record at the end of {}", file);
+          return lastId;
+        }
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = record.readByte();
+        long id = record.readLong();
+        ScheduledTransfer transfer = null;
+        if (type == SCHEDULED) {
+          try {
+            transfer = ScheduledTransfer.builder()
+                .id(id)
+                .accountFromId(record.readUTF())
+                .accountToId(record.readUTF())
+                .amountMinorUnits(record.readLong())
+                .executeAt(record.readLong())
+                .build();
+          } catch (EOFException e) {
+            log.warn("Ignoring short scheduled transfers record at the end of {}", file);
+            return lastId;
+          }
+        }
+        lastId = Math.max(lastId, id);
+        if (type == LAST_ID) {
+          continue;
+        }
+        if (type == EXECUTING) {
+          executing.add(id);
+          continue;
+        }
+        // Replacing keeps the original position; the wheel orders by deadline anyway
+        transfers.remove(id);
+        executing.remove(id);
+        if (transfer != null) {
+          transfers.put(id, transfer);
+        }
+      }
+    }
+  }
+
+  private static byte[] encode(byte type, long id, ScheduledTransfer transfer) {
+    try {
+      ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+      DataOutputStream out = new DataOutputStream(payload);
+      out.writeByte(type);
+      out.writeLong(id);
+      if (transfer != null) {
+        out.writeUTF(transfer.getAccountFromId());
+        out.writeUTF(transfer.getAccountToId());
+        out.writeLong(transfer.getAmountMinorUnits());
+        out.writeLong(transfer.getExecuteAt());
+      }
+
+      CRC32 crc = new CRC32();
+      crc.update(payload.toByteArray());
+      ByteArrayOutputStream framed = new ByteArrayOutputStream(payload.size() + 8);
+      DataOutputStream frame = new DataOutputStream(framed);
+      frame.writeInt(payload.size());
+      frame.writeInt((int) crc.getValue());
+      payload.writeTo(frame);
+      return framed.toByteArray();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot encode scheduled transfer " + id, e);
+    }
+  }
+}
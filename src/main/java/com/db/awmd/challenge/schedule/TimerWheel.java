@@ -0,0 +1,199 @@
+package com.db.awmd.challenge.schedule;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical hashed timer wheel holding items until their deadline.
+ *
+ * <p>Time is cut in ticks. Each level is a wheel of 256 slots; a slot of level 0 spans one
+ * tick and a slot of level {@code n} spans 256 slots of level {@code n - 1}. An item goes to
+ * the lowest level whose current revolution contains its deadline, so scheduling is constant
+ * time whatever the number of pending items. Advancing a tick expires one slot of level 0, and
+ * when a lower wheel completes a revolution the next slot of the level above is cascaded down.
+ * Each item is thus moved at most once per level. Deadlines beyond the top level wait in an
+ * overflow list that is cascaded once per revolution of the top level.
+ *
+ * <p>Not thread-safe.
+ *
+ * @param <T> type of the items
+ */
+public class TimerWheel<T> {
+
+  private static final int SLOT_BITS = 8;
+  private static final int SLOTS = 1 << SLOT_BITS;
+  private static final int SLOT_MASK = SLOTS - 1;
+
+  private static final class Entry<T> {
+
+    private final long tick;
+
+    private final T item;
+
+    private Entry(long tick, T item) {
+      this.tick = tick;
+      this.item = item;
+    }
+  }
+
+  private final long tickMillis;
+
+  private final int levels;
+
+  // Slots created on first use, most of them stay empty
+  private final List<Entry<T>>[][] wheels;
+
+  private List<Entry<T>> overflow = new ArrayList<>();
+
+  // Entries already due, handed out on the next advance
+  private List<Entry<T>> expired = new ArrayList<>();
+
+  private long currentTick;
+
+  private int size;
+
+  /**
+   * Create an empty wheel.
+   *
+   * @param tickMillis  duration of a tick, the precision of the deadlines
+   * @param levels      number of wheels, covering {@code 256^levels} ticks
+   * @param startMillis time of the first tick
+   */
+  public TimerWheel(long tickMillis, int levels, long startMillis) {
+    if (tickMillis < 1 || levels < 1 || levels * SLOT_BITS >= Long.SIZE - 1) {
+      throw new IllegalArgumentException("Invalid timer wheel of " + levels + " levels of "
+          + tickMillis + " ms ticks");
+    }
+    this.tickMillis = tickMillis;
+    this.levels = levels;
+    this.wheels = newWheels(levels);
+    this.currentTick = startMillis / tickMillis;
+  }
+
+  /**
+   * Slots of every level; Java cannot create an array of a generic type without the cast.
+   */
+  @SuppressWarnings("unchecked")
+  private static <T> List<Entry<T>>[][] newWheels(int levels) {
+    return new List[levels][SLOTS];
+  }
+
+  /**
+   * Add an item, due on the first tick at or after the deadline.
+   *
+   * @param deadlineMillis deadline in milliseconds since the epoch
+   * @param item           the item
+   */
+  public void schedule(long deadlineMillis, T item) {
+    // Rounded up, so an item never fires before its deadline
+    long tick = deadlineMillis / this.tickMillis
+        + (deadlineMillis % this.tickMillis == 0 ? 0 : 1);
+    insert(new Entry<>(tick, item));
+    this.size++;
+  }
+
+  /**
+   * Advance the wheel to the given time, handing every item due by then to the consumer.
+   * Items are handed out in deadline order, up to the tick precision.
+   *
+   * @param nowMillis current time in milliseconds since the epoch
+   * @param consumer  consumer of the due items
+   * @return the number of items handed out
+   */
+  public int advance(long nowMillis, Consumer<T> consumer) {
+    int count = expireOverdue(consumer);
+    long targetTick = nowMillis / this.tickMillis;
+    while (this.currentTick < targetTick) {
+      if (this.size == 0) {
+        // Nothing to cascade or expire on the way
+        this.currentTick = targetTick;
+        break;
+      }
+      this.currentTick++;
+      cascade();
+      count += expireOverdue(consumer);
+      int index = (int) (this.currentTick & SLOT_MASK);
+      List<Entry<T>> slot = this.wheels[0][index];
+      if (slot != null) {
+        this.wheels[0][index] = null;
+        count += expire(slot, consumer);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Number of items not handed out yet.
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * Hand out the items found due when scheduled or cascaded.
+   */
+  private int expireOverdue(Consumer<T> consumer) {
+    if (this.expired.isEmpty()) {
+      return 0;
+    }
+    List<Entry<T>> entries = this.expired;
+    this.expired = new ArrayList<>();
+    return expire(entries, consumer);
+  }
+
+  private int expire(List<Entry<T>> entries, Consumer<T> consumer) {
+    for (Entry<T> entry : entries) {
+      this.size--;
+      consumer.accept(entry.item);
+    }
+    return entries.size();
+  }
+
+  /**
+   * Move down the slots whose span starts at the current tick, from the top level down so
+   * items cascaded from above land in slots not cascaded yet.
+   */
+  private void cascade() {
+    int top = 0;
+    while (top < this.levels
+        && (this.currentTick & ((1L << (SLOT_BITS * (top + 1))) - 1)) == 0) {
+      top++;
+    }
+    if (top == this.levels) {
+      List<Entry<T>> entries = this.overflow;
+      this.overflow = new ArrayList<>();
+      entries.forEach(this::insert);
+      top--;
+    }
+    for (int level = top; level > 0; level--) {
+      int index = (int) ((this.currentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+      List<Entry<T>> slot = this.wheels[level][index];
+      if (slot != null) {
+        this.wheels[level][index] = null;
+        slot.forEach(this::insert);
+      }
+    }
+  }
+
+  private void insert(Entry<T> entry) {
+    if (entry.tick <= this.currentTick) {
+      this.expired.add(entry);
+      return;
+    }
+    for (int level = 0; level < this.levels; level++) {
+      int shift = SLOT_BITS * (level + 1);
+      if (entry.tick >>> shift == this.currentTick >>> shift) {
+        int index = (int) ((entry.tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+        List<Entry<T>> slot = this.wheels[level][index];
+        if (slot == null) {
+          slot = new ArrayList<>();
+          this.wheels[level][index] = slot;
+        }
+        slot.add(entry);
+        return;
+      }
+    }
+    this.overflow.add(entry);
+  }
+}
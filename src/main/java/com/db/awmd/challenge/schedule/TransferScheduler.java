@@ -0,0 +1,340 @@
+package com.db.awmd.challenge.schedule;
+
+import com.db.awmd.challenge.domain.AccountTransfer;
+import com.db.awmd.challenge.domain.ScheduledTransfer;
+import com.db.awmd.challenge.domain.TransferResult;
+import com.db.awmd.challenge.journal.JournalRecord;
+import com.db.awmd.challenge.journal.TransferJournal;
+import com.db.awmd.challenge.service.AccountsService;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Executes transfers at their scheduled time.
+ *
+ * <p>Pending transfers are held in a {@link TimerWheel}, so millions of them cost one small
+ * entry each and no task or thread. A single thread advances the wheel every tick and applies
+ * the due transfers in batches through {@link AccountsService#transferMoneyBatch}. Transfers
+ * refused because their accounts stayed locked are scheduled again after the retry delay;
+ * other refusals, such as a balance too low, are final and logged.
+ *
+ * <p>Pending transfers are kept in a {@link ScheduledTransferStore} and scheduled again on
+ * startup. A transfer leaves the store only once its outcome is known, so none is lost. It is
+ * marked executing in the store before it is applied, and the engine journals its id with it,
+ * so the journal tells whether a transfer whose outcome was lost, by a failed batch or a
+ * crash, was applied: such transfers are retried and the engine skips the ones already
+ * applied. Without a journal holding the ids from before startup, the outcome cannot be known;
+ * those transfers are left marked executing in the store, counted and logged, rather than
+ * risk applying them twice.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "scheduler.enabled", havingValue = "true", matchIfMissing = true)
+public class TransferScheduler implements PublicMetrics {
+
+  private static final String STORE_FILE = "scheduled-transfers.log";
+
+  private final AccountsService accountsService;
+
+  private final ScheduledTransferStore store;
+
+  private final long tickMillis;
+
+  private final int batchSize;
+
+  private final long retryDelayMillis;
+
+  // Guards wheel
+  private final Object lock = new Object();
+
+  private final TimerWheel<ScheduledTransfer> wheel;
+
+  private final AtomicLong lastId;
+
+  private TransferJournal transferJournal;
+
+  // Only used by the dispatcher; null once resolved
+  private List<ScheduledTransfer> recovering;
+
+  private final LongAdder executed = new LongAdder();
+
+  private final LongAdder failed = new LongAdder();
+
+  private final LongAdder retried = new LongAdder();
+
+  private final LongAdder unknown = new LongAdder();
+
+  private final ScheduledExecutorService dispatcher =
+      Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "transfer-scheduler");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  /**
+   * Open the store and put its pending transfers back in the wheel.
+   *
+   * @param accountsService  service applying the due transfers
+   * @param directory        directory of the store
+   * @param tickMillis       precision of the execution times
+   * @param levels           levels of the wheel, covering {@code 256^levels} ticks; later
+   *                         transfers wait in an overflow list
+   * @param batchSize        most transfers applied together
+   * @param retryDelayMillis delay before a transfer refused on locked accounts is retried
+   * @param compactRecords   fewest records in the store log before it is compacted
+   * @throws IOException if the store cannot be opened
+   */
+  @Autowired
+  public TransferScheduler(AccountsService accountsService,
+                           @Value("${scheduler.directory}") String directory,
+                           @Value("${scheduler.tick-ms:100}") long tickMillis,
+                           @Value("${scheduler.levels:4}") int levels,
+                           @Value("${scheduler.batch-size:1000}") int batchSize,
+                           @Value("${scheduler.retry-delay-ms:1000}") long retryDelayMillis,
+                           @Value("${scheduler.compact-records:65536}") int compactRecords)
+      throws IOException {
+    this.accountsService = accountsService;
+    this.store = new ScheduledTransferStore(Paths.get(directory, STORE_FILE), compactRecords);
+    this.tickMillis = tickMillis;
+    this.batchSize = batchSize;
+    this.retryDelayMillis = retryDelayMillis;
+    this.wheel = new TimerWheel<>(tickMillis, levels, System.currentTimeMillis());
+    this.lastId = new AtomicLong(this.store.lastId());
+    for (ScheduledTransfer transfer : this.store.pending()) {
+      this.wheel.schedule(transfer.getExecuteAt(), transfer);
+    }
+    // Resolved on the first dispatch, once the journal is known
+    this.recovering = new ArrayList<>(this.store.executing());
+    if (this.wheel.size() + this.recovering.size() > 0) {
+      log.info("Recovered {} scheduled transfers, {} of them executing", this.wheel.size()
+          + this.recovering.size(), this.recovering.size());
+    }
+  }
+
+  /**
+   * Journal telling which scheduled transfers were applied, required to retry the ones whose
+   * outcome was lost.
+   */
+  @Autowired(required = false)
+  public void setTransferJournal(TransferJournal transferJournal) {
+    this.transferJournal = transferJournal;
+  }
+
+  @PostConstruct
+  public void start() {
+    this.dispatcher.scheduleWithFixedDelay(() -> {
+      try {
+        dispatchDue(System.currentTimeMillis());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (Exception e) {
+        log.error("Dispatch of scheduled transfers failed", e);
+      }
+    }, this.tickMillis, this.tickMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  public void stop() throws IOException, InterruptedException {
+    this.dispatcher.shutdown();
+    this.dispatcher.awaitTermination(10, TimeUnit.SECONDS);
+    this.store.close();
+  }
+
+  /**
+   * Durably accept a transfer for execution at its time.
+   *
+   * @param scheduledTransfer the transfer; its id is ignored
+   * @return the transfer under its new id
+   */
+  public ScheduledTransfer schedule(ScheduledTransfer scheduledTransfer) {
+    ScheduledTransfer transfer = scheduledTransfer.withId(this.lastId.incrementAndGet());
+    this.store.add(Collections.singletonList(transfer));
+    synchronized (this.lock) {
+      this.wheel.schedule(transfer.getExecuteAt(), transfer);
+    }
+    return transfer;
+  }
+
+  /**
+   * Apply every transfer due by the given time.
+   *
+   * @param nowMillis current time in milliseconds since the epoch
+   * @return the number of transfers dispatched
+   * @throws InterruptedException if interrupted while applying a batch
+   */
+  public int dispatchDue(long nowMillis) throws InterruptedException {
+    List<ScheduledTransfer> due = new ArrayList<>();
+    if (this.recovering != null) {
+      if (isRetrySafe()) {
+        due.addAll(this.recovering);
+      } else {
+        park(this.recovering);
+      }
+      this.recovering = null;
+    }
+    synchronized (this.lock) {
+      this.wheel.advance(nowMillis, due::add);
+    }
+    int from = 0;
+    try {
+      for (; from < due.size(); from += this.batchSize) {
+        dispatch(due.subList(from, Math.min(due.size(), from + this.batchSize)), nowMillis);
+      }
+    } finally {
+      // The batch that threw is dealt with, the ones after it are put back as they were
+      if (from + this.batchSize < due.size()) {
+        reschedule(due.subList(from + this.batchSize, due.size()));
+      }
+    }
+    return due.size();
+  }
+
+  /**
+   * Apply a batch and remove the transfers with an outcome from the store.
+   *
+   * @throws InterruptedException if interrupted while applying it; the outcome of the batch is
+   *                              then unknown
+   */
+  private void dispatch(List<ScheduledTransfer> batch, long nowMillis)
+      throws InterruptedException {
+    List<AccountTransfer> accountTransfers = new ArrayList<>(batch.size());
+    for (ScheduledTransfer transfer : batch) {
+      accountTransfers.add(transfer.getTransfer());
+    }
+    this.store.markExecuting(batch);
+    List<TransferResult> results;
+    try {
+      results = this.accountsService.transferMoneyBatch(accountTransfers);
+    } catch (RuntimeException e) {
+      log.error("Batch of {} scheduled transfers failed, part of it may be applied",
+          batch.size(), e);
+      unknownOutcome(batch, nowMillis);
+      return;
+    } catch (InterruptedException e) {
+      unknownOutcome(batch, nowMillis);
+      throw e;
+    }
+
+    List<ScheduledTransfer> done = new ArrayList<>(batch.size());
+    List<ScheduledTransfer> retries = new ArrayList<>();
+    List<Long> applied = new ArrayList<>(batch.size());
+    for (TransferResult result : results) {
+      ScheduledTransfer transfer = batch.get(result.getIndex());
+      switch (result.getStatus()) {
+        case OK:
+        case ALREADY_APPLIED:
+          this.executed.increment();
+          done.add(transfer);
+          applied.add(transfer.getId());
+          break;
+        case LOCKED:
+          retries.add(transfer);
+          break;
+        default:
+          this.failed.increment();
+          done.add(transfer);
+          log.warn("Scheduled transfer {} refused: {}", transfer.getId(), result.getMessage());
+      }
+    }
+    retry(retries, nowMillis);
+    if (!done.isEmpty()) {
+      this.store.remove(done);
+    }
+    // Ids are never reused, so once removed the journal can forget them
+    if (this.transferJournal != null && !applied.isEmpty()) {
+      this.transferJournal.append(JournalRecord.settled(
+          applied.stream().mapToLong(Long::longValue).toArray()));
+    }
+  }
+
+  /**
+   * Retry a batch that may be partly applied if the journal tells which transfers were, or
+   * leave it in the store otherwise.
+   */
+  private void unknownOutcome(List<ScheduledTransfer> batch, long nowMillis) {
+    if (isRetrySafe()) {
+      retry(batch, nowMillis);
+    } else {
+      park(batch);
+    }
+  }
+
+  private boolean isRetrySafe() {
+    return this.transferJournal != null && this.transferJournal.isScheduledRestored();
+  }
+
+  /**
+   * Leave transfers marked executing in the store, out of the wheel.
+   */
+  private void park(List<ScheduledTransfer> transfers) {
+    if (transfers.isEmpty()) {
+      return;
+    }
+    this.unknown.add(transfers.size());
+    for (ScheduledTransfer transfer : transfers) {
+      log.error("Scheduled transfer {} may have been applied, not retrying it",
+          transfer.getId());
+    }
+  }
+
+  /**
+   * Schedule transfers still in the store again after the retry delay; the store keeps them
+   * waiting again.
+   */
+  private void retry(List<ScheduledTransfer> transfers, long nowMillis) {
+    if (transfers.isEmpty()) {
+      return;
+    }
+    List<ScheduledTransfer> retries = new ArrayList<>(transfers.size());
+    for (ScheduledTransfer transfer : transfers) {
+      retries.add(transfer.withExecuteAt(nowMillis + this.retryDelayMillis));
+    }
+    this.store.add(retries);
+    this.retried.add(retries.size());
+    reschedule(retries);
+  }
+
+  /**
+   * Put transfers still in the store back in the wheel, at their execution time.
+   */
+  private void reschedule(List<ScheduledTransfer> transfers) {
+    synchronized (this.lock) {
+      for (ScheduledTransfer transfer : transfers) {
+        this.wheel.schedule(transfer.getExecuteAt(), transfer);
+      }
+    }
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    List<Metric<?>> metrics = new ArrayList<>();
+    synchronized (this.lock) {
+      metrics.add(new Metric<>("scheduler.pending", this.wheel.size()));
+    }
+    metrics.add(new Metric<>("scheduler.executed", this.executed.sum()));
+    metrics.add(new Metric<>("scheduler.failed", this.failed.sum()));
+    metrics.add(new Metric<>("scheduler.retried", this.retried.sum()));
+    metrics.add(new Metric<>("scheduler.unknown", this.unknown.sum()));
+    metrics.add(new Metric<>("scheduler.store.commits", this.store.getCommits()));
+    metrics.add(new Metric<>("scheduler.store.compactions", this.store.getCompactions()));
+    return metrics;
+  }
+}
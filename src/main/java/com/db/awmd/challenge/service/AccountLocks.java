@@ -0,0 +1,142 @@
+package com.db.awmd.challenge.service;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.metrics.TransferMetrics;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Acquires account write locks in a global order (by lock order, then account id), so two
+ * transfers touching the same accounts in opposite directions can never deadlock.
+ *
+ * <p>Locks that are not immediately available are reported to {@link TransferMetrics} as
+ * contention on their account; free locks cost one extra check and no clock read.
+ */
+final class AccountLocks {
+
+  private static final Comparator<Account> LOCK_ORDER = Comparator
+      .comparingInt(Account::getLockOrder)
+      .thenComparing(Account::getAccountId);
+
+  private AccountLocks() {
+  }
+
+  /**
+   * Try to lock the account for writing before the timeout expires.
+   *
+   * @param account       the account
+   * @param timeoutMillis maximum time to wait for the lock
+   * @param metrics       where a contended lock is reported
+   * @return true if the lock is held, false if the timeout expired
+   * @throws InterruptedException if the thread is interrupted while waiting
+   */
+  static boolean tryLock(Account account, long timeoutMillis, TransferMetrics metrics)
+      throws InterruptedException {
+    return lock(account, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis),
+        metrics);
+  }
+
+  /**
+   * Try to lock both accounts for writing before the timeout expires.
+   *
+   * @param first         one of the accounts
+   * @param second        the other account
+   * @param timeoutMillis maximum time to wait for both locks
+   * @param metrics       where contended locks are reported
+   * @return true if both locks are held, false if the timeout expired (nothing is held then)
+   * @throws InterruptedException if the thread is interrupted while waiting
+   */
+  static boolean tryLock(Account first, Account second, long timeoutMillis,
+                         TransferMetrics metrics) throws InterruptedException {
+    if (LOCK_ORDER.compare(first, second) > 0) {
+      Account swap = first;
+      first = second;
+      second = swap;
+    }
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+    if (!lock(first, deadline, metrics)) {
+      return false;
+    }
+    boolean locked = false;
+    try {
+      locked = lock(second, deadline, metrics);
+    } finally {
+      if (!locked) {
+        first.getLock().writeLock().unlock();
+      }
+    }
+    return locked;
+  }
+
+  /**
+   * Try to lock every account for writing, in lock order, before the timeout expires.
+   *
+   * @param accounts      distinct accounts to lock, sorted in place into lock order
+   * @param timeoutMillis maximum time to wait for all the locks
+   * @param metrics       where contended locks are reported
+   * @return true if every lock is held, false if the timeout expired (nothing is held then)
+   * @throws InterruptedException if the thread is interrupted while waiting
+   */
+  static boolean tryLockAll(List<Account> accounts, long timeoutMillis,
+                            TransferMetrics metrics) throws InterruptedException {
+    accounts.sort(LOCK_ORDER);
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    int locked = 0;
+    try {
+      for (Account account : accounts) {
+        if (!lock(account, deadline, metrics)) {
+          break;
+        }
+        locked++;
+      }
+    } finally {
+      if (locked < accounts.size()) {
+        unlockAll(accounts.subList(0, locked));
+      }
+    }
+    return locked == accounts.size();
+  }
+
+  /**
+   * Release the locks taken by {@link #tryLockAll(List, long, TransferMetrics)}.
+   */
+  static void unlockAll(List<Account> accounts) {
+    for (int i = accounts.size() - 1; i >= 0; i--) {
+      accounts.get(i).getLock().writeLock().unlock();
+    }
+  }
+
+  /**
+   * Release the lock taken by {@link #tryLock(Account, long, TransferMetrics)}.
+   */
+  static void unlock(Account account) {
+    account.getLock().writeLock().unlock();
+  }
+
+  /**
+   * Release the locks taken by {@link #tryLock(Account, Account, long, TransferMetrics)}.
+   */
+  static void unlock(Account first, Account second) {
+    second.getLock().writeLock().unlock();
+    first.getLock().writeLock().unlock();
+  }
+
+  /**
+   * Lock the account for writing before the deadline, reporting the wait if it was not free.
+   */
+  private static boolean lock(Account account, long deadline, TransferMetrics metrics)
+      throws InterruptedException {
+    Lock lock = account.getLock().writeLock();
+    // A zero timeout still honours the fairness of the lock, unlike tryLock()
+    if (lock.tryLock(0, TimeUnit.NANOSECONDS)) {
+      return true;
+    }
+    long started = System.nanoTime();
+    boolean locked = lock.tryLock(deadline - started, TimeUnit.NANOSECONDS);
+    metrics.recordContention(account.getAccountId(), System.nanoTime() - started);
+    return locked;
+  }
+}
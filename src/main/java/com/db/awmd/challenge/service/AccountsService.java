@@ -2,9 +2,20 @@ package com.db.awmd.challenge.service;
 
 import com.db.awmd.challenge.domain.Account;
 import com.db.awmd.challenge.domain.AccountTransfer;
+import com.db.awmd.challenge.domain.MultiLegTransfer;
+import com.db.awmd.challenge.domain.TransferResult;
+import com.db.awmd.challenge.domain.TransferResult.Status;
 import com.db.awmd.challenge.exception.AccountNotFoundException;
+import com.db.awmd.challenge.exception.AccountsRejectedException;
+import com.db.awmd.challenge.exception.DuplicateAccountIdException;
 import com.db.awmd.challenge.exception.NotEnoughBalanceException;
 import com.db.awmd.challenge.exception.SameAccountException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
 
 /**
  * Account service.
@@ -18,6 +29,27 @@ public interface AccountsService {
    */
   void createAccount(final Account account);
 
+  /**
+   * Create a batch of accounts, skipping the ones whose id already exists.
+   *
+   * @param accounts the accounts
+   * @return the positions in the batch of the accounts not created because their id already
+   *     exists, ascending
+   * @throws AccountsRejectedException once the other accounts are created, if some cannot be
+   *                                   stored at all
+   */
+  default List<Integer> createAccounts(final List<Account> accounts) {
+    List<Integer> duplicates = new ArrayList<>();
+    for (int i = 0; i < accounts.size(); i++) {
+      try {
+        createAccount(accounts.get(i));
+      } catch (DuplicateAccountIdException e) {
+        duplicates.add(i);
+      }
+    }
+    return duplicates;
+  }
+
   /**
    * Get an account from database.
    *
@@ -26,6 +58,23 @@ public interface AccountsService {
    */
   Account getAccount(final String accountId);
 
+  /**
+   * Accounts in id order, starting after the given id.
+   *
+   * @param afterAccountId id the page starts after, null for the first page
+   * @param limit          maximum number of accounts returned
+   * @return the accounts, ordered by id
+   */
+  List<Account> getAccounts(final String afterAccountId, final int limit);
+
+  /**
+   * Feed every account to the consumer, without blocking transfers meanwhile; see
+   * {@link com.db.awmd.challenge.repository.AccountsRepository#forEachAccount(Consumer)}.
+   *
+   * @param consumer consumer of the accounts
+   */
+  void forEachAccount(final Consumer<Account> consumer);
+
   /**
    * Transfer money amount between accounts a save it in database.
    *
@@ -38,4 +87,83 @@ public interface AccountsService {
   boolean transferMoney(final AccountTransfer accountTransfer)
       throws SameAccountException, AccountNotFoundException, NotEnoughBalanceException,
       InterruptedException;
+
+  /**
+   * Transfer money without blocking the caller.
+   *
+   * <p>The default implementation runs {@link #transferMoney} on the executor. Engines that
+   * apply transfers on their own threads override it so no thread waits for the outcome.
+   *
+   * @param accountTransfer account transfer info
+   * @param executor        runs the blocking parts of the transfer
+   * @return future completed with the result of {@link #transferMoney}, or exceptionally with
+   *     the exception it throws, or with a {@link RejectedExecutionException} when the
+   *     executor does not take more work
+   */
+  default CompletableFuture<Boolean> transferMoneyAsync(final AccountTransfer accountTransfer,
+                                                        final Executor executor) {
+    CompletableFuture<Boolean> result = new CompletableFuture<>();
+    try {
+      executor.execute(() -> {
+        try {
+          result.complete(transferMoney(accountTransfer));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          result.completeExceptionally(e);
+        } catch (RuntimeException e) {
+          result.completeExceptionally(e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      result.completeExceptionally(e);
+    }
+    return result;
+  }
+
+  /**
+   * Transfer money for a whole batch of transfers, reporting the outcome of each one.
+   *
+   * <p>The default implementation runs the transfers one by one, implementations can do better
+   * by netting the batch per account.
+   *
+   * @param accountTransfers the transfers, in submission order
+   * @return one result per transfer, in the same order
+   */
+  default List<TransferResult> transferMoneyBatch(final List<AccountTransfer> accountTransfers)
+      throws InterruptedException {
+    List<TransferResult> results = new ArrayList<>(accountTransfers.size());
+    for (int i = 0; i < accountTransfers.size(); i++) {
+      TransferResult.Status status;
+      String message = null;
+      try {
+        status = transferMoney(accountTransfers.get(i)) ? Status.OK : Status.LOCKED;
+      } catch (SameAccountException e) {
+        status = Status.SAME_ACCOUNT;
+        message = e.getMessage();
+      } catch (AccountNotFoundException e) {
+        status = Status.NOT_FOUND;
+        message = e.getMessage();
+      } catch (NotEnoughBalanceException e) {
+        status = Status.NOT_ENOUGH_BALANCE;
+        message = e.getMessage();
+      }
+      results.add(TransferResult.builder().index(i).status(status).message(message).build());
+    }
+    return results;
+  }
+
+  /**
+   * Debit the source account once and credit every leg, all or nothing.
+   *
+   * @param multiLegTransfer the source account and the legs
+   * @return true if every leg was applied, false if the accounts could not be locked or kept
+   *     changing
+   * @throws SameAccountException          a leg credits the source account
+   * @throws AccountNotFoundException      one of the accounts is not found
+   * @throws NotEnoughBalanceException     the source account does not cover the sum of the legs
+   * @throws UnsupportedOperationException the engine cannot apply the legs atomically
+   */
+  boolean transferMoneyMultiLeg(MultiLegTransfer multiLegTransfer)
+      throws SameAccountException, AccountNotFoundException, NotEnoughBalanceException,
+      InterruptedException;
 }
@@ -4,21 +4,37 @@ import static java.lang.String.format;
 
 import com.db.awmd.challenge.domain.Account;
 import com.db.awmd.challenge.domain.AccountTransfer;
+import com.db.awmd.challenge.domain.MultiLegTransfer;
+import com.db.awmd.challenge.domain.StripedAccount;
+import com.db.awmd.challenge.domain.TransferResult;
+import com.db.awmd.challenge.domain.TransferResult.Status;
 import com.db.awmd.challenge.exception.AccountNotFoundException;
 import com.db.awmd.challenge.exception.MoneyTransferException;
 import com.db.awmd.challenge.exception.NotEnoughBalanceException;
 import com.db.awmd.challenge.exception.SameAccountException;
+import com.db.awmd.challenge.history.TransferHistory;
+import com.db.awmd.challenge.journal.JournalRecord;
+import com.db.awmd.challenge.journal.TransferJournal;
+import com.db.awmd.challenge.metrics.TransferMetrics;
 import com.db.awmd.challenge.repository.AccountsRepository;
-import java.math.BigDecimal;
-import java.util.Random;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
 
 
 @Service
 @Slf4j
+@ConditionalOnProperty(name = "accounts.engine", havingValue = "locking", matchIfMissing = true)
 public class AccountsServiceImpl implements AccountsService {
 
   @Getter
@@ -27,14 +43,39 @@ public class AccountsServiceImpl implements AccountsService {
   @Getter
   private final NotificationService notificationService;
 
-  private final Random random;
+  /**
+   * Maximum time a transfer waits for both account locks before giving up.
+   */
+  @Value("${accounts.transfer.lock-timeout-ms}")
+  private long lockTimeoutMillis = 500;
+
+  private TransferJournal transferJournal;
+
+  private TransferHistory transferHistory;
+
+  @Getter
+  private TransferMetrics transferMetrics = new TransferMetrics();
 
   @Autowired
   public AccountsServiceImpl(AccountsRepository accountsRepository,
                              NotificationService notificationService) {
     this.accountsRepository = accountsRepository;
     this.notificationService = notificationService;
-    this.random = new Random();
+  }
+
+  @Autowired(required = false)
+  public void setTransferJournal(TransferJournal transferJournal) {
+    this.transferJournal = transferJournal;
+  }
+
+  @Autowired(required = false)
+  public void setTransferHistory(TransferHistory transferHistory) {
+    this.transferHistory = transferHistory;
+  }
+
+  @Autowired(required = false)
+  public void setTransferMetrics(TransferMetrics transferMetrics) {
+    this.transferMetrics = transferMetrics;
   }
 
   @Override
@@ -42,30 +83,65 @@ public class AccountsServiceImpl implements AccountsService {
     this.accountsRepository.createAccount(account);
   }
 
+  @Override
+  public List<Integer> createAccounts(List<Account> accounts) {
+    return this.accountsRepository.createAccounts(accounts);
+  }
+
   @Override
   public Account getAccount(String accountId) {
     return this.accountsRepository.getAccount(accountId);
   }
 
-  private void deposit(Account account, BigDecimal amount) {
-    account.getLock().writeLock().lock();
+  @Override
+  public List<Account> getAccounts(String afterAccountId, int limit) {
+    return this.accountsRepository.getAccounts(afterAccountId, limit);
+  }
+
+  @Override
+  public void forEachAccount(Consumer<Account> consumer) {
+    this.accountsRepository.forEachAccount(consumer);
+  }
+
+  /**
+   * Move the amount between both accounts. The caller must hold both account locks; the new
+   * balances are computed before touching either account so a failure leaves both untouched.
+   *
+   * <p>A {@link StripedAccount} takes deposits without its lock, so without a journal the
+   * caller may skip the lock of a striped destination. Its balance only changes through atomic
+   * withdraws and deposits, and a failed deposit gives the withdrawn amount back instead.
+   */
+  private void move(Account accountFrom, Account accountTo, long amount) {
+    if (accountFrom instanceof StripedAccount || accountTo instanceof StripedAccount) {
+      if (!accountFrom.withdraw(amount)) {
+        throw new MoneyTransferException(
+            format("Balance of account %s changed concurrently", accountFrom.getAccountId()));
+      }
+      try {
+        accountTo.deposit(amount);
+      } catch (ArithmeticException e) {
+        accountFrom.deposit(amount);
+        throw new MoneyTransferException(e.getMessage());
+      }
+      return;
+    }
+    long balanceFrom;
+    long balanceTo;
     try {
-      account.setBalance(account.getBalance().add(amount));
-    } catch (Exception e) {
+      balanceFrom = Math.subtractExact(accountFrom.getBalanceMinorUnits(), amount);
+      balanceTo = Math.addExact(accountTo.getBalanceMinorUnits(), amount);
+    } catch (ArithmeticException e) {
       throw new MoneyTransferException(e.getMessage());
-    } finally {
-      account.getLock().writeLock().unlock();
     }
-  }
-
-  private void withdraw(Account account, BigDecimal amount) {
-    deposit(account, amount.negate());
+    accountFrom.setBalanceMinorUnits(balanceFrom);
+    accountTo.setBalanceMinorUnits(balanceTo);
   }
 
   @Override
   public boolean transferMoney(AccountTransfer accountTransfer)
       throws SameAccountException, AccountNotFoundException, NotEnoughBalanceException,
       InterruptedException {
+    long started = System.nanoTime();
     if (accountTransfer.getAccountFromId().equals(accountTransfer.getAccountToId())) {
       throw new SameAccountException("You can transfer money to the same account");
     }
@@ -81,37 +157,402 @@ public class AccountsServiceImpl implements AccountsService {
           format("Account with id %s not found", accountTransfer.getAccountToId()));
     }
 
-    // The transfer is only allowed if the first account has enough amount in balance
-    if (accountFrom.hasBalance(accountTransfer.getAmount())) {
-      for (int lockRetries = 0; lockRetries < 10; lockRetries++) {
-        if (!accountFrom.getLock().isWriteLocked() && !accountTo.getLock().isWriteLocked()) {
-          withdraw(accountFrom, accountTransfer.getAmount());
-          deposit(accountTo, accountTransfer.getAmount());
-
-          this.accountsRepository.updateAccount(accountFrom);
-          this.notificationService.notifyAboutTransfer(accountFrom,
-              format("Your account have transferred %s to account id %s",
-                  accountTransfer.getAmount().toString(), accountTo.getAccountId()));
-
-          this.accountsRepository.updateAccount(accountTo);
-          this.notificationService.notifyAboutTransfer(accountTo,
-              format("Your account have received %s from account id %s",
-                  accountTransfer.getAmount().toString(), accountFrom.getAccountId()));
-
-          return true;
-        } else {
-          log.info("Waiting for both accounts to be unlock: {}, {} (Retry {}/10)",
-              accountFrom.getAccountId(), accountTo.getAccountId(), lockRetries);
-          Thread.sleep(random.nextInt(1001));
-        }
-      }
+    long journalSequence;
+    // Deposits to a striped account do not need its lock; withdrawals from it still do. With a
+    // journal they take it too: a withdrawal could otherwise be journaled before the deposit
+    // that funded it, and a crash between both would recover a negative balance
+    boolean lockTo = this.transferJournal != null || !(accountTo instanceof StripedAccount);
+    long lockRequested = System.nanoTime();
+    boolean locked = lockTo
+        ? AccountLocks.tryLock(accountFrom, accountTo, this.lockTimeoutMillis,
+            this.transferMetrics)
+        : AccountLocks.tryLock(accountFrom, this.lockTimeoutMillis, this.transferMetrics);
+    long lockAcquired = System.nanoTime();
+    this.transferMetrics.recordLockWait(lockAcquired - lockRequested);
+    if (!locked) {
+      this.transferMetrics.recordLocked(1);
       log.info("Operation cancelled due to lock time, accounts: {}, {}",
           accountFrom.getAccountId(), accountTo.getAccountId());
       return false;
-    } else {
-      throw new NotEnoughBalanceException(
-          format("Account with id %s doesn't have the desired amount to transfer",
-              accountFrom.getAccountId()));
     }
+    try {
+      // The transfer is only allowed if the first account has enough amount in balance
+      if (!accountFrom.hasBalance(accountTransfer.getAmountMinorUnits())) {
+        throw new NotEnoughBalanceException(
+            format("Account with id %s doesn't have the desired amount to transfer",
+                accountFrom.getAccountId()));
+      }
+      move(accountFrom, accountTo, accountTransfer.getAmountMinorUnits());
+
+      this.accountsRepository.updateAccounts(Arrays.asList(accountFrom, accountTo));
+      // Journaled under the locks so the journal order matches the order on each account
+      journalSequence = journal(accountTransfer);
+    } finally {
+      if (lockTo) {
+        AccountLocks.unlock(accountFrom, accountTo);
+      } else {
+        AccountLocks.unlock(accountFrom);
+      }
+      this.transferMetrics.recordLockHold(System.nanoTime() - lockAcquired);
+    }
+    awaitDurable(journalSequence);
+    if (this.transferHistory != null) {
+      this.transferHistory.record(accountTransfer);
+    }
+
+    long notifying = System.nanoTime();
+    this.notificationService.notifyAboutTransfer(accountFrom,
+        format("Your account have transferred %s to account id %s",
+            accountTransfer.getAmount().toString(), accountTo.getAccountId()));
+    this.notificationService.notifyAboutTransfer(accountTo,
+        format("Your account have received %s from account id %s",
+            accountTransfer.getAmount().toString(), accountFrom.getAccountId()));
+    long finished = System.nanoTime();
+    this.transferMetrics.recordNotification(finished - notifying);
+    this.transferMetrics.recordTransfer(finished - started);
+    return true;
+  }
+
+  /**
+   * Apply the batch as one settlement: every involved account is locked once, the transfers
+   * are netted per account and each account is written once with its net balance.
+   *
+   * <p>When the netted balance of some account would be negative, the transfers are settled in
+   * submission order instead and the ones that do not fit are rejected.
+   */
+  @Override
+  public List<TransferResult> transferMoneyBatch(List<AccountTransfer> accountTransfers)
+      throws InterruptedException {
+    long started = System.nanoTime();
+    TransferResult[] results = new TransferResult[accountTransfers.size()];
+    Account[] froms = new Account[results.length];
+    Account[] tos = new Account[results.length];
+    Map<String, Account> involved = new HashMap<>();
+    for (int i = 0; i < results.length; i++) {
+      AccountTransfer accountTransfer = accountTransfers.get(i);
+      if (accountTransfer.getAccountFromId().equals(accountTransfer.getAccountToId())) {
+        results[i] = result(i, Status.SAME_ACCOUNT, "You can transfer money to the same account");
+        continue;
+      }
+      froms[i] = involved.computeIfAbsent(accountTransfer.getAccountFromId(),
+          this.accountsRepository::getAccount);
+      tos[i] = involved.computeIfAbsent(accountTransfer.getAccountToId(),
+          this.accountsRepository::getAccount);
+      if (froms[i] == null || tos[i] == null) {
+        results[i] = result(i, Status.NOT_FOUND, format("Account with id %s not found",
+            froms[i] == null ? accountTransfer.getAccountFromId()
+                : accountTransfer.getAccountToId()));
+      }
+    }
+
+    long journalSequence = 0;
+    List<Account> accounts = new ArrayList<>(involved.values());
+    long lockRequested = System.nanoTime();
+    boolean locked = AccountLocks.tryLockAll(accounts, this.lockTimeoutMillis,
+        this.transferMetrics);
+    long lockAcquired = System.nanoTime();
+    this.transferMetrics.recordLockWait(lockAcquired - lockRequested);
+    if (!locked) {
+      log.info("Batch cancelled due to lock time on {} accounts", accounts.size());
+      int lockedTransfers = 0;
+      for (int i = 0; i < results.length; i++) {
+        if (results[i] == null) {
+          results[i] = result(i, Status.LOCKED, "Accounts are locked, retry later");
+          lockedTransfers++;
+        }
+      }
+      this.transferMetrics.recordLocked(lockedTransfers);
+      return Arrays.asList(results);
+    }
+    try {
+      // Under the locks of its accounts, so a retry cannot apply a scheduled transfer twice
+      for (int i = 0; i < results.length; i++) {
+        if (results[i] == null && isScheduledApplied(accountTransfers.get(i))) {
+          results[i] = result(i, Status.ALREADY_APPLIED, "Scheduled transfer already applied");
+        }
+      }
+      Map<Account, Long> balances = settle(accountTransfers, froms, tos, results, true);
+      if (balances == null) {
+        balances = settle(accountTransfers, froms, tos, results, false);
+      }
+      applyToStriped(stripedChanges(accountTransfers, froms, tos, results));
+      for (Map.Entry<Account, Long> balance : balances.entrySet()) {
+        if (!(balance.getKey() instanceof StripedAccount)) {
+          balance.getKey().setBalanceMinorUnits(balance.getValue());
+        }
+      }
+      this.accountsRepository.updateAccounts(balances.keySet());
+      for (int i = 0; i < results.length; i++) {
+        if (results[i].getStatus() == Status.OK) {
+          journalSequence = journal(accountTransfers.get(i));
+        }
+      }
+    } finally {
+      AccountLocks.unlockAll(accounts);
+      this.transferMetrics.recordLockHold(System.nanoTime() - lockAcquired);
+    }
+    awaitDurable(journalSequence);
+
+    long notifying = System.nanoTime();
+    for (int i = 0; i < results.length; i++) {
+      if (results[i].getStatus() == Status.OK) {
+        AccountTransfer accountTransfer = accountTransfers.get(i);
+        if (this.transferHistory != null) {
+          this.transferHistory.record(accountTransfer);
+        }
+        this.notificationService.notifyAboutTransfer(froms[i],
+            format("Your account have transferred %s to account id %s",
+                accountTransfer.getAmount().toString(), tos[i].getAccountId()));
+        this.notificationService.notifyAboutTransfer(tos[i],
+            format("Your account have received %s from account id %s",
+                accountTransfer.getAmount().toString(), froms[i].getAccountId()));
+      }
+    }
+    long finished = System.nanoTime();
+    this.transferMetrics.recordNotification(finished - notifying);
+    this.transferMetrics.recordTransfer(finished - started);
+    return Arrays.asList(results);
+  }
+
+  /**
+   * Apply every leg or none: the source and all destinations are locked once, in lock order,
+   * the sum of the legs is checked against the source balance and the new balances are
+   * computed before any account changes. The work grows linearly with the number of legs.
+   */
+  @Override
+  public boolean transferMoneyMultiLeg(MultiLegTransfer multiLegTransfer)
+      throws SameAccountException, AccountNotFoundException, NotEnoughBalanceException,
+      InterruptedException {
+    long started = System.nanoTime();
+    List<AccountTransfer> accountTransfers = multiLegTransfer.getTransfers();
+    Map<String, Account> involved = new HashMap<>();
+    Account accountFrom = account(involved, multiLegTransfer.getAccountFromId());
+    Account[] tos = new Account[accountTransfers.size()];
+    long total = 0;
+    try {
+      for (int i = 0; i < tos.length; i++) {
+        AccountTransfer accountTransfer = accountTransfers.get(i);
+        if (accountTransfer.getAccountFromId().equals(accountTransfer.getAccountToId())) {
+          throw new SameAccountException("You can transfer money to the same account");
+        }
+        tos[i] = account(involved, accountTransfer.getAccountToId());
+        total = Math.addExact(total, accountTransfer.getAmountMinorUnits());
+      }
+    } catch (ArithmeticException e) {
+      throw new MoneyTransferException(e.getMessage());
+    }
+
+    long journalSequence = 0;
+    List<Account> accounts = new ArrayList<>(involved.values());
+    long lockRequested = System.nanoTime();
+    boolean locked = AccountLocks.tryLockAll(accounts, this.lockTimeoutMillis,
+        this.transferMetrics);
+    long lockAcquired = System.nanoTime();
+    this.transferMetrics.recordLockWait(lockAcquired - lockRequested);
+    if (!locked) {
+      this.transferMetrics.recordLocked(1);
+      log.info("Multi-leg transfer cancelled due to lock time on {} accounts", accounts.size());
+      return false;
+    }
+    try {
+      // The transfer is only allowed if the first account covers every leg
+      if (!accountFrom.hasBalance(total)) {
+        throw new NotEnoughBalanceException(
+            format("Account with id %s doesn't have the desired amount to transfer",
+                accountFrom.getAccountId()));
+      }
+      Map<Account, Long> balances = new IdentityHashMap<>();
+      // Striped accounts keep taking deposits while locked, so they get the change instead
+      Map<Account, Long> changes = new IdentityHashMap<>();
+      try {
+        balances.put(accountFrom, accountFrom.getBalanceMinorUnits() - total);
+        if (accountFrom instanceof StripedAccount) {
+          changes.put(accountFrom, -total);
+        }
+        for (int i = 0; i < tos.length; i++) {
+          long amount = accountTransfers.get(i).getAmountMinorUnits();
+          balances.merge(tos[i], Math.addExact(tos[i].getBalanceMinorUnits(), amount),
+              (current, ignored) -> Math.addExact(current, amount));
+          if (tos[i] instanceof StripedAccount) {
+            changes.merge(tos[i], amount, Math::addExact);
+          }
+        }
+      } catch (ArithmeticException e) {
+        throw new MoneyTransferException(e.getMessage());
+      }
+      applyToStriped(changes);
+      for (Map.Entry<Account, Long> balance : balances.entrySet()) {
+        if (!(balance.getKey() instanceof StripedAccount)) {
+          balance.getKey().setBalanceMinorUnits(balance.getValue());
+        }
+      }
+      this.accountsRepository.updateAccounts(balances.keySet());
+      // One record for every leg, so they are durable and replayed together
+      journalSequence = journal(accountTransfers);
+    } finally {
+      AccountLocks.unlockAll(accounts);
+      this.transferMetrics.recordLockHold(System.nanoTime() - lockAcquired);
+    }
+    awaitDurable(journalSequence);
+
+    long notifying = System.nanoTime();
+    for (int i = 0; i < tos.length; i++) {
+      AccountTransfer accountTransfer = accountTransfers.get(i);
+      if (this.transferHistory != null) {
+        this.transferHistory.record(accountTransfer);
+      }
+      this.notificationService.notifyAboutTransfer(accountFrom,
+          format("Your account have transferred %s to account id %s",
+              accountTransfer.getAmount().toString(), tos[i].getAccountId()));
+      this.notificationService.notifyAboutTransfer(tos[i],
+          format("Your account have received %s from account id %s",
+              accountTransfer.getAmount().toString(), accountFrom.getAccountId()));
+    }
+    long finished = System.nanoTime();
+    this.transferMetrics.recordNotification(finished - notifying);
+    this.transferMetrics.recordTransfer(finished - started);
+    return true;
+  }
+
+  /**
+   * Look up an account once per multi-leg transfer, so every leg to it shares one object.
+   */
+  private Account account(Map<String, Account> involved, String accountId)
+      throws AccountNotFoundException {
+    Account account = involved.computeIfAbsent(accountId, this.accountsRepository::getAccount);
+    if (account == null) {
+      throw new AccountNotFoundException(format("Account with id %s not found", accountId));
+    }
+    return account;
+  }
+
+  /**
+   * Compute the balances resulting from the pending transfers of a batch.
+   *
+   * @param netted when true, only the final balances are checked and null is returned if any
+   *               of them is negative; when false, transfers are checked one by one in order
+   * @return the new balance of every account changed by the batch
+   */
+  private Map<Account, Long> settle(List<AccountTransfer> accountTransfers,
+      Account[] froms, Account[] tos, TransferResult[] results, boolean netted) {
+    Map<Account, Long> balances = new IdentityHashMap<>();
+    for (int i = 0; i < results.length; i++) {
+      // Skip transfers rejected up front; the ordered pass redoes the ones the netted pass took
+      if (results[i] != null && (netted || results[i].getStatus() != Status.OK)) {
+        continue;
+      }
+      long amount = accountTransfers.get(i).getAmountMinorUnits();
+      long balanceFrom = balances.computeIfAbsent(froms[i], Account::getBalanceMinorUnits);
+      if (!netted && balanceFrom < amount) {
+        results[i] = result(i, Status.NOT_ENOUGH_BALANCE,
+            format("Account with id %s doesn't have the desired amount to transfer",
+                froms[i].getAccountId()));
+        continue;
+      }
+      balances.put(froms[i], balanceFrom - amount);
+      balances.merge(tos[i], Math.addExact(tos[i].getBalanceMinorUnits(), amount),
+          (current, ignored) -> Math.addExact(current, amount));
+      results[i] = result(i, Status.OK, null);
+    }
+    if (netted) {
+      for (long balance : balances.values()) {
+        if (balance < 0) {
+          return null;
+        }
+      }
+    }
+    return balances;
+  }
+
+  /**
+   * Net change of the batch to each of its striped accounts. They keep taking deposits while
+   * locked, so they cannot be set to the balance computed by the settlement.
+   */
+  private Map<Account, Long> stripedChanges(List<AccountTransfer> accountTransfers,
+      Account[] froms, Account[] tos, TransferResult[] results) {
+    Map<Account, Long> changes = new IdentityHashMap<>();
+    for (int i = 0; i < results.length; i++) {
+      if (results[i].getStatus() == Status.OK) {
+        long amount = accountTransfers.get(i).getAmountMinorUnits();
+        if (froms[i] instanceof StripedAccount) {
+          changes.merge(froms[i], -amount, Long::sum);
+        }
+        if (tos[i] instanceof StripedAccount) {
+          changes.merge(tos[i], amount, Long::sum);
+        }
+      }
+    }
+    return changes;
+  }
+
+  /**
+   * Apply changes to striped accounts, withdrawals first, or none of them. Withdrawals wait
+   * for the lock, so the balance checked under it can only have grown; should a withdrawal or
+   * a deposit still fail, the changes already applied are reverted before failing.
+   */
+  private void applyToStriped(Map<Account, Long> changes) {
+    List<Map.Entry<Account, Long>> ordered = new ArrayList<>(changes.entrySet());
+    ordered.sort(Map.Entry.comparingByValue());
+    for (int i = 0; i < ordered.size(); i++) {
+      Account account = ordered.get(i).getKey();
+      long change = ordered.get(i).getValue();
+      boolean applied;
+      try {
+        applied = change >= 0 || account.withdraw(-change);
+        if (change > 0) {
+          account.deposit(change);
+        }
+      } catch (ArithmeticException e) {
+        applied = false;
+      }
+      if (!applied) {
+        for (int j = 0; j < i; j++) {
+          long revert = ordered.get(j).getValue();
+          if (revert < 0) {
+            ordered.get(j).getKey().deposit(-revert);
+          } else {
+            ordered.get(j).getKey().withdraw(revert);
+          }
+        }
+        throw new MoneyTransferException(
+            format("Cannot apply the transfer to account %s", account.getAccountId()));
+      }
+    }
+  }
+
+  private long journal(AccountTransfer accountTransfer) {
+    if (this.transferJournal == null) {
+      return 0;
+    }
+    return this.transferJournal.append(JournalRecord.transfer(accountTransfer.getAccountFromId(),
+        accountTransfer.getAccountToId(), accountTransfer.getAmount(),
+        accountTransfer.getScheduledId()));
+  }
+
+  private boolean isScheduledApplied(AccountTransfer accountTransfer) {
+    return this.transferJournal != null && accountTransfer.getScheduledId() != 0
+        && this.transferJournal.isScheduledApplied(accountTransfer.getScheduledId());
+  }
+
+  private long journal(List<AccountTransfer> legs) {
+    if (this.transferJournal == null) {
+      return 0;
+    }
+    List<JournalRecord> records = new ArrayList<>(legs.size());
+    for (AccountTransfer leg : legs) {
+      records.add(JournalRecord.transfer(leg.getAccountFromId(), leg.getAccountToId(),
+          leg.getAmount()));
+    }
+    return this.transferJournal.append(JournalRecord.multiLeg(records));
+  }
+
+  private void awaitDurable(long journalSequence) throws InterruptedException {
+    if (this.transferJournal != null) {
+      this.transferJournal.awaitDurable(journalSequence);
+    }
+  }
+
+  private static TransferResult result(int index, Status status, String message) {
+    return TransferResult.builder().index(index).status(status).message(message).build();
   }
 }
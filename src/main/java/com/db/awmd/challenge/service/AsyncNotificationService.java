@@ -0,0 +1,201 @@
+package com.db.awmd.challenge.service;
+
+import com.db.awmd.challenge.domain.Account;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Service;
+
+/**
+ * Notification service delivering through {@link EmailNotificationService} on its own worker
+ * threads, so transfers never wait for the delivery.
+ *
+ * <p>Notifications are queued in a bounded queue. Workers drain it in batches and merge the
+ * notifications of the same account into a single delivery. When the queue is full the
+ * notification is either dropped or the caller waits for room, depending on the policy.
+ */
+@Slf4j
+@Service
+@Primary
+@ConditionalOnProperty(name = "notifications.async.enabled", havingValue = "true",
+    matchIfMissing = true)
+public class AsyncNotificationService implements NotificationService, PublicMetrics {
+
+  /**
+   * What to do when the queue is full.
+   */
+  public enum OverflowPolicy {
+    /**
+     * Drop the notification and count it.
+     */
+    DROP,
+    /**
+     * Make the caller wait for room, slowing down producers.
+     */
+    BLOCK
+  }
+
+  private static final class Notification {
+
+    private final Account account;
+    private final String transferDescription;
+
+    private Notification(Account account, String transferDescription) {
+      this.account = account;
+      this.transferDescription = transferDescription;
+    }
+  }
+
+  private final NotificationService delegate;
+
+  private final BlockingQueue<Notification> queue;
+
+  private final OverflowPolicy overflowPolicy;
+
+  private final int batchSize;
+
+  private final ExecutorService workers;
+
+  private final LongAdder submitted = new LongAdder();
+  private final LongAdder delivered = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private final LongAdder batches = new LongAdder();
+
+  /**
+   * Create the dispatcher and start its workers.
+   *
+   * @param delegate       the service actually delivering notifications
+   * @param capacity       maximum number of queued notifications
+   * @param workerThreads  number of delivering threads
+   * @param batchSize      maximum number of notifications taken from the queue at once
+   * @param overflowPolicy what to do when the queue is full
+   */
+  @Autowired
+  public AsyncNotificationService(EmailNotificationService delegate,
+      @Value("${notifications.async.capacity:10000}") int capacity,
+      @Value("${notifications.async.worker-threads:2}") int workerThreads,
+      @Value("${notifications.async.batch-size:100}") int batchSize,
+      @Value("${notifications.async.overflow-policy:drop}") String overflowPolicy) {
+    this.delegate = delegate;
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.overflowPolicy = OverflowPolicy.valueOf(overflowPolicy.toUpperCase());
+    this.batchSize = batchSize;
+    AtomicInteger threadCount = new AtomicInteger();
+    this.workers = Executors.newFixedThreadPool(workerThreads, runnable -> {
+      Thread thread = new Thread(runnable, "notification-" + threadCount.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    });
+    for (int i = 0; i < workerThreads; i++) {
+      this.workers.execute(this::dispatch);
+    }
+  }
+
+  @Override
+  public void notifyAboutTransfer(Account account, String transferDescription) {
+    Notification notification = new Notification(account, transferDescription);
+    this.submitted.increment();
+    if (this.overflowPolicy == OverflowPolicy.BLOCK) {
+      try {
+        this.queue.put(notification);
+        return;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    } else if (this.queue.offer(notification)) {
+      return;
+    }
+    this.dropped.increment();
+    log.warn("Notification queue full, dropped notification to owner of {}",
+        account.getAccountId());
+  }
+
+  /**
+   * Stop the workers, delivering what is still queued from the calling thread.
+   */
+  @PreDestroy
+  public void shutdown() throws InterruptedException {
+    this.workers.shutdownNow();
+    this.workers.awaitTermination(5, TimeUnit.SECONDS);
+    List<Notification> remaining = new ArrayList<>();
+    this.queue.drainTo(remaining);
+    deliver(remaining);
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    List<Metric<?>> metrics = new ArrayList<>();
+    metrics.add(new Metric<>("notifications.queued", this.queue.size()));
+    metrics.add(new Metric<>("notifications.submitted", this.submitted.sum()));
+    metrics.add(new Metric<>("notifications.delivered", this.delivered.sum()));
+    metrics.add(new Metric<>("notifications.dropped", this.dropped.sum()));
+    metrics.add(new Metric<>("notifications.failed", this.failed.sum()));
+    metrics.add(new Metric<>("notifications.batches", this.batches.sum()));
+    return metrics;
+  }
+
+  private void dispatch() {
+    List<Notification> batch = new ArrayList<>(this.batchSize);
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        batch.add(this.queue.take());
+        this.queue.drainTo(batch, this.batchSize - 1);
+        deliver(batch);
+        batch.clear();
+      }
+    } catch (InterruptedException e) {
+      // Shutting down, the remaining notifications are delivered by shutdown()
+    }
+  }
+
+  /**
+   * Deliver a batch, merging the notifications of the same account into one.
+   */
+  private void deliver(List<Notification> batch) {
+    if (batch.isEmpty()) {
+      return;
+    }
+    Map<String, List<Notification>> byAccount = new LinkedHashMap<>();
+    for (Notification notification : batch) {
+      byAccount.computeIfAbsent(notification.account.getAccountId(),
+          accountId -> new ArrayList<>()).add(notification);
+    }
+    for (List<Notification> notifications : byAccount.values()) {
+      StringBuilder description = new StringBuilder();
+      for (Notification notification : notifications) {
+        if (description.length() > 0) {
+          description.append(System.lineSeparator());
+        }
+        description.append(notification.transferDescription);
+      }
+      try {
+        this.delegate.notifyAboutTransfer(notifications.get(0).account,
+            description.toString());
+        this.delivered.add(notifications.size());
+      } catch (RuntimeException e) {
+        this.failed.add(notifications.size());
+        log.error("Failed to notify owner of {}", notifications.get(0).account
+            .getAccountId(), e);
+      }
+    }
+    this.batches.increment();
+  }
+}
@@ -0,0 +1,28 @@
+package com.db.awmd.challenge.service;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Executor running tasks on the given executor, or on the calling thread when it refuses them.
+ *
+ * <p>Used for the work following a transfer the engine already applied, which must run even
+ * when the transfer executor is saturated.
+ */
+final class CallerRunsExecutor implements Executor {
+
+  private final Executor executor;
+
+  CallerRunsExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
+  @Override
+  public void execute(Runnable task) {
+    try {
+      this.executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      task.run();
+    }
+  }
+}
@@ -0,0 +1,303 @@
+package com.db.awmd.challenge.service;
+
+import static java.lang.String.format;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.AccountSnapshot;
+import com.db.awmd.challenge.domain.AccountTransfer;
+import com.db.awmd.challenge.domain.MultiLegTransfer;
+import com.db.awmd.challenge.exception.AccountNotFoundException;
+import com.db.awmd.challenge.exception.MoneyTransferException;
+import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import com.db.awmd.challenge.exception.SameAccountException;
+import com.db.awmd.challenge.history.TransferHistory;
+import com.db.awmd.challenge.journal.TransferJournal;
+import com.db.awmd.challenge.metrics.TransferMetrics;
+import com.db.awmd.challenge.repository.AccountsRepository;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+/**
+ * Account service applying transfers as compare-and-set updates of versioned balances, without
+ * holding account locks while computing them.
+ *
+ * <p>A transfer reads snapshots of both accounts, computes both new balances and sets them
+ * together only if neither account changed version meanwhile, so money is never in flight and
+ * a failed transfer leaves both accounts untouched. A lost race re-reads and retries after a
+ * jittered exponential backoff, up to the maximum number of retries before the transfer is
+ * refused. The repository sets both balances as one unit: without any lock in memory, under
+ * short write locks off-heap, or in one transaction in a database.
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(name = "accounts.engine", havingValue = "optimistic")
+public class OptimisticAccountsService implements AccountsService {
+
+  @Getter
+  private final AccountsRepository accountsRepository;
+
+  @Getter
+  private final NotificationService notificationService;
+
+  private final int maxRetries;
+
+  private final long backoffBaseNanos;
+
+  private final long backoffMaxNanos;
+
+  private TransferHistory transferHistory;
+
+  private TransferMetrics transferMetrics = new TransferMetrics();
+
+  /**
+   * Create the service.
+   *
+   * @param accountsRepository  the repository holding the accounts
+   * @param notificationService the notification service
+   * @param maxRetries          retries of a transfer before it is refused
+   * @param backoffBaseMicros   backoff ceiling of the first retry, doubled on every retry
+   * @param backoffMaxMicros    maximum backoff ceiling
+   */
+  @Autowired
+  public OptimisticAccountsService(AccountsRepository accountsRepository,
+      NotificationService notificationService,
+      @Value("${accounts.optimistic.max-retries:16}") int maxRetries,
+      @Value("${accounts.optimistic.backoff-base-micros:1}") long backoffBaseMicros,
+      @Value("${accounts.optimistic.backoff-max-micros:1000}") long backoffMaxMicros) {
+    this.accountsRepository = accountsRepository;
+    this.notificationService = notificationService;
+    this.maxRetries = maxRetries;
+    this.backoffBaseNanos = TimeUnit.MICROSECONDS.toNanos(backoffBaseMicros);
+    this.backoffMaxNanos = TimeUnit.MICROSECONDS.toNanos(backoffMaxMicros);
+  }
+
+  /**
+   * Refuse the journal, failing startup: without account locks, a transfer spending money
+   * another transfer just deposited could be journaled first, so a crash between the two
+   * records would replay a negative balance.
+   *
+   * @throws IllegalStateException always, when a journal is configured
+   */
+  @Autowired(required = false)
+  public void setTransferJournal(TransferJournal transferJournal) {
+    throw new IllegalStateException("The journal cannot follow the order transfers are applied"
+        + " in without account locks, use the locking or ring-buffer engine with a journal");
+  }
+
+  @Autowired(required = false)
+  public void setTransferHistory(TransferHistory transferHistory) {
+    this.transferHistory = transferHistory;
+  }
+
+  @Autowired(required = false)
+  public void setTransferMetrics(TransferMetrics transferMetrics) {
+    this.transferMetrics = transferMetrics;
+  }
+
+  @Override
+  public void createAccount(Account account) {
+    this.accountsRepository.createAccount(account);
+  }
+
+  @Override
+  public List<Integer> createAccounts(List<Account> accounts) {
+    return this.accountsRepository.createAccounts(accounts);
+  }
+
+  @Override
+  public Account getAccount(String accountId) {
+    return this.accountsRepository.getAccount(accountId);
+  }
+
+  @Override
+  public List<Account> getAccounts(String afterAccountId, int limit) {
+    return this.accountsRepository.getAccounts(afterAccountId, limit);
+  }
+
+  @Override
+  public void forEachAccount(Consumer<Account> consumer) {
+    this.accountsRepository.forEachAccount(consumer);
+  }
+
+  /**
+   * Transfer money with a compare-and-set update of both accounts.
+   *
+   * @return false if the update kept losing races to other updates of the accounts
+   */
+  @Override
+  public boolean transferMoney(AccountTransfer accountTransfer)
+      throws SameAccountException, AccountNotFoundException, NotEnoughBalanceException {
+    long started = System.nanoTime();
+    if (accountTransfer.getAccountFromId().equals(accountTransfer.getAccountToId())) {
+      throw new SameAccountException("You can transfer money to the same account");
+    }
+
+    long amount = accountTransfer.getAmountMinorUnits();
+    boolean transferred = update(Arrays.asList(accountTransfer.getAccountFromId(),
+        accountTransfer.getAccountToId()), snapshots -> {
+          AccountSnapshot from = snapshots.get(0);
+          AccountSnapshot to = snapshots.get(1);
+          // The transfer is only allowed if the first account has enough amount in balance
+          if (from.getBalanceMinorUnits() < amount) {
+            throw new NotEnoughBalanceException(
+                format("Account with id %s doesn't have the desired amount to transfer",
+                    from.getAccountId()));
+          }
+          try {
+            return new long[] {from.getBalanceMinorUnits() - amount,
+                Math.addExact(to.getBalanceMinorUnits(), amount)};
+          } catch (ArithmeticException e) {
+            throw new MoneyTransferException(e.getMessage());
+          }
+        });
+    if (!transferred) {
+      this.transferMetrics.recordLocked(1);
+      log.info("Operation cancelled after {} conflicting updates, accounts: {}, {}",
+          this.maxRetries + 1, accountTransfer.getAccountFromId(),
+          accountTransfer.getAccountToId());
+      return false;
+    }
+
+    long notifying = System.nanoTime();
+    completeTransfer(accountTransfer);
+    long finished = System.nanoTime();
+    this.transferMetrics.recordNotification(finished - notifying);
+    this.transferMetrics.recordTransfer(finished - started);
+    return true;
+  }
+
+  /**
+   * Set the source and every destination with one compare-and-set, so the legs are applied
+   * all or nothing.
+   *
+   * @return false if the update kept losing races to other updates of the accounts
+   */
+  @Override
+  public boolean transferMoneyMultiLeg(MultiLegTransfer multiLegTransfer)
+      throws SameAccountException, AccountNotFoundException, NotEnoughBalanceException {
+    long started = System.nanoTime();
+    List<MultiLegTransfer.Leg> legs = multiLegTransfer.getLegs();
+    // Position of every distinct account in the update, the source first
+    Map<String, Integer> positions = new LinkedHashMap<>();
+    positions.put(multiLegTransfer.getAccountFromId(), 0);
+    for (MultiLegTransfer.Leg leg : legs) {
+      if (multiLegTransfer.getAccountFromId().equals(leg.getAccountToId())) {
+        throw new SameAccountException("You can transfer money to the same account");
+      }
+      positions.putIfAbsent(leg.getAccountToId(), positions.size());
+    }
+
+    boolean transferred = update(new ArrayList<>(positions.keySet()), snapshots -> {
+      long[] balances = new long[snapshots.size()];
+      for (int i = 0; i < balances.length; i++) {
+        balances[i] = snapshots.get(i).getBalanceMinorUnits();
+      }
+      long total = 0;
+      try {
+        for (MultiLegTransfer.Leg leg : legs) {
+          int position = positions.get(leg.getAccountToId());
+          total = Math.addExact(total, leg.getAmountMinorUnits());
+          balances[position] = Math.addExact(balances[position], leg.getAmountMinorUnits());
+        }
+      } catch (ArithmeticException e) {
+        throw new MoneyTransferException(e.getMessage());
+      }
+      // The transfer is only allowed if the first account covers every leg
+      if (balances[0] < total) {
+        throw new NotEnoughBalanceException(
+            format("Account with id %s doesn't have the desired amount to transfer",
+                multiLegTransfer.getAccountFromId()));
+      }
+      balances[0] -= total;
+      return balances;
+    });
+    if (!transferred) {
+      this.transferMetrics.recordLocked(1);
+      log.info("Multi-leg transfer cancelled after {} conflicting updates on {} accounts",
+          this.maxRetries + 1, positions.size());
+      return false;
+    }
+
+    long notifying = System.nanoTime();
+    multiLegTransfer.getTransfers().forEach(this::completeTransfer);
+    long finished = System.nanoTime();
+    this.transferMetrics.recordNotification(finished - notifying);
+    this.transferMetrics.recordTransfer(finished - started);
+    return true;
+  }
+
+  /**
+   * Compute the new balances of the accounts from their snapshots and set them all if none
+   * changed meanwhile, retrying with backoff.
+   *
+   * @param accountIds  the distinct accounts
+   * @param newBalances new balances in the order of the accounts, computed from their
+   *                    snapshots; it throws to refuse the update
+   * @return false if every attempt lost a race
+   */
+  private boolean update(List<String> accountIds,
+                         Function<List<AccountSnapshot>, long[]> newBalances) {
+    for (int attempt = 0; ; attempt++) {
+      List<AccountSnapshot> snapshots = new ArrayList<>(accountIds.size());
+      for (String accountId : accountIds) {
+        snapshots.add(snapshot(accountId));
+      }
+      if (this.accountsRepository.compareAndSetAll(snapshots, newBalances.apply(snapshots))) {
+        return true;
+      }
+      if (attempt == this.maxRetries) {
+        return false;
+      }
+      this.transferMetrics.recordRetry();
+      backoff(attempt);
+    }
+  }
+
+  private AccountSnapshot snapshot(String accountId) throws AccountNotFoundException {
+    AccountSnapshot snapshot = this.accountsRepository.getSnapshot(accountId);
+    if (snapshot == null) {
+      throw new AccountNotFoundException(format("Account with id %s not found", accountId));
+    }
+    return snapshot;
+  }
+
+  /**
+   * Wait a random time up to a ceiling doubling with every attempt, so transfers that lost the
+   * same race do not collide again.
+   */
+  private void backoff(int attempt) {
+    long ceiling = Math.min(this.backoffMaxNanos, this.backoffBaseNanos << Math.min(attempt, 30));
+    LockSupport.parkNanos(ThreadLocalRandom.current().nextLong(ceiling + 1));
+  }
+
+  /**
+   * Record a completed transfer in the history and notify both account holders.
+   */
+  private void completeTransfer(AccountTransfer accountTransfer) {
+    if (this.transferHistory != null) {
+      this.transferHistory.record(accountTransfer);
+    }
+    this.notificationService.notifyAboutTransfer(
+        this.accountsRepository.getAccount(accountTransfer.getAccountFromId()),
+        format("Your account have transferred %s to account id %s",
+            accountTransfer.getAmount().toString(), accountTransfer.getAccountToId()));
+    this.notificationService.notifyAboutTransfer(
+        this.accountsRepository.getAccount(accountTransfer.getAccountToId()),
+        format("Your account have received %s from account id %s",
+            accountTransfer.getAmount().toString(), accountTransfer.getAccountFromId()));
+  }
+}
@@ -0,0 +1,524 @@
+package com.db.awmd.challenge.service;
+
+import static java.lang.String.format;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.AccountTransfer;
+import com.db.awmd.challenge.domain.MultiLegTransfer;
+import com.db.awmd.challenge.domain.TransferResult;
+import com.db.awmd.challenge.domain.TransferResult.Status;
+import com.db.awmd.challenge.exception.AccountNotFoundException;
+import com.db.awmd.challenge.exception.JournalException;
+import com.db.awmd.challenge.exception.MoneyTransferException;
+import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import com.db.awmd.challenge.exception.SameAccountException;
+import com.db.awmd.challenge.history.TransferHistory;
+import com.db.awmd.challenge.journal.JournalRecord;
+import com.db.awmd.challenge.journal.TransferJournal;
+import com.db.awmd.challenge.repository.AccountsRepository;
+import com.db.awmd.challenge.service.TransferRingBuffer.WaitStrategy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import javax.annotation.PreDestroy;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+/**
+ * Account service that publishes transfers into a preallocated ring buffer.
+ *
+ * <p>A single consumer thread is the only writer of balances. It applies transfers in batches
+ * and updates every touched account in the repository once per batch, so the hot path has no
+ * lock handoffs at all. With a journal, the consumer journals transfers in the order it applies
+ * them and waits once per batch for them to be durable before completing any of them.
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(name = "accounts.engine", havingValue = "ring-buffer")
+public class RingBufferAccountsService implements AccountsService {
+
+  @Getter
+  private final AccountsRepository accountsRepository;
+
+  @Getter
+  private final NotificationService notificationService;
+
+  private final TransferRingBuffer ringBuffer;
+
+  private final int batchSize;
+
+  private final Thread consumer;
+
+  private TransferHistory transferHistory;
+
+  private TransferJournal transferJournal;
+
+  @Getter
+  private volatile long appliedTransfers;
+
+  @Getter
+  private volatile long appliedBatches;
+
+  /**
+   * Create the service and start its consumer thread.
+   *
+   * @param accountsRepository  the repository holding the accounts
+   * @param notificationService the notification service
+   * @param capacity            ring buffer capacity, a power of two
+   * @param batchSize           maximum number of transfers applied per batch
+   * @param waitStrategy        how the consumer and producers wait for each other
+   */
+  @Autowired
+  public RingBufferAccountsService(AccountsRepository accountsRepository,
+      NotificationService notificationService,
+      @Value("${accounts.ring-buffer.capacity:8192}") int capacity,
+      @Value("${accounts.ring-buffer.batch-size:256}") int batchSize,
+      @Value("${accounts.ring-buffer.wait-strategy:sleeping}") String waitStrategy) {
+    this.accountsRepository = accountsRepository;
+    this.notificationService = notificationService;
+    this.ringBuffer = new TransferRingBuffer(capacity,
+        WaitStrategy.valueOf(waitStrategy.toUpperCase().replace('-', '_')));
+    this.batchSize = batchSize;
+    this.consumer = new Thread(this::consume, "transfer-ring-buffer");
+    this.consumer.setDaemon(true);
+    this.consumer.start();
+  }
+
+  @Autowired(required = false)
+  public void setTransferJournal(TransferJournal transferJournal) {
+    this.transferJournal = transferJournal;
+  }
+
+  @Autowired(required = false)
+  public void setTransferHistory(TransferHistory transferHistory) {
+    this.transferHistory = transferHistory;
+  }
+
+  @PreDestroy
+  public void shutdown() throws InterruptedException {
+    this.consumer.interrupt();
+    this.consumer.join();
+    log.info("Ring buffer applied {} transfers in {} batches", this.appliedTransfers,
+        this.appliedBatches);
+  }
+
+  @Override
+  public void createAccount(Account account) {
+    this.accountsRepository.createAccount(account);
+  }
+
+  @Override
+  public List<Integer> createAccounts(List<Account> accounts) {
+    return this.accountsRepository.createAccounts(accounts);
+  }
+
+  @Override
+  public Account getAccount(String accountId) {
+    return this.accountsRepository.getAccount(accountId);
+  }
+
+  @Override
+  public List<Account> getAccounts(String afterAccountId, int limit) {
+    return this.accountsRepository.getAccounts(afterAccountId, limit);
+  }
+
+  @Override
+  public void forEachAccount(Consumer<Account> consumer) {
+    this.accountsRepository.forEachAccount(consumer);
+  }
+
+  @Override
+  public boolean transferMoney(AccountTransfer accountTransfer)
+      throws SameAccountException, AccountNotFoundException, NotEnoughBalanceException,
+      InterruptedException {
+    boolean applied;
+    try {
+      applied = submitTransfer(accountTransfer).get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new MoneyTransferException(e.getCause().getMessage());
+    }
+
+    // Not applied only when an earlier attempt of the scheduled transfer already was
+    if (applied) {
+      completeTransfer(accountTransfer);
+    }
+    return true;
+  }
+
+  /**
+   * Publish the whole batch before waiting for any of it, so the consumer takes it in as few
+   * batches as possible.
+   */
+  @Override
+  public List<TransferResult> transferMoneyBatch(List<AccountTransfer> accountTransfers)
+      throws InterruptedException {
+    List<CompletableFuture<Boolean>> futures = new ArrayList<>(accountTransfers.size());
+    for (AccountTransfer accountTransfer : accountTransfers) {
+      CompletableFuture<Boolean> future;
+      try {
+        future = submitTransfer(accountTransfer);
+      } catch (RuntimeException e) {
+        future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+      }
+      futures.add(future);
+    }
+
+    List<TransferResult> results = new ArrayList<>(accountTransfers.size());
+    for (int i = 0; i < futures.size(); i++) {
+      Status status;
+      String message = null;
+      try {
+        if (futures.get(i).get()) {
+          status = Status.OK;
+          completeTransfer(accountTransfers.get(i));
+        } else {
+          status = Status.ALREADY_APPLIED;
+          message = "Scheduled transfer already applied";
+        }
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        message = cause.getMessage();
+        if (cause instanceof SameAccountException) {
+          status = Status.SAME_ACCOUNT;
+        } else if (cause instanceof AccountNotFoundException) {
+          status = Status.NOT_FOUND;
+        } else if (cause instanceof NotEnoughBalanceException) {
+          status = Status.NOT_ENOUGH_BALANCE;
+        } else if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else {
+          throw new MoneyTransferException(message);
+        }
+      }
+      results.add(TransferResult.builder().index(i).status(status).message(message).build());
+    }
+    return results;
+  }
+
+  /**
+   * Transfer money without holding any thread while the consumer works. The history and the
+   * notifications are then handled on the executor, so the consumer is free for the next
+   * batch; if the executor refuses, the thread completing the transfer handles them.
+   */
+  @Override
+  public CompletableFuture<Boolean> transferMoneyAsync(AccountTransfer accountTransfer,
+                                                       Executor executor) {
+    CompletableFuture<Boolean> result;
+    try {
+      result = submitTransfer(accountTransfer);
+    } catch (RuntimeException e) {
+      result = new CompletableFuture<>();
+      result.completeExceptionally(e);
+      return result;
+    }
+    return result.thenApplyAsync(transferred -> {
+      if (transferred) {
+        completeTransfer(accountTransfer);
+      }
+      return true;
+    }, new CallerRunsExecutor(executor));
+  }
+
+  /**
+   * Publish the legs as one entry, which the consumer applies all or nothing.
+   */
+  @Override
+  public boolean transferMoneyMultiLeg(MultiLegTransfer multiLegTransfer)
+      throws SameAccountException, AccountNotFoundException, NotEnoughBalanceException,
+      InterruptedException {
+    for (MultiLegTransfer.Leg leg : multiLegTransfer.getLegs()) {
+      if (multiLegTransfer.getAccountFromId().equals(leg.getAccountToId())) {
+        throw new SameAccountException("You can transfer money to the same account");
+      }
+    }
+    account(multiLegTransfer.getAccountFromId());
+    for (MultiLegTransfer.Leg leg : multiLegTransfer.getLegs()) {
+      account(leg.getAccountToId());
+    }
+    try {
+      this.ringBuffer.publish(multiLegTransfer).get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new MoneyTransferException(e.getCause().getMessage());
+    }
+
+    multiLegTransfer.getTransfers().forEach(this::completeTransfer);
+    return true;
+  }
+
+  /**
+   * Validate a transfer and publish it into the ring buffer without waiting for it.
+   *
+   * @param accountTransfer account transfer info
+   * @return future completed once the consumer applied the transfer, or completed
+   *     exceptionally with the same exceptions {@link #transferMoney} throws
+   * @throws SameAccountException     you tried to transfer money to the same account
+   * @throws AccountNotFoundException one of the accounts is not found
+   */
+  public CompletableFuture<Boolean> submitTransfer(AccountTransfer accountTransfer)
+      throws SameAccountException, AccountNotFoundException {
+    if (accountTransfer.getAccountFromId().equals(accountTransfer.getAccountToId())) {
+      throw new SameAccountException("You can transfer money to the same account");
+    }
+    if (this.accountsRepository.getAccount(accountTransfer.getAccountFromId()) == null) {
+      throw new AccountNotFoundException(
+          format("Account with id %s not found", accountTransfer.getAccountFromId()));
+    }
+    if (this.accountsRepository.getAccount(accountTransfer.getAccountToId()) == null) {
+      throw new AccountNotFoundException(
+          format("Account with id %s not found", accountTransfer.getAccountToId()));
+    }
+    return this.ringBuffer.publish(accountTransfer);
+  }
+
+  /**
+   * Record a completed transfer in the history and notify both account holders.
+   */
+  private void completeTransfer(AccountTransfer accountTransfer) {
+    if (this.transferHistory != null) {
+      this.transferHistory.record(accountTransfer);
+    }
+    this.notificationService.notifyAboutTransfer(
+        this.accountsRepository.getAccount(accountTransfer.getAccountFromId()),
+        format("Your account have transferred %s to account id %s",
+            accountTransfer.getAmount().toString(), accountTransfer.getAccountToId()));
+    this.notificationService.notifyAboutTransfer(
+        this.accountsRepository.getAccount(accountTransfer.getAccountToId()),
+        format("Your account have received %s from account id %s",
+            accountTransfer.getAmount().toString(), accountTransfer.getAccountFromId()));
+  }
+
+  /**
+   * Apply batches until interrupted. Every account touched by a batch keeps its balance from
+   * before the batch, and every account touched by a transfer its balance from before the
+   * transfer, so a transfer failing once applied, or a batch failing to be stored or made
+   * durable, is rolled back before its transfers are failed.
+   */
+  private void consume() {
+    Map<Account, Long> batchBalances = new IdentityHashMap<>();
+    Map<Account, Long> transferBalances = new IdentityHashMap<>();
+    while (!Thread.currentThread().isInterrupted()) {
+      int count = this.ringBuffer.awaitBatch(this.batchSize);
+      if (count == 0) {
+        break;
+      }
+      long journalSequence = 0;
+      for (int i = 0; i < count; i++) {
+        TransferRingBuffer.Entry entry = this.ringBuffer.entry(i);
+        transferBalances.clear();
+        try {
+          if (entry.multiLegTransfer != null) {
+            apply(entry.multiLegTransfer, transferBalances);
+            journalSequence = journal(entry.multiLegTransfer, journalSequence);
+          } else if (isScheduledApplied(entry.accountTransfer)) {
+            entry.result.complete(false);
+          } else {
+            apply(entry.accountTransfer, transferBalances);
+            journalSequence = journal(entry.accountTransfer, journalSequence);
+          }
+        } catch (RuntimeException e) {
+          restore(transferBalances);
+          entry.result.completeExceptionally(e);
+        }
+        transferBalances.forEach(batchBalances::putIfAbsent);
+      }
+      // One update for the whole batch, so a repository storing it as one unit never holds
+      // half of a transfer
+      // Balances are rolled back before the transfers fail, so a caller never sees them moved
+      RuntimeException failure = null;
+      try {
+        this.accountsRepository.updateAccounts(batchBalances.keySet());
+      } catch (AccountNotFoundException e) {
+        log.warn("Account removed while applying a batch: {}", e.getMessage());
+      } catch (RuntimeException e) {
+        log.error("Batch of {} transfers not stored, rolling it back", count, e);
+        restore(batchBalances);
+        failure = e;
+      }
+      if (failure == null) {
+        failure = awaitDurable(journalSequence);
+        if (failure != null) {
+          log.error("Batch of {} transfers not durable, rolling it back", count, failure);
+          restore(batchBalances);
+          store(batchBalances.keySet());
+        }
+      }
+      for (int i = 0; i < count; i++) {
+        if (failure != null) {
+          this.ringBuffer.entry(i).result.completeExceptionally(failure);
+        } else {
+          this.ringBuffer.entry(i).result.complete(true);
+        }
+      }
+      batchBalances.clear();
+      this.ringBuffer.release(count);
+      this.appliedTransfers += count;
+      this.appliedBatches++;
+    }
+  }
+
+  private long journal(AccountTransfer accountTransfer, long journalSequence) {
+    if (this.transferJournal == null) {
+      return journalSequence;
+    }
+    return this.transferJournal.append(JournalRecord.transfer(accountTransfer.getAccountFromId(),
+        accountTransfer.getAccountToId(), accountTransfer.getAmount(),
+        accountTransfer.getScheduledId()));
+  }
+
+  /**
+   * Whether an earlier attempt of a scheduled transfer was journaled. The consumer is the only
+   * one journaling transfers, so the check cannot race with another attempt.
+   */
+  private boolean isScheduledApplied(AccountTransfer accountTransfer) {
+    return this.transferJournal != null && accountTransfer.getScheduledId() != 0
+        && this.transferJournal.isScheduledApplied(accountTransfer.getScheduledId());
+  }
+
+  /**
+   * Journal every leg as one record, so they are durable and replayed together.
+   */
+  private long journal(MultiLegTransfer multiLegTransfer, long journalSequence) {
+    if (this.transferJournal == null) {
+      return journalSequence;
+    }
+    List<JournalRecord> records = new ArrayList<>(multiLegTransfer.getLegs().size());
+    for (AccountTransfer leg : multiLegTransfer.getTransfers()) {
+      records.add(JournalRecord.transfer(leg.getAccountFromId(), leg.getAccountToId(),
+          leg.getAmount()));
+    }
+    return this.transferJournal.append(JournalRecord.multiLeg(records));
+  }
+
+  /**
+   * Wait for the batch to be durable, failing its transfers if it cannot be.
+   */
+  /**
+   * Wait for the records of the batch.
+   *
+   * @return why they could not be made durable, or null once they are
+   */
+  private RuntimeException awaitDurable(long journalSequence) {
+    if (journalSequence == 0) {
+      return null;
+    }
+    try {
+      this.transferJournal.awaitDurable(journalSequence);
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return new JournalException("Interrupted waiting for the journal", e);
+    } catch (JournalException e) {
+      return e;
+    }
+  }
+
+  /**
+   * Set the accounts back to the given balances.
+   */
+  private static void restore(Map<Account, Long> balances) {
+    for (Map.Entry<Account, Long> balance : balances.entrySet()) {
+      balance.getKey().setBalanceMinorUnits(balance.getValue());
+    }
+  }
+
+  /**
+   * Store balances rolled back after the repository took them.
+   */
+  private void store(Collection<Account> accounts) {
+    try {
+      this.accountsRepository.updateAccounts(accounts);
+    } catch (RuntimeException e) {
+      log.error("Rolled back balances of {} accounts not stored", accounts.size(), e);
+    }
+  }
+
+  /**
+   * Apply a transfer, recording the balance of each account it changes before its first
+   * change.
+   */
+  private void apply(AccountTransfer accountTransfer, Map<Account, Long> previousBalances) {
+    Account accountFrom = this.accountsRepository.getAccount(accountTransfer.getAccountFromId());
+    Account accountTo = this.accountsRepository.getAccount(accountTransfer.getAccountToId());
+    if (accountFrom == null || accountTo == null) {
+      throw new AccountNotFoundException(format("Account with id %s not found",
+          accountFrom == null ? accountTransfer.getAccountFromId()
+              : accountTransfer.getAccountToId()));
+    }
+    long amount = accountTransfer.getAmountMinorUnits();
+    // The transfer is only allowed if the first account has enough amount in balance
+    if (!accountFrom.hasBalance(amount)) {
+      throw new NotEnoughBalanceException(
+          format("Account with id %s doesn't have the desired amount to transfer",
+              accountFrom.getAccountId()));
+    }
+    long balanceTo;
+    try {
+      balanceTo = Math.addExact(accountTo.getBalanceMinorUnits(), amount);
+    } catch (ArithmeticException e) {
+      throw new MoneyTransferException(e.getMessage());
+    }
+    previousBalances.putIfAbsent(accountFrom, accountFrom.getBalanceMinorUnits());
+    previousBalances.putIfAbsent(accountTo, accountTo.getBalanceMinorUnits());
+    accountFrom.setBalanceMinorUnits(accountFrom.getBalanceMinorUnits() - amount);
+    accountTo.setBalanceMinorUnits(balanceTo);
+  }
+
+  /**
+   * Apply every leg or none: the new balances are computed before any account changes.
+   */
+  private void apply(MultiLegTransfer multiLegTransfer, Map<Account, Long> previousBalances) {
+    Account accountFrom = account(multiLegTransfer.getAccountFromId());
+    Map<Account, Long> balances = new IdentityHashMap<>();
+    long total = 0;
+    try {
+      for (MultiLegTransfer.Leg leg : multiLegTransfer.getLegs()) {
+        Account accountTo = account(leg.getAccountToId());
+        long amount = leg.getAmountMinorUnits();
+        total = Math.addExact(total, amount);
+        balances.merge(accountTo, Math.addExact(accountTo.getBalanceMinorUnits(), amount),
+            (current, ignored) -> Math.addExact(current, amount));
+      }
+    } catch (ArithmeticException e) {
+      throw new MoneyTransferException(e.getMessage());
+    }
+    // The transfer is only allowed if the first account covers every leg
+    if (!accountFrom.hasBalance(total)) {
+      throw new NotEnoughBalanceException(
+          format("Account with id %s doesn't have the desired amount to transfer",
+              accountFrom.getAccountId()));
+    }
+    previousBalances.putIfAbsent(accountFrom, accountFrom.getBalanceMinorUnits());
+    for (Account accountTo : balances.keySet()) {
+      previousBalances.putIfAbsent(accountTo, accountTo.getBalanceMinorUnits());
+    }
+    accountFrom.setBalanceMinorUnits(accountFrom.getBalanceMinorUnits() - total);
+    for (Map.Entry<Account, Long> balance : balances.entrySet()) {
+      balance.getKey().setBalanceMinorUnits(balance.getValue());
+    }
+  }
+
+  private Account account(String accountId) throws AccountNotFoundException {
+    Account account = this.accountsRepository.getAccount(accountId);
+    if (account == null) {
+      throw new AccountNotFoundException(format("Account with id %s not found", accountId));
+    }
+    return account;
+  }
+}
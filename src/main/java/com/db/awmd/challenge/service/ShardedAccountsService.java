@@ -0,0 +1,288 @@
+package com.db.awmd.challenge.service;
+
+import static java.lang.String.format;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.AccountTransfer;
+import com.db.awmd.challenge.domain.Money;
+import com.db.awmd.challenge.domain.MultiLegTransfer;
+import com.db.awmd.challenge.exception.AccountNotFoundException;
+import com.db.awmd.challenge.exception.MoneyTransferException;
+import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import com.db.awmd.challenge.exception.SameAccountException;
+import com.db.awmd.challenge.history.TransferHistory;
+import com.db.awmd.challenge.journal.TransferJournal;
+import com.db.awmd.challenge.repository.AccountsRepository;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import javax.annotation.PreDestroy;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+/**
+ * Account service where every account is owned by exactly one single-threaded shard.
+ *
+ * <p>Only the owning shard ever changes a balance, so no account lock is taken. A transfer
+ * runs the withdraw on the shard of the source account, which then hands the deposit over to
+ * the shard of the destination account as a message.
+ *
+ * <p>Both halves of a transfer are thus stored separately, so repositories that only store
+ * the accounts of a transfer as one unit, like the JDBC one, are refused.
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(name = "accounts.engine", havingValue = "sharded")
+public class ShardedAccountsService implements AccountsService {
+
+  @Getter
+  private final AccountsRepository accountsRepository;
+
+  @Getter
+  private final NotificationService notificationService;
+
+  private final ExecutorService[] shards;
+
+  private TransferHistory transferHistory;
+
+  /**
+   * Create the service.
+   *
+   * @param accountsRepository  the repository holding the accounts
+   * @param notificationService the notification service
+   * @param shardCount          number of shards, one per available core when zero or negative
+   * @throws IllegalStateException if the repository requires grouped updates
+   */
+  @Autowired
+  public ShardedAccountsService(AccountsRepository accountsRepository,
+                                NotificationService notificationService,
+                                @Value("${accounts.sharded.shards:0}") int shardCount) {
+    if (accountsRepository.requiresGroupedUpdates()) {
+      throw new IllegalStateException("The sharded engine stores the withdraw and the deposit"
+          + " of a transfer separately, use another engine with this accounts repository");
+    }
+    this.accountsRepository = accountsRepository;
+    this.notificationService = notificationService;
+    int count = shardCount > 0 ? shardCount : Runtime.getRuntime().availableProcessors();
+    this.shards = new ExecutorService[count];
+    for (int i = 0; i < count; i++) {
+      String name = "account-shard-" + i;
+      this.shards[i] = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    log.info("Sharded accounts service started with {} shards", count);
+  }
+
+  /**
+   * Refuse the journal, failing startup: without account locks, a transfer applied later could
+   * be journaled first, so a crash between the two records would replay the later one alone.
+   *
+   * @throws IllegalStateException always, when a journal is configured
+   */
+  @Autowired(required = false)
+  public void setTransferJournal(TransferJournal transferJournal) {
+    throw new IllegalStateException("The journal cannot follow the order transfers are applied"
+        + " in without account locks, use the locking or ring-buffer engine with a journal");
+  }
+
+  @Autowired(required = false)
+  public void setTransferHistory(TransferHistory transferHistory) {
+    this.transferHistory = transferHistory;
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    for (ExecutorService shard : this.shards) {
+      shard.shutdown();
+    }
+  }
+
+  @Override
+  public void createAccount(Account account) {
+    this.accountsRepository.createAccount(account);
+  }
+
+  @Override
+  public List<Integer> createAccounts(List<Account> accounts) {
+    return this.accountsRepository.createAccounts(accounts);
+  }
+
+  @Override
+  public Account getAccount(String accountId) {
+    return this.accountsRepository.getAccount(accountId);
+  }
+
+  @Override
+  public List<Account> getAccounts(String afterAccountId, int limit) {
+    return this.accountsRepository.getAccounts(afterAccountId, limit);
+  }
+
+  @Override
+  public void forEachAccount(Consumer<Account> consumer) {
+    this.accountsRepository.forEachAccount(consumer);
+  }
+
+  @Override
+  public boolean transferMoney(AccountTransfer accountTransfer)
+      throws SameAccountException, AccountNotFoundException, NotEnoughBalanceException,
+      InterruptedException {
+    try {
+      submitTransfer(accountTransfer).get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new MoneyTransferException(e.getCause().getMessage());
+    }
+    completeTransfer(accountTransfer);
+    return true;
+  }
+
+  /**
+   * Transfer money without holding any thread while the shards work. The history and the
+   * notifications are then handled on the executor, so the shard is free for its next
+   * transfer; if the executor refuses, the thread completing the transfer handles them.
+   */
+  @Override
+  public CompletableFuture<Boolean> transferMoneyAsync(AccountTransfer accountTransfer,
+                                                       Executor executor) {
+    CompletableFuture<Boolean> result;
+    try {
+      result = submitTransfer(accountTransfer);
+    } catch (RuntimeException e) {
+      result = new CompletableFuture<>();
+      result.completeExceptionally(e);
+      return result;
+    }
+    return result.thenApplyAsync(transferred -> {
+      completeTransfer(accountTransfer);
+      return transferred;
+    }, new CallerRunsExecutor(executor));
+  }
+
+  /**
+   * Refused: every account belongs to one shard and a transfer moves money between shards in
+   * two steps, so the legs of a multi-leg transfer cannot be applied all or nothing.
+   *
+   * @throws UnsupportedOperationException always
+   */
+  @Override
+  public boolean transferMoneyMultiLeg(MultiLegTransfer multiLegTransfer) {
+    throw new UnsupportedOperationException(
+        "Multi-leg transfers cannot be applied atomically across shards, use another engine");
+  }
+
+  /**
+   * Validate a transfer and hand it to the shard of the source account without waiting for it.
+   *
+   * @param accountTransfer account transfer info
+   * @return future completed once the deposit is done, or completed exceptionally with the
+   *     same exceptions {@link #transferMoney} throws
+   * @throws SameAccountException     you tried to transfer money to the same account
+   * @throws AccountNotFoundException one of the accounts is not found
+   */
+  public CompletableFuture<Boolean> submitTransfer(AccountTransfer accountTransfer)
+      throws SameAccountException, AccountNotFoundException {
+    if (accountTransfer.getAccountFromId().equals(accountTransfer.getAccountToId())) {
+      throw new SameAccountException("You can transfer money to the same account");
+    }
+
+    Account accountFrom = this.accountsRepository.getAccount(accountTransfer.getAccountFromId());
+    if (accountFrom == null) {
+      throw new AccountNotFoundException(
+          format("Account with id %s not found", accountTransfer.getAccountFromId()));
+    }
+    Account accountTo = this.accountsRepository.getAccount(accountTransfer.getAccountToId());
+    if (accountTo == null) {
+      throw new AccountNotFoundException(
+          format("Account with id %s not found", accountTransfer.getAccountToId()));
+    }
+
+    long amount = accountTransfer.getAmountMinorUnits();
+    CompletableFuture<Boolean> result = new CompletableFuture<>();
+    shardOf(accountFrom).execute(() -> {
+      try {
+        withdraw(accountFrom, amount);
+      } catch (RuntimeException e) {
+        result.completeExceptionally(e);
+        return;
+      }
+      ExecutorService destination = shardOf(accountTo);
+      if (destination == shardOf(accountFrom)) {
+        deposit(accountTo, amount, result);
+      } else {
+        try {
+          destination.execute(() -> deposit(accountTo, amount, result));
+        } catch (RejectedExecutionException e) {
+          log.error("Shard of account {} is shut down, {} withdrawn from {} was not deposited",
+              accountTo.getAccountId(), accountTransfer.getAmount(), accountFrom.getAccountId());
+          result.completeExceptionally(new MoneyTransferException(e.getMessage()));
+        }
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Record a completed transfer in the history and notify both account holders.
+   */
+  private void completeTransfer(AccountTransfer accountTransfer) {
+    if (this.transferHistory != null) {
+      this.transferHistory.record(accountTransfer);
+    }
+    this.notificationService.notifyAboutTransfer(
+        this.accountsRepository.getAccount(accountTransfer.getAccountFromId()),
+        format("Your account have transferred %s to account id %s",
+            accountTransfer.getAmount().toString(), accountTransfer.getAccountToId()));
+    this.notificationService.notifyAboutTransfer(
+        this.accountsRepository.getAccount(accountTransfer.getAccountToId()),
+        format("Your account have received %s from account id %s",
+            accountTransfer.getAmount().toString(), accountTransfer.getAccountFromId()));
+  }
+
+  /**
+   * Runs on the shard owning the source account.
+   */
+  private void withdraw(Account account, long amount) {
+    // The transfer is only allowed if the first account has enough amount in balance
+    if (!account.withdraw(amount)) {
+      throw new NotEnoughBalanceException(
+          format("Account with id %s doesn't have the desired amount to transfer",
+              account.getAccountId()));
+    }
+    this.accountsRepository.updateAccount(account);
+  }
+
+  /**
+   * Runs on the shard owning the destination account. The withdraw already happened, so any
+   * failure here is reported as a {@link MoneyTransferException}.
+   */
+  private void deposit(Account account, long amount, CompletableFuture<Boolean> result) {
+    try {
+      account.deposit(amount);
+      this.accountsRepository.updateAccount(account);
+      result.complete(true);
+    } catch (Exception e) {
+      log.error("Deposit of {} to account {} failed after withdraw", Money.toDecimal(amount),
+          account.getAccountId(), e);
+      result.completeExceptionally(new MoneyTransferException(e.getMessage()));
+    }
+  }
+
+  private ExecutorService shardOf(Account account) {
+    int hash = account.getAccountId().hashCode();
+    return this.shards[Math.floorMod(hash ^ (hash >>> 16), this.shards.length)];
+  }
+}
@@ -0,0 +1,161 @@
+package com.db.awmd.challenge.service;
+
+import com.db.awmd.challenge.domain.AccountTransfer;
+import com.db.awmd.challenge.domain.MultiLegTransfer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Preallocated multi-producer, single-consumer ring of transfer commands.
+ *
+ * <p>Producers claim a sequence, fill the preallocated entry and publish it. The consumer reads
+ * published entries in sequence order, in batches, and releases them when done.
+ */
+final class TransferRingBuffer {
+
+  /**
+   * How a thread waits for the other side: the consumer for new entries, producers for room.
+   */
+  enum WaitStrategy {
+    /**
+     * Spin on the sequence, lowest latency but burns a core.
+     */
+    BUSY_SPIN,
+    /**
+     * Yield the CPU between checks.
+     */
+    YIELDING,
+    /**
+     * Park for a few microseconds between checks, gentle on CPU.
+     */
+    SLEEPING
+  }
+
+  /**
+   * A transfer, or a multi-leg transfer applied all or nothing.
+   */
+  static final class Entry {
+
+    AccountTransfer accountTransfer;
+    MultiLegTransfer multiLegTransfer;
+    CompletableFuture<Boolean> result;
+  }
+
+  private static final long SLEEP_NANOS = 50_000;
+
+  private final Entry[] entries;
+  private final AtomicLongArray published;
+  private final int mask;
+  private final WaitStrategy waitStrategy;
+
+  private final AtomicLong claimed = new AtomicLong(-1);
+  private volatile long consumed = -1;
+
+  TransferRingBuffer(int capacity, WaitStrategy waitStrategy) {
+    if (Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("Ring buffer capacity must be a power of two");
+    }
+    this.entries = new Entry[capacity];
+    this.published = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      this.entries[i] = new Entry();
+      this.published.set(i, -1);
+    }
+    this.mask = capacity - 1;
+    this.waitStrategy = waitStrategy;
+  }
+
+  /**
+   * Publish a transfer, waiting for room if the consumer is a full ring behind.
+   *
+   * @param accountTransfer the transfer to apply
+   * @return future completed by the consumer once the transfer is applied
+   */
+  CompletableFuture<Boolean> publish(AccountTransfer accountTransfer) {
+    return publish(accountTransfer, null);
+  }
+
+  /**
+   * Publish a multi-leg transfer, waiting for room if the consumer is a full ring behind.
+   *
+   * @param multiLegTransfer the transfer to apply
+   * @return future completed by the consumer once every leg is applied
+   */
+  CompletableFuture<Boolean> publish(MultiLegTransfer multiLegTransfer) {
+    return publish(null, multiLegTransfer);
+  }
+
+  private CompletableFuture<Boolean> publish(AccountTransfer accountTransfer,
+                                             MultiLegTransfer multiLegTransfer) {
+    long sequence = this.claimed.incrementAndGet();
+    while (sequence - this.entries.length > this.consumed) {
+      idle();
+    }
+    CompletableFuture<Boolean> result = new CompletableFuture<>();
+    Entry entry = this.entries[(int) sequence & this.mask];
+    entry.accountTransfer = accountTransfer;
+    entry.multiLegTransfer = multiLegTransfer;
+    entry.result = result;
+    this.published.lazySet((int) sequence & this.mask, sequence);
+    return result;
+  }
+
+  /**
+   * Wait until at least one entry is published, then return how many consecutive entries can
+   * be consumed, up to {@code maxBatch}.
+   *
+   * @return the batch size, zero only if the thread was interrupted
+   */
+  int awaitBatch(int maxBatch) {
+    long next = this.consumed + 1;
+    while (!isPublished(next)) {
+      if (Thread.currentThread().isInterrupted()) {
+        return 0;
+      }
+      idle();
+    }
+    int count = 1;
+    while (count < maxBatch && isPublished(next + count)) {
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Entry at the given offset of the batch returned by {@link #awaitBatch(int)}.
+   */
+  Entry entry(int offset) {
+    return this.entries[(int) (this.consumed + 1 + offset) & this.mask];
+  }
+
+  /**
+   * Hand the first {@code count} consumed entries back to producers.
+   */
+  void release(int count) {
+    for (int i = 0; i < count; i++) {
+      Entry entry = entry(i);
+      entry.accountTransfer = null;
+      entry.multiLegTransfer = null;
+      entry.result = null;
+    }
+    this.consumed += count;
+  }
+
+  private boolean isPublished(long sequence) {
+    return this.published.get((int) sequence & this.mask) == sequence;
+  }
+
+  private void idle() {
+    switch (this.waitStrategy) {
+      case BUSY_SPIN:
+        break;
+      case YIELDING:
+        Thread.yield();
+        break;
+      default:
+        LockSupport.parkNanos(SLEEP_NANOS);
+    }
+  }
+}
@@ -1,15 +1,50 @@
 package com.db.awmd.challenge.web;
 
 import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.AccountPage;
 import com.db.awmd.challenge.domain.AccountTransfer;
+import com.db.awmd.challenge.domain.MultiLegTransfer;
+import com.db.awmd.challenge.domain.ScheduledTransfer;
+import com.db.awmd.challenge.domain.TransferResult;
 import com.db.awmd.challenge.exception.AccountNotFoundException;
+import com.db.awmd.challenge.exception.AccountsStorageFullException;
 import com.db.awmd.challenge.exception.DuplicateAccountIdException;
+import com.db.awmd.challenge.exception.InvalidAccountIdException;
 import com.db.awmd.challenge.exception.NotEnoughBalanceException;
 import com.db.awmd.challenge.exception.SameAccountException;
+import com.db.awmd.challenge.history.TransferHistory;
+import com.db.awmd.challenge.schedule.TransferScheduler;
 import com.db.awmd.challenge.service.AccountsService;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import javax.servlet.http.HttpServletResponse;
+import javax.validation.ConstraintViolation;
 import javax.validation.Valid;
+import javax.validation.Validator;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -17,19 +52,96 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 @RestController
 @RequestMapping("/v1/accounts")
 @Slf4j
 public class AccountsController {
 
+  public static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+
+  public static final String TEXT_CSV_VALUE = "text/csv";
+
+  public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
+  /**
+   * Largest page of transfer history returned.
+   */
+  public static final int MAX_HISTORY_LIMIT = 1000;
+
+  /**
+   * Largest page of accounts returned.
+   */
+  public static final int MAX_ACCOUNTS_LIMIT = 1000;
+
+  /**
+   * Most legs of a multi-leg transfer, which holds the locks of all its accounts at once.
+   */
+  public static final int MAX_LEGS = 1000;
+
+  /**
+   * Most transfers of a batch, which is settled holding the locks of all its accounts at once.
+   */
+  public static final int MAX_BATCH_SIZE = 1000;
+
   private final AccountsService accountsService;
 
+  private final ObjectMapper objectMapper;
+
+  private final Validator validator;
+
+  private final TransferIdempotencyCache idempotencyCache;
+
+  private final Executor transferExecutor;
+
+  private final TransferAdmissionLimiter admissionLimiter;
+
+  private final AccountsImporter accountsImporter;
+
+  private TransferHistory transferHistory;
+
+  private TransferScheduler transferScheduler;
+
+  /**
+   * Time a transfer request waits for the outcome before answering 503.
+   */
+  @Value("${accounts.transfer.async.timeout-ms:5000}")
+  private long transferTimeoutMillis = 5000;
+
+  /**
+   * Retry-After sent with transfers refused because of load.
+   */
+  @Value("${admission.retry-after-seconds:1}")
+  private long retryAfterSeconds = 1;
+
   @Autowired
-  public AccountsController(AccountsService accountsService) {
+  public AccountsController(AccountsService accountsService, ObjectMapper objectMapper,
+                            Validator validator, TransferIdempotencyCache idempotencyCache,
+                            @Qualifier("transferExecutor") Executor transferExecutor,
+                            TransferAdmissionLimiter admissionLimiter,
+                            AccountsImporter accountsImporter) {
     this.accountsService = accountsService;
+    this.objectMapper = objectMapper;
+    this.validator = validator;
+    this.idempotencyCache = idempotencyCache;
+    this.transferExecutor = transferExecutor;
+    this.admissionLimiter = admissionLimiter;
+    this.accountsImporter = accountsImporter;
+  }
+
+  @Autowired(required = false)
+  public void setTransferHistory(TransferHistory transferHistory) {
+    this.transferHistory = transferHistory;
+  }
+
+  @Autowired(required = false)
+  public void setTransferScheduler(TransferScheduler transferScheduler) {
+    this.transferScheduler = transferScheduler;
   }
 
   @PostMapping(consumes = MediaType.APPLICATION_JSON_VALUE)
@@ -38,31 +150,274 @@ public class AccountsController {
 
     try {
       this.accountsService.createAccount(account);
-    } catch (DuplicateAccountIdException daie) {
-      return new ResponseEntity<>(daie.getMessage(), HttpStatus.BAD_REQUEST);
+    } catch (DuplicateAccountIdException | InvalidAccountIdException e) {
+      return new ResponseEntity<>(e.getMessage(), HttpStatus.BAD_REQUEST);
+    } catch (AccountsStorageFullException asfe) {
+      log.error(asfe.getMessage());
+      return new ResponseEntity<>(asfe.getMessage(), HttpStatus.INSUFFICIENT_STORAGE);
     }
 
     return new ResponseEntity<>(HttpStatus.CREATED);
   }
 
+  /**
+   * Create the accounts of an NDJSON or CSV body, one account per line. Invalid lines,
+   * existing ids and accounts the repository cannot store are reported without stopping the
+   * import.
+   */
+  @PostMapping(path = "/import", consumes = {APPLICATION_NDJSON_VALUE, TEXT_CSV_VALUE})
+  public ResponseEntity<Object> importAccounts(
+      @RequestHeader(HttpHeaders.CONTENT_TYPE) String contentType, InputStream body)
+      throws IOException {
+    MediaType mediaType = MediaType.parseMediaType(contentType);
+    Charset charset = mediaType.getCharset() == null ? StandardCharsets.UTF_8
+        : mediaType.getCharset();
+    AccountsImporter.Format format = MediaType.valueOf(TEXT_CSV_VALUE).includes(mediaType)
+        ? AccountsImporter.Format.CSV : AccountsImporter.Format.NDJSON;
+    return new ResponseEntity<>(this.accountsImporter.importAccounts(
+        new InputStreamReader(body, charset), format), HttpStatus.OK);
+  }
+
+  /**
+   * Transfer money between two accounts. Requests carrying an {@code Idempotency-Key} header
+   * are applied once; repeating the key returns the response of the first request.
+   *
+   * <p>The transfer runs on the transfer executor and the servlet thread is released
+   * meanwhile. Transfers the executor cannot take, and transfers not completed within the
+   * timeout, are answered with {@code 503 Service Unavailable}; the latter may still complete,
+   * so clients should retry them with the same {@code Idempotency-Key}. Transfers beyond the
+   * limit of the {@link TransferAdmissionLimiter} are refused with
+   * {@code 429 Too Many Requests}. Both come with a {@code Retry-After} header.
+   */
   @PostMapping(path = "/transfer", consumes = MediaType.APPLICATION_JSON_VALUE)
-  public ResponseEntity<Object> transferMoneyBetweenAccounts(
+  public DeferredResult<ResponseEntity<Object>> transferMoneyBetweenAccounts(
+      @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey,
       @RequestBody @Valid AccountTransfer accountTransfer) {
+    DeferredResult<ResponseEntity<Object>> deferredResult =
+        new DeferredResult<>(this.transferTimeoutMillis, retryLater(
+            HttpStatus.SERVICE_UNAVAILABLE, "Transfer not completed in time, outcome unknown"));
+    if (!this.admissionLimiter.tryAcquire()) {
+      deferredResult.setResult(retryLater(HttpStatus.TOO_MANY_REQUESTS,
+          "Too many transfers in progress, retry later"));
+      return deferredResult;
+    }
+    long admitted = System.nanoTime();
+    CompletableFuture<ResponseEntity<Object>> response = idempotencyKey == null
+        ? transferMoney(accountTransfer)
+        : this.idempotencyCache.execute(idempotencyKey, accountTransfer,
+            () -> transferMoney(accountTransfer));
+    response.whenComplete((result, failure) -> {
+      this.admissionLimiter.release(System.nanoTime() - admitted, failure != null
+          || result.getStatusCode() == HttpStatus.LOCKED
+          || result.getStatusCode() == HttpStatus.SERVICE_UNAVAILABLE);
+      if (failure == null) {
+        deferredResult.setResult(result);
+      } else {
+        deferredResult.setErrorResult(failure instanceof CompletionException
+            ? failure.getCause() : failure);
+      }
+    });
+    return deferredResult;
+  }
+
+  private CompletableFuture<ResponseEntity<Object>> transferMoney(
+      AccountTransfer accountTransfer) {
     log.info("Transferring money between {} and {} accounts",
         accountTransfer.getAccountFromId(), accountTransfer.getAccountToId());
-    boolean transferResult = false;
+    return this.accountsService.transferMoneyAsync(accountTransfer, this.transferExecutor)
+        .handle((transferred, failure) -> {
+          if (failure == null) {
+            return new ResponseEntity<>(transferred ? HttpStatus.OK : HttpStatus.LOCKED);
+          }
+          Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+          if (cause instanceof AccountNotFoundException) {
+            return new ResponseEntity<>(cause.getMessage(), HttpStatus.NOT_FOUND);
+          } else if (cause instanceof NotEnoughBalanceException
+              || cause instanceof SameAccountException) {
+            return new ResponseEntity<>(cause.getMessage(), HttpStatus.BAD_REQUEST);
+          } else if (cause instanceof InterruptedException) {
+            log.error("Transfer interrupted: {}", cause.getMessage());
+            return new ResponseEntity<>(HttpStatus.LOCKED);
+          } else if (cause instanceof RejectedExecutionException) {
+            log.warn("Transfer rejected, the transfer executor is saturated");
+            return retryLater(HttpStatus.SERVICE_UNAVAILABLE,
+                "Too many transfers in progress, retry later");
+          }
+          throw new CompletionException(cause);
+        });
+  }
+
+  private ResponseEntity<Object> retryLater(HttpStatus status, String message) {
+    return ResponseEntity.status(status)
+        .header(HttpHeaders.RETRY_AFTER, Long.toString(this.retryAfterSeconds))
+        .body(message);
+  }
+
+  /**
+   * Apply a batch of transfers given as a JSON array or as newline delimited JSON. Transfers
+   * that cannot be bound or fail validation are reported and left out, the rest are settled
+   * together. Only a body that is not JSON at all, or too large a batch, fails the whole batch.
+   */
+  @PostMapping(path = "/transfers/batch",
+      consumes = {MediaType.APPLICATION_JSON_VALUE, APPLICATION_NDJSON_VALUE})
+  public ResponseEntity<Object> transferMoneyBatch(InputStream body) throws IOException {
+    List<AccountTransfer> accountTransfers = new ArrayList<>();
+    List<Integer> positions = new ArrayList<>();
+    List<TransferResult> results = new ArrayList<>();
+    // Each transfer is read as a tree first, so one that does not bind is reported alone
+    try (MappingIterator<JsonNode> iterator =
+             this.objectMapper.readerFor(JsonNode.class).readValues(body)) {
+      for (int i = 0; iterator.hasNextValue(); i++) {
+        if (i == MAX_BATCH_SIZE) {
+          return new ResponseEntity<>("A batch can have at most " + MAX_BATCH_SIZE
+              + " transfers", HttpStatus.BAD_REQUEST);
+        }
+        JsonNode node = iterator.nextValue();
+        AccountTransfer accountTransfer;
+        try {
+          accountTransfer = this.objectMapper.treeToValue(node, AccountTransfer.class);
+        } catch (JsonProcessingException e) {
+          results.add(TransferResult.builder().index(i).status(TransferResult.Status.INVALID)
+              .message(e.getCause() instanceof IllegalArgumentException
+                  ? e.getCause().getMessage() : e.getOriginalMessage()).build());
+          continue;
+        }
+        Set<ConstraintViolation<AccountTransfer>> violations =
+            this.validator.validate(accountTransfer);
+        if (violations.isEmpty()) {
+          accountTransfers.add(accountTransfer);
+          positions.add(i);
+        } else {
+          results.add(TransferResult.builder().index(i).status(TransferResult.Status.INVALID)
+              .message(violations.iterator().next().getMessage()).build());
+        }
+      }
+    } catch (JsonProcessingException jpe) {
+      return new ResponseEntity<>(jpe.getOriginalMessage(), HttpStatus.BAD_REQUEST);
+    }
+    log.info("Transferring money for a batch of {} transfers", accountTransfers.size());
+
     try {
-      transferResult = this.accountsService.transferMoney(accountTransfer);
+      for (TransferResult result : this.accountsService.transferMoneyBatch(accountTransfers)) {
+        results.add(TransferResult.builder().index(positions.get(result.getIndex()))
+            .status(result.getStatus()).message(result.getMessage()).build());
+      }
     } catch (InterruptedException ie) {
       log.error(ie.getMessage());
       Thread.currentThread().interrupt();
+      return new ResponseEntity<>(HttpStatus.LOCKED);
+    }
+    results.sort(Comparator.comparingInt(TransferResult::getIndex));
+    return new ResponseEntity<>(results, HttpStatus.OK);
+  }
+
+  /**
+   * Debit one account and credit every leg, all or nothing, as for a payroll or a split
+   * payment. The sharded engine, which cannot apply the legs atomically, answers
+   * {@code 501 Not Implemented}.
+   */
+  @PostMapping(path = "/transfers/multi-leg", consumes = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<Object> transferMoneyMultiLeg(
+      @RequestBody @Valid MultiLegTransfer multiLegTransfer) {
+    if (multiLegTransfer.getLegs().size() > MAX_LEGS) {
+      return new ResponseEntity<>("A transfer can have at most " + MAX_LEGS + " legs",
+          HttpStatus.BAD_REQUEST);
+    }
+    log.info("Transferring money from {} account to {} legs",
+        multiLegTransfer.getAccountFromId(), multiLegTransfer.getLegs().size());
+    try {
+      return new ResponseEntity<>(this.accountsService.transferMoneyMultiLeg(multiLegTransfer)
+          ? HttpStatus.OK : HttpStatus.LOCKED);
     } catch (AccountNotFoundException anfe) {
       return new ResponseEntity<>(anfe.getMessage(), HttpStatus.NOT_FOUND);
     } catch (NotEnoughBalanceException | SameAccountException e) {
       return new ResponseEntity<>(e.getMessage(), HttpStatus.BAD_REQUEST);
+    } catch (UnsupportedOperationException uoe) {
+      return new ResponseEntity<>(uoe.getMessage(), HttpStatus.NOT_IMPLEMENTED);
+    } catch (InterruptedException ie) {
+      log.error(ie.getMessage());
+      Thread.currentThread().interrupt();
+      return new ResponseEntity<>(HttpStatus.LOCKED);
+    }
+  }
+
+  /**
+   * Accept a transfer to execute at its {@code executeAt} time, in milliseconds since the
+   * epoch. The accounts must exist when it is scheduled; the balance is only checked when it
+   * executes. Answers {@code 501 Not Implemented} when the scheduler is disabled.
+   */
+  @PostMapping(path = "/transfers/scheduled", consumes = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<Object> scheduleTransfer(
+      @RequestBody @Valid ScheduledTransfer scheduledTransfer) {
+    if (this.transferScheduler == null) {
+      return new ResponseEntity<>("Scheduled transfers are disabled", HttpStatus.NOT_IMPLEMENTED);
+    }
+    if (scheduledTransfer.getAccountFromId().equals(scheduledTransfer.getAccountToId())) {
+      return new ResponseEntity<>("You can transfer money to the same account",
+          HttpStatus.BAD_REQUEST);
+    }
+    for (String accountId : new String[] {scheduledTransfer.getAccountFromId(),
+        scheduledTransfer.getAccountToId()}) {
+      if (this.accountsService.getAccount(accountId) == null) {
+        return new ResponseEntity<>(String.format("Account with id %s not found", accountId),
+            HttpStatus.NOT_FOUND);
+      }
+    }
+    ScheduledTransfer scheduled = this.transferScheduler.schedule(scheduledTransfer);
+    log.info("Scheduled transfer {} between {} and {} accounts at {}", scheduled.getId(),
+        scheduled.getAccountFromId(), scheduled.getAccountToId(), scheduled.getExecuteAt());
+    return new ResponseEntity<>(scheduled, HttpStatus.CREATED);
+  }
+
+  /**
+   * Accounts ordered by id. Further pages are fetched by passing the {@code nextCursor} of a
+   * page as {@code cursor}. Every page scans all accounts; use the export to read them all.
+   */
+  @GetMapping
+  public ResponseEntity<Object> getAccounts(@RequestParam(required = false) String cursor,
+      @RequestParam(defaultValue = "100") int limit) {
+    if (limit < 1 || limit > MAX_ACCOUNTS_LIMIT) {
+      return new ResponseEntity<>("Limit must be between 1 and " + MAX_ACCOUNTS_LIMIT,
+          HttpStatus.BAD_REQUEST);
+    }
+    // One account more than the page tells whether there is a next page
+    List<Account> accounts = this.accountsService.getAccounts(cursor, limit + 1);
+    String nextCursor = null;
+    if (accounts.size() > limit) {
+      accounts = accounts.subList(0, limit);
+      nextCursor = accounts.get(limit - 1).getAccountId();
+    }
+    return new ResponseEntity<>(
+        AccountPage.builder().accounts(accounts).nextCursor(nextCursor).build(), HttpStatus.OK);
+  }
+
+  /**
+   * Export every account as NDJSON, written to the response while the accounts are iterated,
+   * so nothing is collected in memory and transfers go on meanwhile. The export is weakly
+   * consistent: it is not a snapshot of one instant.
+   */
+  @GetMapping(params = "format=ndjson")
+  public void exportAccounts(HttpServletResponse response) throws IOException {
+    log.info("Exporting accounts");
+    response.setContentType(APPLICATION_NDJSON_VALUE);
+    response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+    ObjectWriter writer = this.objectMapper.writerFor(Account.class)
+        .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    try (JsonGenerator generator =
+             this.objectMapper.getFactory().createGenerator(response.getOutputStream())) {
+      // Lines are ended explicitly instead of separated by spaces
+      generator.setRootValueSeparator(null);
+      this.accountsService.forEachAccount(account -> {
+        try {
+          writer.writeValue(generator, account);
+          generator.writeRaw('\n');
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
     }
-    HttpStatus status = transferResult ? HttpStatus.OK : HttpStatus.LOCKED;
-    return new ResponseEntity<>(status);
   }
 
   @GetMapping(path = "/{accountId}")
@@ -71,4 +426,31 @@ public class AccountsController {
     return this.accountsService.getAccount(accountId);
   }
 
+  /**
+   * Transfers from or to the account, newest first, optionally within a time range given in
+   * epoch millis, {@code from} inclusive and {@code to} exclusive. Further pages are fetched
+   * by passing the {@code nextCursor} of a page as {@code cursor}.
+   */
+  @GetMapping(path = "/{accountId}/transfers")
+  public ResponseEntity<Object> getTransfers(@PathVariable String accountId,
+      @RequestParam(required = false) String cursor,
+      @RequestParam(required = false) Long from,
+      @RequestParam(required = false) Long to,
+      @RequestParam(defaultValue = "50") int limit) {
+    if (this.transferHistory == null || this.accountsService.getAccount(accountId) == null) {
+      return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    }
+    if (limit < 1 || limit > MAX_HISTORY_LIMIT) {
+      return new ResponseEntity<>("Limit must be between 1 and " + MAX_HISTORY_LIMIT,
+          HttpStatus.BAD_REQUEST);
+    }
+    try {
+      return new ResponseEntity<>(this.transferHistory.find(accountId, cursor,
+          from == null ? Long.MIN_VALUE : from, to == null ? Long.MAX_VALUE : to, limit),
+          HttpStatus.OK);
+    } catch (IllegalArgumentException iae) {
+      return new ResponseEntity<>(iae.getMessage(), HttpStatus.BAD_REQUEST);
+    }
+  }
+
 }
@@ -0,0 +1,264 @@
+package com.db.awmd.challenge.web;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.AccountsImportResult;
+import com.db.awmd.challenge.domain.AccountsImportResult.Rejection;
+import com.db.awmd.challenge.domain.AccountsImportResult.Status;
+import com.db.awmd.challenge.exception.AccountsRejectedException;
+import com.db.awmd.challenge.exception.AccountsStorageFullException;
+import com.db.awmd.challenge.service.AccountsService;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Imports accounts from a stream of NDJSON or CSV lines, one account per line.
+ *
+ * <p>Lines are read in batches, so memory does not depend on the size of the import. The
+ * lines of a batch are parsed and validated in parallel, then the valid accounts are created
+ * together, which waits for the journal once per batch instead of once per account. Invalid
+ * lines, existing ids and accounts the repository cannot store are counted and reported
+ * without stopping the import.
+ *
+ * <p>JSON lines are read with the streaming parser, field by field. CSV lines are
+ * {@code accountId,balance}, optionally preceded by that header, without quoting.
+ */
+@Slf4j
+@Component
+public class AccountsImporter {
+
+  public enum Format {
+    NDJSON,
+    CSV
+  }
+
+  private static final String CSV_HEADER = "accountId,balance";
+
+  private static final class Line {
+
+    private final Account account;
+    private final String accountId;
+    private final String error;
+
+    private Line(Account account, String accountId, String error) {
+      this.account = account;
+      this.accountId = accountId;
+      this.error = error;
+    }
+  }
+
+  private static final Line BLANK = new Line(null, null, null);
+
+  private static final class Tally {
+
+    private long imported;
+    private long invalid;
+    private long duplicates;
+    private long storageFull;
+    private final List<Rejection> rejections = new ArrayList<>();
+  }
+
+  private final AccountsService accountsService;
+
+  private final JsonFactory jsonFactory;
+
+  private final Validator validator;
+
+  private final int batchSize;
+
+  private final int maxRejections;
+
+  @Autowired
+  public AccountsImporter(AccountsService accountsService, ObjectMapper objectMapper,
+                          Validator validator,
+                          @Value("${accounts.import.batch-size:1000}") int batchSize,
+                          @Value("${accounts.import.max-rejections:1000}") int maxRejections) {
+    if (batchSize <= 0) {
+      throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+    }
+    this.accountsService = accountsService;
+    this.jsonFactory = objectMapper.getFactory();
+    this.validator = validator;
+    this.batchSize = batchSize;
+    this.maxRejections = maxRejections;
+  }
+
+  /**
+   * Create the accounts of every line read.
+   *
+   * @param reader the lines
+   * @param format the format of the lines
+   * @return the counts of imported and rejected accounts
+   * @throws IOException if the lines cannot be read
+   */
+  public AccountsImportResult importAccounts(Reader reader, Format format) throws IOException {
+    long started = System.currentTimeMillis();
+    Tally tally = new Tally();
+
+    BufferedReader lines = new BufferedReader(reader, 1 << 16);
+    List<String> batch = new ArrayList<>(this.batchSize);
+    long firstLine = 1;
+    long lineNumber = 0;
+    for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+      lineNumber++;
+      if (format == Format.CSV && lineNumber == 1 && line.trim().equalsIgnoreCase(CSV_HEADER)) {
+        firstLine = 2;
+        continue;
+      }
+      batch.add(line);
+      if (batch.size() == this.batchSize) {
+        importBatch(batch, firstLine, format, tally);
+        batch.clear();
+        firstLine = lineNumber + 1;
+      }
+    }
+    importBatch(batch, firstLine, format, tally);
+
+    log.info("Imported {} accounts in {} ms, {} invalid, {} duplicates, {} not stored",
+        tally.imported, System.currentTimeMillis() - started, tally.invalid, tally.duplicates,
+        tally.storageFull);
+    return AccountsImportResult.builder()
+        .imported(tally.imported)
+        .invalid(tally.invalid)
+        .duplicates(tally.duplicates)
+        .storageFull(tally.storageFull)
+        .rejections(tally.rejections)
+        .build();
+  }
+
+  private void importBatch(List<String> batch, long firstLine, Format format, Tally tally) {
+    if (batch.isEmpty()) {
+      return;
+    }
+    Line[] parsed = new Line[batch.size()];
+    IntStream.range(0, parsed.length).parallel()
+        .forEach(i -> parsed[i] = parse(batch.get(i), format));
+
+    List<Account> accounts = new ArrayList<>(parsed.length);
+    List<Long> accountLines = new ArrayList<>(parsed.length);
+    for (int i = 0; i < parsed.length; i++) {
+      if (parsed[i].error != null) {
+        tally.invalid++;
+        reject(firstLine + i, parsed[i].accountId, Status.INVALID, parsed[i].error, tally);
+      } else if (parsed[i].account != null) {
+        accounts.add(parsed[i].account);
+        accountLines.add(firstLine + i);
+      }
+    }
+    List<Integer> duplicates;
+    Map<Integer, RuntimeException> rejections = Collections.emptyMap();
+    try {
+      duplicates = this.accountsService.createAccounts(accounts);
+    } catch (AccountsRejectedException e) {
+      duplicates = e.getDuplicates();
+      rejections = e.getRejections();
+    }
+    for (int duplicate : duplicates) {
+      String accountId = accounts.get(duplicate).getAccountId();
+      tally.duplicates++;
+      reject(accountLines.get(duplicate), accountId, Status.DUPLICATE,
+          "Account id " + accountId + " already exists!", tally);
+    }
+    for (Map.Entry<Integer, RuntimeException> rejection : rejections.entrySet()) {
+      Status status;
+      if (rejection.getValue() instanceof AccountsStorageFullException) {
+        tally.storageFull++;
+        status = Status.STORAGE_FULL;
+      } else {
+        tally.invalid++;
+        status = Status.INVALID;
+      }
+      reject(accountLines.get(rejection.getKey()), accounts.get(rejection.getKey())
+          .getAccountId(), status, rejection.getValue().getMessage(), tally);
+    }
+    tally.imported += accounts.size() - duplicates.size() - rejections.size();
+  }
+
+  private void reject(long line, String accountId, Status status, String message, Tally tally) {
+    if (tally.rejections.size() < this.maxRejections) {
+      tally.rejections.add(Rejection.builder().line(line).accountId(accountId).status(status)
+          .message(message).build());
+    }
+  }
+
+  private Line parse(String line, Format format) {
+    if (line.trim().isEmpty()) {
+      return BLANK;
+    }
+    return format == Format.CSV ? parseCsv(line) : parseJson(line);
+  }
+
+  private Line parseJson(String line) {
+    String accountId = null;
+    BigDecimal balance = null;
+    try (JsonParser parser = this.jsonFactory.createParser(line)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        return new Line(null, null, "Expected a JSON object");
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        if ("accountId".equals(field) && value == JsonToken.VALUE_STRING) {
+          accountId = parser.getText();
+        } else if ("balance".equals(field) && value.isNumeric()) {
+          balance = parser.getDecimalValue();
+        } else {
+          parser.skipChildren();
+        }
+      }
+      if (parser.nextToken() != null) {
+        return new Line(null, accountId, "Expected one JSON object per line");
+      }
+    } catch (JsonProcessingException e) {
+      return new Line(null, accountId, e.getOriginalMessage());
+    } catch (IOException e) {
+      return new Line(null, accountId, e.getMessage());
+    }
+    return validate(accountId, balance);
+  }
+
+  private Line parseCsv(String line) {
+    String[] fields = line.split(",", -1);
+    if (fields.length != 2) {
+      return new Line(null, null, "Expected " + CSV_HEADER);
+    }
+    String accountId = fields[0].trim();
+    try {
+      return validate(accountId, new BigDecimal(fields[1].trim()));
+    } catch (NumberFormatException e) {
+      return new Line(null, accountId, "Balance is not a number: " + fields[1].trim());
+    }
+  }
+
+  private Line validate(String accountId, BigDecimal balance) {
+    Account account;
+    try {
+      account = new Account(accountId, balance);
+    } catch (IllegalArgumentException e) {
+      return new Line(null, accountId, e.getMessage());
+    }
+    Set<ConstraintViolation<Account>> violations = this.validator.validate(account);
+    if (!violations.isEmpty()) {
+      return new Line(null, accountId, violations.iterator().next().getMessage());
+    }
+    return new Line(account, accountId, null);
+  }
+}
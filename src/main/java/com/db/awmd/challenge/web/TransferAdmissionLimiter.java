@@ -0,0 +1,156 @@
+package com.db.awmd.challenge.web;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleUnaryOperator;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+/**
+ * Limits the number of transfers in flight, adapting the limit to their measured latency.
+ *
+ * <p>The limit follows AIMD. While the smoothed latency of transfers stays within the target
+ * and the limit is in use, every transfer raises it by {@code 1 / limit}, about one per round
+ * of transfers. Once the smoothed latency exceeds the target, or a transfer is refused
+ * because of locks or fails, the limit is cut by the backoff ratio, at most once per latency
+ * target so one congested round only counts once. Smoothing keeps a single pause, such as a
+ * GC, from cutting the limit. Transfers above the limit are refused immediately instead of
+ * queueing behind locks.
+ */
+@Slf4j
+@Component
+public class TransferAdmissionLimiter implements PublicMetrics {
+
+  // Weight of the latest transfer in the smoothed latency
+  private static final double SMOOTHING = 0.05;
+
+  private final boolean enabled;
+  private final int minLimit;
+  private final int maxLimit;
+  private final long latencyTargetNanos;
+  private final double backoffRatio;
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+  // Bits of a double, so the limit can grow by fractions
+  private final AtomicLong limit;
+  private final AtomicLong lastDecrease;
+  // Exponentially weighted moving average of the latency, bits of a double
+  private final AtomicLong smoothedLatencyNanos = new AtomicLong(Double.doubleToLongBits(0));
+  private final LongAdder admitted = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+
+  /**
+   * Create the limiter.
+   *
+   * @param enabled         when false every transfer is admitted, but still measured
+   * @param initialLimit    limit to start with
+   * @param minLimit        lowest the limit goes
+   * @param maxLimit        highest the limit goes
+   * @param latencyTargetMs smoothed latency above which transfers are congested
+   * @param backoffRatio    factor applied to the limit on congestion
+   */
+  @Autowired
+  public TransferAdmissionLimiter(
+      @Value("${admission.enabled:true}") boolean enabled,
+      @Value("${admission.initial-limit:64}") int initialLimit,
+      @Value("${admission.min-limit:4}") int minLimit,
+      @Value("${admission.max-limit:1024}") int maxLimit,
+      @Value("${admission.latency-target-ms:500}") long latencyTargetMs,
+      @Value("${admission.backoff-ratio:0.9}") double backoffRatio) {
+    this.enabled = enabled;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.latencyTargetNanos = TimeUnit.MILLISECONDS.toNanos(latencyTargetMs);
+    this.lastDecrease = new AtomicLong(System.nanoTime() - this.latencyTargetNanos);
+    this.backoffRatio = backoffRatio;
+    this.limit = new AtomicLong(Double.doubleToLongBits(
+        Math.max(minLimit, Math.min(maxLimit, initialLimit))));
+  }
+
+  /**
+   * Admit a transfer if fewer than the limit are in flight. Every admitted transfer must be
+   * {@link #release released}.
+   *
+   * @return false if the transfer must be refused
+   */
+  public boolean tryAcquire() {
+    int current;
+    do {
+      current = this.inFlight.get();
+      if (this.enabled && current >= (int) getLimit()) {
+        this.rejected.increment();
+        return false;
+      }
+    } while (!this.inFlight.compareAndSet(current, current + 1));
+    this.admitted.increment();
+    return true;
+  }
+
+  /**
+   * Report the outcome of an admitted transfer and adapt the limit.
+   *
+   * @param latencyNanos time from admission to outcome
+   * @param congested    true if the transfer was refused because of locks or failed
+   */
+  public void release(long latencyNanos, boolean congested) {
+    int current = this.inFlight.getAndDecrement();
+    double smoothedLatency = update(this.smoothedLatencyNanos,
+        smoothed -> smoothed + SMOOTHING * (latencyNanos - smoothed));
+    if (congested || smoothedLatency > this.latencyTargetNanos) {
+      decrease();
+    } else if (current >= getLimit() / 2) {
+      // Only grow while the limit is what holds transfers back
+      update(this.limit, limit -> Math.min(this.maxLimit, limit + 1 / limit));
+    }
+  }
+
+  public double getLimit() {
+    return Double.longBitsToDouble(this.limit.get());
+  }
+
+  public int getInFlight() {
+    return this.inFlight.get();
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    List<Metric<?>> metrics = new ArrayList<>();
+    metrics.add(new Metric<>("admission.limit", (int) getLimit()));
+    metrics.add(new Metric<>("admission.in-flight", getInFlight()));
+    metrics.add(new Metric<>("admission.latency.smoothed-micros", TimeUnit.NANOSECONDS
+        .toMicros((long) Double.longBitsToDouble(this.smoothedLatencyNanos.get()))));
+    metrics.add(new Metric<>("admission.admitted", this.admitted.sum()));
+    metrics.add(new Metric<>("admission.rejected", this.rejected.sum()));
+    return metrics;
+  }
+
+  private void decrease() {
+    long now = System.nanoTime();
+    long last = this.lastDecrease.get();
+    if (now - last < this.latencyTargetNanos || !this.lastDecrease.compareAndSet(last, now)) {
+      return;
+    }
+    double decreased = update(this.limit,
+        limit -> Math.max(this.minLimit, limit * this.backoffRatio));
+    log.debug("Transfer admission limit decreased to {}", (int) decreased);
+  }
+
+  private static double update(AtomicLong value, DoubleUnaryOperator function) {
+    long current;
+    double updated;
+    do {
+      current = value.get();
+      updated = function.applyAsDouble(Double.longBitsToDouble(current));
+    } while (!value.compareAndSet(current, Double.doubleToLongBits(updated)));
+    return updated;
+  }
+}
@@ -0,0 +1,37 @@
+package com.db.awmd.challenge.web;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * The executor transfers requested over HTTP run on, so servlet threads are released while a
+ * transfer waits for account locks. Threads and queue are bounded; once both are full new
+ * transfers are rejected and answered with {@code 503 Service Unavailable}.
+ */
+@Configuration
+public class TransferExecutorConfiguration {
+
+  /**
+   * Create the executor.
+   *
+   * @param threads       threads running transfers
+   * @param queueCapacity transfers waiting for a thread
+   */
+  @Bean(destroyMethod = "shutdown")
+  public ThreadPoolExecutor transferExecutor(
+      @Value("${accounts.transfer.async.threads:16}") int threads,
+      @Value("${accounts.transfer.async.queue-capacity:1000}") int queueCapacity) {
+    AtomicInteger count = new AtomicInteger();
+    return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+          Thread thread = new Thread(runnable, "transfer-" + count.getAndIncrement());
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+}
@@ -0,0 +1,145 @@
+package com.db.awmd.challenge.web;
+
+import com.db.awmd.challenge.domain.AccountTransfer;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+/**
+ * Remembers the outcome of recent transfer requests by their {@code Idempotency-Key}, so a
+ * client retrying after a timeout gets the original response instead of moving money twice.
+ *
+ * <p>The cache holds the future of the response as soon as the first request starts, so a
+ * retry arriving while the original is still running gets its response rather than running
+ * again, without holding a thread meanwhile.
+ * Outcomes are kept for a limited time and the cache is bounded by an estimate of its memory
+ * use. Only successful outcomes moved money; the others, such as {@code 423 Locked} or a
+ * {@code 503} from a saturated executor, are forgotten, so a retry runs again.
+ */
+@Slf4j
+@Component
+public class TransferIdempotencyCache implements PublicMetrics {
+
+  /**
+   * Longest key accepted.
+   */
+  public static final int MAX_KEY_LENGTH = 255;
+
+  // Rough heap cost of an entry besides its strings: cache node, outcome, transfer, response
+  private static final int ENTRY_OVERHEAD_BYTES = 320;
+
+  private static final class Outcome {
+
+    private final AccountTransfer accountTransfer;
+    private final CompletableFuture<ResponseEntity<Object>> response = new CompletableFuture<>();
+
+    private Outcome(AccountTransfer accountTransfer) {
+      this.accountTransfer = accountTransfer;
+    }
+  }
+
+  private final Cache<String, Outcome> cache;
+
+  /**
+   * Create the cache.
+   *
+   * @param maximumWeightBytes estimated memory the cached outcomes may use
+   * @param ttlSeconds         how long an outcome is remembered
+   */
+  @Autowired
+  public TransferIdempotencyCache(
+      @Value("${idempotency.maximum-weight-bytes:67108864}") long maximumWeightBytes,
+      @Value("${idempotency.ttl-seconds:86400}") long ttlSeconds) {
+    this.cache = Caffeine.newBuilder()
+        .maximumWeight(maximumWeightBytes)
+        .weigher((String key, Outcome outcome) -> ENTRY_OVERHEAD_BYTES + 2 * (key.length()
+            + outcome.accountTransfer.getAccountFromId().length()
+            + outcome.accountTransfer.getAccountToId().length()))
+        .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * Run the transfer once per key and return its response to every request with that key.
+   *
+   * @param idempotencyKey  key chosen by the client
+   * @param accountTransfer the transfer requested
+   * @param transfer        starts the transfer and returns the future of its response
+   * @return the future response of the first request with this key, {@code 422} if the key
+   *     was used for a different transfer
+   */
+  public CompletableFuture<ResponseEntity<Object>> execute(String idempotencyKey,
+      AccountTransfer accountTransfer,
+      Supplier<CompletableFuture<ResponseEntity<Object>>> transfer) {
+    if (idempotencyKey.length() > MAX_KEY_LENGTH) {
+      return CompletableFuture.completedFuture(new ResponseEntity<>(
+          "Idempotency-Key longer than " + MAX_KEY_LENGTH + " chars", HttpStatus.BAD_REQUEST));
+    }
+    Outcome created = new Outcome(accountTransfer);
+    Outcome outcome = this.cache.get(idempotencyKey, key -> created);
+    if (outcome != created) {
+      return replay(idempotencyKey, accountTransfer, outcome);
+    }
+
+    CompletableFuture<ResponseEntity<Object>> response;
+    try {
+      response = transfer.get();
+    } catch (RuntimeException e) {
+      response = new CompletableFuture<>();
+      response.completeExceptionally(e);
+    }
+    return response.whenComplete((result, failure) -> {
+      if (failure != null || !result.getStatusCode().is2xxSuccessful()) {
+        this.cache.asMap().remove(idempotencyKey, outcome);
+      }
+      if (failure != null) {
+        outcome.response.completeExceptionally(failure);
+      } else {
+        outcome.response.complete(result);
+      }
+    });
+  }
+
+  @Override
+  public Collection<Metric<?>> metrics() {
+    CacheStats stats = this.cache.stats();
+    List<Metric<?>> metrics = new ArrayList<>();
+    metrics.add(new Metric<>("idempotency.entries", this.cache.estimatedSize()));
+    metrics.add(new Metric<>("idempotency.weight.bytes",
+        this.cache.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0))
+            .orElse(0L)));
+    metrics.add(new Metric<>("idempotency.hits", stats.hitCount()));
+    metrics.add(new Metric<>("idempotency.misses", stats.missCount()));
+    metrics.add(new Metric<>("idempotency.hit-rate", stats.hitRate()));
+    metrics.add(new Metric<>("idempotency.evictions", stats.evictionCount()));
+    return metrics;
+  }
+
+  private CompletableFuture<ResponseEntity<Object>> replay(String idempotencyKey,
+      AccountTransfer accountTransfer, Outcome outcome) {
+    if (!outcome.accountTransfer.equals(accountTransfer)) {
+      return CompletableFuture.completedFuture(new ResponseEntity<>("Idempotency-Key "
+          + idempotencyKey + " was already used for a different transfer",
+          HttpStatus.UNPROCESSABLE_ENTITY));
+    }
+    log.info("Replaying response of transfer with Idempotency-Key {}", idempotencyKey);
+    // If the original request failed without a response it was forgotten, so may be retried
+    return outcome.response.handle((response, failure) -> failure == null ? response
+        : new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE));
+  }
+}
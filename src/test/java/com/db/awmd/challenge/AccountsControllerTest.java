@@ -2,23 +2,37 @@ package com.db.awmd.challenge;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.setRemoveAssertJRelatedElementsFromStackTrace;
-import static org.junit.Assert.assertEquals;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 import static org.springframework.test.web.servlet.setup.MockMvcBuilders.webAppContextSetup;
 
 import com.db.awmd.challenge.domain.Account;
-import com.db.awmd.challenge.domain.AccountTransfer;
+import com.db.awmd.challenge.exception.AccountsRejectedException;
+import com.db.awmd.challenge.exception.AccountsStorageFullException;
+import com.db.awmd.challenge.exception.InvalidAccountIdException;
 import com.db.awmd.challenge.service.AccountsService;
 import com.db.awmd.challenge.service.AccountsServiceImpl;
 import com.db.awmd.challenge.web.AccountsController;
+import com.jayway.jsonpath.JsonPath;
 import java.math.BigDecimal;
-import org.junit.Assert;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -28,12 +42,13 @@ import org.mockito.Spy;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.SpyBean;
-import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.context.web.WebAppConfiguration;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
 import org.springframework.web.context.WebApplicationContext;
 
 @RunWith(SpringRunner.class)
@@ -109,6 +124,88 @@ public class AccountsControllerTest {
       .content("{\"accountId\":\"\",\"balance\":1000}")).andExpect(status().isBadRequest());
   }
 
+  @Test
+  public void createAccountNotStored() throws Exception {
+    doThrow(new InvalidAccountIdException("Account id too long")).when(accountsService)
+        .createAccount(any());
+    this.mockMvc.perform(post("/v1/accounts").contentType(MediaType.APPLICATION_JSON)
+      .content("{\"accountId\":\"Id-123\",\"balance\":1000}")).andExpect(status().isBadRequest());
+
+    doThrow(new AccountsStorageFullException("Account slab full")).when(accountsService)
+        .createAccount(any());
+    this.mockMvc.perform(post("/v1/accounts").contentType(MediaType.APPLICATION_JSON)
+      .content("{\"accountId\":\"Id-123\",\"balance\":1000}"))
+        .andExpect(status().isInsufficientStorage());
+  }
+
+  @Test
+  public void importAccountsReportsAccountsNotStored() throws Exception {
+    Map<Integer, RuntimeException> rejections = new TreeMap<>();
+    rejections.put(1, new InvalidAccountIdException("Account id too long"));
+    rejections.put(2, new AccountsStorageFullException("Account slab full"));
+    doThrow(new AccountsRejectedException(Collections.emptyList(), rejections))
+        .when(accountsService).createAccounts(any());
+
+    this.mockMvc.perform(post("/v1/accounts/import")
+        .contentType(AccountsController.TEXT_CSV_VALUE)
+        .content("Id-1,10\nId-2,10\nId-3,10\n"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.imported").value(1))
+        .andExpect(jsonPath("$.invalid").value(1))
+        .andExpect(jsonPath("$.storageFull").value(1))
+        .andExpect(jsonPath("$.rejections[0].line").value(2))
+        .andExpect(jsonPath("$.rejections[0].status").value("INVALID"))
+        .andExpect(jsonPath("$.rejections[1].line").value(3))
+        .andExpect(jsonPath("$.rejections[1].accountId").value("Id-3"))
+        .andExpect(jsonPath("$.rejections[1].status").value("STORAGE_FULL"));
+  }
+
+  @Test
+  public void importAccountsNdjson() throws Exception {
+    this.accountsService.createAccount(new Account("Id-1", BigDecimal.ONE));
+
+    this.mockMvc.perform(post("/v1/accounts/import")
+        .contentType(AccountsController.APPLICATION_NDJSON_VALUE)
+        .content("{\"accountId\":\"Id-1\",\"balance\":10}\n"
+            + "{\"accountId\":\"Id-2\",\"balance\":20.5}\n"
+            + "\n"
+            + "{\"accountId\":\"Id-3\",\"balance\":-1}\n"
+            + "{\"accountId\":\n"
+            + "{\"accountId\":\"Id-2\",\"balance\":5}\n"
+            + "{\"accountId\":\"Id-4\",\"balance\":0,\"extra\":[1]}\n"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.imported").value(2))
+        .andExpect(jsonPath("$.invalid").value(2))
+        .andExpect(jsonPath("$.duplicates").value(2))
+        .andExpect(jsonPath("$.rejections[0].line").value(4))
+        .andExpect(jsonPath("$.rejections[0].status").value("INVALID"))
+        .andExpect(jsonPath("$.rejections[1].line").value(5))
+        .andExpect(jsonPath("$.rejections[2].line").value(1))
+        .andExpect(jsonPath("$.rejections[2].status").value("DUPLICATE"))
+        .andExpect(jsonPath("$.rejections[3].line").value(6));
+
+    assertThat(this.accountsService.getAccount("Id-1").getBalance()).isEqualByComparingTo("1");
+    assertThat(this.accountsService.getAccount("Id-2").getBalance())
+        .isEqualByComparingTo("20.5");
+    assertThat(this.accountsService.getAccount("Id-3")).isNull();
+    assertThat(this.accountsService.getAccount("Id-4")).isNotNull();
+  }
+
+  @Test
+  public void importAccountsCsv() throws Exception {
+    this.mockMvc.perform(post("/v1/accounts/import")
+        .contentType(AccountsController.TEXT_CSV_VALUE)
+        .content("accountId,balance\nId-1,10\nId-2,abc\nId-3\n"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.imported").value(1))
+        .andExpect(jsonPath("$.invalid").value(2))
+        .andExpect(jsonPath("$.rejections[0].line").value(3))
+        .andExpect(jsonPath("$.rejections[0].accountId").value("Id-2"))
+        .andExpect(jsonPath("$.rejections[1].line").value(4));
+
+    assertThat(this.accountsService.getAccount("Id-1").getBalance()).isEqualByComparingTo("10");
+  }
+
   @Test
   public void transferMoneyBetweenAccountsOk() throws Exception {
     Account accountFrom = Account.builder()
@@ -122,7 +219,7 @@ public class AccountsControllerTest {
     accountsService.createAccount(accountFrom);
     accountsService.createAccount(accountTo);
 
-    this.mockMvc.perform(post("/v1/accounts/transfer").contentType(MediaType.APPLICATION_JSON)
+    performTransfer(post("/v1/accounts/transfer").contentType(MediaType.APPLICATION_JSON)
         .content("{\"accountFromId\":\"ac1\",\"accountToId\":\"ac2\",\"amount\":30}"))
         .andExpect(status().isOk());
   }
@@ -140,7 +237,7 @@ public class AccountsControllerTest {
     accountsService.createAccount(accountFrom);
     accountsService.createAccount(accountTo);
 
-    this.mockMvc.perform(post("/v1/accounts/transfer").contentType(MediaType.APPLICATION_JSON)
+    performTransfer(post("/v1/accounts/transfer").contentType(MediaType.APPLICATION_JSON)
             .content("{\"accountFromId\":\"ac1\",\"accountToId\":\"ac2\",\"amount\":31}"))
         .andExpect(status().isBadRequest());
   }
@@ -153,7 +250,7 @@ public class AccountsControllerTest {
         .build();
     accountsService.createAccount(accountFrom);
 
-    this.mockMvc.perform(post("/v1/accounts/transfer").contentType(MediaType.APPLICATION_JSON)
+    performTransfer(post("/v1/accounts/transfer").contentType(MediaType.APPLICATION_JSON)
             .content("{\"accountFromId\":\"ac1\",\"accountToId\":\"ac2\",\"amount\":30}"))
         .andExpect(status().isNotFound());
   }
@@ -166,7 +263,7 @@ public class AccountsControllerTest {
         .build();
     accountsService.createAccount(accountTo);
 
-    this.mockMvc.perform(post("/v1/accounts/transfer").contentType(MediaType.APPLICATION_JSON)
+    performTransfer(post("/v1/accounts/transfer").contentType(MediaType.APPLICATION_JSON)
             .content("{\"accountFromId\":\"ac1\",\"accountToId\":\"ac2\",\"amount\":30}"))
         .andExpect(status().isNotFound());
   }
@@ -179,13 +276,13 @@ public class AccountsControllerTest {
         .build();
     accountsService.createAccount(accountTo);
 
-    this.mockMvc.perform(post("/v1/accounts/transfer").contentType(MediaType.APPLICATION_JSON)
+    performTransfer(post("/v1/accounts/transfer").contentType(MediaType.APPLICATION_JSON)
             .content("{\"accountFromId\":\"ac2\",\"accountToId\":\"ac2\",\"amount\":30}"))
         .andExpect(status().isBadRequest());
   }
 
   @Test
-  public void transferMoneyBetweenAccountsThreadInterrupt() throws Exception {
+  public void transferMoneyBetweenAccountsAmountBeyondCurrencyScale() throws Exception {
     Account accountFrom = Account.builder()
         .accountId("ac1")
         .balance(BigDecimal.valueOf(30))
@@ -197,17 +294,255 @@ public class AccountsControllerTest {
     accountsService.createAccount(accountFrom);
     accountsService.createAccount(accountTo);
 
-    AccountTransfer accountTransfer = AccountTransfer.builder()
-        .accountFromId("ac1")
-        .accountToId("ac2")
-        .amount(BigDecimal.TEN)
+    performTransfer(post("/v1/accounts/transfer").contentType(MediaType.APPLICATION_JSON)
+        .content("{\"accountFromId\":\"ac1\",\"accountToId\":\"ac2\",\"amount\":0.001}"))
+        .andExpect(status().isBadRequest());
+    assertThat(accountsService.getAccount("ac1").getBalance()).isEqualByComparingTo("30");
+  }
+
+  @Test
+  public void transferMoneyIdempotentRetry() throws Exception {
+    accountsService.createAccount(new Account("ac1", BigDecimal.valueOf(30)));
+    accountsService.createAccount(new Account("ac2", BigDecimal.valueOf(50)));
+    String idempotencyKey = "retry-" + System.nanoTime();
+
+    for (int i = 0; i < 2; i++) {
+      performTransfer(post("/v1/accounts/transfer").contentType(MediaType.APPLICATION_JSON)
+          .header(AccountsController.IDEMPOTENCY_KEY_HEADER, idempotencyKey)
+          .content("{\"accountFromId\":\"ac1\",\"accountToId\":\"ac2\",\"amount\":10}"))
+          .andExpect(status().isOk());
+    }
+
+    verify(accountsService, times(1)).transferMoney(any());
+    assertThat(accountsService.getAccount("ac1").getBalance()).isEqualByComparingTo("20");
+    assertThat(accountsService.getAccount("ac2").getBalance()).isEqualByComparingTo("60");
+  }
+
+  @Test
+  public void transferMoneyIdempotencyKeyReusedForOtherTransfer() throws Exception {
+    accountsService.createAccount(new Account("ac1", BigDecimal.valueOf(30)));
+    accountsService.createAccount(new Account("ac2", BigDecimal.valueOf(50)));
+    String idempotencyKey = "reused-" + System.nanoTime();
+
+    performTransfer(post("/v1/accounts/transfer").contentType(MediaType.APPLICATION_JSON)
+        .header(AccountsController.IDEMPOTENCY_KEY_HEADER, idempotencyKey)
+        .content("{\"accountFromId\":\"ac1\",\"accountToId\":\"ac2\",\"amount\":10}"))
+        .andExpect(status().isOk());
+    performTransfer(post("/v1/accounts/transfer").contentType(MediaType.APPLICATION_JSON)
+        .header(AccountsController.IDEMPOTENCY_KEY_HEADER, idempotencyKey)
+        .content("{\"accountFromId\":\"ac1\",\"accountToId\":\"ac2\",\"amount\":5}"))
+        .andExpect(status().isUnprocessableEntity());
+
+    assertThat(accountsService.getAccount("ac1").getBalance()).isEqualByComparingTo("20");
+  }
+
+  @Test
+  public void transferMoneyIdempotencyKeyRetriedAfterRejection() throws Exception {
+    accountsService.createAccount(new Account("ac1", BigDecimal.valueOf(30)));
+    accountsService.createAccount(new Account("ac2", BigDecimal.valueOf(50)));
+    String idempotencyKey = "rejected-" + System.nanoTime();
+    AtomicBoolean saturated = new AtomicBoolean(true);
+    doAnswer(invocation -> {
+      if (saturated.getAndSet(false)) {
+        CompletableFuture<Boolean> rejected = new CompletableFuture<>();
+        rejected.completeExceptionally(new RejectedExecutionException());
+        return rejected;
+      }
+      return invocation.callRealMethod();
+    }).when(accountsService).transferMoneyAsync(any(), any());
+
+    // The executor refused the transfer, so the retry with the same key runs it
+    RequestBuilder transfer = post("/v1/accounts/transfer")
+        .contentType(MediaType.APPLICATION_JSON)
+        .header(AccountsController.IDEMPOTENCY_KEY_HEADER, idempotencyKey)
+        .content("{\"accountFromId\":\"ac1\",\"accountToId\":\"ac2\",\"amount\":10}");
+    performTransfer(transfer).andExpect(status().isServiceUnavailable());
+    performTransfer(transfer).andExpect(status().isOk());
+    performTransfer(transfer).andExpect(status().isOk());
+
+    assertThat(accountsService.getAccount("ac1").getBalance()).isEqualByComparingTo("20");
+  }
+
+  @Test
+  public void transferMoneyBetweenAccountsThreadInterrupt() throws Exception {
+    Account accountFrom = Account.builder()
+        .accountId("ac1")
+        .balance(BigDecimal.valueOf(30))
+        .build();
+    Account accountTo = Account.builder()
+        .accountId("ac2")
+        .balance(BigDecimal.valueOf(50))
         .build();
+    accountsService.createAccount(accountFrom);
+    accountsService.createAccount(accountTo);
 
     doThrow(new InterruptedException()).when(accountsService).transferMoney(any());
 
-    ResponseEntity<Object> response =
-        this.accountsController.transferMoneyBetweenAccounts(accountTransfer);
-    assertEquals(HttpStatus.LOCKED, response.getStatusCode());
+    performTransfer(post("/v1/accounts/transfer").contentType(MediaType.APPLICATION_JSON)
+        .content("{\"accountFromId\":\"ac1\",\"accountToId\":\"ac2\",\"amount\":10}"))
+        .andExpect(status().isLocked());
+  }
+
+  @Test
+  public void transferMoneyBetweenAccountsReleasesServletThread() throws Exception {
+    accountsService.createAccount(new Account("ac1", BigDecimal.valueOf(30)));
+    accountsService.createAccount(new Account("ac2", BigDecimal.valueOf(50)));
+    CountDownLatch release = new CountDownLatch(1);
+    doAnswer(invocation -> {
+      release.await();
+      return invocation.callRealMethod();
+    }).when(accountsService).transferMoney(any());
+
+    MvcResult result = this.mockMvc.perform(post("/v1/accounts/transfer")
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("{\"accountFromId\":\"ac1\",\"accountToId\":\"ac2\",\"amount\":10}"))
+        .andExpect(request().asyncStarted())
+        .andReturn();
+    // The request thread is back while the transfer still waits on the transfer executor
+    assertThat(accountsService.getAccount("ac1").getBalance()).isEqualByComparingTo("30");
+
+    release.countDown();
+    this.mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk());
+    assertThat(accountsService.getAccount("ac1").getBalance()).isEqualByComparingTo("20");
+  }
+
+  @Test
+  public void transferMoneyBatchNetted() throws Exception {
+    accountsService.createAccount(new Account("ac1", BigDecimal.valueOf(10)));
+    accountsService.createAccount(new Account("ac2", BigDecimal.ZERO));
+
+    // The first transfer only fits because the second one pays it back
+    this.mockMvc.perform(post("/v1/accounts/transfers/batch")
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("[{\"accountFromId\":\"ac1\",\"accountToId\":\"ac2\",\"amount\":15},"
+            + "{\"accountFromId\":\"ac2\",\"accountToId\":\"ac1\",\"amount\":10},"
+            + "{\"accountFromId\":\"ac1\",\"accountToId\":\"ac3\",\"amount\":1},"
+            + "{\"accountFromId\":\"ac1\",\"accountToId\":\"ac2\",\"amount\":-1}]"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$[0].status").value("OK"))
+        .andExpect(jsonPath("$[1].status").value("OK"))
+        .andExpect(jsonPath("$[2].status").value("NOT_FOUND"))
+        .andExpect(jsonPath("$[3].status").value("INVALID"));
+
+    assertThat(accountsService.getAccount("ac1").getBalance()).isEqualByComparingTo("5");
+    assertThat(accountsService.getAccount("ac2").getBalance()).isEqualByComparingTo("5");
+  }
+
+  @Test
+  public void transferMoneyBatchNdjsonSettledInOrder() throws Exception {
+    accountsService.createAccount(new Account("ac1", BigDecimal.valueOf(10)));
+    accountsService.createAccount(new Account("ac2", BigDecimal.ZERO));
+
+    this.mockMvc.perform(post("/v1/accounts/transfers/batch")
+        .contentType(AccountsController.APPLICATION_NDJSON_VALUE)
+        .content("{\"accountFromId\":\"ac1\",\"accountToId\":\"ac2\",\"amount\":8}\n"
+            + "{\"accountFromId\":\"ac1\",\"accountToId\":\"ac2\",\"amount\":8}\n"
+            + "{\"accountFromId\":\"ac2\",\"accountToId\":\"ac1\",\"amount\":1}\n"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$[0].status").value("OK"))
+        .andExpect(jsonPath("$[1].status").value("NOT_ENOUGH_BALANCE"))
+        .andExpect(jsonPath("$[2].status").value("OK"));
+
+    assertThat(accountsService.getAccount("ac1").getBalance()).isEqualByComparingTo("3");
+    assertThat(accountsService.getAccount("ac2").getBalance()).isEqualByComparingTo("7");
+  }
+
+  @Test
+  public void transferMoneyBatchUnboundTransferReportedAlone() throws Exception {
+    accountsService.createAccount(new Account("ac1", BigDecimal.valueOf(10)));
+    accountsService.createAccount(new Account("ac2", BigDecimal.ZERO));
+
+    this.mockMvc.perform(post("/v1/accounts/transfers/batch")
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("[{\"accountFromId\":\"ac1\",\"accountToId\":\"ac2\",\"amount\":1.001},"
+            + "{\"accountFromId\":\"ac1\",\"accountToId\":\"ac2\"},"
+            + "{\"accountFromId\":\"ac1\",\"accountToId\":\"ac2\",\"amount\":2}]"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$[0].status").value("INVALID"))
+        .andExpect(jsonPath("$[1].status").value("INVALID"))
+        .andExpect(jsonPath("$[1].message").value("Amount is required"))
+        .andExpect(jsonPath("$[2].status").value("OK"));
+
+    assertThat(accountsService.getAccount("ac1").getBalance()).isEqualByComparingTo("8");
+  }
+
+  @Test
+  public void transferMoneyBatchTooLarge() throws Exception {
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i <= AccountsController.MAX_BATCH_SIZE; i++) {
+      content.append("{\"accountFromId\":\"ac1\",\"accountToId\":\"ac2\",\"amount\":1}\n");
+    }
+    this.mockMvc.perform(post("/v1/accounts/transfers/batch")
+        .contentType(AccountsController.APPLICATION_NDJSON_VALUE)
+        .content(content.toString()))
+        .andExpect(status().isBadRequest());
+  }
+
+  @Test
+  public void transferMoneyBatchMalformed() throws Exception {
+    this.mockMvc.perform(post("/v1/accounts/transfers/batch")
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("[{\"accountFromId\":"))
+        .andExpect(status().isBadRequest());
+  }
+
+  @Test
+  public void transferMoneyMultiLeg() throws Exception {
+    accountsService.createAccount(new Account("ac1", BigDecimal.valueOf(10)));
+    accountsService.createAccount(new Account("ac2", BigDecimal.ZERO));
+    accountsService.createAccount(new Account("ac3", BigDecimal.ZERO));
+
+    this.mockMvc.perform(post("/v1/accounts/transfers/multi-leg")
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("{\"accountFromId\":\"ac1\",\"legs\":["
+            + "{\"accountToId\":\"ac2\",\"amount\":6},"
+            + "{\"accountToId\":\"ac4\",\"amount\":1}]}"))
+        .andExpect(status().isNotFound());
+    this.mockMvc.perform(post("/v1/accounts/transfers/multi-leg")
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("{\"accountFromId\":\"ac1\",\"legs\":[]}"))
+        .andExpect(status().isBadRequest());
+    this.mockMvc.perform(post("/v1/accounts/transfers/multi-leg")
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("{\"accountFromId\":\"ac1\",\"legs\":["
+            + "{\"accountToId\":\"ac2\",\"amount\":6},"
+            + "{\"accountToId\":\"ac3\",\"amount\":4}]}"))
+        .andExpect(status().isOk());
+
+    assertThat(accountsService.getAccount("ac1").getBalance()).isEqualByComparingTo("0");
+    assertThat(accountsService.getAccount("ac2").getBalance()).isEqualByComparingTo("6");
+    assertThat(accountsService.getAccount("ac3").getBalance()).isEqualByComparingTo("4");
+  }
+
+  @Test
+  public void scheduleTransfer() throws Exception {
+    accountsService.createAccount(new Account("ac1", BigDecimal.valueOf(10)));
+    accountsService.createAccount(new Account("ac2", BigDecimal.ZERO));
+
+    this.mockMvc.perform(post("/v1/accounts/transfers/scheduled")
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("{\"accountFromId\":\"ac1\",\"accountToId\":\"ac3\",\"amount\":4,"
+            + "\"executeAt\":0}"))
+        .andExpect(status().isNotFound());
+    this.mockMvc.perform(post("/v1/accounts/transfers/scheduled")
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("{\"accountFromId\":\"ac1\",\"accountToId\":\"ac2\",\"amount\":4}"))
+        .andExpect(status().isBadRequest());
+    this.mockMvc.perform(post("/v1/accounts/transfers/scheduled")
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("{\"accountFromId\":\"ac1\",\"accountToId\":\"ac2\",\"amount\":4,"
+            + "\"executeAt\":" + System.currentTimeMillis() + "}"))
+        .andExpect(status().isCreated())
+        .andExpect(jsonPath("$.id").isNumber())
+        .andExpect(jsonPath("$.amount").value(4));
+
+    // Executed by the scheduler thread on its next tick
+    for (int i = 0; i < 100 && accountsService.getAccount("ac2").getBalance().signum() == 0;
+        i++) {
+      Thread.sleep(50);
+    }
+    assertThat(accountsService.getAccount("ac1").getBalance()).isEqualByComparingTo("6");
+    assertThat(accountsService.getAccount("ac2").getBalance()).isEqualByComparingTo("4");
   }
 
   @Test
@@ -220,4 +555,95 @@ public class AccountsControllerTest {
       .andExpect(
         content().string("{\"accountId\":\"" + uniqueAccountId + "\",\"balance\":123.45}"));
   }
+
+  @Test
+  public void getAccountsPaginated() throws Exception {
+    for (int i = 1; i <= 3; i++) {
+      this.accountsService.createAccount(new Account("Id-" + i, BigDecimal.valueOf(i)));
+    }
+
+    this.mockMvc.perform(get("/v1/accounts").param("limit", "2"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.accounts[0].accountId").value("Id-1"))
+        .andExpect(jsonPath("$.accounts[1].accountId").value("Id-2"))
+        .andExpect(jsonPath("$.accounts.length()").value(2))
+        .andExpect(jsonPath("$.nextCursor").value("Id-2"));
+    this.mockMvc.perform(get("/v1/accounts").param("limit", "2").param("cursor", "Id-2"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.accounts[0].accountId").value("Id-3"))
+        .andExpect(jsonPath("$.accounts.length()").value(1))
+        .andExpect(jsonPath("$.nextCursor").doesNotExist());
+    this.mockMvc.perform(get("/v1/accounts").param("limit", "1001"))
+        .andExpect(status().isBadRequest());
+  }
+
+  @Test
+  public void exportAccountsNdjson() throws Exception {
+    this.accountsService.createAccount(new Account("Id-1", new BigDecimal("1.50")));
+    this.accountsService.createAccount(new Account("Id-2", BigDecimal.TEN));
+
+    String export = this.mockMvc.perform(get("/v1/accounts").param("format", "ndjson"))
+        .andExpect(status().isOk())
+        .andExpect(content().contentTypeCompatibleWith(AccountsController.APPLICATION_NDJSON_VALUE))
+        .andReturn().getResponse().getContentAsString();
+
+    assertThat(export.split("\n")).containsOnly(
+        "{\"accountId\":\"Id-1\",\"balance\":1.50}",
+        "{\"accountId\":\"Id-2\",\"balance\":10.00}");
+  }
+
+  @Test
+  public void getTransfersPaginated() throws Exception {
+    String accountId = "Id-" + System.currentTimeMillis();
+    this.accountsService.createAccount(new Account(accountId, new BigDecimal("100")));
+    this.accountsService.createAccount(new Account(accountId + "-to", BigDecimal.ZERO));
+    for (int i = 1; i <= 3; i++) {
+      performTransfer(post("/v1/accounts/transfer").contentType(MediaType.APPLICATION_JSON)
+          .content("{\"accountFromId\":\"" + accountId + "\",\"accountToId\":\"" + accountId
+              + "-to\",\"amount\":" + i + "}"))
+          .andExpect(status().isOk());
+    }
+
+    MvcResult firstPage = this.mockMvc.perform(
+        get("/v1/accounts/" + accountId + "/transfers").param("limit", "2"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.transfers.length()").value(2))
+        .andExpect(jsonPath("$.transfers[0].amount").value(3.0))
+        .andExpect(jsonPath("$.transfers[1].amount").value(2.0))
+        .andReturn();
+    String cursor = JsonPath.read(
+        firstPage.getResponse().getContentAsString(), "$.nextCursor");
+    this.mockMvc.perform(get("/v1/accounts/" + accountId + "/transfers")
+        .param("limit", "2").param("cursor", cursor))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.transfers.length()").value(1))
+        .andExpect(jsonPath("$.transfers[0].amount").value(1.0))
+        .andExpect(jsonPath("$.nextCursor").doesNotExist());
+
+    this.mockMvc.perform(get("/v1/accounts/" + accountId + "/transfers").param("limit", "0"))
+        .andExpect(status().isBadRequest());
+    this.mockMvc.perform(get("/v1/accounts/" + accountId + "/transfers").param("cursor", "x"))
+        .andExpect(status().isBadRequest());
+    this.mockMvc.perform(get("/v1/accounts/unknown/transfers"))
+        .andExpect(status().isNotFound());
+  }
+
+  /**
+   * Perform a transfer request, dispatching its asynchronous result if it started one.
+   */
+  @Test
+  public void actuatorExposesOnlyMetrics() throws Exception {
+    this.mockMvc.perform(get("/metrics")).andExpect(status().isOk())
+        .andExpect(jsonPath("$['accounts.count']").exists());
+    this.mockMvc.perform(get("/contention")).andExpect(status().isUnauthorized());
+  }
+
+  private ResultActions performTransfer(RequestBuilder request) throws Exception {
+    ResultActions resultActions = this.mockMvc.perform(request);
+    MvcResult result = resultActions.andReturn();
+    if (!result.getRequest().isAsyncStarted()) {
+      return resultActions;
+    }
+    return this.mockMvc.perform(asyncDispatch(result));
+  }
 }
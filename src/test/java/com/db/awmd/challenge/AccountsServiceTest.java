@@ -1,6 +1,7 @@
 package com.db.awmd.challenge;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -13,15 +14,27 @@ import static org.mockito.Mockito.when;
 
 import com.db.awmd.challenge.domain.Account;
 import com.db.awmd.challenge.domain.AccountTransfer;
+import com.db.awmd.challenge.domain.Money;
+import com.db.awmd.challenge.domain.MultiLegTransfer;
+import com.db.awmd.challenge.domain.StripedAccount;
 import com.db.awmd.challenge.exception.AccountNotFoundException;
 import com.db.awmd.challenge.exception.DuplicateAccountIdException;
 import com.db.awmd.challenge.exception.MoneyTransferException;
 import com.db.awmd.challenge.exception.NotEnoughBalanceException;
 import com.db.awmd.challenge.exception.SameAccountException;
+import com.db.awmd.challenge.metrics.TransferMetrics;
 import com.db.awmd.challenge.repository.AccountsRepositoryInMemory;
 import com.db.awmd.challenge.service.AccountsServiceImpl;
 import com.db.awmd.challenge.service.EmailNotificationService;
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -175,7 +188,6 @@ public class AccountsServiceTest {
         .accountId("ac1")
         .balance(BigDecimal.valueOf(30))
         .build();
-    accountFrom.getLock().writeLock().lock();
     Account accountTo = Account.builder()
         .accountId("ac2")
         .balance(BigDecimal.valueOf(50))
@@ -192,9 +204,121 @@ public class AccountsServiceTest {
         .amount(BigDecimal.TEN)
         .build();
 
-    assertFalse(this.accountsService.transferMoney(accountTransfer));
+    CountDownLatch locked = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Thread holder = new Thread(() -> {
+      accountFrom.getLock().writeLock().lock();
+      try {
+        locked.countDown();
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        accountFrom.getLock().writeLock().unlock();
+      }
+    });
+    holder.start();
+    locked.await();
+
+    try {
+      assertFalse(this.accountsService.transferMoney(accountTransfer));
+    } finally {
+      release.countDown();
+      holder.join();
+    }
     verify(this.accountsRepository, never()).updateAccount(any());
     verify(this.notificationService, never()).notifyAboutTransfer(any(), any());
+    assertFalse(accountTo.getLock().isWriteLocked());
+
+    TransferMetrics transferMetrics = this.accountsService.getTransferMetrics();
+    assertThat(transferMetrics.metrics())
+        .filteredOn("name", "transfer.locked")
+        .extracting("value")
+        .containsExactly(1L);
+    assertThat(transferMetrics.getMostContendedAccounts())
+        .extracting("accountId", "contendedLocks")
+        .containsExactly(tuple("ac1", 1L));
+  }
+
+  @Test
+  public void transferMoney_concurrentOppositeTransfers() throws Exception {
+    Account account1 = new Account("ac1", BigDecimal.valueOf(1000));
+    Account account2 = new Account("ac2", BigDecimal.valueOf(1000));
+    this.accountsService.createAccount(account1);
+    this.accountsService.createAccount(account2);
+
+    int threads = 8;
+    int transfersPerThread = 500;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      boolean forward = t % 2 == 0;
+      futures.add(executor.submit(() -> {
+        start.await();
+        for (int i = 0; i < transfersPerThread; i++) {
+          AccountTransfer accountTransfer = forward
+              ? new AccountTransfer("ac1", "ac2", BigDecimal.ONE)
+              : new AccountTransfer("ac2", "ac1", BigDecimal.ONE);
+          try {
+            this.accountsService.transferMoney(accountTransfer);
+          } catch (NotEnoughBalanceException ignored) {
+            // Legit outcome when one side has been drained
+          }
+        }
+        return null;
+      }));
+    }
+    start.countDown();
+    for (Future<?> future : futures) {
+      future.get(30, TimeUnit.SECONDS);
+    }
+    executor.shutdown();
+
+    assertThat(account1.getBalance().add(account2.getBalance())).isEqualByComparingTo("2000");
+    assertThat(account1.getBalance().signum()).isGreaterThanOrEqualTo(0);
+    assertThat(account2.getBalance().signum()).isGreaterThanOrEqualTo(0);
+  }
+
+  @Test
+  public void transferMoney_concurrentDepositsToStripedAccount() throws Exception {
+    StripedAccount hot = new StripedAccount("hot", 0, 4);
+    this.accountsService.createAccount(hot);
+    int threads = 8;
+    int transfersPerThread = 500;
+    for (int t = 0; t < threads; t++) {
+      this.accountsService.createAccount(new Account("ac" + t, BigDecimal.valueOf(1000)));
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      String accountFromId = "ac" + t;
+      futures.add(executor.submit(() -> {
+        start.await();
+        for (int i = 0; i < transfersPerThread; i++) {
+          assertTrue(this.accountsService.transferMoney(
+              new AccountTransfer(accountFromId, "hot", BigDecimal.ONE)));
+        }
+        return null;
+      }));
+    }
+    start.countDown();
+    for (Future<?> future : futures) {
+      future.get(30, TimeUnit.SECONDS);
+    }
+    executor.shutdown();
+    assertThat(hot.getBalance()).isEqualByComparingTo("4000");
+
+    // A withdrawal larger than any single sub-balance borrows across them
+    assertTrue(this.accountsService.transferMoney(
+        new AccountTransfer("hot", "ac0", BigDecimal.valueOf(3999))));
+    assertThat(hot.getBalance()).isEqualByComparingTo("1");
+    assertThat(this.accountsService.getAccount("ac0").getBalance())
+        .isEqualByComparingTo("4499");
+    assertFalse(hot.withdraw(Money.toMinorUnits(BigDecimal.valueOf(2))));
+    assertThat(hot.getBalance()).isEqualByComparingTo("1");
   }
 
   @Test(expected = MoneyTransferException.class)
@@ -203,9 +327,10 @@ public class AccountsServiceTest {
         .accountId("ac1")
         .balance(BigDecimal.valueOf(30))
         .build();
+    // A deposit overflowing the destination balance must fail before either account changes
     Account accountTo = Account.builder()
         .accountId("ac2")
-        .balance(null)
+        .balance(Money.toDecimal(Long.MAX_VALUE - 5))
         .build();
 
     when(this.accountsService.getAccount("ac1")).thenReturn(accountFrom);
@@ -219,4 +344,42 @@ public class AccountsServiceTest {
 
     this.accountsService.transferMoney(accountTransfer);
   }
+
+  @Test
+  public void transferMoneyMultiLeg_ok() throws InterruptedException {
+    this.accountsService.createAccount(new Account("ac1", BigDecimal.valueOf(30)));
+    this.accountsService.createAccount(new Account("ac2", BigDecimal.ZERO));
+    this.accountsService.createAccount(new Account("ac3", BigDecimal.ONE));
+
+    assertTrue(this.accountsService.transferMoneyMultiLeg(new MultiLegTransfer("ac1",
+        Arrays.asList(new MultiLegTransfer.Leg("ac2", BigDecimal.TEN),
+            new MultiLegTransfer.Leg("ac3", BigDecimal.valueOf(5)),
+            new MultiLegTransfer.Leg("ac2", BigDecimal.valueOf(15))))));
+
+    assertThat(this.accountsService.getAccount("ac1").getBalance()).isEqualByComparingTo("0");
+    assertThat(this.accountsService.getAccount("ac2").getBalance()).isEqualByComparingTo("25");
+    assertThat(this.accountsService.getAccount("ac3").getBalance()).isEqualByComparingTo("6");
+    verify(this.notificationService, times(6)).notifyAboutTransfer(any(), any());
+  }
+
+  @Test
+  public void transferMoneyMultiLeg_notEnoughBalanceAppliesNoLeg() throws InterruptedException {
+    this.accountsService.createAccount(new Account("ac1", BigDecimal.valueOf(30)));
+    this.accountsService.createAccount(new Account("ac2", BigDecimal.ZERO));
+    this.accountsService.createAccount(new Account("ac3", BigDecimal.ZERO));
+
+    try {
+      this.accountsService.transferMoneyMultiLeg(new MultiLegTransfer("ac1",
+          Arrays.asList(new MultiLegTransfer.Leg("ac2", BigDecimal.valueOf(20)),
+              new MultiLegTransfer.Leg("ac3", BigDecimal.valueOf(20)))));
+      fail("Should have failed as the legs add up to more than the balance");
+    } catch (NotEnoughBalanceException ex) {
+      assertThat(ex.getMessage())
+          .isEqualTo("Account with id ac1 doesn't have the desired amount to transfer");
+    }
+    assertThat(this.accountsService.getAccount("ac1").getBalance()).isEqualByComparingTo("30");
+    assertThat(this.accountsService.getAccount("ac2").getBalance()).isEqualByComparingTo("0");
+    assertThat(this.accountsService.getAccount("ac3").getBalance()).isEqualByComparingTo("0");
+    verify(this.accountsRepository, never()).updateAccounts(any());
+  }
 }
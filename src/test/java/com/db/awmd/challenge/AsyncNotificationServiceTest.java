@@ -0,0 +1,76 @@
+package com.db.awmd.challenge;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.service.AsyncNotificationService;
+import com.db.awmd.challenge.service.EmailNotificationService;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+
+public class AsyncNotificationServiceTest {
+
+  private final EmailNotificationService emailNotificationService =
+      mock(EmailNotificationService.class);
+
+  @Test
+  public void notifyAboutTransfer_mergesNotificationsOfSameAccount() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    Account blocker = new Account("blocker");
+    doAnswer(invocation -> {
+      if (invocation.getArguments()[0] == blocker) {
+        release.await();
+      }
+      return null;
+    }).when(this.emailNotificationService).notifyAboutTransfer(any(), any());
+
+    AsyncNotificationService notificationService =
+        new AsyncNotificationService(this.emailNotificationService, 10, 1, 10, "drop");
+    // Keep the single worker busy so the next ones queue up and end in the same batch
+    notificationService.notifyAboutTransfer(blocker, "first");
+    verify(this.emailNotificationService, timeout(1000)).notifyAboutTransfer(blocker, "first");
+    Account account = new Account("ac1");
+    notificationService.notifyAboutTransfer(account, "one");
+    notificationService.notifyAboutTransfer(account, "two");
+    release.countDown();
+
+    verify(this.emailNotificationService, timeout(1000))
+        .notifyAboutTransfer(eq(account), eq("one" + System.lineSeparator() + "two"));
+    notificationService.shutdown();
+  }
+
+  @Test
+  public void notifyAboutTransfer_dropsWhenFull() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    doAnswer(invocation -> {
+      release.await();
+      return null;
+    }).when(this.emailNotificationService).notifyAboutTransfer(any(), any());
+
+    AsyncNotificationService notificationService =
+        new AsyncNotificationService(this.emailNotificationService, 2, 1, 10, "drop");
+    Account account = new Account("ac1");
+    notificationService.notifyAboutTransfer(account, "taken by the worker");
+    verify(this.emailNotificationService, timeout(1000)).notifyAboutTransfer(any(), any());
+    for (int i = 0; i < 5; i++) {
+      notificationService.notifyAboutTransfer(account, "queued " + i);
+    }
+
+    Map<String, Number> metrics = notificationService.metrics().stream()
+        .collect(Collectors.toMap(Metric::getName, Metric::getValue));
+    assertThat(metrics.get("notifications.submitted").longValue()).isEqualTo(6);
+    assertThat(metrics.get("notifications.dropped").longValue()).isEqualTo(3);
+    assertThat(metrics.get("notifications.queued").longValue()).isEqualTo(2);
+    release.countDown();
+    notificationService.shutdown();
+  }
+}
@@ -0,0 +1,226 @@
+package com.db.awmd.challenge;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.junit.Assert.fail;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.AccountSnapshot;
+import com.db.awmd.challenge.domain.AccountTransfer;
+import com.db.awmd.challenge.exception.DuplicateAccountIdException;
+import com.db.awmd.challenge.repository.CachingAccountsRepository;
+import com.db.awmd.challenge.repository.JdbcAccountsRepository;
+import com.db.awmd.challenge.service.AccountsServiceImpl;
+import com.db.awmd.challenge.service.EmailNotificationService;
+import com.db.awmd.challenge.service.OptimisticAccountsService;
+import com.db.awmd.challenge.service.ShardedAccountsService;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import liquibase.integration.spring.SpringLiquibase;
+import org.apache.tomcat.jdbc.pool.DataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceBuilder;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+public class JdbcAccountsRepositoryTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private DataSource dataSource;
+
+  @Before
+  public void setup() throws Exception {
+    this.dataSource = (DataSource) DataSourceBuilder.create()
+        .type(DataSource.class)
+        .url("jdbc:h2:file:" + this.temporaryFolder.getRoot().getAbsolutePath() + "/accounts")
+        .username("sa")
+        .build();
+    SpringLiquibase liquibase = new SpringLiquibase();
+    liquibase.setDataSource(this.dataSource);
+    liquibase.setChangeLog("classpath:db/changelog/accounts.yaml");
+    liquibase.setResourceLoader(new DefaultResourceLoader());
+    liquibase.afterPropertiesSet();
+  }
+
+  @After
+  public void tearDown() {
+    this.dataSource.close();
+  }
+
+  @Test
+  public void transfers_surviveRestart() throws Exception {
+    JdbcAccountsRepository accountsRepository = newRepository(false);
+    AccountsServiceImpl accountsService = new AccountsServiceImpl(accountsRepository,
+        new EmailNotificationService());
+    accountsService.createAccounts(Arrays.asList(new Account("ac1", new BigDecimal("100.00")),
+        new Account("ac2", BigDecimal.ZERO)));
+
+    for (int i = 0; i < 10; i++) {
+      accountsService.transferMoney(new AccountTransfer("ac1", "ac2", new BigDecimal("2.50")));
+    }
+
+    JdbcAccountsRepository restarted = newRepository(false);
+    assertThat(restarted.getAccount("ac1").getBalance())
+        .isEqualByComparingTo(new BigDecimal("75.00"));
+    assertThat(restarted.getAccount("ac2").getBalance())
+        .isEqualByComparingTo(new BigDecimal("25.00"));
+    try {
+      restarted.createAccount(new Account("ac1", BigDecimal.ONE));
+      fail("Should have failed when adding duplicate account");
+    } catch (DuplicateAccountIdException ex) {
+      assertThat(ex.getMessage()).isEqualTo("Account id ac1 already exists!");
+    }
+  }
+
+  @Test
+  public void writeBehind_writesLatestBalanceOncePerFlush() throws Exception {
+    JdbcAccountsRepository accountsRepository = newRepository(true);
+    AccountsServiceImpl accountsService = new AccountsServiceImpl(accountsRepository,
+        new EmailNotificationService());
+    accountsService.createAccount(new Account("ac1", new BigDecimal("100.00")));
+    accountsService.createAccount(new Account("ac2", BigDecimal.ZERO));
+
+    for (int i = 0; i < 100; i++) {
+      accountsService.transferMoney(new AccountTransfer("ac1", "ac2", BigDecimal.ONE));
+    }
+    assertThat(newRepository(false).getAccount("ac2").getBalance())
+        .isEqualByComparingTo(BigDecimal.ZERO);
+
+    accountsRepository.close();
+    JdbcAccountsRepository restarted = newRepository(false);
+    assertThat(restarted.getAccount("ac1").getBalance()).isEqualByComparingTo(BigDecimal.ZERO);
+    assertThat(restarted.getAccount("ac2").getBalance())
+        .isEqualByComparingTo(new BigDecimal("100.00"));
+    assertThat(accountsRepository.metrics()).extracting("name", "value")
+        .contains(tuple("accounts.jdbc.flushes", 1L),
+            tuple("accounts.jdbc.flushed-accounts", 2L));
+  }
+
+  @Test
+  public void cache_servesReadsAndEvictsOnVersionConflict() throws Exception {
+    CachingAccountsRepository accountsRepository = new CachingAccountsRepository(
+        newRepository(false), 10);
+    AccountsServiceImpl accountsService = new AccountsServiceImpl(accountsRepository,
+        new EmailNotificationService());
+    accountsService.createAccount(new Account("ac1", new BigDecimal("100.00")));
+    accountsService.createAccount(new Account("ac2", BigDecimal.ZERO));
+
+    accountsService.transferMoney(new AccountTransfer("ac1", "ac2", BigDecimal.TEN));
+    assertThat(accountsRepository.getAccount("ac1"))
+        .isSameAs(accountsRepository.getAccount("ac1"));
+    assertThat(accountsRepository.metrics()).extracting("name", "value")
+        .contains(tuple("accounts.cache.misses", 2L), tuple("accounts.cache.hits", 2L));
+
+    // Another writer changes the row behind the cache
+    new JdbcTemplate(this.dataSource).update(
+        "UPDATE account SET balance = 5000, version = version + 1 WHERE account_id = 'ac1'");
+    try {
+      accountsService.transferMoney(new AccountTransfer("ac1", "ac2", BigDecimal.TEN));
+      fail("Should have failed on the version conflict");
+    } catch (OptimisticLockingFailureException ex) {
+      assertThat(ex.getMessage()).isEqualTo("Account id ac1 changed since it was read");
+    }
+    assertThat(accountsRepository.getAccount("ac1").getBalance())
+        .isEqualByComparingTo(new BigDecimal("50.00"));
+    assertThat(accountsRepository.getAccount("ac2").getBalance())
+        .isEqualByComparingTo(BigDecimal.TEN);
+  }
+
+  @Test
+  public void cache_rereadsAccountsDroppedByFailedFlush() throws Exception {
+    JdbcAccountsRepository jdbcRepository = newRepository(true);
+    CachingAccountsRepository accountsRepository = new CachingAccountsRepository(
+        jdbcRepository, 10);
+    AccountsServiceImpl accountsService = new AccountsServiceImpl(accountsRepository,
+        new EmailNotificationService());
+    accountsService.createAccount(new Account("ac1", new BigDecimal("100.00")));
+    accountsService.createAccount(new Account("ac2", BigDecimal.ZERO));
+    accountsService.transferMoney(new AccountTransfer("ac1", "ac2", BigDecimal.TEN));
+
+    new JdbcTemplate(this.dataSource).update(
+        "UPDATE account SET balance = 5000, version = version + 1 WHERE account_id = 'ac1'");
+    try {
+      jdbcRepository.flush();
+      fail("Should have failed on the version conflict");
+    } catch (OptimisticLockingFailureException ex) {
+      assertThat(ex.getMessage()).isEqualTo("Account id ac1 changed since it was read");
+    }
+    assertThat(accountsRepository.getAccount("ac1").getBalance())
+        .isEqualByComparingTo(new BigDecimal("50.00"));
+    assertThat(accountsRepository.getAccount("ac2").getBalance())
+        .isEqualByComparingTo(BigDecimal.ZERO);
+    assertThat(accountsService.transferMoney(new AccountTransfer("ac1", "ac2", BigDecimal.TEN)))
+        .isTrue();
+  }
+
+  @Test
+  public void writeBehind_flushesWholeTransfersInOneTransaction() throws Exception {
+    JdbcAccountsRepository accountsRepository = new JdbcAccountsRepository(this.dataSource,
+        true, 3_600_000, 1);
+    AccountsServiceImpl accountsService = new AccountsServiceImpl(accountsRepository,
+        new EmailNotificationService());
+    accountsService.createAccount(new Account("ac1", new BigDecimal("100.00")));
+    accountsService.createAccount(new Account("ac2", BigDecimal.ZERO));
+    accountsService.transferMoney(new AccountTransfer("ac1", "ac2", BigDecimal.TEN));
+
+    // The second row conflicts after the first batch is written
+    new JdbcTemplate(this.dataSource).update(
+        "UPDATE account SET version = version + 1 WHERE account_id = 'ac2'");
+    try {
+      accountsRepository.flush();
+      fail("Should have failed on the version conflict");
+    } catch (OptimisticLockingFailureException ex) {
+      assertThat(ex.getMessage()).isEqualTo("Account id ac2 changed since it was read");
+    }
+    JdbcAccountsRepository restarted = newRepository(false);
+    assertThat(restarted.getAccount("ac1").getBalance())
+        .isEqualByComparingTo(new BigDecimal("100.00"));
+    assertThat(restarted.getAccount("ac2").getBalance()).isEqualByComparingTo(BigDecimal.ZERO);
+  }
+
+  @Test
+  public void optimisticEngine_setsBothAccountsInOneTransaction() throws Exception {
+    JdbcAccountsRepository accountsRepository = newRepository(false);
+    OptimisticAccountsService accountsService = new OptimisticAccountsService(
+        accountsRepository, new EmailNotificationService(), 0, 1, 1000);
+    accountsService.createAccount(new Account("ac1", new BigDecimal("100.00")));
+    accountsService.createAccount(new Account("ac2", BigDecimal.ZERO));
+    assertThat(accountsService.transferMoney(new AccountTransfer("ac1", "ac2", BigDecimal.TEN)))
+        .isTrue();
+
+    // A snapshot that went stale on the destination sets neither account
+    AccountSnapshot from = accountsRepository.getSnapshot("ac1");
+    AccountSnapshot to = accountsRepository.getSnapshot("ac2");
+    new JdbcTemplate(this.dataSource).update(
+        "UPDATE account SET version = version + 1 WHERE account_id = 'ac2'");
+    assertThat(accountsRepository.compareAndSetAll(Arrays.asList(from, to),
+        new long[] {0, 10000})).isFalse();
+
+    JdbcAccountsRepository restarted = newRepository(false);
+    assertThat(restarted.getAccount("ac1").getBalance())
+        .isEqualByComparingTo(new BigDecimal("90.00"));
+    assertThat(restarted.getAccount("ac2").getBalance()).isEqualByComparingTo(BigDecimal.TEN);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void shardedEngine_refusesRepository() {
+    new ShardedAccountsService(newRepository(false), new EmailNotificationService(), 1);
+  }
+
+  /**
+   * Repository on the test database; write-behind only flushes on close.
+   */
+  private JdbcAccountsRepository newRepository(boolean writeBehind) {
+    JdbcAccountsRepository accountsRepository = new JdbcAccountsRepository(this.dataSource,
+        writeBehind, 3_600_000, 100);
+    accountsRepository.start();
+    return accountsRepository;
+  }
+}
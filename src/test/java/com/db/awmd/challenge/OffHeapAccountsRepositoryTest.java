@@ -0,0 +1,161 @@
+package com.db.awmd.challenge;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.AccountTransfer;
+import com.db.awmd.challenge.exception.AccountsRejectedException;
+import com.db.awmd.challenge.exception.AccountsStorageFullException;
+import com.db.awmd.challenge.exception.DuplicateAccountIdException;
+import com.db.awmd.challenge.exception.InvalidAccountIdException;
+import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import com.db.awmd.challenge.repository.OffHeapAccountsRepository;
+import com.db.awmd.challenge.service.AccountsServiceImpl;
+import com.db.awmd.challenge.service.EmailNotificationService;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OffHeapAccountsRepositoryTest {
+
+  private OffHeapAccountsRepository accountsRepository;
+
+  private AccountsServiceImpl accountsService;
+
+  @Before
+  public void setup() {
+    // Few stripes, so accounts share locks
+    this.accountsRepository = new OffHeapAccountsRepository(10_000, 16, 4);
+    this.accountsService = new AccountsServiceImpl(this.accountsRepository,
+        new EmailNotificationService());
+  }
+
+  @Test
+  public void getAccountsPagesInIdOrder() {
+    for (int i = 9; i >= 0; i--) {
+      this.accountsRepository.createAccount(new Account("ac" + i, BigDecimal.valueOf(i)));
+    }
+
+    assertThat(this.accountsRepository.getAccounts(null, 3)).extracting("accountId")
+        .containsExactly("ac0", "ac1", "ac2");
+    assertThat(this.accountsRepository.getAccounts("ac7", 3)).extracting("accountId")
+        .containsExactly("ac8", "ac9");
+    List<String> accountIds = new ArrayList<>();
+    this.accountsRepository.forEachAccount(account -> accountIds.add(account.getAccountId()));
+    assertThat(accountIds).hasSize(10).startsWith("ac9");
+  }
+
+  @Test(expected = InvalidAccountIdException.class)
+  public void createAccountIdTooLong() {
+    this.accountsRepository.createAccount(new Account("ac12345678901234567", BigDecimal.ONE));
+  }
+
+  @Test
+  public void createAccountsReportsAccountsNotStored() {
+    OffHeapAccountsRepository accountsRepository = new OffHeapAccountsRepository(3, 4, 4);
+
+    try {
+      accountsRepository.createAccounts(Arrays.asList(new Account("ac1", BigDecimal.ONE),
+          new Account("ac123", BigDecimal.ONE), new Account("ac1", BigDecimal.ONE),
+          new Account("ac2", BigDecimal.ONE), new Account("ac3", BigDecimal.ONE),
+          new Account("ac4", BigDecimal.ONE)));
+      fail("Should have failed as an id is too long and the slab fills up");
+    } catch (AccountsRejectedException e) {
+      assertThat(e.getDuplicates()).containsExactly(2);
+      assertThat(e.getRejections()).containsOnlyKeys(1, 5);
+      assertThat(e.getRejections().get(1)).isInstanceOf(InvalidAccountIdException.class);
+      assertThat(e.getRejections().get(5)).isInstanceOf(AccountsStorageFullException.class);
+    }
+
+    assertThat(accountsRepository.getAccount("ac3")).isNotNull();
+    assertThat(accountsRepository.getAccount("ac4")).isNull();
+  }
+
+  @Test
+  public void createAndGetAccount() {
+    for (int i = 0; i < 5000; i++) {
+      this.accountsRepository.createAccount(new Account("ac" + i, BigDecimal.valueOf(i)));
+    }
+
+    for (int i = 0; i < 5000; i++) {
+      Account account = this.accountsRepository.getAccount("ac" + i);
+      assertThat(account.getAccountId()).isEqualTo("ac" + i);
+      assertThat(account.getBalance()).isEqualByComparingTo(BigDecimal.valueOf(i));
+    }
+    assertThat(this.accountsRepository.getAccount("ac5000")).isNull();
+  }
+
+  @Test
+  public void createAccount_failsOnDuplicateId() {
+    this.accountsRepository.createAccount(new Account("ac1", BigDecimal.ONE));
+
+    try {
+      this.accountsRepository.createAccount(new Account("ac1", BigDecimal.TEN));
+      fail("Should have failed when adding duplicate account");
+    } catch (DuplicateAccountIdException ex) {
+      assertThat(ex.getMessage()).isEqualTo("Account id ac1 already exists!");
+    }
+    assertThat(this.accountsRepository.getAccount("ac1").getBalance())
+        .isEqualByComparingTo(BigDecimal.ONE);
+  }
+
+  @Test
+  public void clearAccounts() {
+    this.accountsRepository.createAccount(new Account("ac1", BigDecimal.ONE));
+
+    this.accountsRepository.clearAccounts();
+
+    assertThat(this.accountsRepository.getAccount("ac1")).isNull();
+    this.accountsRepository.createAccount(new Account("ac1", BigDecimal.TEN));
+    assertThat(this.accountsRepository.getAccount("ac1").getBalance())
+        .isEqualByComparingTo(BigDecimal.TEN);
+  }
+
+  @Test
+  public void transferMoney_concurrentOnSharedStripes() throws Exception {
+    int accounts = 16;
+    for (int i = 0; i < accounts; i++) {
+      this.accountsService.createAccount(new Account("ac" + i, BigDecimal.valueOf(100)));
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      int seed = t;
+      futures.add(executor.submit(() -> {
+        for (int i = 0; i < 1000; i++) {
+          int from = (seed + i) % accounts;
+          int to = (seed * 7 + i * 3 + 1) % accounts;
+          if (from == to) {
+            continue;
+          }
+          try {
+            this.accountsService.transferMoney(
+                new AccountTransfer("ac" + from, "ac" + to, BigDecimal.ONE));
+          } catch (NotEnoughBalanceException ignored) {
+            // Legit outcome when the source has been drained
+          }
+        }
+        return null;
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get(30, TimeUnit.SECONDS);
+    }
+    executor.shutdown();
+
+    BigDecimal total = BigDecimal.ZERO;
+    for (int i = 0; i < accounts; i++) {
+      total = total.add(this.accountsService.getAccount("ac" + i).getBalance());
+    }
+    assertThat(total).isEqualByComparingTo(BigDecimal.valueOf(100L * accounts));
+  }
+}
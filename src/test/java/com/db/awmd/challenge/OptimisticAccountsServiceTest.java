@@ -0,0 +1,173 @@
+package com.db.awmd.challenge;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.AccountSnapshot;
+import com.db.awmd.challenge.domain.AccountTransfer;
+import com.db.awmd.challenge.domain.MultiLegTransfer;
+import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import com.db.awmd.challenge.repository.AccountsRepository;
+import com.db.awmd.challenge.repository.AccountsRepositoryInMemory;
+import com.db.awmd.challenge.repository.OffHeapAccountsRepository;
+import com.db.awmd.challenge.service.EmailNotificationService;
+import com.db.awmd.challenge.service.OptimisticAccountsService;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class OptimisticAccountsServiceTest {
+
+  @Test
+  public void transferMoney_ok() throws Exception {
+    OptimisticAccountsService accountsService = newService(new AccountsRepositoryInMemory());
+    accountsService.createAccount(new Account("ac1", BigDecimal.valueOf(30)));
+    accountsService.createAccount(new Account("ac2", BigDecimal.valueOf(50)));
+
+    assertTrue(accountsService.transferMoney(new AccountTransfer("ac1", "ac2", BigDecimal.TEN)));
+
+    assertThat(accountsService.getAccount("ac1").getBalance()).isEqualByComparingTo("20");
+    assertThat(accountsService.getAccount("ac2").getBalance()).isEqualByComparingTo("60");
+    assertThat(accountsService.getAccountsRepository().getSnapshot("ac1").getVersion())
+        .isEqualTo(1);
+  }
+
+  @Test
+  public void transferMoney_keepsAccountObjects() throws Exception {
+    OptimisticAccountsService accountsService = newService(new AccountsRepositoryInMemory());
+    accountsService.createAccount(new Account("ac1", BigDecimal.valueOf(30)));
+    accountsService.createAccount(new Account("ac2", BigDecimal.valueOf(50)));
+    Account account = accountsService.getAccount("ac1");
+
+    assertTrue(accountsService.transferMoney(new AccountTransfer("ac1", "ac2", BigDecimal.TEN)));
+
+    assertThat(accountsService.getAccount("ac1")).isSameAs(account);
+    assertThat(account.getBalance()).isEqualByComparingTo("20");
+  }
+
+  @Test
+  public void compareAndSetAll_setsNoneOnStaleVersion() {
+    AccountsRepository accountsRepository = new AccountsRepositoryInMemory();
+    accountsRepository.createAccount(new Account("ac1", BigDecimal.TEN));
+    accountsRepository.createAccount(new Account("ac2", BigDecimal.TEN));
+    AccountSnapshot snapshot1 = accountsRepository.getSnapshot("ac1");
+    AccountSnapshot snapshot2 = accountsRepository.getSnapshot("ac2");
+    accountsRepository.compareAndSet(snapshot2, 2000);
+
+    assertThat(accountsRepository.compareAndSetAll(Arrays.asList(snapshot1, snapshot2),
+        new long[] {0, 3000})).isFalse();
+    assertThat(accountsRepository.getAccount("ac1").getBalance()).isEqualByComparingTo("10");
+    assertThat(accountsRepository.getAccount("ac2").getBalance()).isEqualByComparingTo("20");
+  }
+
+  @Test
+  public void transferMoneyMultiLeg_ok() throws Exception {
+    OptimisticAccountsService accountsService = newService(new AccountsRepositoryInMemory());
+    accountsService.createAccount(new Account("ac1", BigDecimal.valueOf(30)));
+    accountsService.createAccount(new Account("ac2", BigDecimal.ZERO));
+    accountsService.createAccount(new Account("ac3", BigDecimal.ONE));
+
+    assertTrue(accountsService.transferMoneyMultiLeg(new MultiLegTransfer("ac1",
+        Arrays.asList(new MultiLegTransfer.Leg("ac2", BigDecimal.TEN),
+            new MultiLegTransfer.Leg("ac3", BigDecimal.valueOf(5)),
+            new MultiLegTransfer.Leg("ac2", BigDecimal.valueOf(15))))));
+
+    assertThat(accountsService.getAccount("ac1").getBalance()).isEqualByComparingTo("0");
+    assertThat(accountsService.getAccount("ac2").getBalance()).isEqualByComparingTo("25");
+    assertThat(accountsService.getAccount("ac3").getBalance()).isEqualByComparingTo("6");
+  }
+
+  @Test
+  public void compareAndSet_failsOnStaleVersion() {
+    AccountsRepository accountsRepository = new AccountsRepositoryInMemory();
+    accountsRepository.createAccount(new Account("ac1", BigDecimal.TEN));
+    AccountSnapshot snapshot = accountsRepository.getSnapshot("ac1");
+
+    AccountSnapshot updated = accountsRepository.compareAndSet(snapshot, 500);
+
+    assertThat(updated.getVersion()).isEqualTo(snapshot.getVersion() + 1);
+    assertThat(accountsRepository.compareAndSet(snapshot, 0)).isNull();
+    assertThat(accountsRepository.getAccount("ac1").getBalance()).isEqualByComparingTo("5");
+  }
+
+  @Test
+  public void getSnapshot_readsBalanceOfItsVersion() throws Exception {
+    AccountsRepository accountsRepository = new AccountsRepositoryInMemory();
+    accountsRepository.createAccount(new Account("ac1", BigDecimal.ZERO));
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    Future<?> writer = executor.submit(() -> {
+      AccountSnapshot snapshot = accountsRepository.getSnapshot("ac1");
+      for (int i = 0; i < 100_000; i++) {
+        snapshot = accountsRepository.compareAndSet(snapshot, 10 * (snapshot.getVersion() + 1));
+      }
+    });
+
+    // Every balance written is ten times its version, a torn read would break that
+    while (!writer.isDone()) {
+      AccountSnapshot snapshot = accountsRepository.getSnapshot("ac1");
+      assertThat(snapshot.getBalanceMinorUnits()).isEqualTo(10 * snapshot.getVersion());
+    }
+    writer.get();
+    executor.shutdown();
+    assertThat(accountsRepository.getSnapshot("ac1").getVersion()).isEqualTo(100_000);
+  }
+
+  @Test
+  public void transferMoney_concurrentConservesMoney() throws Exception {
+    transferConcurrently(newService(new AccountsRepositoryInMemory()));
+    // Compare-and-set under the lock stripes, the default of the repository interface
+    transferConcurrently(newService(new OffHeapAccountsRepository(1000, 16, 4)));
+  }
+
+  private void transferConcurrently(OptimisticAccountsService accountsService)
+      throws Exception {
+    int accounts = 4;
+    for (int i = 0; i < accounts; i++) {
+      accountsService.createAccount(new Account("ac" + i, BigDecimal.valueOf(100)));
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      int seed = t;
+      futures.add(executor.submit(() -> {
+        for (int i = 0; i < 1000; i++) {
+          int from = (seed + i) % accounts;
+          int to = (seed * 7 + i * 3 + 1) % accounts;
+          if (from == to) {
+            continue;
+          }
+          try {
+            accountsService.transferMoney(
+                new AccountTransfer("ac" + from, "ac" + to, BigDecimal.ONE));
+          } catch (NotEnoughBalanceException ignored) {
+            // Legit outcome when the source has been drained
+          }
+        }
+        return null;
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get(30, TimeUnit.SECONDS);
+    }
+    executor.shutdown();
+
+    BigDecimal total = BigDecimal.ZERO;
+    for (int i = 0; i < accounts; i++) {
+      total = total.add(accountsService.getAccount("ac" + i).getBalance());
+    }
+    assertThat(total).isEqualByComparingTo(BigDecimal.valueOf(100L * accounts));
+  }
+
+  private static OptimisticAccountsService newService(AccountsRepository accountsRepository) {
+    return new OptimisticAccountsService(accountsRepository, new EmailNotificationService(),
+        16, 1, 1000);
+  }
+}
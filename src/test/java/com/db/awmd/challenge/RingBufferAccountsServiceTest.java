@@ -0,0 +1,187 @@
+package com.db.awmd.challenge;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.AccountTransfer;
+import com.db.awmd.challenge.domain.MultiLegTransfer;
+import com.db.awmd.challenge.exception.JournalException;
+import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import com.db.awmd.challenge.journal.TransferJournal;
+import com.db.awmd.challenge.repository.AccountsRepositoryInMemory;
+import com.db.awmd.challenge.service.EmailNotificationService;
+import com.db.awmd.challenge.service.RingBufferAccountsService;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RingBufferAccountsServiceTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private RingBufferAccountsService accountsService;
+
+  @Before
+  public void setup() {
+    this.accountsService = new RingBufferAccountsService(new AccountsRepositoryInMemory(),
+        new EmailNotificationService(), 1024, 64, "yielding");
+  }
+
+  @After
+  public void shutdown() throws InterruptedException {
+    this.accountsService.shutdown();
+  }
+
+  @Test
+  public void transferMoney_ok() throws Exception {
+    this.accountsService.createAccount(new Account("ac1", BigDecimal.valueOf(30)));
+    this.accountsService.createAccount(new Account("ac2", BigDecimal.valueOf(50)));
+
+    assertTrue(this.accountsService.transferMoney(
+        new AccountTransfer("ac1", "ac2", BigDecimal.TEN)));
+
+    assertThat(this.accountsService.getAccount("ac1").getBalance()).isEqualByComparingTo("20");
+    assertThat(this.accountsService.getAccount("ac2").getBalance()).isEqualByComparingTo("60");
+  }
+
+  @Test(expected = NotEnoughBalanceException.class)
+  public void transferMoney_notEnoughBalance() throws Exception {
+    this.accountsService.createAccount(new Account("ac1", BigDecimal.valueOf(30)));
+    this.accountsService.createAccount(new Account("ac2", BigDecimal.valueOf(50)));
+
+    this.accountsService.transferMoney(new AccountTransfer("ac1", "ac2", BigDecimal.valueOf(31)));
+  }
+
+  @Test
+  public void transferMoneyMultiLeg_appliesAllOrNothing() throws Exception {
+    this.accountsService.createAccount(new Account("ac1", BigDecimal.valueOf(30)));
+    this.accountsService.createAccount(new Account("ac2", BigDecimal.ZERO));
+    this.accountsService.createAccount(new Account("ac3", BigDecimal.ONE));
+
+    assertTrue(this.accountsService.transferMoneyMultiLeg(new MultiLegTransfer("ac1",
+        Arrays.asList(new MultiLegTransfer.Leg("ac2", BigDecimal.TEN),
+            new MultiLegTransfer.Leg("ac3", BigDecimal.valueOf(5)),
+            new MultiLegTransfer.Leg("ac2", BigDecimal.valueOf(15))))));
+    try {
+      this.accountsService.transferMoneyMultiLeg(new MultiLegTransfer("ac2",
+          Arrays.asList(new MultiLegTransfer.Leg("ac1", BigDecimal.valueOf(20)),
+              new MultiLegTransfer.Leg("ac3", BigDecimal.valueOf(20)))));
+      fail("Should have failed as the legs add up to more than the balance");
+    } catch (NotEnoughBalanceException ignored) {
+      // Expected, and no leg applied
+    }
+
+    assertThat(this.accountsService.getAccount("ac1").getBalance()).isEqualByComparingTo("0");
+    assertThat(this.accountsService.getAccount("ac2").getBalance()).isEqualByComparingTo("25");
+    assertThat(this.accountsService.getAccount("ac3").getBalance()).isEqualByComparingTo("6");
+  }
+
+  @Test
+  public void transferMoney_concurrentProducers() throws Exception {
+    int accounts = 16;
+    for (int i = 0; i < accounts; i++) {
+      this.accountsService.createAccount(new Account("ac" + i, BigDecimal.valueOf(100)));
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      int seed = t;
+      futures.add(executor.submit(() -> {
+        for (int i = 0; i < 1000; i++) {
+          int from = (seed + i) % accounts;
+          int to = (seed * 7 + i * 3 + 1) % accounts;
+          if (from == to) {
+            continue;
+          }
+          try {
+            this.accountsService.transferMoney(
+                new AccountTransfer("ac" + from, "ac" + to, BigDecimal.ONE));
+          } catch (NotEnoughBalanceException ignored) {
+            // Legit outcome when the source has been drained
+          }
+        }
+        return null;
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get(30, TimeUnit.SECONDS);
+    }
+    executor.shutdown();
+
+    BigDecimal total = BigDecimal.ZERO;
+    for (int i = 0; i < accounts; i++) {
+      total = total.add(this.accountsService.getAccount("ac" + i).getBalance());
+    }
+    assertThat(total).isEqualByComparingTo(BigDecimal.valueOf(100L * accounts));
+  }
+
+  @Test
+  public void transferMoney_journalFailureRollsBack() throws Exception {
+    this.accountsService.createAccount(new Account("ac1", BigDecimal.valueOf(30)));
+    this.accountsService.createAccount(new Account("ac2", BigDecimal.valueOf(50)));
+    TransferJournal journal = new TransferJournal(this.folder.getRoot().getPath());
+    journal.close();
+    this.accountsService.setTransferJournal(journal);
+
+    try {
+      this.accountsService.transferMoney(new AccountTransfer("ac1", "ac2", BigDecimal.TEN));
+      fail("Should have failed as the journal is closed");
+    } catch (JournalException ignored) {
+      // Expected, and the transfer rolled back
+    }
+
+    assertThat(this.accountsService.getAccount("ac1").getBalance()).isEqualByComparingTo("30");
+    assertThat(this.accountsService.getAccount("ac2").getBalance()).isEqualByComparingTo("50");
+  }
+
+  @Test
+  public void transferMoney_storeFailureRollsBack() throws Exception {
+    AtomicBoolean failing = new AtomicBoolean();
+    RingBufferAccountsService accountsService = new RingBufferAccountsService(
+        new AccountsRepositoryInMemory() {
+          @Override
+          public void updateAccounts(Collection<Account> accounts) {
+            if (failing.getAndSet(false)) {
+              throw new IllegalStateException("Store unavailable");
+            }
+            super.updateAccounts(accounts);
+          }
+        }, new EmailNotificationService(), 1024, 64, "yielding");
+    try {
+      accountsService.createAccount(new Account("ac1", BigDecimal.valueOf(30)));
+      accountsService.createAccount(new Account("ac2", BigDecimal.valueOf(50)));
+      failing.set(true);
+
+      try {
+        accountsService.transferMoney(new AccountTransfer("ac1", "ac2", BigDecimal.TEN));
+        fail("Should have failed as the batch was not stored");
+      } catch (IllegalStateException ignored) {
+        // Expected, and the transfer rolled back
+      }
+
+      assertThat(accountsService.getAccount("ac1").getBalance()).isEqualByComparingTo("30");
+      assertThat(accountsService.getAccount("ac2").getBalance()).isEqualByComparingTo("50");
+      assertTrue(accountsService.transferMoney(
+          new AccountTransfer("ac1", "ac2", BigDecimal.TEN)));
+      assertThat(accountsService.getAccount("ac1").getBalance()).isEqualByComparingTo("20");
+    } finally {
+      accountsService.shutdown();
+    }
+  }
+}
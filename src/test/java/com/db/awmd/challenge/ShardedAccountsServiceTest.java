@@ -0,0 +1,125 @@
+package com.db.awmd.challenge;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.AccountTransfer;
+import com.db.awmd.challenge.domain.MultiLegTransfer;
+import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import com.db.awmd.challenge.repository.AccountsRepositoryInMemory;
+import com.db.awmd.challenge.service.EmailNotificationService;
+import com.db.awmd.challenge.service.ShardedAccountsService;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ShardedAccountsServiceTest {
+
+  private ShardedAccountsService accountsService;
+
+  @Before
+  public void setup() {
+    this.accountsService = new ShardedAccountsService(new AccountsRepositoryInMemory(),
+        new EmailNotificationService(), 4);
+  }
+
+  @After
+  public void shutdown() {
+    this.accountsService.shutdown();
+  }
+
+  @Test
+  public void transferMoney_ok() throws Exception {
+    this.accountsService.createAccount(new Account("ac1", BigDecimal.valueOf(30)));
+    this.accountsService.createAccount(new Account("ac2", BigDecimal.valueOf(50)));
+
+    assertTrue(this.accountsService.transferMoney(
+        new AccountTransfer("ac1", "ac2", BigDecimal.TEN)));
+
+    assertThat(this.accountsService.getAccount("ac1").getBalance()).isEqualByComparingTo("20");
+    assertThat(this.accountsService.getAccount("ac2").getBalance()).isEqualByComparingTo("60");
+  }
+
+  @Test
+  public void transferMoneyAsync_notifiesOnTheExecutor() throws Exception {
+    List<String> notifyingThreads = new CopyOnWriteArrayList<>();
+    ShardedAccountsService accountsService = new ShardedAccountsService(
+        new AccountsRepositoryInMemory(),
+        (account, transferDescription) ->
+            notifyingThreads.add(Thread.currentThread().getName()), 4);
+    accountsService.createAccount(new Account("ac1", BigDecimal.valueOf(30)));
+    accountsService.createAccount(new Account("ac2", BigDecimal.valueOf(50)));
+    ExecutorService executor = Executors.newSingleThreadExecutor(
+        runnable -> new Thread(runnable, "transfer-executor"));
+
+    assertTrue(accountsService.transferMoneyAsync(
+        new AccountTransfer("ac1", "ac2", BigDecimal.TEN), executor).get(5, TimeUnit.SECONDS));
+    assertThat(notifyingThreads).containsExactly("transfer-executor", "transfer-executor");
+    executor.shutdown();
+    accountsService.shutdown();
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void transferMoneyMultiLeg_refused() {
+    this.accountsService.transferMoneyMultiLeg(new MultiLegTransfer("ac1",
+        Collections.singletonList(new MultiLegTransfer.Leg("ac2", BigDecimal.TEN))));
+  }
+
+  @Test(expected = NotEnoughBalanceException.class)
+  public void transferMoney_notEnoughBalance() throws Exception {
+    this.accountsService.createAccount(new Account("ac1", BigDecimal.valueOf(30)));
+    this.accountsService.createAccount(new Account("ac2", BigDecimal.valueOf(50)));
+
+    this.accountsService.transferMoney(new AccountTransfer("ac1", "ac2", BigDecimal.valueOf(31)));
+  }
+
+  @Test
+  public void transferMoney_concurrentAcrossShards() throws Exception {
+    int accounts = 16;
+    for (int i = 0; i < accounts; i++) {
+      this.accountsService.createAccount(new Account("ac" + i, BigDecimal.valueOf(100)));
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      int seed = t;
+      futures.add(executor.submit(() -> {
+        for (int i = 0; i < 1000; i++) {
+          int from = (seed + i) % accounts;
+          int to = (seed * 7 + i * 3 + 1) % accounts;
+          if (from == to) {
+            continue;
+          }
+          try {
+            this.accountsService.transferMoney(
+                new AccountTransfer("ac" + from, "ac" + to, BigDecimal.ONE));
+          } catch (NotEnoughBalanceException ignored) {
+            // Legit outcome when the source has been drained
+          }
+        }
+        return null;
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get(30, TimeUnit.SECONDS);
+    }
+    executor.shutdown();
+
+    BigDecimal total = BigDecimal.ZERO;
+    for (int i = 0; i < accounts; i++) {
+      total = total.add(this.accountsService.getAccount("ac" + i).getBalance());
+    }
+    assertThat(total).isEqualByComparingTo(BigDecimal.valueOf(100L * accounts));
+  }
+}
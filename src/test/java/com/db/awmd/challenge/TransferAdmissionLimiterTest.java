@@ -0,0 +1,82 @@
+package com.db.awmd.challenge;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.db.awmd.challenge.web.TransferAdmissionLimiter;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class TransferAdmissionLimiterTest {
+
+  @Test
+  public void refusesBeyondLimit() {
+    TransferAdmissionLimiter limiter = new TransferAdmissionLimiter(true, 2, 1, 10, 100, 0.5);
+
+    assertTrue(limiter.tryAcquire());
+    assertTrue(limiter.tryAcquire());
+    assertFalse(limiter.tryAcquire());
+
+    limiter.release(TimeUnit.MILLISECONDS.toNanos(1), false);
+    assertTrue(limiter.tryAcquire());
+    assertThat(limiter.getInFlight()).isEqualTo(2);
+  }
+
+  @Test
+  public void adaptsLimitToLatency() {
+    TransferAdmissionLimiter limiter = new TransferAdmissionLimiter(true, 8, 2, 10, 1000, 0.5);
+
+    // Fast transfers raise it by 1 / limit each, as long as half the limit is in flight
+    for (int i = 0; i < 8; i++) {
+      assertTrue(limiter.tryAcquire());
+    }
+    for (int i = 0; i < 8; i++) {
+      limiter.release(TimeUnit.MILLISECONDS.toNanos(1), false);
+    }
+    assertThat(limiter.getLimit()).isGreaterThan(8.4).isLessThan(8.6);
+
+    // A single pause is smoothed out
+    assertTrue(limiter.tryAcquire());
+    limiter.release(TimeUnit.SECONDS.toNanos(2), false);
+    assertThat(limiter.getLimit()).isGreaterThan(8.4).isLessThan(8.6);
+
+    // Congested transfers halve it, once per latency target
+    assertTrue(limiter.tryAcquire());
+    assertTrue(limiter.tryAcquire());
+    limiter.release(0, true);
+    limiter.release(0, true);
+    assertThat(limiter.getLimit()).isGreaterThan(4.2).isLessThan(4.3);
+  }
+
+  @Test
+  public void keepsLimitWithinBounds() {
+    TransferAdmissionLimiter limiter = new TransferAdmissionLimiter(true, 4, 2, 5, 0, 0.5);
+
+    for (int i = 0; i < 3; i++) {
+      assertTrue(limiter.tryAcquire());
+      limiter.release(0, true);
+    }
+    assertThat(limiter.getLimit()).isEqualTo(2);
+
+    for (int round = 0; round < 100; round++) {
+      int admitted = 0;
+      while (limiter.tryAcquire()) {
+        admitted++;
+      }
+      for (int i = 0; i < admitted; i++) {
+        limiter.release(0, false);
+      }
+    }
+    assertThat(limiter.getLimit()).isEqualTo(5);
+  }
+
+  @Test
+  public void disabledAdmitsEverything() {
+    TransferAdmissionLimiter limiter = new TransferAdmissionLimiter(false, 1, 1, 1, 100, 0.5);
+
+    assertTrue(limiter.tryAcquire());
+    assertTrue(limiter.tryAcquire());
+    assertThat(limiter.getInFlight()).isEqualTo(2);
+  }
+}
@@ -0,0 +1,145 @@
+package com.db.awmd.challenge;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+import com.db.awmd.challenge.domain.AccountTransfer;
+import com.db.awmd.challenge.history.TransferHistory;
+import com.db.awmd.challenge.history.TransferPage;
+import com.db.awmd.challenge.history.TransferRecord;
+import java.io.File;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TransferHistoryTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private TransferHistory history;
+
+  @Before
+  public void createHistory() throws Exception {
+    this.history = new TransferHistory(this.folder.getRoot().getPath(), 4);
+    this.history.start();
+  }
+
+  @Test
+  public void find_pagesNewestFirstAcrossSpilledSegments() throws Exception {
+    // ac1 shows up in every other segment only
+    for (int i = 1; i <= 40; i++) {
+      this.history.record(i % 8 == 0
+          ? transfer("ac1", "ac2", i) : transfer("ac3", "ac4", i));
+    }
+    this.history.close();
+    File[] segments = this.folder.getRoot().listFiles();
+    assertThat(segments).hasSize(10);
+
+    List<BigDecimal> amounts = new ArrayList<>();
+    String cursor = null;
+    int pages = 0;
+    do {
+      TransferPage page = this.history.find("ac1", cursor, Long.MIN_VALUE, Long.MAX_VALUE, 2);
+      for (TransferRecord record : page.getTransfers()) {
+        amounts.add(record.getAmount());
+      }
+      cursor = page.getNextCursor();
+      pages++;
+    } while (cursor != null);
+
+    assertThat(pages).isEqualTo(3);
+    assertThat(amounts).containsExactly(new BigDecimal("40.00"), new BigDecimal("32.00"),
+        new BigDecimal("24.00"), new BigDecimal("16.00"), new BigDecimal("8.00"));
+    assertThat(this.history.find("ac4", null, Long.MIN_VALUE, Long.MAX_VALUE, 100)
+        .getTransfers()).hasSize(35);
+  }
+
+  @Test
+  public void find_filtersByTime() throws Exception {
+    List<Long> timestamps = new ArrayList<>();
+    for (int i = 1; i <= 6; i++) {
+      this.history.record(transfer("ac1", "ac2", i));
+      Thread.sleep(5);
+    }
+    for (TransferRecord record : this.history.find("ac1", null, Long.MIN_VALUE, Long.MAX_VALUE,
+        10).getTransfers()) {
+      timestamps.add(0, record.getTimestamp());
+    }
+
+    TransferPage page = this.history.find("ac2", null, timestamps.get(1), timestamps.get(4), 10);
+
+    assertThat(page.getTransfers()).extracting("amount")
+        .containsExactly(new BigDecimal("4.00"), new BigDecimal("3.00"), new BigDecimal("2.00"));
+    assertThat(page.getNextCursor()).isNull();
+  }
+
+  @Test
+  public void find_filtersByTimeAcrossSegmentsWithoutTheAccount() throws Exception {
+    this.history.record(transfer("ac1", "ac2", 1));
+    for (int i = 2; i <= 20; i++) {
+      Thread.sleep(1);
+      this.history.record(transfer("ac3", "ac4", i));
+    }
+    Thread.sleep(5);
+    this.history.record(transfer("ac1", "ac2", 21));
+    for (int i = 22; i <= 40; i++) {
+      this.history.record(transfer("ac3", "ac4", i));
+    }
+    long last = this.history.find("ac1", null, Long.MIN_VALUE, Long.MAX_VALUE, 1)
+        .getTransfers().get(0).getTimestamp();
+
+    TransferPage page = this.history.find("ac1", null, Long.MIN_VALUE, last, 10);
+
+    assertThat(page.getTransfers()).extracting("amount")
+        .containsExactly(new BigDecimal("1.00"));
+  }
+
+  @Test
+  public void start_recoversFullSegments() throws Exception {
+    for (int i = 1; i <= 10; i++) {
+      this.history.record(transfer("ac1", "ac2", i));
+    }
+    this.history.close();
+
+    TransferHistory restarted = new TransferHistory(this.folder.getRoot().getPath(), 4);
+    restarted.start();
+    Thread.sleep(5);
+    restarted.record(transfer("ac2", "ac1", 11));
+    TransferPage page = restarted.find("ac1", null, Long.MIN_VALUE, Long.MAX_VALUE, 100);
+
+    // The two transfers of the segment being filled are lost
+    assertThat(page.getTransfers()).extracting("sequence", "amount")
+        .containsExactly(tuple(8L, new BigDecimal("11.00")), tuple(7L, new BigDecimal("8.00")),
+            tuple(6L, new BigDecimal("7.00")), tuple(5L, new BigDecimal("6.00")),
+            tuple(4L, new BigDecimal("5.00")), tuple(3L, new BigDecimal("4.00")),
+            tuple(2L, new BigDecimal("3.00")), tuple(1L, new BigDecimal("2.00")),
+            tuple(0L, new BigDecimal("1.00")));
+    assertThat(restarted.find("ac1", null, Long.MIN_VALUE,
+        page.getTransfers().get(1).getTimestamp() + 1, 2).getTransfers())
+        .extracting("sequence").containsExactly(7L, 6L);
+  }
+
+  @Test
+  public void find_unknownAccountIsEmpty() {
+    this.history.record(transfer("ac1", "ac2", 1));
+
+    TransferPage page = this.history.find("ac3", null, Long.MIN_VALUE, Long.MAX_VALUE, 10);
+
+    assertThat(page.getTransfers()).isEmpty();
+    assertThat(page.getNextCursor()).isNull();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void find_invalidCursor() {
+    this.history.find("ac1", "not-a-cursor", Long.MIN_VALUE, Long.MAX_VALUE, 10);
+  }
+
+  private static AccountTransfer transfer(String accountFromId, String accountToId, int amount) {
+    return new AccountTransfer(accountFromId, accountToId, BigDecimal.valueOf(amount));
+  }
+}
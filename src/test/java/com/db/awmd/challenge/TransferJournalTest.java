@@ -0,0 +1,374 @@
+package com.db.awmd.challenge;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.AccountTransfer;
+import com.db.awmd.challenge.domain.Money;
+import com.db.awmd.challenge.domain.MultiLegTransfer;
+import com.db.awmd.challenge.domain.StripedAccount;
+import com.db.awmd.challenge.exception.JournalException;
+import com.db.awmd.challenge.exception.NotEnoughBalanceException;
+import com.db.awmd.challenge.journal.AccountsSnapshotter;
+import com.db.awmd.challenge.journal.JournalRecord;
+import com.db.awmd.challenge.journal.LedgerEvent;
+import com.db.awmd.challenge.journal.LedgerProjection;
+import com.db.awmd.challenge.journal.TransferJournal;
+import com.db.awmd.challenge.repository.AccountsRepositoryInMemory;
+import com.db.awmd.challenge.service.AccountsServiceImpl;
+import com.db.awmd.challenge.service.EmailNotificationService;
+import com.db.awmd.challenge.service.OptimisticAccountsService;
+import com.db.awmd.challenge.service.RingBufferAccountsService;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TransferJournalTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void replay_returnsDurableRecordsInOrder() throws Exception {
+    String directory = this.folder.getRoot().getPath();
+    TransferJournal journal = new TransferJournal(directory);
+    journal.append(JournalRecord.create("ac1", new BigDecimal("100.50")));
+    long sequence = journal.append(JournalRecord.transfer("ac1", "ac2", BigDecimal.TEN));
+    journal.awaitDurable(sequence);
+    journal.close();
+
+    List<JournalRecord> records = new ArrayList<>();
+    new TransferJournal(directory).replay(records::add);
+    assertThat(records).containsExactly(
+        JournalRecord.create("ac1", new BigDecimal("100.50")),
+        JournalRecord.transfer("ac1", "ac2", BigDecimal.TEN));
+  }
+
+  @Test
+  public void open_truncatesTornTail() throws Exception {
+    String directory = this.folder.getRoot().getPath();
+    TransferJournal journal = new TransferJournal(directory);
+    journal.awaitDurable(journal.append(JournalRecord.create("ac1", BigDecimal.ONE)));
+    journal.awaitDurable(journal.append(JournalRecord.create("ac2", BigDecimal.ONE)));
+    journal.close();
+
+    File segment = this.folder.getRoot().listFiles()[0];
+    try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+      file.setLength(file.length() - 3);
+    }
+
+    TransferJournal reopened = new TransferJournal(directory);
+    reopened.awaitDurable(reopened.append(JournalRecord.create("ac3", BigDecimal.ONE)));
+    List<JournalRecord> records = new ArrayList<>();
+    reopened.replay(records::add);
+    assertThat(records).extracting(JournalRecord::getAccountToId).containsExactly("ac1", "ac3");
+  }
+
+  @Test
+  public void open_truncatesZeroFilledOrGarbageTail() throws Exception {
+    String directory = this.folder.getRoot().getPath();
+    TransferJournal journal = new TransferJournal(directory);
+    journal.awaitDurable(journal.append(JournalRecord.create("ac1", BigDecimal.ONE)));
+    journal.close();
+    Path segment = this.folder.getRoot().listFiles()[0].toPath();
+    // Preallocated zeros read as an empty record whose checksum matches
+    Files.write(segment, new byte[16], StandardOpenOption.APPEND);
+
+    journal = new TransferJournal(directory);
+    journal.awaitDurable(journal.append(JournalRecord.create("ac2", BigDecimal.ONE)));
+    journal.close();
+    Files.write(segment, new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xF0, 1, 2},
+        StandardOpenOption.APPEND);
+
+    List<JournalRecord> records = new ArrayList<>();
+    new TransferJournal(directory).replay(records::add);
+    assertThat(records).extracting(JournalRecord::getAccountToId).containsExactly("ac1", "ac2");
+  }
+
+  @Test
+  public void replay_failsOnCorruptSealedSegment() throws Exception {
+    String directory = this.folder.getRoot().getPath();
+    TransferJournal journal = new TransferJournal(directory);
+    journal.awaitDurable(journal.append(JournalRecord.create("ac1", BigDecimal.ONE)));
+    journal.awaitDurable(journal.append(JournalRecord.create("ac2", BigDecimal.ONE)));
+    journal.roll();
+    journal.awaitDurable(journal.append(JournalRecord.create("ac3", BigDecimal.ONE)));
+    journal.close();
+
+    File sealed = this.folder.getRoot().listFiles((dir, name) -> name.endsWith("1.log"))[0];
+    try (RandomAccessFile file = new RandomAccessFile(sealed, "rw")) {
+      file.seek(file.length() - 1);
+      file.write(file.read() ^ 0xFF);
+    }
+
+    try {
+      new TransferJournal(directory).replay(record -> {
+      });
+      fail("Should have failed on the corrupt record of a sealed segment");
+    } catch (JournalException e) {
+      assertThat(e.getMessage()).contains(sealed.getName());
+    }
+  }
+
+  @Test
+  public void close_failsAppendsAndWaitsNotWritten() throws Exception {
+    TransferJournal journal = new TransferJournal(this.folder.getRoot().getPath());
+    long sequence = journal.append(JournalRecord.create("ac1", BigDecimal.ONE));
+    journal.close();
+
+    journal.awaitDurable(sequence);
+    try {
+      journal.awaitDurable(sequence + 1);
+      fail("Should have failed waiting for a record the closed journal never writes");
+    } catch (JournalException e) {
+      assertThat(e.getMessage()).contains("closed");
+    }
+    try {
+      journal.append(JournalRecord.create("ac2", BigDecimal.ONE));
+      fail("Should have refused a record once closed");
+    } catch (JournalException e) {
+      assertThat(e.getMessage()).contains("closed");
+    }
+  }
+
+  @Test
+  public void recover_rebuildsAccountsAfterConcurrentTransfers() throws Exception {
+    String directory = this.folder.getRoot().getPath();
+    TransferJournal journal = new TransferJournal(directory);
+    AccountsRepositoryInMemory accountsRepository = new AccountsRepositoryInMemory();
+    accountsRepository.setTransferJournal(journal);
+    AccountsServiceImpl accountsService =
+        new AccountsServiceImpl(accountsRepository, new EmailNotificationService());
+    accountsService.setTransferJournal(journal);
+    for (int i = 0; i < 4; i++) {
+      accountsService.createAccount(new Account("ac" + i, BigDecimal.valueOf(1000)));
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<Boolean>> futures = new ArrayList<>();
+    for (int i = 0; i < 400; i++) {
+      AccountTransfer accountTransfer =
+          new AccountTransfer("ac" + (i % 4), "ac" + ((i + 1) % 4), BigDecimal.valueOf(i % 7));
+      futures.add(executor.submit(() -> accountsService.transferMoney(accountTransfer)));
+    }
+    for (Future<Boolean> future : futures) {
+      assertThat(future.get(30, TimeUnit.SECONDS)).isTrue();
+    }
+    executor.shutdown();
+    journal.close();
+
+    AccountsRepositoryInMemory recovered = new AccountsRepositoryInMemory();
+    recovered.setTransferJournal(new TransferJournal(directory));
+    recovered.recover();
+    for (int i = 0; i < 4; i++) {
+      assertThat(recovered.getAccount("ac" + i).getBalance())
+          .isEqualByComparingTo(accountsRepository.getAccount("ac" + i).getBalance());
+    }
+  }
+
+  @Test
+  public void replay_neverDebitsStripedAccountBeforeTheDepositFundingIt() throws Exception {
+    String directory = this.folder.getRoot().getPath();
+    TransferJournal journal = new TransferJournal(directory);
+    CountDownLatch depositing = new CountDownLatch(1);
+    CountDownLatch withdrawn = new CountDownLatch(1);
+    // Holds the deposit between changing the balances and journaling it
+    AccountsRepositoryInMemory accountsRepository = new AccountsRepositoryInMemory() {
+      @Override
+      public void updateAccounts(Collection<Account> accounts) {
+        super.updateAccounts(accounts);
+        if (accounts.contains(getAccount("ac1"))) {
+          depositing.countDown();
+          try {
+            withdrawn.await(5, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
+    };
+    accountsRepository.setTransferJournal(journal);
+    AccountsServiceImpl accountsService =
+        new AccountsServiceImpl(accountsRepository, new EmailNotificationService());
+    accountsService.setTransferJournal(journal);
+    accountsService.createAccount(new StripedAccount("hot", 0, 4));
+    accountsService.createAccount(new Account("ac1", BigDecimal.TEN));
+    accountsService.createAccount(new Account("ac2", BigDecimal.ZERO));
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    Future<Boolean> deposit = executor.submit(() ->
+        accountsService.transferMoney(new AccountTransfer("ac1", "hot", BigDecimal.ONE)));
+    depositing.await(5, TimeUnit.SECONDS);
+    boolean withdrew;
+    try {
+      withdrew = accountsService.transferMoney(new AccountTransfer("hot", "ac2", BigDecimal.ONE));
+    } catch (NotEnoughBalanceException e) {
+      withdrew = false;
+    } finally {
+      withdrawn.countDown();
+    }
+    assertThat(deposit.get(5, TimeUnit.SECONDS)).isTrue();
+    executor.shutdown();
+    journal.close();
+
+    // Cut anywhere, the journal must not hold a withdrawal without the deposit funding it
+    Map<String, Long> balances = new HashMap<>();
+    new TransferJournal(directory).replay(record -> {
+      for (LedgerEvent event : record.events()) {
+        long balance = balances.merge(event.getAccountId(), event.delta(), Long::sum);
+        assertThat(balance).as("balance of %s", event.getAccountId()).isNotNegative();
+      }
+    });
+    assertThat(balances.get("hot")).isEqualTo(withdrew ? 0 : Money.toMinorUnits(BigDecimal.ONE));
+  }
+
+  @Test
+  public void recover_rebuildsAccountsAfterRingBufferTransfers() throws Exception {
+    String directory = this.folder.getRoot().getPath();
+    TransferJournal journal = new TransferJournal(directory);
+    AccountsRepositoryInMemory accountsRepository = new AccountsRepositoryInMemory();
+    accountsRepository.setTransferJournal(journal);
+    RingBufferAccountsService accountsService = new RingBufferAccountsService(
+        accountsRepository, new EmailNotificationService(), 1024, 64, "yielding");
+    accountsService.setTransferJournal(journal);
+    accountsService.createAccount(new Account("ac1", BigDecimal.valueOf(100)));
+    accountsService.createAccount(new Account("ac2", BigDecimal.ZERO));
+    accountsService.createAccount(new Account("ac3", BigDecimal.ZERO));
+
+    accountsService.transferMoney(new AccountTransfer("ac1", "ac2", BigDecimal.TEN));
+    accountsService.transferMoneyMultiLeg(new MultiLegTransfer("ac1",
+        Arrays.asList(new MultiLegTransfer.Leg("ac2", BigDecimal.ONE),
+            new MultiLegTransfer.Leg("ac3", BigDecimal.valueOf(2)))));
+    try {
+      accountsService.transferMoney(new AccountTransfer("ac3", "ac1", BigDecimal.TEN));
+    } catch (NotEnoughBalanceException ignored) {
+      // Refused, so not journaled
+    }
+    accountsService.shutdown();
+    journal.close();
+
+    AccountsRepositoryInMemory recovered = new AccountsRepositoryInMemory();
+    recovered.setTransferJournal(new TransferJournal(directory));
+    recovered.recover();
+    assertThat(recovered.getAccount("ac1").getBalance()).isEqualByComparingTo("87");
+    assertThat(recovered.getAccount("ac2").getBalance()).isEqualByComparingTo("11");
+    assertThat(recovered.getAccount("ac3").getBalance()).isEqualByComparingTo("2");
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void optimisticEngine_refusesJournal() throws Exception {
+    new OptimisticAccountsService(new AccountsRepositoryInMemory(),
+        new EmailNotificationService(), 0, 1, 1000)
+        .setTransferJournal(new TransferJournal(this.folder.getRoot().getPath()));
+  }
+
+  @Test
+  public void multiLeg_isOneRecordReplayedWhole() throws Exception {
+    String directory = this.folder.getRoot().getPath();
+    TransferJournal journal = new TransferJournal(directory);
+    AccountsSnapshotter snapshotter = new AccountsSnapshotter(journal, directory, 60000, true);
+    journal.append(JournalRecord.create("ac1", BigDecimal.valueOf(100)));
+    journal.append(JournalRecord.create("ac2", BigDecimal.ZERO));
+    journal.append(JournalRecord.create("ac3", BigDecimal.ZERO));
+    JournalRecord multiLeg = JournalRecord.multiLeg(Arrays.asList(
+        JournalRecord.transfer("ac1", "ac2", BigDecimal.TEN),
+        JournalRecord.transfer("ac1", "ac3", BigDecimal.ONE)));
+    journal.awaitDurable(journal.append(multiLeg));
+    snapshotter.takeSnapshot();
+    journal.awaitDurable(journal.append(multiLeg));
+    journal.close();
+
+    List<JournalRecord> tail = new ArrayList<>();
+    TransferJournal reopened = new TransferJournal(directory);
+    reopened.replay(tail::add);
+    assertThat(tail).containsExactly(multiLeg);
+    assertThat(multiLeg.getAmount()).isEqualByComparingTo("11");
+
+    AccountsRepositoryInMemory recovered = new AccountsRepositoryInMemory();
+    recovered.setTransferJournal(reopened);
+    recovered.setAccountsSnapshotter(new AccountsSnapshotter(reopened, directory, 60000, false));
+    recovered.recover();
+    assertThat(recovered.getAccount("ac1").getBalance()).isEqualByComparingTo("78");
+    assertThat(recovered.getAccount("ac2").getBalance()).isEqualByComparingTo("20");
+    assertThat(recovered.getAccount("ac3").getBalance()).isEqualByComparingTo("2");
+  }
+
+  @Test
+  public void recover_loadsSnapshotAndReplaysTail() throws Exception {
+    String directory = this.folder.getRoot().getPath();
+    TransferJournal journal = new TransferJournal(directory);
+    AccountsSnapshotter snapshotter = new AccountsSnapshotter(journal, directory, 60000, true);
+    journal.append(JournalRecord.create("ac1", BigDecimal.valueOf(100)));
+    journal.append(JournalRecord.create("ac2", BigDecimal.valueOf(50)));
+    journal.awaitDurable(journal.append(JournalRecord.transfer("ac1", "ac2", BigDecimal.TEN)));
+    snapshotter.takeSnapshot();
+    journal.append(JournalRecord.create("ac3", BigDecimal.ONE));
+    journal.awaitDurable(journal.append(JournalRecord.transfer("ac2", "ac3", BigDecimal.ONE)));
+    snapshotter.takeSnapshot();
+    journal.awaitDurable(journal.append(JournalRecord.transfer("ac3", "ac1", BigDecimal.ONE)));
+    journal.close();
+
+    List<JournalRecord> tail = new ArrayList<>();
+    TransferJournal reopened = new TransferJournal(directory);
+    reopened.replay(tail::add);
+    assertThat(tail).containsExactly(JournalRecord.transfer("ac3", "ac1", BigDecimal.ONE));
+
+    AccountsRepositoryInMemory recovered = new AccountsRepositoryInMemory();
+    recovered.setTransferJournal(reopened);
+    recovered.setAccountsSnapshotter(new AccountsSnapshotter(reopened, directory, 60000, false));
+    recovered.recover();
+    assertThat(recovered.getAccount("ac1").getBalance()).isEqualByComparingTo("91");
+    assertThat(recovered.getAccount("ac2").getBalance()).isEqualByComparingTo("59");
+    assertThat(recovered.getAccount("ac3").getBalance()).isEqualByComparingTo("1");
+  }
+
+  @Test
+  public void rebuild_matchesSequentialReplayAcrossChunks() throws Exception {
+    TransferJournal journal = new TransferJournal(this.folder.getRoot().getPath());
+    Map<String, Long> expected = new HashMap<>();
+    for (int i = 0; i < 100; i++) {
+      journal.append(JournalRecord.create("ac" + i, BigDecimal.valueOf(1000)));
+      expected.put("ac" + i, 100000L);
+    }
+    long sequence = 0;
+    for (int i = 0; i < 40000; i++) {
+      String accountFromId = "ac" + (i % 100);
+      String accountToId = "ac" + (i * 7 % 97);
+      sequence = journal.append(
+          JournalRecord.transfer(accountFromId, accountToId, BigDecimal.valueOf(i % 5)));
+      expected.merge(accountFromId, -100L * (i % 5), Long::sum);
+      expected.merge(accountToId, 100L * (i % 5), Long::sum);
+    }
+    journal.awaitDurable(sequence);
+
+    ForkJoinPool pool = new ForkJoinPool(4);
+    LedgerProjection projection = LedgerProjection.rebuild(journal, null, pool);
+    pool.shutdown();
+    journal.close();
+
+    assertThat(projection.getEvents()).isEqualTo(100 + 2 * 40000);
+    assertThat(projection.size()).isEqualTo(100);
+    Map<String, Long> balances = new HashMap<>();
+    projection.forEach(balances::put);
+    assertThat(balances).isEqualTo(expected);
+  }
+}
@@ -0,0 +1,272 @@
+package com.db.awmd.challenge;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.junit.Assert.fail;
+
+import com.db.awmd.challenge.domain.Account;
+import com.db.awmd.challenge.domain.AccountTransfer;
+import com.db.awmd.challenge.domain.ScheduledTransfer;
+import com.db.awmd.challenge.domain.TransferResult;
+import com.db.awmd.challenge.journal.TransferJournal;
+import com.db.awmd.challenge.repository.AccountsRepositoryInMemory;
+import com.db.awmd.challenge.schedule.TimerWheel;
+import com.db.awmd.challenge.schedule.TransferScheduler;
+import com.db.awmd.challenge.service.AccountsServiceImpl;
+import com.db.awmd.challenge.service.EmailNotificationService;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TransferSchedulerTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void timerWheel_firesEveryItemOnItsTick() {
+    // Two levels of 10 ms ticks cover 655 s, so later deadlines go through the overflow
+    TimerWheel<Long> wheel = new TimerWheel<>(10, 2, 0);
+    Random random = new Random(42);
+    Map<Long, Long> deadlines = new HashMap<>();
+    for (long i = 0; i < 10_000; i++) {
+      long deadline = random.nextInt(2_000_000) - 1000;
+      deadlines.put(i, deadline);
+      wheel.schedule(deadline, i);
+    }
+
+    for (long now = 0; now <= 2_000_000; now += 10) {
+      long firedAt = now;
+      wheel.advance(now, item -> {
+        long due = Math.max(0, (deadlines.get(item) + 9) / 10 * 10);
+        assertThat(firedAt).as("item %s due at %s", item, deadlines.get(item)).isEqualTo(due);
+        deadlines.remove(item);
+      });
+    }
+    assertThat(deadlines).isEmpty();
+    assertThat(wheel.size()).isZero();
+  }
+
+  @Test
+  public void scheduler_dispatchesDueTransfersAndSurvivesRestart() throws Exception {
+    AccountsServiceImpl accountsService = new AccountsServiceImpl(
+        new AccountsRepositoryInMemory(), new EmailNotificationService());
+    accountsService.createAccount(new Account("ac1", new BigDecimal("100.00")));
+    accountsService.createAccount(new Account("ac2", BigDecimal.ZERO));
+    long now = System.currentTimeMillis();
+
+    TransferScheduler scheduler = newScheduler(accountsService);
+    scheduler.schedule(new ScheduledTransfer("ac1", "ac2", BigDecimal.TEN, now - 1));
+    scheduler.schedule(new ScheduledTransfer("ac1", "ac2", new BigDecimal("20"), now + 60_000));
+    scheduler.schedule(new ScheduledTransfer("ac1", "ac2", new BigDecimal("500"), now + 1000));
+    // Execution times are rounded up to the next 100 ms tick
+    assertThat(scheduler.dispatchDue(now + 100)).isEqualTo(1);
+    assertThat(accountsService.getAccount("ac2").getBalance()).isEqualByComparingTo("10");
+    scheduler.stop();
+
+    TransferScheduler restarted = newScheduler(accountsService);
+    assertThat(restarted.metrics()).extracting("name", "value")
+        .contains(tuple("scheduler.pending", 2));
+    assertThat(restarted.dispatchDue(now + 120_000)).isEqualTo(2);
+    assertThat(accountsService.getAccount("ac1").getBalance()).isEqualByComparingTo("70");
+    assertThat(accountsService.getAccount("ac2").getBalance()).isEqualByComparingTo("30");
+    assertThat(restarted.metrics()).extracting("name", "value")
+        .contains(tuple("scheduler.executed", 1L), tuple("scheduler.failed", 1L));
+    ScheduledTransfer next = restarted.schedule(
+        new ScheduledTransfer("ac1", "ac2", BigDecimal.ONE, now + 60_000));
+    assertThat(next.getId()).isEqualTo(4);
+    restarted.stop();
+
+    assertThat(newScheduler(accountsService).metrics()).extracting("name", "value")
+        .contains(tuple("scheduler.pending", 1));
+  }
+
+  @Test
+  public void scheduler_leavesBatchWithUnknownOutcomeWithoutJournal() throws Exception {
+    AtomicBoolean failing = new AtomicBoolean(true);
+    AccountsServiceImpl accountsService = new AccountsServiceImpl(
+        new AccountsRepositoryInMemory(), new EmailNotificationService()) {
+      @Override
+      public List<TransferResult> transferMoneyBatch(List<AccountTransfer> accountTransfers)
+          throws InterruptedException {
+        if (failing.getAndSet(false)) {
+          throw new IllegalStateException("Storage unavailable");
+        }
+        return super.transferMoneyBatch(accountTransfers);
+      }
+    };
+    accountsService.createAccount(new Account("ac1", new BigDecimal("100.00")));
+    accountsService.createAccount(new Account("ac2", BigDecimal.ZERO));
+    long now = System.currentTimeMillis();
+
+    TransferScheduler scheduler = newScheduler(accountsService);
+    for (int i = 0; i < 3; i++) {
+      scheduler.schedule(new ScheduledTransfer("ac1", "ac2", BigDecimal.TEN, now - 1));
+    }
+    assertThat(scheduler.dispatchDue(now + 100)).isEqualTo(3);
+    assertThat(accountsService.getAccount("ac2").getBalance()).isEqualByComparingTo("10");
+    assertThat(scheduler.metrics()).extracting("name", "value")
+        .contains(tuple("scheduler.pending", 0), tuple("scheduler.unknown", 2L));
+    scheduler.stop();
+
+    // Nothing tells whether the failed batch of two was applied, so it is not run again
+    TransferScheduler restarted = newScheduler(accountsService);
+    assertThat(restarted.dispatchDue(now + 120_000)).isZero();
+    assertThat(accountsService.getAccount("ac2").getBalance()).isEqualByComparingTo("10");
+    assertThat(restarted.metrics()).extracting("name", "value")
+        .contains(tuple("scheduler.unknown", 2L));
+    restarted.stop();
+  }
+
+  @Test
+  public void scheduler_appliesScheduledTransfersOnceAcrossRetriesAndRestarts()
+      throws Exception {
+    String directory = this.folder.newFolder("journal").getPath();
+    TransferJournal journal = new TransferJournal(directory);
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    AccountsServiceImpl accountsService = journaledService(journal, failure);
+    accountsService.createAccount(new Account("ac1", new BigDecimal("100.00")));
+    accountsService.createAccount(new Account("ac2", BigDecimal.ZERO));
+    long now = System.currentTimeMillis();
+
+    // The batch is applied, then fails: its retry finds both transfers applied
+    TransferScheduler scheduler = newScheduler(accountsService);
+    scheduler.setTransferJournal(journal);
+    scheduler.schedule(new ScheduledTransfer("ac1", "ac2", BigDecimal.TEN, now - 1));
+    scheduler.schedule(new ScheduledTransfer("ac1", "ac2", BigDecimal.ONE, now - 1));
+    failure.set(new IllegalStateException("Connection reset"));
+    assertThat(scheduler.dispatchDue(now + 100)).isEqualTo(2);
+    assertThat(scheduler.dispatchDue(now + 1200)).isEqualTo(2);
+    assertThat(accountsService.getAccount("ac2").getBalance()).isEqualByComparingTo("11");
+    assertThat(scheduler.metrics()).extracting("name", "value")
+        .contains(tuple("scheduler.executed", 2L), tuple("scheduler.pending", 0));
+
+    // The process dies once the next batch is applied, before its outcome is stored
+    scheduler.schedule(new ScheduledTransfer("ac1", "ac2", new BigDecimal("5"), now - 1));
+    failure.set(new ThreadDeath());
+    try {
+      scheduler.dispatchDue(now + 1300);
+      fail("Should have died applying the batch");
+    } catch (ThreadDeath e) {
+      scheduler.stop();
+      journal.close();
+    }
+
+    // Recovery runs the transfer still marked executing, which the journal shows applied
+    TransferJournal reopened = new TransferJournal(directory);
+    AccountsServiceImpl recovered = journaledService(reopened, failure);
+    assertThat(recovered.getAccount("ac2").getBalance()).isEqualByComparingTo("16");
+    TransferScheduler restarted = newScheduler(recovered);
+    restarted.setTransferJournal(reopened);
+    assertThat(restarted.dispatchDue(now + 1400)).isEqualTo(1);
+    assertThat(recovered.getAccount("ac1").getBalance()).isEqualByComparingTo("84");
+    assertThat(recovered.getAccount("ac2").getBalance()).isEqualByComparingTo("16");
+    restarted.stop();
+    reopened.close();
+
+    // Settled once out of the store, so the journal no longer needs the ids
+    TransferJournal settled = new TransferJournal(directory);
+    journaledService(settled, failure);
+    assertThat(settled.isScheduledApplied(1)).isFalse();
+    assertThat(settled.isScheduledApplied(3)).isFalse();
+    settled.close();
+  }
+
+  @Test
+  public void store_compactsLogOfExecutedTransfers() throws Exception {
+    AccountsServiceImpl accountsService = new AccountsServiceImpl(
+        new AccountsRepositoryInMemory(), new EmailNotificationService());
+    accountsService.createAccount(new Account("ac1", new BigDecimal("100.00")));
+    accountsService.createAccount(new Account("ac2", BigDecimal.ZERO));
+    long now = System.currentTimeMillis();
+
+    TransferScheduler scheduler = newScheduler(accountsService);
+    scheduler.schedule(new ScheduledTransfer("ac1", "ac2", BigDecimal.ONE, now + 60_000));
+    for (int i = 0; i < 20; i++) {
+      scheduler.schedule(new ScheduledTransfer("ac1", "ac2", BigDecimal.ONE, now - 1));
+      scheduler.dispatchDue(now + 100);
+    }
+    assertThat(accountsService.getAccount("ac2").getBalance()).isEqualByComparingTo("20");
+    assertThat(scheduler.metrics()).extracting("name", "value")
+        .contains(tuple("scheduler.store.compactions", 9L));
+    scheduler.stop();
+
+    TransferScheduler restarted = newScheduler(accountsService);
+    assertThat(restarted.metrics()).extracting("name", "value")
+        .contains(tuple("scheduler.pending", 1));
+    restarted.stop();
+  }
+
+  @Test
+  public void store_ignoresTornTail() throws Exception {
+    AccountsServiceImpl accountsService = new AccountsServiceImpl(
+        new AccountsRepositoryInMemory(), new EmailNotificationService());
+    long now = System.currentTimeMillis();
+    Path log = this.folder.getRoot().toPath().resolve("scheduled-transfers.log");
+
+    TransferScheduler scheduler = newScheduler(accountsService);
+    scheduler.schedule(new ScheduledTransfer("ac1", "ac2", BigDecimal.ONE, now + 60_000));
+    scheduler.stop();
+    // Preallocated zeros read as an empty record whose checksum matches
+    Files.write(log, new byte[16], StandardOpenOption.APPEND);
+
+    scheduler = newScheduler(accountsService);
+    assertThat(scheduler.metrics()).extracting("name", "value")
+        .contains(tuple("scheduler.pending", 1));
+    scheduler.schedule(new ScheduledTransfer("ac1", "ac2", BigDecimal.ONE, now + 60_000));
+    scheduler.stop();
+    Files.write(log, new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xF0, 1, 2, 3},
+        StandardOpenOption.APPEND);
+
+    scheduler = newScheduler(accountsService);
+    assertThat(scheduler.metrics()).extracting("name", "value")
+        .contains(tuple("scheduler.pending", 2));
+    scheduler.stop();
+  }
+
+  /**
+   * Locking engine over accounts recovered from the journal, which applies a batch and then
+   * throws the failure if one is set, an error standing for the process dying.
+   */
+  private AccountsServiceImpl journaledService(TransferJournal journal,
+      AtomicReference<Throwable> failure) {
+    AccountsRepositoryInMemory accountsRepository = new AccountsRepositoryInMemory();
+    accountsRepository.setTransferJournal(journal);
+    accountsRepository.recover();
+    AccountsServiceImpl accountsService = new AccountsServiceImpl(accountsRepository,
+        new EmailNotificationService()) {
+      @Override
+      public List<TransferResult> transferMoneyBatch(List<AccountTransfer> accountTransfers)
+          throws InterruptedException {
+        List<TransferResult> results = super.transferMoneyBatch(accountTransfers);
+        Throwable e = failure.getAndSet(null);
+        if (e instanceof RuntimeException) {
+          throw (RuntimeException) e;
+        } else if (e != null) {
+          throw (Error) e;
+        }
+        return results;
+      }
+    };
+    accountsService.setTransferJournal(journal);
+    return accountsService;
+  }
+
+  /**
+   * Scheduler on the test directory whose dispatch thread is not started.
+   */
+  private TransferScheduler newScheduler(AccountsServiceImpl accountsService) throws Exception {
+    return new TransferScheduler(accountsService, this.folder.getRoot().getPath(), 100, 4, 2,
+        1000, 8);
+  }
+}